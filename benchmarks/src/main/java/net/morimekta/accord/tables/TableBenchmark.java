@@ -0,0 +1,94 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tables;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import net.morimekta.net.Location;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorted inserts and owner lookups in the overlay tables, at table sizes
+ * from 8 to 1024. The finger table and the pred and succ lists of the
+ * LookupTable are filled with size random locations each.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TableBenchmark {
+    private static final int KEYS = 1024;
+    
+    @Param({"8", "32", "128", "512", "1024"})
+    public int size;
+    
+    private LookupTable table;
+    private PredList    list;
+    private Location    extra;
+    private Index[]     keys;
+    private int         i = 0;
+    
+    private static Location host(int n) throws UnknownHostException {
+        return Location.get("10."+( ( n >> 16 ) & 0xff )+"."+( ( n >> 8 ) & 0xff )+"."+( n & 0xff )+":7000");
+    }
+    
+    @Setup
+    public void setup() throws UnknownHostException {
+        Location me = host(0);
+        table = new LookupTable(me);
+        list  = new PredList(me);
+        for( int n = 1; n <= size; n++ ) {
+            table.preds().addSorted(host(n));
+            table.succs().addSorted(host(size + n));
+            table.fingers().addSorted(host(2 * size + n));
+            list.addSorted(host(n));
+        }
+        extra = host(3 * size + 1);
+        
+        IndexFactory factory = me.getIndex().getFactory();
+        keys = new Index[KEYS];
+        for( int n = 0; n < KEYS; n++ ) keys[n] = factory.getIndexOf("key"+n);
+    }
+    
+    private Index next() {
+        i = ( i + 1 ) & ( KEYS - 1 );
+        return keys[i];
+    }
+    
+    @Benchmark
+    public boolean addSorted() {
+        boolean ret = list.addSorted(extra);
+        list.remove(extra);
+        return ret;
+    }
+    
+    @Benchmark
+    public Location ownerOf() {
+        Index idx = next();
+        return list.containsOwnerOf(idx) ? list.ownerOf(idx) : null;
+    }
+    
+    @Benchmark
+    public Location owner_of() {
+        return table.owner_of(next());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.net;
+
+import java.net.DatagramPacket;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message packing and unpacking, and parsing of "ip:port" locations, as
+ * done for each packet sent and received. The locations are parsed both
+ * with and without the intern tables of Location.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    private static final int COUNT = 1024;
+    
+    private DatagramPacket packet;
+    private String[]       hosts;
+    private int            i = 0;
+    
+    @Setup
+    public void setup() throws UnknownHostException {
+        hosts = new String[COUNT];
+        for( int j = 0; j < COUNT; j++ ) hosts[j] = "10.0."+( j >> 8 )+"."+( j & 0xff )+":7000";
+        packet = encode();
+        packet.setAddress(Location.get(hosts[0]).getAddress());
+        packet.setPort(7000);
+    }
+    
+    @Benchmark
+    public DatagramPacket encode() {
+        Message msg = new Message(12, 0, 0, "lookup",
+                "index 10.0.0.1:7000 J1TzthLODxye4RFXxqh8RCMXwgc= no_safe");
+        return msg.getPacket();
+    }
+    
+    @Benchmark
+    public Message decode() throws UnknownHostException {
+        return new Message(packet);
+    }
+    
+    /**
+     * Parse a location without the intern tables.
+     */
+    @Benchmark
+    public Location parseLocation() throws UnknownHostException {
+        i = ( i + 1 ) & ( COUNT - 1 );
+        return new Location(hosts[i]);
+    }
+    
+    /**
+     * Get an interned location, which after the first round is a lookup in
+     * the intern table.
+     */
+    @Benchmark
+    public Location internLocation() throws UnknownHostException {
+        i = ( i + 1 ) & ( COUNT - 1 );
+        return Location.get(hosts[i]);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.index;
+
+import java.util.concurrent.TimeUnit;
+
+import net.morimekta.util.std.STD;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Index arithmetic and hashing, used on every lookup hop and table update.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexBenchmark {
+    private static final int COUNT = 1024;
+    
+    private IndexFactory factory;
+    private Index[]      idx;
+    private byte[][]     raw;
+    private String[]     str;
+    private int          i = 0;
+    
+    @Setup
+    public void setup() {
+        factory = SHA1Factory.getInstance();
+        idx     = new Index[COUNT];
+        raw     = new byte[COUNT][];
+        str     = new String[COUNT];
+        for( int j = 0; j < COUNT; j++ ) {
+            str[j] = "10.0."+( j >> 8 )+"."+( j & 0xff )+":7000";
+            idx[j] = factory.getIndexOf(str[j]);
+            raw[j] = idx[j].getBytes();
+        }
+    }
+    
+    private int next() {
+        i = ( i + 1 ) & ( COUNT - 1 );
+        return i;
+    }
+    
+    @Benchmark
+    public boolean between() {
+        int j = next();
+        return idx[j].between(idx[( j + 1 ) & ( COUNT - 1 )], idx[( j + 2 ) & ( COUNT - 1 )]);
+    }
+    
+    @Benchmark
+    public Index add() {
+        int j = next();
+        return idx[j].add(idx[( j + 1 ) & ( COUNT - 1 )]);
+    }
+    
+    @Benchmark
+    public Index sub() {
+        int j = next();
+        return idx[j].sub(idx[( j + 1 ) & ( COUNT - 1 )]);
+    }
+    
+    @Benchmark
+    public byte[] rshN() {
+        int j = next();
+        return STD.RshN(raw[j].clone(), j % 160);
+    }
+    
+    @Benchmark
+    public Index sha1() {
+        return factory.getIndexOf(str[next()]);
+    }
+}
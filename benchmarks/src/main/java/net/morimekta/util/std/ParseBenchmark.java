@@ -0,0 +1,80 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import java.util.concurrent.TimeUnit;
+
+import net.iharder.xmlizable.Base64;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the option strings in the protocol messages, and the Base64
+ * coding of indices.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    private static final String LINE = "--host 10.0.0.1:7000 --msg \"confirm --host 10.0.0.2:7000\" --no-check --respond";
+    
+    private OptionParser parser;
+    private Options      options;
+    private byte[]       bytes;
+    private String       base64;
+    private int          count;
+    
+    @Setup
+    public void setup() {
+        parser  = new OptionParser("h,host,string\nm,msg,string\nn,no-check\nr,respond");
+        options = new Options(parser) {
+            public void parse(char op, String arg) {
+                count++;
+            }
+        };
+        bytes = new byte[20];
+        for( int j = 0; j < bytes.length; j++ ) bytes[j] = (byte) ( j * 37 );
+        base64 = Base64.encodeBytes(bytes);
+    }
+    
+    @Benchmark
+    public String[] splitString() {
+        return STD.splitString(LINE);
+    }
+    
+    @Benchmark
+    public OptionParser.Result optionParser() {
+        return parser.parse(LINE);
+    }
+    
+    @Benchmark
+    public int options() {
+        options.run(LINE);
+        return count;
+    }
+    
+    @Benchmark
+    public String base64Encode() {
+        return Base64.encodeBytes(bytes);
+    }
+    
+    @Benchmark
+    public byte[] base64Decode() {
+        return Base64.decode(base64);
+    }
+}
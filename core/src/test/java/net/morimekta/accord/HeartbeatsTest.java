@@ -0,0 +1,170 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Vector;
+
+import net.morimekta.net.Location;
+import net.morimekta.net.Message;
+import net.morimekta.net.MessageService;
+import net.morimekta.net.MessageSocket;
+import net.morimekta.net.SimNetwork;
+import net.morimekta.util.std.Metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the i-am-alives between the virtual nodes of two hosts.
+ *
+ * @author Stein Eldar Johnsen
+ */
+public class HeartbeatsTest {
+    /**
+     * Records the i-am-alives received by a virtual node.
+     */
+    private static class Receiver implements MessageService {
+        final Vector<Message> received = new Vector<Message>();
+
+        public synchronized void invoke(Message msg) {
+            received.add(msg);
+            notifyAll();
+        }
+
+        public synchronized Message await() throws InterruptedException {
+            long end = System.currentTimeMillis() + 2000;
+            while( received.isEmpty() && System.currentTimeMillis() < end ) {
+                wait(end - System.currentTimeMillis());
+            }
+            return received.isEmpty() ? null : received.remove(0);
+        }
+
+        public String getServiceName() {
+            return "i-am-alive";
+        }
+    }
+
+    private SimNetwork             net;
+    private Metrics                metrics;
+    private Vector<MessageSocket>  sockets;
+
+    @Before
+    public void setUp() {
+        net     = new SimNetwork(1);
+        metrics = new Metrics();
+        sockets = new Vector<MessageSocket>();
+        net.setMetrics(metrics);
+        net.start();
+    }
+
+    @After
+    public void tearDown() {
+        for( MessageSocket s : sockets ) s.close();
+        net.stop();
+    }
+
+    /**
+     * Open the sockets of the virtual nodes of a host.
+     */
+    private MessageSocket[] host(int count) throws IOException {
+        MessageSocket[] ret = new MessageSocket[count];
+        ret[0] = new MessageSocket(net.open(7000));
+        InetAddress addr = ret[0].getLocation().getAddress();
+        for( int i = 1; i < count; i++ ) {
+            ret[i] = new MessageSocket(net.open(addr, 7000 + i));
+        }
+        for( MessageSocket s : ret ) sockets.add(s);
+        return ret;
+    }
+
+    /**
+     * Send an i-am-alive from each virtual node of host a to one of host b,
+     * and check they all arrive from the right node.
+     *
+     * @return
+     *    Number of messages sent.
+     */
+    private int exchange(int vnodes) throws Exception {
+        MessageSocket[] a  = host(vnodes);
+        MessageSocket[] b  = host(vnodes);
+        Heartbeats      ha = new Heartbeats();
+        Heartbeats      hb = new Heartbeats();
+        Receiver[]      rb = new Receiver[vnodes];
+        for( int i = 0; i < vnodes; i++ ) {
+            rb[i] = new Receiver();
+            hb.add(b[i], rb[i]);
+            b[i].register(rb[i]);
+            b[i].register(hb);
+            a[i].register(ha);
+        }
+
+        for( int i = 0; i < vnodes; i++ ) {
+            String alive = "--version " + i + "\n" + a[( i + 1 ) % vnodes].getLocation() + "\n";
+            ha.queue(a[i], a[i].getLocation(), b[i].getLocation(),
+                     new Message(0, 0, 0, "i-am-alive", alive));
+        }
+        long before = metrics.counter("sim.sent").get();
+        int  sent   = ha.flush();
+        assertEquals(sent, metrics.counter("sim.sent").get() - before);
+
+        for( int i = 0; i < vnodes; i++ ) {
+            Message msg = rb[i].await();
+            assertTrue("no i-am-alive to " + b[i].getLocation(), msg != null);
+            assertEquals(a[i].getLocation(), msg.getSender());
+            assertEquals("--version " + i + "\n" + a[( i + 1 ) % vnodes].getLocation() + "\n",
+                         msg.getMessage());
+        }
+        return sent;
+    }
+
+    @Test
+    public void testOneMessagePerHost() throws Exception {
+        assertEquals(1, exchange(1));
+        assertEquals(1, exchange(2));
+        assertEquals(1, exchange(4));
+        assertEquals(1, exchange(8));
+    }
+
+    @Test
+    public void testSplitWhenLarge() throws Exception {
+        int sent = exchange(32);
+        // about 15 i-am-alives fit in a packet.
+        assertTrue("sent " + sent, sent > 1 && sent <= 4);
+    }
+
+    @Test
+    public void testPassedOnToOtherProcess() throws Exception {
+        // two "processes" on the same address: the entry for the node not
+        // on the receiving one is passed on to it.
+        MessageSocket[] a  = host(2);
+        MessageSocket[] b  = host(2);
+        Heartbeats      ha = new Heartbeats();
+        Heartbeats      b0 = new Heartbeats();
+        Heartbeats      b1 = new Heartbeats();
+        Receiver        r0 = new Receiver();
+        Receiver        r1 = new Receiver();
+        b0.add(b[0], r0);
+        b1.add(b[1], r1);
+        b[0].register(b0);
+        b[1].register(b1);
+        b[1].register(r1);
+
+        ha.queue(a[0], a[0].getLocation(), b[0].getLocation(), new Message(0, 0, 0, "i-am-alive", "x\n"));
+        ha.queue(a[1], a[1].getLocation(), b[1].getLocation(), new Message(0, 0, 0, "i-am-alive", "y\n"));
+        assertEquals(1, ha.flush());
+
+        Message m0 = r0.await();
+        Message m1 = r1.await();
+        assertTrue(m0 != null && m1 != null);
+        assertEquals("x\n", m0.getMessage());
+        assertEquals(a[1].getLocation(), m1.getSender());
+        assertEquals("y\n", m1.getMessage());
+    }
+}
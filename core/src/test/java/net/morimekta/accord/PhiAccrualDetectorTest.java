@@ -0,0 +1,64 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import net.morimekta.net.Location;
+
+import org.junit.Test;
+
+/**
+ * Tests of the phi-accrual failure detector.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class PhiAccrualDetectorTest {
+    private static Location loc(int port) throws IOException {
+        return Location.get("127.0.0.1:"+port);
+    }
+    
+    @Test
+    public void testUnknownHostIsNotSuspected() throws IOException {
+        PhiAccrualDetector fd = new PhiAccrualDetector(8.0, 100, 100.0, 0, 1000, 2);
+        assertFalse(fd.isMonitored(loc(8001)));
+        assertEquals(0.0, fd.suspicion(loc(8001), 1000000), 0.0);
+        assertFalse(fd.isSuspected(loc(8001), 1000000));
+        // reading does not start monitoring.
+        assertFalse(fd.isMonitored(loc(8001)));
+    }
+    
+    @Test
+    public void testReadsDoNotEvict() throws IOException {
+        PhiAccrualDetector fd = new PhiAccrualDetector(8.0, 100, 100.0, 0, 1000, 2);
+        fd.heartbeat(loc(8001), 0);
+        fd.heartbeat(loc(8002), 0);
+        for( int port = 8003; port < 8100; port++ ) fd.isSuspected(loc(port), 500);
+        assertTrue(fd.isMonitored(loc(8001)));
+        assertTrue(fd.isMonitored(loc(8002)));
+        
+        // a new host heard from evicts the one heard from the longest ago.
+        fd.heartbeat(loc(8002), 400);
+        fd.heartbeat(loc(8003), 500);
+        assertFalse(fd.isMonitored(loc(8001)));
+        assertTrue(fd.isMonitored(loc(8003)));
+    }
+    
+    @Test
+    public void testSuspicionGrows() throws IOException {
+        PhiAccrualDetector fd = new PhiAccrualDetector(8.0, 100, 100.0, 0, 1000, 16);
+        for( long t = 0; t <= 10000; t += 1000 ) fd.heartbeat(loc(8001), t);
+        assertFalse(fd.isSuspected(loc(8001), 11000));
+        assertTrue(fd.suspicion(loc(8001), 11500) < fd.suspicion(loc(8001), 12000));
+        assertTrue(fd.isSuspected(loc(8001), 20000));
+        
+        fd.remove(loc(8001));
+        assertFalse(fd.isMonitored(loc(8001)));
+        assertFalse(fd.isSuspected(loc(8001), 20000));
+    }
+}
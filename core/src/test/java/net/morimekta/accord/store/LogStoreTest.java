@@ -0,0 +1,201 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.index.SHA1Factory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the LogStore recovery.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class LogStoreTest {
+    private static final IndexFactory factory = SHA1Factory.getInstance();
+    // op, klen, key and vlen.
+    private static final int          HEAD    = 2 + 20 + 4;
+    
+    private File file;
+    
+    private static Index key(String str) {
+        return factory.getIndexOf(str);
+    }
+    
+    private static byte[] value(int len, int b) {
+        byte[] ret = new byte[len];
+        for( int i = 0; i < len; i++ ) ret[i] = (byte) b;
+        return ret;
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("logstore-test", ".log");
+        file.delete();
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath()+".compact").delete();
+    }
+    
+    private LogStore open() throws IOException {
+        return new LogStore(file.getPath(), factory, 64);
+    }
+    
+    private void poke(long pos, byte[] bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(pos);
+            raf.write(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    @Test
+    public void testReopen() throws IOException {
+        LogStore store = open();
+        // grows the file from 64 bytes a few times.
+        for( int i = 0; i < 100; i++ ) store.put(key("k"+i), value(i, i));
+        store.put(key("k5"), value(3, 0x55));
+        assertTrue(store.delete(key("k7")));
+        assertFalse(store.delete(key("k7")));
+        store.close();
+        
+        store = open();
+        assertEquals(99, store.size());
+        assertArrayEquals(value(3, 0x55), store.get(key("k5")));
+        assertArrayEquals(value(42, 42), store.get(key("k42")));
+        assertNull(store.get(key("k7")));
+        assertEquals(3, store.getGarbage());
+        store.close();
+    }
+    
+    @Test
+    public void testTornRecord() throws IOException {
+        LogStore store = open();
+        store.put(key("a"), value(10, 0xaa));
+        store.put(key("b"), value(10, 0xbb));
+        store.close();
+        
+        // the op byte of the last record is written last, and was lost.
+        poke(4 + HEAD + 10, new byte[]{ 0 });
+        store = open();
+        assertEquals(1, store.size());
+        assertArrayEquals(value(10, 0xaa), store.get(key("a")));
+        assertNull(store.get(key("b")));
+        
+        // the next record is written in place of the torn one.
+        store.put(key("c"), value(1, 0xcc));
+        store.close();
+        store = open();
+        assertEquals(2, store.size());
+        assertArrayEquals(value(1, 0xcc), store.get(key("c")));
+        store.close();
+    }
+    
+    @Test
+    public void testTornTailIsCleared() throws IOException {
+        LogStore store = open();
+        store.put(key("a"), value(1, 0xaa));
+        // a value that looks like a record.
+        byte[] fake = new byte[HEAD + 8];
+        fake[0] = 1;
+        fake[1] = 20;
+        System.arraycopy(key("fake").getBytes(), 0, fake, 2, 20);
+        store.put(key("b"), fake);
+        store.close();
+        
+        poke(4 + HEAD + 1, new byte[]{ 0 });
+        store = open();
+        assertEquals(1, store.size());
+        // a shorter record over the torn one, ending where the fake record
+        // starts.
+        store.put(key("c"), new byte[0]);
+        store.close();
+        
+        store = open();
+        assertEquals(2, store.size());
+        assertNull(store.get(key("fake")));
+        store.close();
+    }
+    
+    @Test
+    public void testTruncated() throws IOException {
+        LogStore store = open();
+        store.put(key("a"), value(10, 0xaa));
+        store.put(key("b"), value(100, 0xbb));
+        store.close();
+        
+        // cut in the middle of the value of the last record.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(4 + HEAD + 10 + HEAD + 50);
+        } finally {
+            raf.close();
+        }
+        store = open();
+        assertEquals(1, store.size());
+        assertNull(store.get(key("b")));
+        store.put(key("b"), value(100, 0xbc));
+        store.close();
+        
+        store = open();
+        assertArrayEquals(value(100, 0xbc), store.get(key("b")));
+        store.close();
+    }
+    
+    @Test
+    public void testCompact() throws IOException {
+        LogStore store = open();
+        for( int i = 0; i < 20; i++ ) store.put(key("k"+(i % 5)), value(i, i));
+        store.delete(key("k0"));
+        assertEquals(4, store.size());
+        assertTrue(store.getGarbage() > 0);
+        store.compact();
+        assertEquals(0, store.getGarbage());
+        assertEquals(4, store.size());
+        assertArrayEquals(value(19, 19), store.get(key("k4")));
+        store.close();
+        
+        store = open();
+        assertEquals(4, store.size());
+        assertNull(store.get(key("k0")));
+        store.close();
+    }
+    
+    @Test
+    public void testNotALog() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(value(64, 0x12));
+        } finally {
+            out.close();
+        }
+        try {
+            open();
+            fail("no exception");
+        } catch (IOException e) {
+            // expected.
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.index.SHA1Factory;
+
+import org.junit.Test;
+
+/**
+ * Tests of the MerkleTree used for replica repair.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class MerkleTreeTest {
+    private static final IndexFactory factory = SHA1Factory.getInstance();
+    
+    private static Index key(String str) {
+        return factory.getIndexOf(str);
+    }
+    
+    /**
+     * Make a key with the given top byte.
+     */
+    private static Index key(int top, int low) {
+        byte[] b = new byte[20];
+        b[0]  = (byte) top;
+        b[19] = (byte) low;
+        return factory.getIndex(b);
+    }
+    
+    private static MemoryStore store(int count) {
+        MemoryStore ret = new MemoryStore();
+        for( int i = 0; i < count; i++ ) ret.put(key("k"+i), ( "v"+i ).getBytes());
+        return ret;
+    }
+    
+    @Test
+    public void testSameContentSameTree() {
+        Index       zero = key(0, 0);
+        MemoryStore a    = store(200);
+        // the same entries put in the opposite order.
+        MemoryStore b    = new MemoryStore();
+        for( int i = 199; i >= 0; i-- ) b.put(key("k"+i), ( "v"+i ).getBytes());
+        
+        MerkleTree ta = new MerkleTree(a, zero, zero, 6);
+        MerkleTree tb = new MerkleTree(b, zero, zero, 6);
+        assertEquals(2 << 6, ta.size());
+        for( int n = 1; n < ta.size(); n++ ) {
+            assertEquals("node "+n, ta.hash(n), tb.hash(n));
+        }
+        assertTrue(ta.hash(1) != 0);
+    }
+    
+    @Test
+    public void testOneDifferingLeaf() {
+        Index       zero = key(0, 0);
+        MemoryStore a    = store(200);
+        MemoryStore b    = store(200);
+        b.put(key("k17"), "other".getBytes());
+        
+        MerkleTree ta   = new MerkleTree(a, zero, zero, 4);
+        MerkleTree tb   = new MerkleTree(b, zero, zero, 4);
+        int        leaf = ( 1 << 4 ) + MerkleTree.bucket(key("k17"), 4);
+        // exactly the path from the leaf to the root differs.
+        for( int n = 1; n < ta.size(); n++ ) {
+            boolean on_path = false;
+            for( int p = leaf; p > 0; p >>= 1 ) on_path |= p == n;
+            assertEquals("node "+n, on_path, ta.hash(n) != tb.hash(n));
+        }
+        assertTrue(ta.isLeaf(leaf));
+        assertFalse(ta.isLeaf(leaf >> 1));
+        
+        LinkedHashMap<Index, Long> ea = ta.entries(leaf);
+        LinkedHashMap<Index, Long> eb = tb.entries(leaf);
+        assertEquals(ea.keySet(), eb.keySet());
+        assertTrue(ea.containsKey(key("k17")));
+        for( Index k : ea.keySet() ) {
+            assertEquals(k.equals(key("k17")), !ea.get(k).equals(eb.get(k)));
+        }
+    }
+    
+    @Test
+    public void testBuckets() {
+        assertEquals(0,   MerkleTree.bucket(key(0xff, 1), 0));
+        assertEquals(1,   MerkleTree.bucket(key(0x80, 1), 1));
+        assertEquals(0,   MerkleTree.bucket(key(0x7f, 1), 1));
+        assertEquals(0xa, MerkleTree.bucket(key(0xa5, 1), 4));
+        assertEquals(0xa5 << 8, MerkleTree.bucket(key(0xa5, 1), 16));
+        
+        MemoryStore store = new MemoryStore();
+        store.put(key(0x10, 1), new byte[]{ 1 });
+        store.put(key(0x10, 2), new byte[]{ 2 });
+        store.put(key(0xf0, 1), new byte[]{ 3 });
+        MerkleTree tree = new MerkleTree(store, key(0, 0), key(0, 0), 4);
+        assertEquals(2, tree.entries(16 + 1).size());
+        assertEquals(1, tree.entries(16 + 15).size());
+        assertEquals(0, tree.entries(16 + 2).size());
+        assertEquals(0, tree.hash(16 + 2));
+    }
+    
+    @Test
+    public void testInterval() {
+        MemoryStore store = new MemoryStore();
+        for( int i = 0; i < 16; i++ ) store.put(key(i << 4, 0), new byte[]{ (byte) i });
+        
+        // keys outside of the interval are not in the tree.
+        MerkleTree tree = new MerkleTree(store, key(0x40, 0), key(0x80, 0), 4);
+        for( int b = 0; b < 16; b++ ) {
+            assertEquals("bucket "+b, b >= 4 && b < 8, tree.hash(16 + b) != 0);
+        }
+        assertTrue(tree.covers(key(0x40, 0), key(0x80, 0), 4));
+        assertFalse(tree.covers(key(0x40, 0), key(0x80, 0), 3));
+        assertFalse(tree.covers(key(0x40, 0), key(0x90, 0), 4));
+        
+        // an interval across the top of the ring.
+        tree = new MerkleTree(store, key(0xe0, 0), key(0x20, 0), 4);
+        for( int b = 0; b < 16; b++ ) {
+            assertEquals("bucket "+b, b >= 14 || b < 2, tree.hash(16 + b) != 0);
+        }
+    }
+    
+    @Test
+    public void testEmpty() {
+        MerkleTree tree = new MerkleTree(new MemoryStore(), key(0, 0), key(0, 0), 0);
+        assertEquals(2, tree.size());
+        assertTrue(tree.isLeaf(1));
+        assertEquals(0, tree.hash(1));
+        assertEquals(0, tree.entries(1).size());
+    }
+    
+    @Test
+    public void testIllegalDepth() {
+        int[] depths = { -1, MerkleTree.MAX_DEPTH + 1 };
+        for( int depth : depths ) {
+            try {
+                new MerkleTree(new MemoryStore(), key(0, 0), key(0, 0), depth);
+                fail("no exception at depth "+depth);
+            } catch (IllegalArgumentException e) {
+                // expected.
+            }
+        }
+    }
+}
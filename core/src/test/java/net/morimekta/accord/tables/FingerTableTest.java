@@ -0,0 +1,78 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import net.morimekta.net.Location;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the finger runs of FingerTable.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class FingerTableTest {
+    private FingerTable fingers;
+    
+    private static Location loc(int port) throws IOException {
+        return Location.get("127.0.0.1:"+port);
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        fingers = new FingerTable(loc(7000));
+        fingers.add(loc(7001));
+        fingers.add(loc(7001));
+        fingers.add(loc(7001));
+        fingers.add(null);
+        fingers.add(loc(7002));
+        fingers.add(loc(7002));
+    }
+    
+    @Test
+    public void testIntervals() throws IOException {
+        LinkedList<FingerTable.Interval> runs = fingers.intervals();
+        assertEquals(3, runs.size());
+        assertEquals(loc(7001), runs.get(0).owner);
+        assertEquals(0, runs.get(0).first);
+        assertEquals(2, runs.get(0).last);
+        assertNull(runs.get(1).owner);
+        assertEquals(3, runs.get(1).first);
+        assertEquals(3, runs.get(1).last);
+        assertEquals(loc(7002), runs.get(2).owner);
+        assertEquals(4, runs.get(2).first);
+        assertEquals(5, runs.get(2).last);
+        assertEquals(2, fingers.distinct());
+    }
+    
+    @Test
+    public void testKeptUntilChanged() throws IOException {
+        LinkedList<FingerTable.Interval> runs = fingers.intervals();
+        assertSame(runs, fingers.intervals());
+        fingers.distinct();
+        assertSame(runs, fingers.intervals());
+        
+        // setting the same owner is no change.
+        fingers.set(0, loc(7001));
+        assertSame(runs, fingers.intervals());
+        
+        fingers.set(3, loc(7002));
+        assertNotSame(runs, fingers.intervals());
+        assertEquals(2, fingers.intervals().size());
+        assertEquals(2, fingers.distinct());
+        
+        fingers.set(1, loc(7003));
+        assertEquals(4, fingers.intervals().size());
+        assertEquals(4, fingers.distinct());
+    }
+}
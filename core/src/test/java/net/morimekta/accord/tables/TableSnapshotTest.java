@@ -0,0 +1,178 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tables;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import net.morimekta.net.Location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the binary and file forms of TableSnapshot.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class TableSnapshotTest {
+    private LookupTable table;
+    private File        file;
+    
+    private static Location loc(int port) throws IOException {
+        return Location.get("127.0.0.1:"+port);
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        table = new LookupTable(loc(7000));
+        table.preds().add(loc(7001));
+        table.preds().add(loc(7002));
+        table.succs().add(loc(7003));
+        table.succs().add(loc(7001));
+        table.fingers().add(loc(7004));
+        table.fingers().add(null);
+        table.fingers().add(loc(7004));
+        file = File.createTempFile("snapshot-test", ".snap");
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath()+".tmp").delete();
+    }
+    
+    private static void assertSame(TableSnapshot a, TableSnapshot b) {
+        assertEquals(a.getOwner(), b.getOwner());
+        assertArrayEquals(a.getPreds(),   b.getPreds());
+        assertArrayEquals(a.getSuccs(),   b.getSuccs());
+        assertArrayEquals(a.getFingers(), b.getFingers());
+    }
+    
+    @Test
+    public void testBytesRoundTrip() throws IOException {
+        TableSnapshot snap = new TableSnapshot(table);
+        TableSnapshot copy = TableSnapshot.fromBytes(snap.toBytes());
+        assertSame(snap, copy);
+        assertEquals(loc(7000), copy.getOwner());
+        assertEquals(3, copy.getFingers().length);
+        assertNull(copy.getFingers()[1]);
+        
+        // each distinct location is written once: header, 5 locations of
+        // 7 bytes, owner, and 3 lists.
+        assertEquals(2 + 5 * 7 + 1 + 3 + 3 + 4, snap.toBytes().length);
+    }
+    
+    @Test
+    public void testEmptyTable() throws IOException {
+        TableSnapshot snap = new TableSnapshot(new LookupTable(loc(7100)));
+        TableSnapshot copy = TableSnapshot.decode(snap.encode());
+        assertSame(snap, copy);
+        assertEquals(0, copy.getPreds().length);
+    }
+    
+    @Test
+    public void testBase64RoundTrip() throws IOException {
+        TableSnapshot snap = new TableSnapshot(table);
+        String        str  = snap.encode();
+        assertEquals(-1, str.indexOf('\n'));
+        assertSame(snap, TableSnapshot.decode(str));
+    }
+    
+    @Test
+    public void testTruncated() throws IOException {
+        byte[] bytes = new TableSnapshot(table).toBytes();
+        for( int len = 0; len < bytes.length; len++ ) {
+            try {
+                TableSnapshot.fromBytes(Arrays.copyOf(bytes, len));
+                fail("no exception at length "+len);
+            } catch (IOException e) {
+                // expected.
+            }
+        }
+    }
+    
+    @Test
+    public void testBadInput() throws IOException {
+        byte[] bytes = new TableSnapshot(table).toBytes();
+        
+        byte[] tmp = bytes.clone();
+        tmp[0] = 2; // version.
+        expectFailure(tmp);
+        
+        tmp = bytes.clone();
+        tmp[2 + 5 * 7] = 5; // owner ref past the locations.
+        expectFailure(tmp);
+        
+        tmp = bytes.clone();
+        tmp[2 + 5 * 7 + 2] = (byte) 0xff; // hole in the preds.
+        expectFailure(tmp);
+    }
+    
+    private static void expectFailure(byte[] bytes) {
+        try {
+            TableSnapshot.fromBytes(bytes);
+            fail("no exception");
+        } catch (IOException e) {
+            // expected.
+        }
+    }
+    
+    @Test
+    public void testSaveLoad() throws IOException {
+        TableSnapshot snap = new TableSnapshot(table);
+        snap.save(file.getPath());
+        assertSame(snap, TableSnapshot.load(file.getPath()));
+        
+        // saving again replaces the file.
+        table.fingers().removeAllElements();
+        TableSnapshot next = new TableSnapshot(table);
+        next.save(file.getPath());
+        assertSame(next, TableSnapshot.load(file.getPath()));
+    }
+    
+    @Test
+    public void testLoadCorrupt() throws IOException {
+        new TableSnapshot(table).save(file.getPath());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // flip a byte of the body.
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+        try {
+            TableSnapshot.load(file.getPath());
+            fail("no exception");
+        } catch (IOException e) {
+            // expected.
+        }
+        
+        // torn file, the body is cut short.
+        new TableSnapshot(table).save(file.getPath());
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        try {
+            TableSnapshot.load(file.getPath());
+            fail("no exception");
+        } catch (IOException e) {
+            // expected.
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import net.morimekta.net.Location;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.SHA1Factory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of writing and reading back the binary Journal.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class JournalTest {
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("journal-test", ".journal");
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    @Test
+    public void testWriteReadBack() throws IOException {
+        Location loc   = Location.get("127.0.0.1:7000");
+        Index    idx   = SHA1Factory.getInstance().getIndexOf("key");
+        long     start = Clock.get().millis();
+        // a small chunk, so the records are spread over a few mappings.
+        Journal  out   = new Journal(file.getPath(), "node-1", 64);
+        out.record(3, 17, "finger", 4, loc);
+        out.record(5, 18, idx, loc, Long.valueOf(1L << 40), null);
+        out.record(7, 0);
+        for( int i = 0; i < 100; i++ ) out.record(1, i, "entry", i);
+        out.close();
+        long     end   = Clock.get().millis();
+        
+        Journal.Reader in  = new Journal.Reader(file.getPath());
+        assertEquals("node-1", in.getNode());
+        
+        Journal.Record rec = in.next();
+        assertEquals(3, rec.type);
+        assertEquals(17, rec.ticket);
+        assertEquals(3, rec.fields.length);
+        assertEquals("finger", rec.fields[0]);
+        assertEquals(Integer.valueOf(4), rec.fields[1]);
+        assertEquals(new InetSocketAddress(loc.getAddress(), 7000), rec.fields[2]);
+        assertEquals("finger 4 127.0.0.1:7000", rec.payload);
+        // absolute time, from the header millis.
+        assertTrue(rec.time >= start * 1000000L);
+        assertTrue(rec.time <= ( end + 1 ) * 1000000L);
+        
+        rec = in.next();
+        assertEquals(18, rec.ticket);
+        assertArrayEquals(idx.getBytes(), (byte[]) rec.fields[0]);
+        assertEquals(Long.valueOf(1L << 40), rec.fields[2]);
+        assertNull(rec.fields[3]);
+        assertEquals(idx+" "+loc+" "+( 1L << 40 )+" null", rec.payload);
+        
+        rec = in.next();
+        assertEquals(7, rec.type);
+        assertEquals(0, rec.fields.length);
+        assertEquals("", rec.payload);
+        
+        long last = rec.time;
+        for( int i = 0; i < 100; i++ ) {
+            rec = in.next();
+            assertEquals(i, rec.ticket);
+            assertEquals("entry "+i, rec.payload);
+            assertTrue(rec.time >= last);
+            last = rec.time;
+        }
+        assertNull(in.next());
+    }
+    
+    @Test
+    public void testLongString() throws IOException {
+        StringBuilder str = new StringBuilder();
+        for( int i = 0; i < 1000; i++ ) str.append("message ");
+        Journal out = new Journal(file.getPath(), "node-1", 4096);
+        out.record(1, 1, str.toString());
+        out.close();
+        
+        Journal.Reader in = new Journal.Reader(file.getPath());
+        assertEquals(str.toString(), in.next().payload);
+        assertNull(in.next());
+    }
+    
+    @Test
+    public void testConcurrentWritersInTimeOrder() throws IOException, InterruptedException {
+        final Journal out     = new Journal(file.getPath(), "node-1", 4096);
+        Thread[]      writers = new Thread[4];
+        for( int t = 0; t < writers.length; t++ ) {
+            final int id = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    for( int i = 0; i < 2000; i++ ) out.record(id, i, "write", i);
+                }
+            };
+            writers[t].start();
+        }
+        for( Thread t : writers ) t.join();
+        out.close();
+        
+        Journal.Reader in    = new Journal.Reader(file.getPath());
+        int[]          next  = new int[writers.length];
+        long           last  = 0;
+        int            count = 0;
+        Journal.Record rec;
+        while( ( rec = in.next() ) != null ) {
+            assertTrue("record "+count+" before the last", rec.time >= last);
+            assertEquals(next[rec.type]++, rec.ticket);
+            last = rec.time;
+            count++;
+        }
+        assertEquals(writers.length * 2000, count);
+    }
+    
+    @Test
+    public void testNotAJournal() throws IOException {
+        FileOutputStream tmp = new FileOutputStream(file);
+        try {
+            tmp.write(new byte[64]);
+        } finally {
+            tmp.close();
+        }
+        try {
+            new Journal.Reader(file.getPath());
+            fail("no exception");
+        } catch (IOException e) {
+            // expected.
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.morimekta.util.std.Log.Level;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the ring buffer of the asynchronous Log.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class LogTest {
+    private PrintStream out;
+    private File        file;
+    
+    /**
+     * Output stream that blocks the writer thread until released.
+     */
+    private static class Gate extends OutputStream {
+        final CountDownLatch entered  = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        
+        public void write(int b) throws IOException {
+            entered.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+        }
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        out  = System.out;
+        file = File.createTempFile("log-test", ".log");
+    }
+    
+    @After
+    public void tearDown() {
+        System.setOut(out);
+        file.delete();
+    }
+    
+    private ArrayList<String> lines() throws IOException {
+        ArrayList<String> ret = new ArrayList<String>();
+        BufferedReader    in  = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while( ( line = in.readLine() ) != null ) ret.add(line);
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+    
+    @Test
+    public void testWritesAllEntriesInOrder() throws IOException {
+        Log log = new Log(file.getPath());
+        log.setLoggingLevel(Level.all);
+        log.setVerboseLevel(Level.none);
+        // more than the ring size, so the ring wraps.
+        for( int i = 0; i < 5000; i++ ) {
+            log.log("entry "+i, Level.high);
+            if( i % 500 == 0 ) Thread.yield();
+        }
+        long dropped = log.getDropped();
+        log.close();
+        
+        // dropped entries leave gaps, but the rest is in order.
+        int last  = -1;
+        int count = 0;
+        for( String line : lines() ) {
+            int pos = line.indexOf(": entry ");
+            if( pos < 0 ) continue;
+            int i = Integer.parseInt(line.substring(pos + 8));
+            assertTrue(i > last);
+            last = i;
+            count++;
+        }
+        assertEquals(5000 - dropped, count);
+    }
+    
+    @Test
+    public void testDropsWhenFull() throws IOException, InterruptedException {
+        Gate gate = new Gate();
+        System.setOut(new PrintStream(gate, true));
+        
+        Log log = new Log(file.getPath());
+        log.setLoggingLevel(Level.all);
+        log.setVerboseLevel(Level.high);
+        
+        // the writer takes the first entry, and blocks printing it.
+        log.log("first", Level.high);
+        assertTrue(gate.entered.await(10, TimeUnit.SECONDS));
+        
+        for( int i = 0; i < 1024 + 100; i++ ) {
+            log.log("entry "+i, Level.high);
+        }
+        assertEquals(100, log.getDropped());
+        
+        // wait for the batch and the drop report to be written, or closing
+        // would be dropped too.
+        gate.released.countDown();
+        for( int i = 0; i < 100 && lines().size() < 1026; i++ ) Thread.sleep(100);
+        log.close();
+        
+        ArrayList<String> lines = lines();
+        assertEquals(1 + 1024 + 1 + 1, lines.size());
+        assertTrue(lines.get(0).endsWith(": first"));
+        assertTrue(lines.get(1024).endsWith(": entry 1023"));
+        assertTrue(lines.get(1025).endsWith(": dropped 100 log entries, write queue full"));
+        assertTrue(lines.get(1026).endsWith(": Closing Log."));
+    }
+    
+    @Test
+    public void testLevels() throws IOException {
+        Log log = new Log(file.getPath());
+        log.setLoggingLevel(Level.warning);
+        log.setVerboseLevel(Level.none);
+        assertTrue(log.isLoggable(Level.error));
+        assertTrue(!log.isLoggable(Level.low));
+        
+        log.log("error", Level.error);
+        log.log("low", Level.low);
+        log.close();
+        
+        ArrayList<String> lines = lines();
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith(": error"));
+    }
+}
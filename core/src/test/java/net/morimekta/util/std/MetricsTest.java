@@ -0,0 +1,67 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of the Metrics histogram.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class MetricsTest {
+    @Test
+    public void testSmallValuesAreExact() {
+        Metrics.Histogram h = new Metrics.Histogram();
+        for( int i = 0; i < 64; i++ ) h.record(i);
+        assertEquals(64, h.getCount());
+        assertEquals(63, h.getMax());
+        assertEquals(0,  h.getPercentile(1));
+        assertEquals(31, h.getPercentile(50));
+        assertEquals(63, h.getPercentile(100));
+    }
+    
+    @Test
+    public void testPercentileError() {
+        Metrics.Histogram h      = new Metrics.Histogram();
+        Random            rand   = new Random(1);
+        long[]            values = new long[10000];
+        for( int i = 0; i < values.length; i++ ) {
+            values[i] = (long) ( Math.exp(rand.nextDouble() * 30) );
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        double[] ps = { 1, 10, 50, 90, 99, 99.9 };
+        for( double p : ps ) {
+            long exact = values[(int) Math.ceil(values.length * p / 100.0) - 1];
+            long est   = h.getPercentile(p);
+            assertTrue("p"+p+" "+est+" < "+exact, est >= exact);
+            assertTrue("p"+p+" "+est+" >> "+exact, est - exact <= exact / 32);
+        }
+        assertEquals(values[values.length - 1], h.getPercentile(100));
+    }
+    
+    @Test
+    public void testAdd() {
+        Metrics.Histogram a = new Metrics.Histogram();
+        Metrics.Histogram b = new Metrics.Histogram();
+        a.record(-5);
+        a.record(100);
+        b.record(1000);
+        b.record(Long.MAX_VALUE);
+        a.add(b);
+        assertEquals(4, a.getCount());
+        assertEquals(Long.MAX_VALUE, a.getMax());
+        assertEquals(0, a.getPercentile(25));
+        assertEquals(101, a.getPercentile(50));
+        assertEquals(1007, a.getPercentile(75));
+        assertEquals(Long.MAX_VALUE, a.getPercentile(100));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests of the compiled OptionParser.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class OptionParserTest {
+    private static final OptionParser opts = new OptionParser(
+            "n,nodes,int\n" +
+            "v,verbose\n" +
+            "q,quiet\n" +
+            "m,msg,string\n" +
+            "\n" +
+            "x\n");
+    
+    @Test
+    public void testShortAndLong() {
+        OptionParser.Result res = opts.parse("-n 5 --verbose --msg hello");
+        assertEquals(3, res.size());
+        assertEquals('n', res.getOption(0));
+        assertEquals("5", res.getArgument(0));
+        assertEquals('v', res.getOption(1));
+        assertNull(res.getArgument(1));
+        assertEquals("hello", res.get('m'));
+        assertTrue(res.has('v'));
+        assertFalse(res.has('q'));
+        assertNull(res.get('q'));
+    }
+    
+    @Test
+    public void testShortCluster() {
+        OptionParser.Result res = opts.parse("-vqn 7");
+        assertEquals(3, res.size());
+        assertTrue(res.has('v'));
+        assertTrue(res.has('q'));
+        assertEquals("7", res.get('n'));
+        
+        // the argument only goes to the last option of the cluster.
+        res = opts.parse("-nv 7");
+        assertEquals(3, res.size());
+        assertEquals('n', res.getOption(0));
+        assertNull(res.getArgument(0));
+        assertEquals('v', res.getOption(1));
+        assertEquals(OptionParser.UNKNOWN, res.getOption(2));
+        assertEquals("7", res.getArgument(2));
+    }
+    
+    @Test
+    public void testMissingArgument() {
+        OptionParser.Result res = opts.parse("-n");
+        assertEquals(1, res.size());
+        assertTrue(res.has('n'));
+        assertNull(res.get('n'));
+        
+        res = opts.parse("--nodes");
+        assertEquals(1, res.size());
+        assertTrue(res.has('n'));
+        assertNull(res.get('n'));
+    }
+    
+    @Test
+    public void testUnknown() {
+        OptionParser.Result res = opts.parse("--foo -z é word -é");
+        assertEquals(5, res.size());
+        for( int i = 0; i < res.size(); i++ ) {
+            assertEquals(OptionParser.UNKNOWN, res.getOption(i));
+        }
+        assertEquals("--foo",   res.getArgument(0));
+        assertEquals("-z",      res.getArgument(1));
+        assertEquals("é",       res.getArgument(2));
+        assertEquals("word",    res.getArgument(3));
+        assertEquals("-é",      res.getArgument(4));
+        // the spec line without a name is not an option.
+        assertEquals(OptionParser.UNKNOWN, opts.parse("-x").getOption(0));
+    }
+    
+    @Test
+    public void testEndOfOptions() {
+        OptionParser.Result res = opts.parse(new String[]{ "-v", null, "", "--", "-q" });
+        assertEquals(1, res.size());
+        assertTrue(res.has('v'));
+        assertFalse(res.has('q'));
+    }
+    
+    @Test
+    public void testLastOccurrenceWins() {
+        OptionParser.Result res = opts.parse("-n 1 --nodes 2 -n 3");
+        assertEquals(3, res.size());
+        assertEquals(2, res.lastIndexOf('n'));
+        assertEquals("3", res.get('n'));
+        assertEquals(-1, res.lastIndexOf('q'));
+    }
+    
+    @Test
+    public void testLines() {
+        assertEquals(0, opts.parse((String) null).size());
+        assertEquals(0, opts.parse("").size());
+        // only the first line is parsed.
+        OptionParser.Result res = opts.parse("-v\n-q");
+        assertEquals(1, res.size());
+        assertTrue(res.has('v'));
+    }
+    
+    @Test
+    public void testQuotedArgument() {
+        OptionParser.Result res = opts.parse("--msg \"hello big world\" -v");
+        assertEquals("hello big world", res.get('m'));
+        assertTrue(res.has('v'));
+    }
+    
+    @Test
+    public void testNonAsciiSpec() {
+        try {
+            new OptionParser("é,accent");
+            fail("no exception");
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.util.Vector;
+
+import net.morimekta.net.Message;
+import net.morimekta.net.MessageService;
+import net.morimekta.net.MessageSocket;
+import net.morimekta.net.SimNetwork;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of the order of the turns on the SimClock, and that a simulation is
+ * repeated exactly with the same seed.
+ *
+ * @author Stein Eldar Johnsen
+ */
+public class SimClockTest {
+    private static final long START = 1000000000000L;
+
+    private SimClock clock;
+
+    @After
+    public void tearDown() {
+        if( clock != null ) clock.stop();
+        Clock.set(null);
+    }
+
+    private void start(long seed) {
+        clock = new SimClock(START, seed);
+        Clock.set(clock);
+        clock.start();
+    }
+
+    private void stop() {
+        clock.stop();
+        clock = null;
+        Clock.set(null);
+    }
+
+    /**
+     * Make a thread on the clock that sleeps, and records the time it woke.
+     */
+    private Thread sleeper(final String name, final long millis, final Vector<String> events) {
+        Thread t = Clock.get().thread(new Runnable() {
+            public void run() {
+                try {
+                    Clock.get().sleep(millis);
+                    events.add(name+" "+( Clock.get().millis() - START ));
+                } catch (InterruptedException e) {
+                    events.add(name+" interrupted "+( Clock.get().millis() - START ));
+                }
+            }
+        });
+        t.setName(name);
+        return t;
+    }
+
+    @Test
+    public void testSleepOrder() throws Exception {
+        start(1);
+        Vector<String> events = new Vector<String>();
+        Thread[]       ts     = {
+                sleeper("a", 30, events),
+                sleeper("b", 10, events),
+                sleeper("c", 20, events),
+                sleeper("d", 10, events) };
+        long wall = System.currentTimeMillis();
+        for( Thread t : ts ) Clock.get().start(t);
+        for( Thread t : ts ) Clock.get().join(t);
+
+        // same time in the order they slept, and no wall clock time.
+        assertEquals("[b 10, d 10, c 20, a 30]", events.toString());
+        assertEquals(START + 30, Clock.get().millis());
+        assertTrue(System.currentTimeMillis() - wall < 1000);
+        assertEquals(0, clock.getEscapes());
+    }
+
+    @Test
+    public void testSignalOrder() throws Exception {
+        start(1);
+        final Object         monitor = new Object();
+        final Vector<String> events  = new Vector<String>();
+        Thread[]             ts      = new Thread[3];
+        for( int i = 0; i < ts.length; i++ ) {
+            final String name    = "w"+i;
+            // the last has a timeout before the signal.
+            final long   timeout = ( i == 2 ? 5 : 0 );
+            ts[i] = Clock.get().thread(new Runnable() {
+                public void run() {
+                    synchronized( monitor ) {
+                        try {
+                            Clock.get().await(monitor, timeout);
+                            events.add(name+" "+( Clock.get().millis() - START ));
+                        } catch (InterruptedException e) {
+                            events.add(name+" interrupted");
+                        }
+                    }
+                }
+            });
+            ts[i].setName(name);
+        }
+        // started in reverse, so they wait in reverse.
+        for( int i = ts.length - 1; i >= 0; i-- ) Clock.get().start(ts[i]);
+        Clock.get().sleep(10);
+        synchronized( monitor ) {
+            Clock.get().signal(monitor);
+        }
+        for( Thread t : ts ) Clock.get().join(t);
+
+        assertEquals("[w2 5, w1 10, w0 10]", events.toString());
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        start(1);
+        Vector<String> events = new Vector<String>();
+        Thread         t      = sleeper("s", 1000, events);
+        Clock.get().start(t);
+        Clock.get().sleep(10);
+        Clock.get().interrupt(t);
+        Clock.get().join(t);
+
+        assertEquals("[s interrupted 10]", events.toString());
+        assertEquals(START + 10, Clock.get().millis());
+    }
+
+    /**
+     * Sockets on a simulated network with random latency and loss, and
+     * client threads sending pings to random peers, answered by a service in
+     * a new thread for each. Records what each client got and when.
+     */
+    private Vector<String> run(long seed, Vector<String> trace) throws Exception {
+        start(seed);
+        clock.setTrace(true);
+        SimNetwork net = new SimNetwork(seed);
+        net.setLatency(SimNetwork.Latency.uniform, 5, 3);
+        net.setLoss(0.1);
+        net.start();
+
+        final Vector<String>  events  = new Vector<String>();
+        final MessageSocket[] sockets = new MessageSocket[4];
+        for( int i = 0; i < sockets.length; i++ ) {
+            final MessageSocket socket = new MessageSocket(net.open(7000));
+            socket.register(new MessageService() {
+                public void invoke(Message msg) {
+                    socket.send(msg.getSender(), new Message(0, msg.getFromTicket(), 0, "pong",
+                            msg.getMessage()+" by "+socket.getLocation()));
+                }
+
+                public String getServiceName() {
+                    return "ping";
+                }
+            });
+            sockets[i] = socket;
+        }
+
+        Vector<Thread> clients = new Vector<Thread>();
+        for( int i = 0; i < sockets.length * 3; i++ ) {
+            final MessageSocket socket = sockets[i % sockets.length];
+            final String        name   = "client-"+i;
+            Thread t = Clock.get().thread(new Runnable() {
+                public void run() {
+                    for( int n = 0; n < 5; n++ ) {
+                        MessageSocket to     = sockets[Clock.get().random().nextInt(sockets.length)];
+                        int           ticket = socket.requestTicket();
+                        socket.send(to.getLocation(), new Message(ticket, 0, 0, "ping", name+"/"+n));
+                        try {
+                            Message in = socket.receive(ticket, 30);
+                            events.add(( Clock.get().millis() - START )+" "+name+" "+in.getMessage());
+                        } catch (SocketTimeoutException e) {
+                            events.add(( Clock.get().millis() - START )+" "+name+" timeout");
+                        }
+                        socket.freeTicket(ticket);
+                        try {
+                            Clock.get().sleep(Clock.get().random().nextInt(20));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+            t.setName(name);
+            clients.add(t);
+            Clock.get().start(t);
+        }
+        for( Thread t : clients ) Clock.get().join(t);
+
+        for( MessageSocket s : sockets ) s.close();
+        net.stop();
+        assertEquals(0, clock.getEscapes());
+        trace.addAll(clock.getTrace());
+        stop();
+        return events;
+    }
+
+    @Test
+    public void testSameSeedSameTrace() throws Exception {
+        Vector<String> trace1  = new Vector<String>();
+        Vector<String> trace2  = new Vector<String>();
+        Vector<String> trace3  = new Vector<String>();
+        Vector<String> events1 = run(17, trace1);
+        Vector<String> events2 = run(17, trace2);
+        Vector<String> events3 = run(18, trace3);
+
+        assertEquals(60, events1.size());
+        // the services ran in threads of their own.
+        boolean invoked = false;
+        for( String turn : trace1 ) invoked |= turn.contains(".ping#");
+        assertTrue(invoked);
+
+        assertEquals(events1, events2);
+        assertEquals(trace1, trace2);
+        assertFalse(trace1.equals(trace3));
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+
+import net.morimekta.net.Location;
+import net.morimekta.net.Transport;
+import net.morimekta.net.UdpTransport;
+import net.morimekta.util.index.Index;
+
+/**
+ * A physical host running a number of virtual nodes, each an AccordNode with
+ * its own position in the ring, so a host with more capacity can take a
+ * larger share of the ring. The number of virtual nodes is vnode.count, set
+ * in the config of each machine.
+ * 
+ * Each virtual node has its own port, and thus its own Location and Index
+ * from "ip:port", and its own LookupTable. The nodes share one failure
+ * detector, so a heartbeat or ping response seen by any of the nodes counts
+ * for all of them, and the other nodes does not ping the host again. The
+ * virtual nodes on the same host are never suspected by each other. Each
+ * node still monitors its own pred:0 and succ:0, as the i-am-alives carry
+ * the table versions of that node, but the cycles of all the nodes are run
+ * together by the Heartbeats of the host, and the i-am-alives to the
+ * virtual nodes of another host are sent in one message to that host, so
+ * the number of messages between two hosts does not grow with the number of
+ * virtual nodes.
+ * 
+ * As the Index of a node is the hash of "ip:port", the position of a
+ * virtual node is chosen by its port. With vnode.choices above 1, each node
+ * joins at the most loaded of that many candidate positions (the
+ * power-of-k-choices): for each candidate port, the node owning the
+ * candidate Index is looked up, and its load measured as the size of its
+ * owned interval, or as the number of keys it owns (vnode.load). The joining
+ * node takes over the upper part of that interval. An overloaded node can be
+ * moved to a new position online with migrate.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class AccordHost {
+    /**
+     * Load measure of a ring position.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public enum Load {
+        /**
+         * Size of the owned interval.
+         */
+        interval,
+        /**
+         * Number of owned keys, needs store.enabled.
+         */
+        keys,
+    }
+    
+    /**
+     * Failure detector shared by the virtual nodes of a host. Each node gets
+     * its own view, and a host is removed from the detector when the last
+     * node that has heard from it removes it.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    private static class SharedDetector {
+        private final FailureDetector                   detector;
+        private final Vector<Location>                  local;
+        private final Hashtable<Location, Vector<View>> watchers = new Hashtable<Location, Vector<View>>();
+        private int                                     limit    = Conf.detector__max_hosts;
+        
+        SharedDetector(FailureDetector _detector, Vector<Location> _local) {
+            detector = _detector;
+            local    = _local;
+        }
+        
+        /**
+         * @return A new view for a virtual node.
+         */
+        View view() {
+            return new View();
+        }
+        
+        /**
+         * Forget the watchers of hosts the detector has forgotten itself.
+         */
+        private void expunge() {
+            Iterator<Location> iter = watchers.keySet().iterator();
+            while( iter.hasNext() ) {
+                if( !detector.isMonitored(iter.next()) ) iter.remove();
+            }
+            limit = Math.max(Conf.detector__max_hosts, 2 * watchers.size());
+        }
+        
+        /**
+         * The shared detector as seen by one virtual node.
+         */
+        class View implements FailureDetector {
+            public void heartbeat(Location host, long now) {
+                if( local.contains(host) ) return;
+                synchronized ( watchers ) {
+                    Vector<View> w = watchers.get(host);
+                    if( w == null ) {
+                        watchers.put(host, w = new Vector<View>());
+                        if( watchers.size() > limit ) expunge();
+                    }
+                    if( !w.contains(this) ) w.add(this);
+                    detector.heartbeat(host, now);
+                }
+            }
+            
+            public boolean isMonitored(Location host) {
+                return local.contains(host) || detector.isMonitored(host);
+            }
+            
+            public double suspicion(Location host, long now) {
+                return local.contains(host) ? 0.0 : detector.suspicion(host, now);
+            }
+            
+            public boolean isSuspected(Location host, long now) {
+                return !local.contains(host) && detector.isSuspected(host, now);
+            }
+            
+            public void remove(Location host) {
+                synchronized ( watchers ) {
+                    Vector<View> w = watchers.get(host);
+                    if( w != null ) {
+                        w.remove(this);
+                        // another virtual node still monitors the host.
+                        if( !w.isEmpty() ) return;
+                        watchers.remove(host);
+                    }
+                    detector.remove(host);
+                }
+            }
+        }
+    }
+    
+    private final Vector<AccordNode> nodes = new Vector<AccordNode>();
+    private final Vector<Location>   local = new Vector<Location>();
+    private final SharedDetector     detector;
+    private final Heartbeats         heartbeats = new Heartbeats();
+    
+    /**
+     * Create a host with vnode.count virtual nodes on random ports.
+     */
+    public AccordHost() {
+        this(-1, Conf.vnode__count);
+    }
+    
+    /**
+     * Create a host with a number of virtual nodes. With a port number, the
+     * nodes are on port, port+1 ... port+count-1.
+     * 
+     * @param port
+     *    Port number of the first node, 0 for random ports, or -1 for the
+     *    port in the config.
+     * @param count
+     *    Number of virtual nodes.
+     */
+    public AccordHost(int port, int count) {
+        if( count < 1 ) throw new IllegalArgumentException("no virtual nodes");
+        if( port < 0 ) port = Conf.port;
+        
+        if( Conf.detector__type == FailureDetector.Type.phi )
+            detector = new SharedDetector(new PhiAccrualDetector(), local);
+        else
+            detector = new SharedDetector(new TimeoutDetector(Conf.iamalive__leave_timeout), local);
+            
+        for( int i = 0; i < count; i++ ) {
+            AccordNode node = new AccordNode(port > 0 ? port + i : 0, detector.view(), heartbeats);
+            local.add(node.getLocation());
+            nodes.add(node);
+        }
+    }
+    
+    /**
+     * @return The virtual nodes of the host.
+     */
+    public List<AccordNode> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+    
+    /**
+     * Get the virtual node that owns an index.
+     * 
+     * @param idx
+     *    Index to check.
+     * @return
+     *    The local node owning it, or null if owned by another host.
+     */
+    public AccordNode getOwner(Index idx) {
+        for( AccordNode n : nodes ) {
+            Location succ0 = n.table_at("succ:0");
+            if( succ0 == null || idx.between(n.getLocation().getIndex(), succ0.getIndex()) ) return n;
+        }
+        return null;
+    }
+    
+    /**
+     * Check if a Location is one of the virtual nodes of this host.
+     * 
+     * @param loc
+     *    Location to check.
+     * @return
+     *    True if local.
+     */
+    public boolean isLocal(Location loc) {
+        return local.contains(loc);
+    }
+    
+    /**
+     * Connect all the virtual nodes to the ring, one at a time, as the joins
+     * may touch the same part of the ring. The candidate positions are
+     * probed through a node that is already connected, so with vnode.choices
+     * above 1 the first node joins at its own port and is then migrated.
+     * 
+     * @param to
+     *    Host in the ring to connect through, or null to make a new ring
+     *    of the virtual nodes.
+     * @return
+     *    Number of nodes connected.
+     */
+    public synchronized int connect(Location to) {
+        int        count = 0;
+        int        size  = nodes.size(); // migrate may add a node.
+        AccordNode via   = null; // a connected node to probe with.
+        for( int i = 0; i < size; i++ ) {
+            AccordNode n = nodes.get(i);
+            if( to == null ) {
+                // the first node is the ring.
+                to  = n.getLocation();
+                via = n;
+                count++;
+                continue;
+            }
+            if( Conf.vnode__choices > 1 && via != null ) {
+                Transport t = choose(via, to, n.getLocation().getPort());
+                if( t != null ) n = replace(i, t);
+            }
+            if( n.connect(to) ) {
+                count++;
+                // nothing to probe with before the first node is connected,
+                // so it is moved to a chosen position afterwards.
+                if( via == null && Conf.vnode__choices > 1 ) n = migrate(n);
+                if( via == null ) via = n;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Move a virtual node to the most loaded of vnode.choices new positions
+     * (at least 2). The node at the new position joins first and receives its
+     * range, and the old node then leaves and hands its range to its pred:0.
+     * If the old node is not able to leave, it is kept as an extra virtual
+     * node of the host.
+     * 
+     * @param n
+     *    Virtual node to move.
+     * @return
+     *    The node at the new position, or n if not moved.
+     */
+    public synchronized AccordNode migrate(AccordNode n) {
+        int i = nodes.indexOf(n);
+        if( i < 0 ) throw new IllegalArgumentException("not a virtual node of "+this);
+        Location ask = n.table_at("succ:0");
+        if( ask == null ) return n;
+        Transport t = choose(n, ask, -1);
+        if( t == null ) return n;
+        
+        AccordNode moved = new AccordNode(t, detector.view(), heartbeats);
+        if( !moved.connect(ask) ) {
+            moved.close();
+            return n;
+        }
+        local.add(moved.getLocation());
+        nodes.set(i, moved);
+        if( !n.disconnect() ) {
+            nodes.add(n);
+            return moved;
+        }
+        local.remove(n.getLocation());
+        n.close();
+        return moved;
+    }
+    
+    /**
+     * Pick the most loaded of vnode.choices candidate positions. Each new
+     * candidate is a bound port, so the chosen port can not be taken by
+     * another process before the node is made on it.
+     * 
+     * @param via
+     *    Connected node to look up with.
+     * @param ask
+     *    Node in the ring to ask first.
+     * @param current
+     *    A port that is one of the candidates, or -1 for only new ports.
+     * @return
+     *    Transport bound to the chosen port, or null to keep the current
+     *    port or if no candidate could be probed.
+     */
+    private Transport choose(AccordNode via, Location ask, int current) {
+        Transport best      = null;
+        long      best_load = ( current > 0 ? load(via, ask, current) : -1 );
+        for( int i = ( current > 0 ? 1 : 0 ); i < Math.max(Conf.vnode__choices, 2); i++ ) {
+            Transport t = bind();
+            if( t == null ) continue;
+            long l = load(via, ask, t.getLocalPort());
+            if( l > best_load ) {
+                if( best != null ) best.close();
+                best      = t;
+                best_load = l;
+            } else {
+                t.close();
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * Measure the load of the node owning the Index a port would give.
+     * 
+     * @return
+     *    The load, or -1 if unable to measure.
+     */
+    private long load(AccordNode via, Location ask, int port) {
+        try {
+            Index    idx   = Location.get(via.getLocation().getAddress(), port).getIndex();
+            Location owner = via.lookup(idx, null, ask);
+            if( Conf.vnode__load == Load.keys && via.getStore() != null ) return via.getStore().count(owner);
+            Location succ0 = via.lookup_table(owner, "succ:0", null);
+            if( succ0 == null || succ0.equals(owner) ) return Long.MAX_VALUE;
+            // top 63 bits of the interval length.
+            byte[] len = succ0.getIndex().sub(owner.getIndex()).getBytes();
+            long   ret = 0;
+            for( int i = 0; i < 8 && i < len.length; i++ ) ret = ( ret << 8 ) | ( len[i] & 0xff );
+            return ret >>> 1;
+        } catch (SocketTimeoutException e) {
+            return -1;
+        } catch (UnknownHostException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * @return A transport bound to a vacant port, or null.
+     */
+    private static Transport bind() {
+        try {
+            return new UdpTransport(0);
+        } catch (SocketException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Replace a not connected virtual node with a new node on a transport.
+     */
+    private AccordNode replace(int i, Transport t) {
+        AccordNode old = nodes.get(i);
+        AccordNode n   = new AccordNode(t, detector.view(), heartbeats);
+        local.remove(old.getLocation());
+        old.close();
+        local.add(n.getLocation());
+        nodes.set(i, n);
+        return n;
+    }
+    
+    /**
+     * Disconnect all the virtual nodes from the ring, in reverse order.
+     * 
+     * @return
+     *    Number of nodes disconnected.
+     */
+    public int disconnect() {
+        int count = 0;
+        for( int i = nodes.size() - 1; i >= 0; i-- ) {
+            if( nodes.get(i).disconnect() ) count++;
+        }
+        return count;
+    }
+    
+    /**
+     * @return True if all the virtual nodes have stable tables.
+     */
+    public boolean is_stable() {
+        for( AccordNode n : nodes ) {
+            if( !n.is_stable() ) return false;
+        }
+        return true;
+    }
+    
+    public String toString() {
+        return "AccordHost"+local;
+    }
+}
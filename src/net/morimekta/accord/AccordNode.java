@@ -3,18 +3,35 @@
  */
 package net.morimekta.accord;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.TreeMap;
 
 import net.morimekta.accord.Lookup.QueryResult;
+import net.morimekta.accord.store.LocalStore;
+import net.morimekta.accord.store.LogStore;
+import net.morimekta.accord.store.MemoryStore;
+import net.morimekta.accord.store.RangeHandoff;
+import net.morimekta.accord.store.ReplicationEngine;
+import net.morimekta.accord.store.StoreService;
+import net.morimekta.accord.tables.FingerTable;
 import net.morimekta.accord.tables.LookupTable;
+import net.morimekta.accord.tables.TableSnapshot;
 import net.morimekta.net.Message;
 import net.morimekta.net.MessageService;
 import net.morimekta.net.MessageSocket;
 import net.morimekta.net.Location;
+import net.morimekta.net.Transport;
+import net.morimekta.net.UdpTransport;
 import net.morimekta.util.index.Index;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Journal;
 import net.morimekta.util.std.Log;
+import net.morimekta.util.std.Metrics;
 import net.morimekta.util.std.Log.Level;
 
 /**
@@ -28,6 +45,9 @@ public class AccordNode {
      * 
      */
     private Log         log;
+    private Journal     journal;
+    private Metrics     metrics = new Metrics();
+    private FailureDetector detector;
     private LookupTable table;
     private MessageSocket socket;
     /*
@@ -37,6 +57,11 @@ public class AccordNode {
     private Lookup      lookup;
     private Membership  membership;
     private Stabilizer  stabilizer;
+    private StoreService store = null;
+    private ReplicationEngine replication = null;
+    private RangeHandoff handoff = null;
+    private TableSnapshot warm = null; // snapshot from last run, until reconnected.
+    private Heartbeats  heartbeats;
     
     /**
      * Creates an AccordNode on a random port.
@@ -53,13 +78,69 @@ public class AccordNode {
      *    Prefferred port numbrt of the Node.
      */
     public AccordNode(int port) {
+        this(port, null);
+    }
+    
+    /**
+     * Creates an AccordNode on the local port port, with a failure detector
+     * shared with other nodes, as the virtual nodes of an AccordHost.
+     * 
+     * @param port
+     *    Prefferred port numbrt of the Node.
+     * @param _detector
+     *    Failure detector, or null to make one from detector.type.
+     */
+    public AccordNode(int port, FailureDetector _detector) {
+        this(port, _detector, null);
+    }
+    
+    /**
+     * Creates an AccordNode on the local port port, as a virtual node of an
+     * AccordHost, with the failure detector and the heartbeats of the host.
+     * 
+     * @param port
+     *    Prefferred port numbrt of the Node.
+     * @param _detector
+     *    Failure detector, or null to make one from detector.type.
+     * @param _heartbeats
+     *    Heartbeats of the host, or null to send its own i-am-alives.
+     */
+    public AccordNode(int port, FailureDetector _detector, Heartbeats _heartbeats) {
+        this(udp(port>=0?port:Conf.port), _detector, _heartbeats);
+    }
+    
+    /**
+     * Creates an AccordNode on a packet transport, as an endpoint of a
+     * SimNetwork, for running many nodes in one JVM.
+     * 
+     * @param transport
+     *    Packet transport of the node.
+     * @param _detector
+     *    Failure detector, or null to make one from detector.type.
+     */
+    public AccordNode(Transport transport, FailureDetector _detector) {
+        this(transport, _detector, null);
+    }
+    
+    /**
+     * Creates an AccordNode on a packet transport, as a virtual node of an
+     * AccordHost.
+     * 
+     * @param transport
+     *    Packet transport of the node.
+     * @param _detector
+     *    Failure detector, or null to make one from detector.type.
+     * @param _heartbeats
+     *    Heartbeats of the host, or null to send its own i-am-alives.
+     */
+    public AccordNode(Transport transport, FailureDetector _detector, Heartbeats _heartbeats) {
         try {
-            socket = new MessageSocket(port>=0?port:Conf.port);
+            socket = new MessageSocket(transport);
             log    = new Log(socket.getLocation().toString()+".log");
             log.setLoggingLevel(Conf.logging);
             log.setVerboseLevel(Conf.verbose);
             table  = new LookupTable(socket.getLocation());
-            // if table should load from file/state, do it here.
+            if( Conf.persist__enabled ) warm = loadSnapshot(persistFile());
             lookup = new Lookup(log, table, socket);
             table.setLog(log);
             table.setSocket(socket);
@@ -69,12 +150,91 @@ public class AccordNode {
             stabilizer = new Stabilizer(log, table, lookup, socket);
             iamalive   = new IAmAlive  (log, table, membership, socket);
             
+            if( _detector != null )
+                detector = _detector;
+            else if( Conf.detector__type == FailureDetector.Type.phi )
+                detector = new PhiAccrualDetector();
+            else
+                detector = new TimeoutDetector(Conf.iamalive__leave_timeout);
+            iamalive.setDetector(detector);
+            table.setDetector(detector);
+            
+            socket.setMetrics(metrics);
+            lookup.setMetrics(metrics);
+            membership.setMetrics(metrics);
+            membership.setStabilizer(stabilizer);
+            stabilizer.setMetrics(metrics);
+            if( Conf.persist__enabled ) stabilizer.setPersistFile(persistFile());
+            metrics.gauge("table.preds", new Metrics.Gauge() {
+                public long value() { return table.preds().size(); }
+            });
+            metrics.gauge("table.succs", new Metrics.Gauge() {
+                public long value() { return table.succs().size(); }
+            });
+            metrics.gauge("table.fingers", new Metrics.Gauge() {
+                public long value() { return table.fingers().size(); }
+            });
+            metrics.gauge("table.fingers.distinct", new Metrics.Gauge() {
+                public long value() {
+                    if( table.fingers() instanceof FingerTable ) return ((FingerTable) table.fingers()).distinct();
+                    return table.fingers().size();
+                }
+            });
+            metrics.gauge("table.stable", new Metrics.Gauge() {
+                public long value() { return stabilizer.is_stable() ? 1 : 0; }
+            });
+            
+            if( Conf.journal__enabled ) {
+                journal = new Journal(socket.getLocation().toString()+".journal",
+                                      socket.getLocation().toString(), Conf.journal__chunk);
+                table.setJournal(journal);
+                lookup.setJournal(journal);
+                membership.setJournal(journal);
+                iamalive.setJournal(journal);
+            }
+            
+            if( Conf.store__enabled ) {
+                LocalStore local;
+                if( Conf.store__type == LocalStore.Type.log )
+                    local = new LogStore(socket.getLocation().toString()+".store",
+                                         table.getMe().getIndex().getFactory(), Conf.store__log_size);
+                else
+                    local = new MemoryStore();
+                store = new StoreService(log, table, lookup, socket, local);
+                store.setMetrics(metrics);
+                socket.register(store);
+                
+                handoff = new RangeHandoff(log, table, socket, local);
+                handoff.setMetrics(metrics);
+                store.setHandoff(handoff);
+                membership.addListener(handoff);
+                socket.register(handoff);
+                
+                if( Conf.replication__enabled ) {
+                    replication = new ReplicationEngine(log, table, socket, local);
+                    replication.setMetrics(metrics);
+                    replication.setHandoff(handoff);
+                    store.setReplication(replication);
+                    membership.addListener(replication);
+                    socket.register(replication);
+                }
+            }
+            
+            // i-am-alives from the virtual nodes of a host are received by
+            // every node, alone or not.
+            heartbeats = ( _heartbeats != null ? _heartbeats : new Heartbeats() );
+            heartbeats.add(socket, iamalive);
+            if( _heartbeats != null ) iamalive.setHeartbeats(_heartbeats);
+            
             socket.register(iamalive);
+            socket.register(heartbeats);
             socket.register(membership);
             socket.register(lookup);
             
             stabilizer.start();
             iamalive.start();
+            if( handoff != null ) handoff.start();
+            if( replication != null ) replication.start();
             
         } catch (IOException e) {
             e.printStackTrace();
@@ -82,6 +242,71 @@ public class AccordNode {
         }
     }
 
+    /**
+     * Open a UDP transport, or exit as the node can not run without it.
+     */
+    private static Transport udp(int port) {
+        try {
+            return new UdpTransport(port);
+        } catch (SocketException e) {
+            e.printStackTrace();
+            System.exit(-1);
+            return null;
+        }
+    }
+    
+    /**
+     * Get the event journal of the node.
+     * 
+     * @return
+     *    The Journal, or null if journaling is not enabled.
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Get the key-value store of the node.
+     * 
+     * @return
+     *    The StoreService, or null if store.enabled is not set.
+     */
+    public StoreService getStore() {
+        return store;
+    }
+    
+    /**
+     * Get the metrics registry of the node.
+     * 
+     * @return
+     *    The Metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Take a snapshot of the node metrics.
+     * 
+     * @return
+     *    Sorted map of metric name to value.
+     * @see Metrics#snapshot()
+     */
+    public TreeMap<String, Long> getMetricsSnapshot() {
+        return metrics.snapshot();
+    }
+    
+    /**
+     * Make a text dump of the node metrics, one "name = value" per line.
+     * 
+     * @return
+     *    Text dump of metrics.
+     * @see Metrics#dump()
+     */
+    public String dumpMetrics() {
+        return metrics.dump();
+    }
+    
     /**
      * 
      * @param logging 
@@ -132,6 +357,13 @@ public class AccordNode {
     public LinkedList<QueryResult> lookup_tables(Location ask, String queryline, String options) throws SocketTimeoutException, IllegalArgumentException {
         return lookup.lookup_tables(ask, queryline, options);
     }
+    
+    /* (non-Javadoc)
+     * @see net.morimekta.accord.Lookup#scatter(java.lang.String)
+     */
+    public Lookup.Scatter scatter(String options) throws IllegalArgumentException {
+        return lookup.scatter(options);
+    }
 
     /* (non-Javadoc)
      * @see net.morimekta.accord.Membership#connect(net.morimekta.net.Location)
@@ -140,12 +372,95 @@ public class AccordNode {
         return membership.connect(to);
     }
 
+    /**
+     * Reconnect a restarted node to the ring with the table snapshot saved on
+     * its last run. All nodes in the snapshot are pinged in parallel, the node
+     * connects through its nearest surviving predecessor (or any survivor),
+     * and the tables are filled with the survivors instead of being rebuilt
+     * by lookups. The snapshot is only used once.
+     * 
+     * @return
+     *     True if reconnected, false if there is no usable snapshot, no node
+     *     in it answered, or the connect failed. Then connect to a known host
+     *     as usual.
+     */
+    public boolean reconnect() {
+        TableSnapshot snap = warm;
+        warm = null;
+        if( snap == null ) return false;
+        long start = Clock.get().millis();
+        
+        LinkedList<Location> hosts = new LinkedList<Location>();
+        add(hosts, snap.getPreds());
+        add(hosts, snap.getSuccs());
+        add(hosts, snap.getFingers());
+        hosts.remove(getLocation());
+        
+        LinkedList<Location> alive = sweep(hosts);
+        metrics.counter("persist.restore.swept").add(hosts.size());
+        metrics.counter("persist.restore.alive").add(alive.size());
+        log.log("reconnect: "+alive.size()+" of "+hosts.size()+" hosts alive", Level.medium);
+        
+        // hosts are in snapshot order, nearest pred first.
+        Location to = null;
+        for( Location l : hosts ) {
+            if( alive.contains(l) ) {
+                to = l;
+                break;
+            }
+        }
+        if( to == null || !membership.connect(to) ) {
+            metrics.counter("persist.restore.failed").inc();
+            return false;
+        }
+        int count = snap.restore(table, alive);
+        metrics.counter("persist.restore.seeded").add(count);
+        metrics.histogram("persist.restore.latency").record(Clock.get().millis() - start);
+        log.log("reconnect: restored "+count+" table entries", Level.medium);
+        return true;
+    }
+    
     /* (non-Javadoc)
+     * @see net.morimekta.accord.Membership#addListener(net.morimekta.accord.MembershipListener)
+     */
+    public void addMembershipListener(MembershipListener l) {
+        membership.addListener(l);
+    }
+    
+    /**
+     * Leave the ring. With the store enabled, the owned range is first handed
+     * off to pred:0, and a failed handoff leaves the keys to the replicas.
+     * 
      * @see net.morimekta.accord.Membership#disconnect()
      */
     public boolean disconnect() {
+        if( handoff != null && !handoff.leave() )
+            log.log("disconnect: range handoff to pred:0 failed", Level.warning);
         return membership.disconnect();
     }
+    
+    /**
+     * Stop the node threads and close the socket and store. The node should
+     * be disconnected first, and cannot be used after.
+     */
+    public void close() {
+        if( replication != null ) replication.stop();
+        if( handoff != null ) handoff.stop();
+        iamalive.stop();
+        heartbeats.remove(socket.getLocation());
+        stabilizer.stop();
+        if( store != null ) store.getLocalStore().close();
+        if( journal != null ) journal.close();
+        socket.close();
+        log.close();
+    }
+
+    /* (non-Javadoc)
+     * @see net.morimekta.accord.Membership#leaveBatch(java.util.Collection)
+     */
+    public int leaveBatch(Collection<Location> hosts) {
+        return membership.leaveBatch(hosts);
+    }
 
     /* (non-Javadoc)
      * @see net.morimekta.net.MessageSocket#freeTicket(int)
@@ -295,4 +610,91 @@ public class AccordNode {
         return socket.toString();
     }
     
+    private String persistFile() {
+        return socket.getLocation().toString()+".table";
+    }
+    
+    /**
+     * Load the table snapshot of the last run. Snapshots that are too old,
+     * corrupt or of another node are ignored.
+     * 
+     * @param file
+     *     Snapshot file name.
+     * @return
+     *     The snapshot, or null if none usable.
+     */
+    private TableSnapshot loadSnapshot(String file) {
+        File f = new File(file);
+        if( !f.exists() ) return null;
+        if( f.lastModified() + Conf.persist__max_age < Clock.get().millis() ) {
+            log.log("persist: snapshot "+file+" too old, ignored", Level.medium);
+            return null;
+        }
+        try {
+            TableSnapshot snap = TableSnapshot.load(file);
+            if( !snap.getOwner().equals(socket.getLocation()) ) {
+                log.log("persist: snapshot "+file+" of "+snap.getOwner()+", ignored", Level.warning);
+                return null;
+            }
+            log.log("persist: loaded "+snap, Level.medium);
+            return snap;
+        } catch (IOException e) {
+            log.log("persist: unable to load "+file+": "+e.getMessage(), Level.warning);
+            metrics.counter("persist.load_failed").inc();
+            return null;
+        }
+    }
+    
+    /**
+     * Ping a set of hosts in parallel, with at most persist.sweep_threads
+     * pings in flight.
+     * 
+     * @param hosts
+     *     Hosts to ping.
+     * @return
+     *     The hosts that answered.
+     */
+    private LinkedList<Location> sweep(Collection<Location> hosts) {
+        final LinkedList<Location> queue = new LinkedList<Location>(hosts);
+        final LinkedList<Location> alive = new LinkedList<Location>();
+        Thread[] threads = new Thread[Math.max(1, Math.min(Conf.persist__sweep_threads, queue.size()))];
+        for( int i = 0; i < threads.length; i++ ) {
+            threads[i] = Clock.get().thread(new Runnable() {
+                public void run() {
+                    Location loc;
+                    while( true ) {
+                        synchronized( queue ) {
+                            if( queue.isEmpty() ) return;
+                            loc = queue.removeFirst();
+                        }
+                        if( socket.ping(loc, Conf.stabilizer__ping_timeout, Conf.stabilizer__alive_ping_count) >= 0 ) {
+                            synchronized( alive ) {
+                                alive.add(loc);
+                            }
+                        }
+                    }
+                }
+            });
+            threads[i].setDaemon(true);
+            threads[i].setName(getLocation()+".Sweep."+i);
+            Clock.get().start(threads[i]);
+        }
+        for( Thread t : threads ) {
+            try {
+                Clock.get().join(t);
+            } catch (InterruptedException e) {
+                log.log("sweep: interrupted", Level.low);
+            }
+        }
+        synchronized( alive ) {
+            return new LinkedList<Location>(alive);
+        }
+    }
+    
+    private static void add(LinkedList<Location> list, Location[] locs) {
+        for( Location l : locs ) {
+            if( l != null && !list.contains(l) ) list.add(l);
+        }
+    }
+    
 }
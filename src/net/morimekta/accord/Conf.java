@@ -4,6 +4,7 @@
 package net.morimekta.accord;
 
 import net.morimekta.accord.Lookup.Iter;
+import net.morimekta.accord.store.LocalStore;
 import net.morimekta.util.std.Config;
 import net.morimekta.util.std.Log.Level;
 
@@ -16,6 +17,62 @@ public class Conf extends Config {
     public volatile static Level verbose = Level.high;
     public volatile static int   port;
     
+    /*
+     * JOURNAL
+     */
+    public volatile static boolean journal__enabled = false;
+    public volatile static int     journal__chunk   = 1 << 20;
+    
+    /*
+     * PERSIST (Table snapshots)
+     */
+    public volatile static boolean persist__enabled       = false;
+    public volatile static long    persist__interval      = 30000;
+    public volatile static long    persist__max_age       = 3600000;
+    public volatile static int     persist__sweep_threads = 8;
+    
+    /*
+     * STORE
+     */
+    public volatile static boolean         store__enabled  = false;
+    public volatile static LocalStore.Type store__type     = LocalStore.Type.memory;
+    public volatile static long            store__timeout  = 2000;
+    public volatile static int             store__log_size = 1 << 20;
+    
+    /*
+     * REPLICATION
+     */
+    public volatile static boolean replication__enabled  = false;
+    public volatile static int     replication__factor   = 3;
+    public volatile static long    replication__interval = 10000;
+    public volatile static int     replication__depth    = 10;
+    public volatile static long    replication__timeout  = 2000;
+    
+    /*
+     * HANDOFF
+     */
+    public volatile static int  handoff__chunk   = 32;
+    public volatile static int  handoff__window  = 4;
+    public volatile static long handoff__timeout = 30000;
+    public volatile static long handoff__retry   = 5000;
+    
+    /*
+     * VNODE
+     */
+    public volatile static int             vnode__count   = 1;
+    public volatile static int             vnode__choices = 1;
+    public volatile static AccordHost.Load vnode__load    = AccordHost.Load.interval;
+    
+    /*
+     * FAILURE DETECTOR
+     */
+    public volatile static FailureDetector.Type detector__type             = FailureDetector.Type.phi;
+    public volatile static double               detector__phi_threshold    = 8.0;
+    public volatile static int                  detector__window           = 100;
+    public volatile static double               detector__min_std          = 100.0;
+    public volatile static long                 detector__acceptable_pause = 0;
+    public volatile static int                  detector__max_hosts        = 1024;
+    
     /*
      * I-AM-ALIVE
      */
@@ -25,8 +82,11 @@ public class Conf extends Config {
     /*
      * LOOKUP
      */
-    public volatile static int  lookup__timeout = 300;
-    public volatile static Iter lookup__iterate = Iter.no_safe;
+    public volatile static int  lookup__timeout     = 300;
+    public volatile static Iter lookup__iterate     = Iter.no_safe;
+    public volatile static int  lookup__hop_retries = 2;  // recursive mode.
+    public volatile static int  lookup__max_hops    = 32; // recursive mode.
+    public volatile static long lookup__coalesce    = 20; // ms, 0 is off.
     
     /*
      * MEMBERSHIP
@@ -35,6 +95,11 @@ public class Conf extends Config {
     public volatile static long membership__connect_timeout;
     public volatile static long membership__joinpred_timeout;
     public volatile static long membership__joinpred_msg_timeout;
+    public volatile static int  membership__session_queue = 16;
+    public volatile static long membership__session_wait  = 2000;
+    public volatile static boolean membership__bootstrap = true;
+    public volatile static long membership__departed_timeout = 60000;
+    public volatile static long membership__batch_hold       = 5000;
     
     /*
      * STABILIZER (Tables)
@@ -48,4 +113,5 @@ public class Conf extends Config {
     public volatile static long   stabilizer__backoff;
     public volatile static long   stabilizer__cycle_time;
     public volatile static int    stabilizer__rebalance_maxiter;
+    public volatile static int    stabilizer__rebuild_window = 4;
 }
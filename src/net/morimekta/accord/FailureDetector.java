@@ -0,0 +1,91 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+import net.morimekta.net.Location;
+
+/**
+ * Failure detector fed with the arrival times of heartbeats (i-am-alive
+ * messages and ping responses). The detector gives a suspicion level for
+ * each host instead of a yes or no, and the host is suspected when the
+ * level passes a threshold. Time is given by the caller, so the detectors
+ * can be run on simulated time.
+ * 
+ * @author Stein Eldar Johnsen
+ * @see PhiAccrualDetector
+ * @see TimeoutDetector
+ */
+public interface FailureDetector {
+    /**
+     * Detector implementations.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public enum Type {
+        /**
+         * Phi-accrual detector, adapts to the heartbeat intervals.
+         */
+        phi,
+        /**
+         * Fixed timeout since last heartbeat.
+         */
+        timeout,
+    }
+    
+    /**
+     * Record a heartbeat from a host. The first heartbeat starts monitoring
+     * the host.
+     * 
+     * @param host
+     *     Host heard from.
+     * @param now
+     *     Arrival time in milliseconds.
+     */
+    public void heartbeat(Location host, long now);
+    
+    /**
+     * Check if a host is monitored, that is if a heartbeat has been recorded
+     * from it and it has not been removed (or forgotten) since.
+     * 
+     * @param host
+     *     Host to check.
+     * @return
+     *     True if monitored.
+     */
+    public boolean isMonitored(Location host);
+    
+    /**
+     * Get the suspicion level of a host. Checking a host does not start
+     * monitoring it, and a host not monitored is not suspected.
+     * 
+     * @param host
+     *     Host to check.
+     * @param now
+     *     Current time in milliseconds.
+     * @return
+     *     Suspicion level, 0 or more.
+     */
+    public double suspicion(Location host, long now);
+    
+    /**
+     * Check if a host is suspected to have failed, that is if the suspicion
+     * level has passed the threshold of the detector.
+     * 
+     * @param host
+     *     Host to check.
+     * @param now
+     *     Current time in milliseconds.
+     * @return
+     *     True if suspected.
+     */
+    public boolean isSuspected(Location host, long now);
+    
+    /**
+     * Stop monitoring a host.
+     * 
+     * @param host
+     *     Host to forget.
+     */
+    public void remove(Location host);
+}
@@ -0,0 +1,285 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import net.morimekta.net.Location;
+import net.morimekta.net.Message;
+import net.morimekta.net.MessageService;
+import net.morimekta.net.MessageSocket;
+import net.morimekta.util.std.Clock;
+
+/**
+ * The i-am-alives of the virtual nodes of a host. Each virtual node monitors
+ * its own pred:0 and succ:0, but with many virtual nodes a pair of hosts
+ * would exchange one message per virtual node each cycle. The heartbeats
+ * runs the cycles of all the nodes of the host from one thread, collects the
+ * i-am-alives they send, and sends one "i-am-alives" message to each remote
+ * host, holding the i-am-alives of all the nodes there. The receiving host
+ * hands each of them to the IAmAlive of the virtual node it was sent to, as
+ * if sent alone from the virtual node it was sent from.
+ * 
+ * The remote host is known by the address only. An entry for a port not on
+ * the receiving host (another process on the same address) is passed on to
+ * that port, and a message too large for one packet is split.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class Heartbeats implements MessageService {
+    /**
+     * An i-am-alive waiting to be sent.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    private static class Entry {
+        final MessageSocket socket;
+        final Location      from;
+        final Location      to;
+        final Message       alive;
+        
+        Entry(MessageSocket _socket, Location _from, Location _to, Message _alive) {
+            socket  = _socket;
+            from    = _from;
+            to      = _to;
+            alive   = _alive;
+        }
+    }
+    
+    private final Hashtable<Location, MessageService> receivers = new Hashtable<Location, MessageService>();
+    private final Hashtable<Location, MessageSocket>  sockets   = new Hashtable<Location, MessageSocket>();
+    private final Vector<IAmAlive>                    driven    = new Vector<IAmAlive>();
+    private final Vector<Entry>                       queued    = new Vector<Entry>();
+    private Thread                                    daemon    = null;
+    
+    /**
+     * Add a node of the host, to receive the i-am-alives sent to it.
+     * 
+     * @param socket
+     *    Socket of the node.
+     * @param receiver
+     *    The IAmAlive of the node.
+     */
+    public void add(MessageSocket socket, MessageService receiver) {
+        sockets.put(socket.getLocation(), socket);
+        receivers.put(socket.getLocation(), receiver);
+    }
+    
+    /**
+     * Remove a node of the host.
+     * 
+     * @param loc
+     *    Location of the node.
+     */
+    public void remove(Location loc) {
+        receivers.remove(loc);
+        sockets.remove(loc);
+    }
+    
+    /**
+     * Start running the cycles of a node.
+     * 
+     * @param iaa
+     *    IAmAlive of the node.
+     */
+    public synchronized void start(IAmAlive iaa) {
+        if( !driven.contains(iaa) ) driven.add(iaa);
+        if( daemon == null || !daemon.isAlive() ) {
+            daemon = Clock.get().thread(new Runnable() {
+                public void run() {
+                    try {
+                        runLoop();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            daemon.setDaemon(true);
+            daemon.setName(iaa.getSocket().getLocation()+".Heartbeats");
+            Clock.get().start(daemon);
+        }
+    }
+    
+    /**
+     * Stop running the cycles of a node. The thread stops with the last node.
+     * 
+     * @param iaa
+     *    IAmAlive of the node.
+     */
+    public synchronized void stop(IAmAlive iaa) {
+        driven.remove(iaa);
+        Clock.get().signal(this);
+    }
+    
+    /**
+     * Runs the cycles of the nodes, and sends what they queued.
+     */
+    private void runLoop() {
+        IAmAlive[] nodes;
+        while( true ) {
+            synchronized ( this ) {
+                if( driven.size() == 0 ) {
+                    daemon = null;
+                    return;
+                }
+                nodes = driven.toArray(new IAmAlive[driven.size()]);
+            }
+            // the cycles take the table locks, so not under our own.
+            for( IAmAlive iaa : nodes ) {
+                iaa.cycle();
+            }
+            flush();
+            synchronized ( this ) {
+                try {
+                    if( driven.size() > 0 ) Clock.get().await(this, Conf.iamalive__cycle_time);
+                } catch( InterruptedException e ) {
+                    // just loop.
+                }
+            }
+        }
+    }
+    
+    /**
+     * Queue an i-am-alive for the next flush.
+     * 
+     * @param socket
+     *    Socket of the sending node.
+     * @param from
+     *    Sending node.
+     * @param to
+     *    Receiving node.
+     * @param alive
+     *    The i-am-alive message.
+     */
+    public void queue(MessageSocket socket, Location from, Location to, Message alive) {
+        queued.add(new Entry(socket, from, to, alive));
+    }
+    
+    /**
+     * Send the queued i-am-alives, one message to each remote host, or more
+     * if they do not fit in one packet.
+     * 
+     * @return
+     *    Number of messages sent.
+     */
+    public int flush() {
+        Vector<Vector<Entry>> hosts = new Vector<Vector<Entry>>();
+        synchronized ( queued ) {
+            for( Entry e : queued ) {
+                Vector<Entry> host = null;
+                for( Vector<Entry> cur : hosts ) {
+                    if( cur.get(0).to.getAddress().equals(e.to.getAddress()) ) {
+                        host = cur;
+                        break;
+                    }
+                }
+                if( host == null ) {
+                    host = new Vector<Entry>();
+                    hosts.add(host);
+                }
+                host.add(e);
+            }
+            queued.clear();
+        }
+        
+        int sent = 0;
+        for( Vector<Entry> host : hosts ) {
+            sent += send(host);
+        }
+        return sent;
+    }
+    
+    /**
+     * Send the i-am-alives for one remote host, from the socket of the first
+     * entry to the node of the first entry.
+     */
+    private int send(Vector<Entry> host) {
+        Entry first = host.get(0);
+        if( host.size() == 1 ) {
+            first.socket.send(first.to, first.alive);
+            return 1;
+        }
+        int           sent  = 0;
+        int           limit = first.socket.getMaxPacketSize() - Message.getHeaderSize() - getServiceName().length();
+        StringBuilder batch = new StringBuilder();
+        for( Entry e : host ) {
+            String entry = entry(e.from, e.to, e.alive.getMessage());
+            if( batch.length() > 0 && batch.length() + entry.length() > limit ) {
+                first.socket.send(first.to, new Message(0, 0, 0, getServiceName(), batch.toString()));
+                batch.setLength(0);
+                sent++;
+            }
+            batch.append(entry);
+        }
+        first.socket.send(first.to, new Message(0, 0, 0, getServiceName(), batch.toString()));
+        return sent + 1;
+    }
+    
+    /**
+     * Hand the i-am-alives to the nodes they were sent to.
+     * 
+     * @param msg
+     *    The i-am-alives message.
+     */
+    public void invoke(Message msg) {
+        String str = msg.getMessage();
+        int    pos = 0;
+        try {
+            while( pos < str.length() ) {
+                int      eol     = str.indexOf('\n', pos);
+                String[] head    = str.substring(pos, eol).split(" ");
+                Location from    = Location.get(head[0]);
+                Location to      = Location.get(head[1]);
+                int      len     = Integer.parseInt(head[2]);
+                String   payload = str.substring(eol + 1, eol + 1 + len);
+                pos = eol + 1 + len;
+                
+                MessageService receiver = receivers.get(to);
+                if( receiver != null ) {
+                    Message alive = new Message(0, 0, 0, receiver.getServiceName(), payload);
+                    alive.setSender(from);
+                    receiver.invoke(alive);
+                } else {
+                    pass_on(from, to, payload);
+                }
+            }
+        } catch( RuntimeException e ) {
+            // malformed, drop the rest.
+        } catch( UnknownHostException e ) {
+            // drop the rest.
+        }
+    }
+    
+    /**
+     * Pass an i-am-alive on to a node on the same address, but not on this
+     * host.
+     */
+    private void pass_on(Location from, Location to, String payload) {
+        InetAddress addr = to.getAddress();
+        for( MessageSocket socket : sockets.values() ) {
+            if( socket.getLocation().getAddress().equals(addr) ) {
+                socket.send(to, new Message(0, 0, 0, getServiceName(), entry(from, to, payload)));
+                return;
+            }
+        }
+    }
+    
+    /**
+     * An entry of the i-am-alives message: "from to length\n" and the
+     * i-am-alive.
+     */
+    private static String entry(Location from, Location to, String payload) {
+        return from + " " + to + " " + payload.length() + "\n" + payload;
+    }
+    
+    /**
+     * @return "i-am-alives"
+     */
+    public String getServiceName() {
+        return "i-am-alives";
+    }
+}
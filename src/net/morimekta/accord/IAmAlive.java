@@ -12,8 +12,10 @@ import net.morimekta.net.Location;
 import net.morimekta.net.Message;
 import net.morimekta.net.MessageService;
 import net.morimekta.net.MessageSocket;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Journal;
 import net.morimekta.util.std.Log;
-import net.morimekta.util.std.Options;
+import net.morimekta.util.std.OptionParser;
 import net.morimekta.util.std.Log.Level;
 /**
  * The I-Am-Alive protocol, both participant and initiator / thread.
@@ -37,27 +39,16 @@ public class IAmAlive implements MessageService {
     private Message             alive2pred;
     private Message             alive2succ;
     private volatile boolean    work;
+    private Journal             journal = null;
+    private FailureDetector     detector;
+    private Location            watch_pred = null; // pred(0) last monitored.
+    private Location            watch_succ = null; // succ(0) last monitored.
+    private long                stat_timeout = 0;
+    private Heartbeats          heartbeats = null; // drives the cycles of a virtual node.
     
-    private class IAmAliveOptions extends Options {
-        long version;
-        public IAmAliveOptions(String _opts) { super(_opts); }
-        public void parse(char op, String arg) {
-            switch( op ) {
-            case 'v':
-                try {
-                    version = Long.parseLong(arg);
-                } catch (NumberFormatException e) {
-                    version = -1;
-                }
-                break;
-            default:
-                break;
-            }
-        }
-    }
-    private static String optline="v,version,int";
-    private IAmAliveOptions opts = new IAmAliveOptions(optline);
-    private Thread daemon = new Thread() {
+    private static final String       optline = "v,version,int";
+    private static final OptionParser opts    = new OptionParser(optline);
+    private Thread daemon = Clock.get().thread(new Runnable() {
         public void run() {
             try {
                 runLoop();
@@ -65,7 +56,7 @@ public class IAmAlive implements MessageService {
                 e.printStackTrace();
             }
         }
-    };
+    });
     /**
      * Builds the alive messages:<ul>
      * <li><code> i-am-alive \0 </code>
@@ -97,7 +88,7 @@ public class IAmAlive implements MessageService {
             alive2succ = new Message(0, 0, 0, getServiceName(), str);
         }
         // alive-to-pred
-        if( pred_ver != pred.version() ){
+        if( succ_ver != succ.version() ){
             synchronized ( succ ) {
                 succ_ver = succ.version();
                 str = "--version " + succ_ver +"\n";
@@ -133,6 +124,7 @@ public class IAmAlive implements MessageService {
         socket      = _sock;
         work        = true;
         membership  = _mm;
+        detector    = new TimeoutDetector(Conf.iamalive__leave_timeout);
         
         build_messages(true);
         
@@ -140,82 +132,86 @@ public class IAmAlive implements MessageService {
         daemon.setName(me+".IAmAlive");
     }
     
+    /**
+     * Set the journal to write neighbour timeouts to.
+     * 
+     * @param _journal
+     *   Journal, or null to stop journaling.
+     */
+    public void setJournal(Journal _journal) {
+        journal = _journal;
+    }
+    
+    /**
+     * Set the failure detector that decides when pred:0 and succ:0 are
+     * unstable, and that is fed with the i-am-alive messages. The default
+     * detector is a fixed iamalive.leave_timeout.
+     * 
+     * @param _detector
+     *   Failure detector.
+     */
+    public void setDetector(FailureDetector _detector) {
+        detector = _detector;
+    }
+    
+    /**
+     * Start monitoring a new neighbour with the failure detector, as if a
+     * heartbeat arrived now. A location that was a neighbour earlier has
+     * not sent i-am-alives since, so its old history is dropped first.
+     * 
+     * @param loc
+     *   Location to monitor.
+     * @param last
+     *   Neighbour monitored in the last loop, or null.
+     * @return
+     *   The location.
+     */
+    private Location monitor(Location loc, Location last) {
+        if( !loc.equals(last) || !detector.isMonitored(loc) ) {
+            detector.remove(loc);
+            detector.heartbeat(loc, Clock.get().millis());
+        }
+        return loc;
+    }
+    
+    /**
+     * Set the heartbeats of the host, when the node is one of the virtual
+     * nodes of an AccordHost. The cycles are then run by the heartbeats, and
+     * the i-am-alives sent with those of the other virtual nodes. Must be set
+     * before start.
+     * 
+     * @param _heartbeats
+     *   Heartbeats of the host.
+     */
+    public void setHeartbeats(Heartbeats _heartbeats) {
+        heartbeats = _heartbeats;
+    }
+    
+    /**
+     * @return The socket the i-am-alives are sent on.
+     */
+    MessageSocket getSocket() {
+        return socket;
+    }
+    
+    /**
+     * Send an i-am-alive, or give it to the heartbeats of the host.
+     */
+    private void send(Location to, Message alive) {
+        if( heartbeats != null ) heartbeats.queue(socket, me, to, alive);
+        else                     socket.send(to, alive);
+    }
+    
     /**
      * Runs the I-Am-Alive protocol.
      */
     private synchronized void runLoop(){
-        boolean  pred_unstable,
-                 succ_unstable;
-        Location succ0 = null,
-                 pred0 = null;
-        long     stat_timeout = 0;
         log.log("starting thread", Level.high);
         
         while( work ){
             try{
-                pred_unstable = false;
-                succ_unstable = false;
-                //log.log("Looping.",LogFile.INFO);
-                /*
-                 * Check for too long timeout periods.
-                 * No point in managing empty tables!
-                 */
-                synchronized ( pred ) {
-                    if( ( pred.size() > 0 ) &&
-                        (( pred.get(0).getTimestamp() + Conf.iamalive__leave_timeout ) < System.currentTimeMillis()) ){
-                        pred0 = pred.get(0);
-                        log.log("unstable pred:0 "+pred0, Level.medium);
-                        pred.setStable(false);
-                        pred_unstable = true;
-                    }
-                }
-                synchronized ( succ ) {
-                    if( ( succ.size() > 0 ) &&
-                        (( succ.get(0).getTimestamp() + Conf.iamalive__leave_timeout ) < System.currentTimeMillis()) ){
-                        succ0 = succ.get(0);
-                        log.log("unstable succ:0 "+succ0, Level.medium);
-                        succ.setStable(false);
-                        succ_unstable = true;
-                    }
-                }
-                
-                if( succ_unstable ){
-                    membership.checkLeave(succ0);
-                }
-                if( pred_unstable ){
-                    // do nothing !!! let the node's parent (pred) to take care of it.
-                }
-                
-                /*
-                 * We need to rebuild messages if the table
-                 * is modified since last build.
-                 */
-                build_messages(false);
-                
-                /*
-                 * Send i-am-alive messages.
-                 */
-                synchronized ( pred ) {
-                    if( pred.size() > 0 ){
-                    	socket.send(pred.get(0), alive2pred);
-                    }
-                }
-                
-                synchronized ( succ ) {
-                    if( succ.size() > 0 ){
-                    	socket.send(succ.get(0), alive2succ);
-                    }
-                }
-                
-                if( stat_timeout < System.currentTimeMillis() ) {
-                    stat_timeout = System.currentTimeMillis()+Conf.iamalive__cycle_time*30;
-                    log.log("i-am-alives: succ="+succ_count+" pred="+pred_count, Level.low);
-                    succ_count = 0;
-                    pred_count = 0;
-                }
-                
-                
-                wait( Conf.iamalive__cycle_time );
+                cycle();
+                Clock.get().await( this, Conf.iamalive__cycle_time );
             } catch( InterruptedException e ){
                 // just loop.
                 log.log("Thread Interrupted.", Level.high);
@@ -226,27 +222,121 @@ public class IAmAlive implements MessageService {
     }
     
     /**
-     * Start the IAmAlive Service Thread
-     *
+     * Run one cycle of the protocol: check pred:0 and succ:0, and send them
+     * the i-am-alives.
+     */
+    synchronized void cycle(){
+        boolean  pred_unstable,
+                 succ_unstable;
+        Location succ0 = null,
+                 pred0 = null;
+        
+        if( !work ) return;
+        
+        pred_unstable = false;
+        succ_unstable = false;
+        //log.log("Looping.",LogFile.INFO);
+        /*
+         * Check for too long timeout periods.
+         * No point in managing empty tables!
+         */
+        synchronized ( pred ) {
+            // a new pred:0 is monitored from now.
+            if( pred.size() > 0 ) watch_pred = monitor(pred.get(0), watch_pred);
+            if( ( pred.size() > 0 ) &&
+                detector.isSuspected(pred.get(0), Clock.get().millis()) ){
+                pred0 = pred.get(0);
+                log.log("unstable pred:0 "+pred0, Level.medium);
+                if( journal != null )
+                    journal.record(JournalEvent.alive_timeout.ordinal(), 0, "pred", 0, pred0);
+                pred.setStable(false);
+                pred_unstable = true;
+            }
+        }
+        synchronized ( succ ) {
+            if( succ.size() > 0 ) watch_succ = monitor(succ.get(0), watch_succ);
+            if( ( succ.size() > 0 ) &&
+                detector.isSuspected(succ.get(0), Clock.get().millis()) ){
+                succ0 = succ.get(0);
+                log.log("unstable succ:0 "+succ0, Level.medium);
+                if( journal != null )
+                    journal.record(JournalEvent.alive_timeout.ordinal(), 0, "succ", 0, succ0);
+                succ.setStable(false);
+                succ_unstable = true;
+            }
+        }
+        
+        if( succ_unstable ){
+            membership.checkLeave(succ0);
+        }
+        if( pred_unstable ){
+            // do nothing !!! let the node's parent (pred) to take care of it.
+        }
+        
+        /*
+         * We need to rebuild messages if the table
+         * is modified since last build.
+         */
+        build_messages(false);
+        
+        /*
+         * Send i-am-alive messages.
+         */
+        synchronized ( pred ) {
+            if( pred.size() > 0 ){
+            	send(pred.get(0), alive2pred);
+            }
+        }
+        
+        synchronized ( succ ) {
+            if( succ.size() > 0 ){
+            	send(succ.get(0), alive2succ);
+            }
+        }
+        
+        if( stat_timeout < Clock.get().millis() ) {
+            stat_timeout = Clock.get().millis()+Conf.iamalive__cycle_time*30;
+            log.log("i-am-alives: succ="+succ_count+" pred="+pred_count, Level.low);
+            succ_count = 0;
+            pred_count = 0;
+        }
+    }
+    
+    /**
+     * Start the IAmAlive Service Thread, or the cycles of a virtual node by
+     * the heartbeats of the host.
+     * 
      */
     public synchronized void start() {
-        if( !daemon.isAlive() ) {
+        if( heartbeats != null ) {
+            work = true;
+            heartbeats.start(this);
+        } else if( !daemon.isAlive() ) {
             work = true;
-            daemon.start();
+            Clock.get().start(daemon);
         }
     }
     
     /**
      * Stop the IAA Thread.
-     *
+     * 
      */
-    public synchronized void stop(){
-    	try {
-            if( work ) {
+    public void stop(){
+        if( heartbeats != null ) {
+            synchronized ( this ) {
                 work = false;
-                daemon.interrupt();
-                daemon.join();
             }
+            heartbeats.stop(this);
+            return;
+        }
+        // the thread holds the lock while running, so join without it.
+        synchronized ( this ) {
+            if( !work ) return;
+            work = false;
+            Clock.get().interrupt(daemon);
+        }
+    	try {
+            Clock.get().join(daemon);
 		} catch (InterruptedException e) {
 			System.err.println("Join on IAmAlive interrupted.");
 		}
@@ -256,13 +346,14 @@ public class IAmAlive implements MessageService {
         return "i-am-alive";
     }
 
-    public synchronized void invoke( Message msg ) {
+    public void invoke( Message msg ) {
         Location loc;
         //Location cur;
         Location in;
         boolean  is_pred0 = false;
         boolean  is_succ0 = false;
         long     version;
+        String   tmp;
 
         String[] lines;
         
@@ -276,7 +367,9 @@ public class IAmAlive implements MessageService {
         }
         // have no idea who's talking to me...
         // set the location as active in FingerTable.
-        loc.setTimestamp(System.currentTimeMillis());
+        long now = Clock.get().millis();
+        table.touch(loc, now);
+        detector.heartbeat(loc, now);
         // check if first of anything...
         if( pred.indexOf(loc) == 0 ) {
             is_pred0 = true;
@@ -288,9 +381,14 @@ public class IAmAlive implements MessageService {
         }
         
         lines = msg.getMessage().split("\n");
-        opts.version = -1; // no attached version should not go through...
-        opts.run(lines[0]);
-        version = opts.version;
+        version = -1; // no attached version should not go through...
+        if( ( tmp = opts.parse(lines[0]).get('v') ) != null ) {
+            try {
+                version = Long.parseLong(tmp);
+            } catch (NumberFormatException e) {
+                version = -1;
+            }
+        }
         
         if( version == -1 ) {
             log.log("version not given from "+msg.getSender(), Level.warning);
@@ -312,10 +410,12 @@ public class IAmAlive implements MessageService {
             }
             
             LinkedList<Location> incoming = new LinkedList<Location>();
+            // the sender is not in its own list, but is still our neighbour.
+            incoming.addLast(loc);
             
             for( int i = 1; i < lines.length; i++ ) {
                 try {
-                    in    = new Location(lines[i]);  // host:port (Location)
+                    in    = Location.get(lines[i]);  // host:port (Location)
                     loc   = table.getLocation(in);      // check if we already know this location in our tables.
                     if( loc == null )  loc = in;        // lets use the incoming locaiton...
                     if( loc.equals(me) ) break;         // self or no location... done !!!.
@@ -361,7 +461,8 @@ public class IAmAlive implements MessageService {
             }
         } else {
             // not twosome ...
-            log.log("Got I-Am-Alive from non-neighbor node: "+loc, Level.low);
+            if( log.isLoggable(Level.low) )
+                log.log("Got I-Am-Alive from non-neighbor node: "+loc, Level.low);
         }
     } // invoke
 }
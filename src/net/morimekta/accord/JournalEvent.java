@@ -0,0 +1,63 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+/**
+ * Event types written to the node journal. The ordinal is the type number
+ * in the journal file, so new events must be added at the end.
+ * 
+ * @author Stein Eldar Johnsen
+ * @see net.morimekta.util.std.Journal
+ */
+public enum JournalEvent {
+    /**
+     * Membership operation is prepared. Payload is the operation.
+     */
+    membership_prepare,
+    /**
+     * Membership operation ended. Payload is "operation result message".
+     */
+    membership_notify,
+    /**
+     * Location added to table. Payload is "table position location".
+     */
+    table_add,
+    /**
+     * Location removed from table. Payload is "table position location".
+     */
+    table_remove,
+    /**
+     * Table cleared or cropped. Payload is "table size".
+     */
+    table_clear,
+    /**
+     * Index lookup started. Payload is "index iter".
+     */
+    lookup_start,
+    /**
+     * Index lookup forwarded to owner. Payload is "origin index owner mode".
+     */
+    lookup_forward,
+    /**
+     * Index lookup replied to origin. Payload is "origin index owner mode".
+     */
+    lookup_reply,
+    /**
+     * Index lookup response received. Payload is "owner mode".
+     */
+    lookup_hop,
+    /**
+     * Index lookup message timed out. Payload is the asked location.
+     */
+    lookup_timeout,
+    /**
+     * Index lookup ended. Payload is the result, or "timeout".
+     */
+    lookup_end,
+    /**
+     * Neighbour is considered unstable by I-Am-Alive. Payload is
+     * "table 0 location".
+     */
+    alive_timeout,
+}
@@ -5,6 +5,7 @@ package net.morimekta.accord;
 
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -16,8 +17,11 @@ import net.morimekta.net.Location;
 import net.morimekta.util.index.Index;
 import net.morimekta.util.index.IndexFactory;
 import net.morimekta.util.index.SHA1Factory;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Journal;
 import net.morimekta.util.std.Log;
-import net.morimekta.util.std.Options;
+import net.morimekta.util.std.Metrics;
+import net.morimekta.util.std.OptionParser;
 import net.morimekta.util.std.STD;
 import net.morimekta.util.std.Log.Level;
 
@@ -47,11 +51,31 @@ import net.morimekta.util.std.Log.Level;
  * <li><em>no_neighbor</em> Iterate on all except neighbours. </li>
  * <li><em>no_safe</em> Iterate on all except neighbours and safe. </li>
  * <li><em>self</em> Iterate on self only (no recursion). </li>
+ * <li><em>recursive</em> Forward hop by hop, the owner replies to the origin. </li>
  * </ul>
  * <br>
  * To iterate is to return the result of the local lookup instead of forwarding it to the
  * one that more likely know where the final result node is. 
  * Using the iter argument to its full potensial is not hard.
+ * <br>
+ * In <em>recursive</em> mode each hop acks the message to the sender at once,
+ * and takes over the responsibility of getting it to the next hop, with its
+ * own acks and retransmits. The acks come to a listener ticket and the
+ * retransmits are sent by a timer thread, so no thread waits for a hop. The
+ * owner replies straight to the origin, which waits for the first hop to ack,
+ * and then only for the final answer. If the next hop does not ack within
+ * <em>lookup.hop_retries</em> retransmits, the hop tries the closest node it
+ * knows before that one. A hop that can not get the message on replies with
+ * the owner it knows in its own mode, and the origin starts over around that
+ * owner. As a hop may get a retransmit of a message it already forwarded,
+ * the origin may get more than one answer, and keeps the first.
+ * <br>
+ * A node that forwards lookups of the same index from many origins within
+ * <em>lookup.coalesce</em> ms relays them as one lookup of its own. The first
+ * opens the flight and is forwarded with the node as the origin, the answer
+ * comes back to the listener ticket, and is sent on to each origin with the
+ * hop count of its own lookup. A lookup that is already relayed is not
+ * relayed again, so an answer goes back through one relay at most.
  * 
  * <H2> Table Lookups </H2>
  * 
@@ -82,6 +106,7 @@ public class Lookup implements MessageService {
     protected enum Op {
         index,
         index_res,
+        index_ack,
         table,
         table_res,
     }
@@ -97,17 +122,24 @@ public class Lookup implements MessageService {
         // recurse on "safer"
         no_neighbor, // l,[n],s, u
         no_safe,     // l,[n, s],u
+        // forward hop by hop with acks, owner replies to origin.
+        recursive,   // l,[n, s, u]
         // do not iterate (none) = self
         // iterate on all (all)  = unsafe
     }
     
-    private String         op_string      = "t,timeout,integer\n" +
-                                            "m,msg-timeout,integer";
-    private LocalOpts      op             = new LocalOpts();
-    private String         index_string   = "i,iter,string\n" +
-                                            "o,origin,string\n" +
-                                            "I,index,string";
-    private IndexOpts      index          = new IndexOpts();
+    private static final String       op_string    = "t,timeout,integer\n" +
+                                                     "m,msg-timeout,integer";
+    private static final String       index_string = "i,iter,string\n" +
+                                                     "o,origin,string\n" +
+                                                     "I,index,string\n" +
+                                                     "T,ticket,integer\n" +
+                                                     "h,hops,integer\n" +
+                                                     "x,exclude,string\n" +
+                                                     "f,fwd,integer\n" +
+                                                     "F,flight,integer";
+    private static final OptionParser op           = new OptionParser(op_string);
+    private static final OptionParser index        = new OptionParser(op_string+"\n"+index_string);
     
     private int            qid = 0;
     
@@ -125,6 +157,7 @@ public class Lookup implements MessageService {
         public String   query = null;
         public int      idx   = -2;
         public Location loc   = null;
+        public Location host  = null; // host asked (scatter), or null.
         public QueryResult(String result_line) throws IllegalArgumentException {
             if( result_line == null )
                 throw new IllegalArgumentException("result_line is null");
@@ -140,7 +173,7 @@ public class Lookup implements MessageService {
                     idx = Integer.parseInt(words[2]);
                 } catch ( NumberFormatException e) {
                     try {
-                        loc = new Location(words[2]);
+                        loc = Location.get(words[2]);
                     } catch (UnknownHostException e1) {
                         throw new IllegalArgumentException("no valid Location or index");
                     }
@@ -162,75 +195,227 @@ public class Lookup implements MessageService {
             return quid+","+opid+" "+query+" = "+(idx==-2 ? loc.toString() : ""+idx );
         }
     }
-    private class LocalOpts extends Options {
-        long            timeout;
-        long            msg_timeout;
-        public LocalOpts(){
-            super(op_string);
-        }
-        protected LocalOpts(String extra){
-            super(op_string+"\n"+extra);
-        }
-        public void parse(char op, String arg) {
-            try {
-                switch (op) {
-                    case 't':
-                        timeout = Long.parseLong(arg);
-                        break;
-                    case 'm':
-                        msg_timeout = Long.parseLong(arg);
-                        break;
-                    default:
-                        throw new IllegalArgumentException(arg+" is not a valid Lookup Option");
+    /**
+     * Immutable lookup options, parsed once per call.
+     */
+    private class LookupOpts {
+        final long     timeout;
+        final long     msg_timeout;
+        final Iter     iter;
+        final Index    idx;
+        final Location origin;
+        final int      ticket; // ticket of the origin (recursive), or 0.
+        final int      hops;   // hops so far (recursive).
+        final Location exclude; // hop to route around (recursive), or null.
+        final int      fwd;    // forward id to ack (recursive), or 0.
+        final int      flight; // relay flight of the origin, or 0.
+        final String   error; // number format error, or null.
+        
+        /**
+         * Read the options from a parse result.
+         * 
+         * @param res
+         *   Parsed options.
+         * @param strict
+         *   If true, unknown options are illegal, else they are logged.
+         * @throws IllegalArgumentException
+         *   If strict and an unknown option is given.
+         */
+        LookupOpts(OptionParser.Result res, boolean strict) throws IllegalArgumentException {
+            long     tmp_timeout     = Conf.lookup__timeout;
+            long     tmp_msg_timeout = Conf.msg_timeout;
+            Iter     tmp_iter        = Iter.undefined;
+            Location tmp_origin      = null;
+            int      tmp_ticket      = 0;
+            int      tmp_hops        = 0;
+            Location tmp_exclude     = null;
+            int      tmp_fwd         = 0;
+            int      tmp_flight      = 0;
+            String   tmp_error       = null;
+            String   arg;
+            for( int i = 0; i < res.size(); i++ ) {
+                arg = res.getArgument(i);
+                try {
+                    switch( res.getOption(i) ){
+                        case 't':
+                            tmp_timeout = Long.parseLong(arg);
+                            break;
+                        case 'm':
+                            tmp_msg_timeout = Long.parseLong(arg);
+                            break;
+                        case 'i':
+                            try {
+                                tmp_iter = Iter.valueOf(arg);
+                            } catch( Exception e ) {
+                                tmp_iter = Iter.undefined;
+                            }
+                            break;
+                        case 'o':
+                            try {
+                                tmp_origin = Location.get(arg);
+                            } catch (UnknownHostException e) {
+                                // ignore.
+                            }
+                            break;
+                        case 'I':
+                            break;
+                        case 'T':
+                            tmp_ticket = Integer.parseInt(arg);
+                            break;
+                        case 'h':
+                            tmp_hops = Integer.parseInt(arg);
+                            break;
+                        case 'x':
+                            try {
+                                tmp_exclude = Location.get(arg);
+                            } catch (UnknownHostException e) {
+                                // ignore.
+                            }
+                            break;
+                        case 'f':
+                            tmp_fwd = Integer.parseInt(arg);
+                            break;
+                        case 'F':
+                            tmp_flight = Integer.parseInt(arg);
+                            break;
+                        default:
+                            if( strict )
+                                throw new IllegalArgumentException(arg+" is not a valid Lookup Option");
+                            log.log("LookupOpts: Unknown Operation "+arg, Level.high);
+                            break;
+                    }
+                } catch (NumberFormatException e) {
+                    tmp_error = arg+" is not a number";
                 }
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException(arg+" is not a number");
             }
+            timeout     = tmp_timeout;
+            msg_timeout = tmp_msg_timeout;
+            iter        = tmp_iter;
+            origin      = tmp_origin;
+            ticket      = tmp_ticket;
+            hops        = tmp_hops;
+            exclude     = tmp_exclude;
+            fwd         = tmp_fwd;
+            flight      = tmp_flight;
+            error       = tmp_error;
+            arg         = res.get('I');
+            idx         = ( arg == null ? null : factory.getIndex(arg) );
         }
-    }
-    private class IndexOpts extends LocalOpts { 
-        Iter     iter;
-        Index    idx;
-        Location origin;
-        public   IndexOpts() { super( index_string ); }
-        public void parse( char op, String arg ){
-            switch( op ){
-                case 'i':
-                    try {
-                        iter = Iter.valueOf(arg);
-                    } catch( Exception e ) {
-                        iter = Iter.undefined;
-                    }
-                    break;
-                case 'o':
-                    try {
-                        origin = new Location(arg);
-                    } catch (UnknownHostException e) {
-                        // ignore.
-                    }
-                    break;
-                case 'I':
-                    idx = factory.getIndex(arg);
-                    break;
-                case '?':
-                    log.log("IndexOpts: Unknown Operation "+arg, Level.high);
-                    break;
-                default:
-                    try {
-                        super.parse(op, arg);
-                    } catch( IllegalArgumentException e ) {
-                        log.log("IndexOpts: "+e.getMessage(), Level.low);
-                        throw e;
-                    }
-                    break;
+        
+        /**
+         * Check the options for number format errors.
+         * 
+         * @throws IllegalArgumentException
+         *   If a number option was not a number.
+         */
+        void check() throws IllegalArgumentException {
+            if( error != null ) {
+                log.log("LookupOpts: "+error, Level.low);
+                throw new IllegalArgumentException(error);
             }
         }
     }
     
+    /**
+     * An origin of a lookup, as it came to me.
+     */
+    private static class Asker {
+        final Location origin;
+        final int      ticket; // ticket of the origin.
+        final int      hops;   // hops so far.
+        final int      flight; // relay flight of the origin, or 0.
+        
+        Asker( Location _origin, int _ticket, int _hops, int _flight ) {
+            origin = _origin;
+            ticket = _ticket;
+            hops   = _hops;
+            flight = _flight;
+        }
+    }
+    
+    /**
+     * Index lookup relayed by me, see coalesce.
+     */
+    private static class Flight {
+        final String            key;      // index and mode.
+        final int               id;
+        final long              start;
+        final long              deadline; // land with the fallback then.
+        final int               hops;     // hops of the lookup that opened it.
+        final String            fallback; // answer if none came, or null.
+        final LinkedList<Asker> askers = new LinkedList<Asker>();
+        
+        Flight( String _key, int _id, long _start, long _deadline, int _hops, String _fallback ) {
+            key      = _key;
+            id       = _id;
+            start    = _start;
+            deadline = _deadline;
+            hops     = _hops;
+            fallback = _fallback;
+        }
+    }
+    
+    // the lookup is forwarded as it is.
+    private static final Flight direct = new Flight( null, 0, 0, 0, 0, null );
+    
+    // flights open to join, by key, and waiting for an answer, by id.
+    private final Hashtable<String, Flight>  flights = new Hashtable<String, Flight>();
+    private final Hashtable<Integer, Flight> relays  = new Hashtable<Integer, Flight>();
+    
+    /**
+     * A recursive lookup I forwarded, until the next hop acks it, see expire.
+     */
+    private static class Forward {
+        final int      id;
+        final Message  msg;
+        final Location origin;
+        final int      ticket; // ticket of the origin.
+        final int      flight; // relay flight of the origin, or 0.
+        final String   result; // reply to the origin if I give up.
+        Location       next;
+        int            tries    = 0;
+        boolean        fallback = false;
+        long           deadline;
+        
+        Forward( int _id, Message _msg, Location _origin, int _ticket, int _flight,
+                 String _result, Location _next ) {
+            id     = _id;
+            msg    = _msg;
+            origin = _origin;
+            ticket = _ticket;
+            flight = _flight;
+            result = _result;
+            next   = _next;
+        }
+    }
+    
+    // forwards not acked, by id. Guards the flights too, and the timer waits on it.
+    private final Hashtable<Integer, Forward> pending = new Hashtable<Integer, Forward>();
+    private int          last_id      = 0;
+    private volatile int async_ticket = 0; // listener ticket, or 0.
+    private Thread       timer        = null; // running while forwards or flights are pending.
+    
+    /**
+     * Receives the acks of my forwards and the answers to my flights on the
+     * socket thread.
+     */
+    private final MessageService listener = new MessageService() {
+        public void invoke( Message msg ) {
+            invoke_async( msg );
+        }
+        public String getServiceName() {
+            return Lookup.this.getServiceName();
+        }
+    };
+    
     private LookupTable    table;
     private MessageSocket  socket;
     private IndexFactory   factory;
     private Log            log;
+    private Journal        journal = null;
+    private Metrics        metrics;
+    private Metrics.Histogram[] latency; // per Iter.
+    private Metrics.Histogram[] hops;    // per Iter.
     
     /**
      * Create a lookupservice working on the LookupTable _ft, and using ServiceSocket sock to send
@@ -249,12 +434,41 @@ public class Lookup implements MessageService {
             factory = _ft.getMe().getIndex().getFactory();
         else
             factory = SHA1Factory.getInstance(); // we use what we have.
+        setMetrics(new Metrics());
     }
     
     public String getServiceName() {
         return "lookup";
     }
     
+    /**
+     * Set the journal to write lookup hops and timeouts to.
+     * 
+     * @param _journal Journal, or null to stop journaling.
+     */
+    public void setJournal( Journal _journal ) {
+        journal = _journal;
+    }
+    
+    /**
+     * Set the metrics registry to record lookup latency (microseconds),
+     * hop counts and message counters in.
+     * 
+     * @param _metrics Metrics registry.
+     */
+    public void setMetrics( Metrics _metrics ) {
+        Iter[] iters = Iter.values();
+        Metrics.Histogram[] tmp_latency = new Metrics.Histogram[iters.length];
+        Metrics.Histogram[] tmp_hops    = new Metrics.Histogram[iters.length];
+        for( int i = 0; i < iters.length; i++ ) {
+            tmp_latency[i] = _metrics.histogram("lookup.latency."+iters[i]);
+            tmp_hops[i]    = _metrics.histogram("lookup.hops."+iters[i]);
+        }
+        latency = tmp_latency;
+        hops    = tmp_hops;
+        metrics = _metrics;
+    }
+    
     /**
      * Invokes lookup from index.
      * 
@@ -273,6 +487,7 @@ public class Lookup implements MessageService {
         long       pred_index,
                    succ_index;
         Iter       iter;
+        LookupOpts opts;
         
         try {
             {
@@ -283,21 +498,14 @@ public class Lookup implements MessageService {
                 }
                 argument[0] = null; // "index"
                 
-                synchronized ( index ) {
-                    index.origin = null;
-                    index.iter   = Iter.undefined;
-                    index.idx    = null;
-                    try {
-                        index.run(argument);
-                    } catch (IllegalArgumentException e) {
-                        //e.printStackTrace();
-                        log.log("index.invoke illegal argument in operions: "+e.getMessage(),
-                                Level.warning);
-                    }
-                    origin = index.origin;
-                    iter   = index.iter;
-                    idx    = index.idx;
+                opts = new LookupOpts(index.parse(argument), false);
+                if( opts.error != null ) {
+                    log.log("index.invoke illegal argument in operions: "+opts.error,
+                            Level.warning);
                 }
+                origin = opts.origin;
+                iter   = opts.iter;
+                idx    = opts.idx;
                 /*  */ if( idx     == null ) {
                     log.log("index.invoke "+msg.getSender()+" no index", Level.warning);
                     return;
@@ -306,7 +514,12 @@ public class Lookup implements MessageService {
                     return;
                 }
                 if( iter == Iter.undefined ) iter = Conf.lookup__iterate;
-                log.log("index.invoke "+origin+" "+idx+" "+iter, Level.low);
+                if( log.isLoggable(Level.low) )
+                    log.log("index.invoke "+origin+" "+idx+" "+iter, Level.low);
+                if( iter == Iter.recursive ) {
+                    invoke_recursive( msg, opts );
+                    return;
+                }
             }
             //log.log("Index is: "+idx.toHexString()+", iter is "+iter, Level.low);
             
@@ -363,20 +576,431 @@ public class Lookup implements MessageService {
              * Send message or response to "whom it may concern".
              */
             if ( ! reply ) {
-                socket.send( owner, msg );
-                log.log("index.forward "+owner+" "+mode, Level.low);
+                Flight flight = coalesce( idx, iter.toString(),
+                                          new Asker( origin, msg.getFromTicket(), opts.hops, opts.flight ),
+                                          Conf.msg_timeout, null );
+                if( flight == null ) return; // answered with the flight.
+                if( flight != direct ) {
+                    socket.send( owner, new Message( async_ticket, 0, 0, getServiceName(),
+                            "index --index "+idx.toBase64String()+" --origin "+table.getMe()+
+                            " --iter "+iter+" --hops "+(opts.hops + 1)+" --flight "+flight.id ) );
+                } else {
+                    socket.send( owner, new Message( msg.getFromTicket(), 0, 0, getServiceName(),
+                            msg.getMessage()+" --hops "+(opts.hops + 1) ) );
+                }
+                metrics.counter("lookup.forwarded").inc();
+                if( journal != null )
+                    journal.record(JournalEvent.lookup_forward.ordinal(), msg.getFromTicket(),
+                                   origin, idx, owner, mode);
+                if( log.isLoggable(Level.low) )
+                    log.log("index.forward "+owner+" "+mode, Level.low);
             } else {
-                Message response = new Message( 0, msg.getFromTicket(), 0,
-                        Op.index_res.toString(),
-                        idx.toBase64String() + " " + owner + " " + mode);
-                socket.send( origin, response );
-                log.log("index.reply "+owner+" "+mode, Level.low);
+                answer( origin, msg.getFromTicket(), opts.flight,
+                        idx.toBase64String() + " " + owner + " " + mode + " " + (opts.hops + 1) );
+                metrics.counter("lookup.replied").inc();
+                if( journal != null )
+                    journal.record(JournalEvent.lookup_reply.ordinal(), msg.getFromTicket(),
+                                   origin, idx, owner, mode);
+                if( log.isLoggable(Level.low) )
+                    log.log("index.reply "+owner+" "+mode, Level.low);
             }
         } finally {
             //log.log("Index: Cleaning up.", Level.low);
         }
     }
     
+    /**
+     * Invokes a recursive lookup from index. Acks the sender, and replies to
+     * the origin if I am the owner, else forwards it to the owner, or to the
+     * closest node before the owner if the origin excluded the owner. The
+     * forward is retransmitted by the timer until the next hop acks it, see
+     * expire. If I can not forward it, or the lookup has gone too many hops,
+     * the owner I know is replied in my mode, and the origin starts over.
+     * 
+     * @param msg
+     *   Message with the index to look up.
+     * @param opts
+     *   Options of the message.
+     * @see Lookup#invoke_index(Message)
+     * @see Lookup#lookup(Index, String, Location)
+     */
+    private void invoke_recursive( Message msg, LookupOpts opts ){
+        int      reply_ticket = ( opts.ticket > 0 ? opts.ticket : msg.getFromTicket() );
+        Location owner, next;
+        Iter     mode;
+        Flight   flight;
+        String   line, result;
+        
+        if( msg.getFromTicket() > 0 ) {
+            // I have it now, the sender can stop retransmitting.
+            socket.send( msg.getSender(), new Message( 0, msg.getFromTicket(), 0,
+                    Op.index_ack.toString(),
+                    opts.idx.toBase64String()+( opts.fwd > 0 ? " "+opts.fwd : "" ) ) );
+        }
+        synchronized ( table ) {
+            owner = table.owner_of( opts.idx );
+            next  = owner;
+            if( owner.equals( opts.exclude ) && !owner.equals( table.getMe() ) ) {
+                // the closest node I know before it.
+                next = table.owner_of( owner.getIndex().sub( factory.getImaxRshN(-1) ) );
+            }
+            if( owner.equals( table.getMe() ) )        mode = Iter.self;
+            else if( table.preds().indexOf( owner ) == 0 ||
+                     table.succs().indexOf( owner ) == 0 ) mode = Iter.neighbor;
+            else if( table.is_safe( owner ) )          mode = Iter.safe;
+            else                                       mode = Iter.unsafe;
+        }
+        result = opts.idx.toBase64String()+" "+owner+" "+mode+" "+(opts.hops + 1);
+        
+        if( mode != Iter.self && !next.equals( table.getMe() ) && opts.hops < Conf.lookup__max_hops ) {
+            flight = coalesce( opts.idx, Iter.recursive+( opts.exclude == null ? "" : " "+opts.exclude ),
+                               new Asker( opts.origin, reply_ticket, opts.hops, opts.flight ),
+                               Conf.lookup__timeout, result );
+            if( flight == null ) return; // answered with the flight.
+            line = "index --index "+opts.idx.toBase64String()+" --iter "+Iter.recursive+
+                   " --hops "+(opts.hops + 1)+
+                   ( opts.exclude == null ? "" : " --exclude "+opts.exclude );
+            if( flight != direct ) {
+                // the answer comes to me, for all the origins.
+                forward( next, line+" --origin "+table.getMe()+" --ticket "+async_ticket+
+                               " --flight "+flight.id,
+                         table.getMe(), async_ticket, flight.id, result );
+            } else {
+                forward( next, line+" --origin "+opts.origin+" --ticket "+reply_ticket+
+                               ( opts.flight > 0 ? " --flight "+opts.flight : "" ),
+                         opts.origin, reply_ticket, opts.flight, result );
+            }
+            metrics.counter("lookup.forwarded").inc();
+            if( journal != null )
+                journal.record(JournalEvent.lookup_forward.ordinal(), reply_ticket,
+                               opts.origin, opts.idx, next, mode);
+            if( log.isLoggable(Level.low) )
+                log.log("index.forward "+next+" "+mode, Level.low);
+            return;
+        }
+        
+        answer( opts.origin, reply_ticket, opts.flight, result );
+        metrics.counter("lookup.replied").inc();
+        if( journal != null )
+            journal.record(JournalEvent.lookup_reply.ordinal(), reply_ticket,
+                           opts.origin, opts.idx, owner, mode);
+        if( log.isLoggable(Level.low) )
+            log.log("index.reply "+owner+" "+mode, Level.low);
+    }
+    
+    /**
+     * Forward a recursive lookup, and keep it until the next hop acks it.
+     * 
+     * @param next
+     *   Hop to forward to.
+     * @param line
+     *   Lookup message.
+     * @param origin
+     *   Origin of the lookup.
+     * @param ticket
+     *   Ticket of the origin.
+     * @param flight
+     *   Relay flight of the origin, or 0.
+     * @param result
+     *   Reply to the origin if I give up.
+     */
+    private void forward( Location next, String line, Location origin, int ticket, int flight,
+                          String result ) {
+        Forward f = null;
+        int     id;
+        synchronized ( pending ) {
+            if( listener_ticket() > 0 ) {
+                id = next_id();
+                f  = new Forward( id, new Message( async_ticket, 0, 0, getServiceName(),
+                                  line+" --fwd "+id ), origin, ticket, flight, result, next );
+                f.deadline = Clock.get().millis() + Conf.msg_timeout;
+                pending.put( Integer.valueOf( f.id ), f );
+                wake_timer();
+            }
+        }
+        if( f == null ) socket.send( next, new Message( 0, 0, 0, getServiceName(), line ) );
+        else            socket.send( next, f.msg );
+    }
+    
+    /**
+     * A forward was not acked in time. Retransmit it, up to
+     * lookup.hop_retries times, then try the closest node I know before the
+     * next hop, and then give up and reply the owner I know to the origin.
+     * Only called by the timer.
+     * 
+     * @param f
+     *   Forward to retransmit.
+     */
+    private void expire( Forward f ) {
+        if( f.tries < Conf.lookup__hop_retries ) {
+            f.tries++;
+            metrics.counter("lookup.retransmit").inc();
+        } else {
+            Location to = null;
+            log.log("index.forward "+f.next+" not acked", Level.medium);
+            if( !f.fallback ) {
+                synchronized ( table ) {
+                    to = table.owner_of( f.next.getIndex().sub( factory.getImaxRshN(-1) ) );
+                }
+                if( to.equals( table.getMe() ) ) to = null;
+            }
+            if( to == null ) {
+                synchronized ( pending ) {
+                    if( pending.remove( Integer.valueOf( f.id ) ) != f ) return; // acked.
+                }
+                metrics.counter("lookup.gave_up").inc();
+                answer( f.origin, f.ticket, f.flight, f.result );
+                return;
+            }
+            f.fallback = true;
+            f.tries    = 0;
+            f.next     = to;
+        }
+        synchronized ( pending ) {
+            if( pending.get( Integer.valueOf( f.id ) ) != f ) return; // acked.
+            f.deadline = Clock.get().millis() + Conf.msg_timeout;
+        }
+        socket.send( f.next, f.msg );
+    }
+    
+    /**
+     * Get the listener ticket, requested when it is first needed. Called
+     * with the pending lock held.
+     * 
+     * @return
+     *   The ticket, or 0 if there are none available.
+     */
+    private int listener_ticket() {
+        if( async_ticket == 0 ) {
+            try {
+                async_ticket = socket.requestTicket( listener );
+            } catch (IndexOutOfBoundsException e) {
+                log.log("lookup: out of tickets, forwarding without acks", Level.medium);
+            }
+        }
+        return async_ticket;
+    }
+    
+    /**
+     * @return
+     *   A new forward or flight id. Called with the pending lock held.
+     */
+    private int next_id() {
+        last_id = last_id % Integer.MAX_VALUE + 1;
+        return last_id;
+    }
+    
+    /**
+     * Start the timer, or wake it up for a new deadline. Called with the
+     * pending lock held.
+     */
+    private void wake_timer() {
+        if( timer != null ) {
+            Clock.get().signal(pending);
+            return;
+        }
+        timer = Clock.get().thread(new Runnable() {
+            public void run() {
+                timer_loop();
+            }
+        });
+        timer.setDaemon(true);
+        timer.setName(table.getMe()+".LookupTimer");
+        Clock.get().start(timer);
+    }
+    
+    /**
+     * Expire the forwards and land the flights that are due, until none are
+     * pending.
+     */
+    private void timer_loop() {
+        LinkedList<Forward> due  = new LinkedList<Forward>();
+        LinkedList<Flight>  late = new LinkedList<Flight>();
+        long now, wake;
+        for( ;; ) {
+            synchronized ( pending ) {
+                now  = Clock.get().millis();
+                wake = Long.MAX_VALUE;
+                for( Forward f : pending.values() ) {
+                    if( f.deadline <= now ) due.addLast( f );
+                    else wake = Math.min( wake, f.deadline );
+                }
+                for( Flight f : relays.values() ) {
+                    if( f.deadline <= now ) late.addLast( f );
+                    else wake = Math.min( wake, f.deadline );
+                }
+                if( due.isEmpty() && late.isEmpty() ) {
+                    if( pending.isEmpty() && relays.isEmpty() ) {
+                        timer = null;
+                        return;
+                    }
+                    try {
+                        Clock.get().await( pending, wake - now );
+                    } catch (InterruptedException e) {
+                        timer = null;
+                        return;
+                    }
+                    continue;
+                }
+            }
+            for( Forward f : due ) expire( f );
+            for( Flight f : late ) land( f, f.fallback );
+            due.clear();
+            late.clear();
+        }
+    }
+    
+    /**
+     * Handle a message to the listener ticket: an ack of one of my forwards,
+     * or the answer to one of my flights.
+     * 
+     * @param msg
+     *   Message to the listener ticket.
+     */
+    private void invoke_async( Message msg ) {
+        String[] parts = ( msg.getMessage() == null ? new String[0] : msg.getMessage().split(" ") );
+        if( Op.index_ack.toString().equals( msg.getOperation() ) ) {
+            if( parts.length > 1 ) {
+                try {
+                    pending.remove( Integer.valueOf( parts[1] ) );
+                } catch (NumberFormatException e) {
+                    metrics.counter("lookup.phony").inc();
+                }
+            }
+        } else if( Op.index_res.toString().equals( msg.getOperation() ) && parts.length > 4 ) {
+            Flight f = null;
+            try {
+                f = relays.get( Integer.valueOf( parts[4] ) );
+            } catch (NumberFormatException e) {
+                metrics.counter("lookup.phony").inc();
+            }
+            // else it is landed already.
+            if( f != null ) land( f, msg.getMessage() );
+        } else {
+            metrics.counter("lookup.phony").inc();
+        }
+    }
+    
+    /**
+     * Find the first hop of a recursive lookup that starts over around a hop.
+     * 
+     * @param ask
+     *   First hop of the lookup.
+     * @param exclude
+     *   Hop to route around.
+     * @return
+     *   The first hop, or the closest node I know before it if it is
+     *   excluded and that is not me.
+     */
+    private Location first_hop( Location ask, Location exclude ) {
+        if( !ask.equals( exclude ) ) return ask;
+        synchronized ( table ) {
+            Location ret = table.owner_of( exclude.getIndex().sub( factory.getImaxRshN(-1) ) );
+            return ret.equals( table.getMe() ) ? ask : ret;
+        }
+    }
+    
+    /**
+     * Coalesce a forwarded index lookup with the ones in flight for the same
+     * index and mode. The first lookup in the coalesce window opens a flight,
+     * and is relayed: forwarded with me as the origin, on the listener ticket.
+     * The lookups within the window join it, and the answer is sent on to
+     * each, so a hot index is forwarded once per window. A lookup that is
+     * already relayed may join a flight, but does not open one. A lookup with
+     * me as the origin is my own relay coming back (a routing loop), and is
+     * never coalesced, or it would wait for itself.
+     * 
+     * @param idx
+     *   Index to look up.
+     * @param mode
+     *   Iteration mode of the lookup, and the excluded hop if recursive.
+     * @param asker
+     *   Origin of the lookup.
+     * @param timeout
+     *   Time to wait for the answer to a new flight.
+     * @param fallback
+     *   Answer to a new flight if none came in time, or null to let the
+     *   origins retransmit.
+     * @return
+     *   The flight to relay, direct to forward it as it is, or null if the
+     *   lookup joined a flight.
+     */
+    private Flight coalesce( Index idx, String mode, Asker asker, long timeout, String fallback ) {
+        if( Conf.lookup__coalesce <= 0 || asker.origin.equals( table.getMe() ) ) return direct;
+        long   now = Clock.get().millis();
+        String key = idx.toBase64String()+" "+mode;
+        synchronized ( pending ) {
+            Flight f = flights.get( key );
+            if( f != null && now - f.start < Conf.lookup__coalesce ) {
+                f.askers.add( asker );
+                metrics.counter("lookup.coalesced").inc();
+                return null;
+            }
+            if( asker.flight > 0 || listener_ticket() == 0 ) return direct;
+            f = new Flight( key, next_id(), now, now + timeout, asker.hops, fallback );
+            f.askers.add( asker );
+            flights.put( key, f );
+            relays.put( Integer.valueOf( f.id ), f );
+            wake_timer();
+            return f;
+        }
+    }
+    
+    /**
+     * Send an index response to the origin of a lookup. An answer to one of
+     * my own flights lands it here.
+     * 
+     * @param origin
+     *   Origin of the lookup.
+     * @param ticket
+     *   Ticket of the origin.
+     * @param flight
+     *   Relay flight of the origin, or 0.
+     * @param result
+     *   Index response, "index owner mode hops".
+     */
+    private void answer( Location origin, int ticket, int flight, String result ) {
+        if( flight > 0 && origin.equals( table.getMe() ) ) {
+            Flight f = relays.get( Integer.valueOf( flight ) );
+            if( f != null ) land( f, result );
+            return;
+        }
+        socket.send( origin, new Message( 0, ticket, 0, Op.index_res.toString(),
+                result+( flight > 0 ? " "+flight : "" ) ) );
+    }
+    
+    /**
+     * End a relayed flight, and send the answer to all its origins, each with
+     * the hop count of its own lookup.
+     * 
+     * @param flight
+     *   Flight to end.
+     * @param result
+     *   Index response, or null to let the origins retransmit.
+     */
+    private void land( Flight flight, String result ) {
+        synchronized ( pending ) {
+            if( relays.remove( Integer.valueOf( flight.id ) ) != flight ) return; // landed.
+            if( flights.get( flight.key ) == flight ) flights.remove( flight.key );
+        }
+        // no one can join it now.
+        String[] parts = ( result == null ? null : result.split(" ") );
+        if( parts == null || parts.length < 3 ) return;
+        int hops = flight.hops + 1;
+        if( parts.length > 3 ) {
+            try {
+                hops = Integer.parseInt(parts[3]);
+            } catch (NumberFormatException e) {
+                // one hop from me.
+            }
+        }
+        for( Asker a : flight.askers ) {
+            answer( a.origin, a.ticket, a.flight,
+                    parts[0]+" "+parts[1]+" "+parts[2]+" "+(hops - flight.hops + a.hops) );
+            metrics.counter("lookup.replied").inc();
+        }
+    }
+    
     /**
      * Invokes Lookup in table reference.
      * 
@@ -387,13 +1011,14 @@ public class Lookup implements MessageService {
      */
     private void invoke_table( Message msg ){
         LinkedList<AtomicQuery>  lookups;
-        String      reply_string = "";
+        StringBuilder reply_string;
         AtomicQuery atomic;
         Message     reply;
         /*
          * Decompose table query to single table lookups.
          */
         lookups = decompose( msg.getMessage() );
+        reply_string = new StringBuilder( 64 * lookups.size() );
         // we have the ops, lets actually do them and compose the reply.
         //log.log("Table: Invoking with "+lookups.size()+" queries.", Level.low);
         //log.log(msg.getMessage().replaceFirst(" ", ".invoke "), Level.low);
@@ -401,14 +1026,16 @@ public class Lookup implements MessageService {
         for ( Iterator<AtomicQuery> i = lookups.iterator(); i.hasNext(); ) {
             atomic = i.next();
             Location l = table.table_at( atomic.query );
-            reply_string += atomic + " " + ( l == null ? "null" : l.toString() ) + "\n";
+            reply_string.append( atomic.qid ).append( ',' ).append( atomic.opid ).append( ' ' )
+                        .append( atomic.query ).append( ' ' )
+                        .append( l == null ? "null" : l.toString() ).append( '\n' );
         }
         
         //log.log("table.reply "+msg.getSender(), Level.low);
         // compose reply message and reply.
         reply = new Message(
                 0, msg.getFromTicket(), 0,
-                Op.table_res.toString(), reply_string);
+                Op.table_res.toString(), reply_string.toString());
         socket.send( msg.getSender(), reply );
     } // invoke table.
     
@@ -424,7 +1051,7 @@ public class Lookup implements MessageService {
     public void invoke( Message msg ) {
         String   tmp = msg.getMessage();
         Location loc = table.getLocation(msg.getSender());
-        if( loc != null ) loc.setTimestamp(System.currentTimeMillis());
+        if( loc != null ) table.touch(loc, Clock.get().millis());
         
         /**/ if ( tmp.startsWith( Op.index.toString() ) ) invoke_index( msg );
         else if ( tmp.startsWith( Op.table.toString() ) ) invoke_table( msg );
@@ -448,21 +1075,16 @@ public class Lookup implements MessageService {
         long       timeout      = 0;
         long       msg_timeout  = 0;
         int        local_ticket = 0;
-        String[]   entries;
         Message    in, out;
         LinkedList<QueryResult> result_list = new LinkedList<QueryResult>();
         /*
          * CHECK OPTIONS: - decompose (and set method attributes and query flags)
          */
-        synchronized ( op ) {
-            // default values.
-            op.timeout     = Conf.lookup__timeout;
-            op.msg_timeout = Conf.msg_timeout;
-            // parse options.
-            op.run(options);
-            // store.
-            timeout        = op.timeout;
-            msg_timeout    = op.msg_timeout;
+        {
+            LookupOpts opts = new LookupOpts(op.parse(options), true);
+            opts.check();
+            timeout        = opts.timeout;
+            msg_timeout    = opts.msg_timeout;
         }
         
         try {
@@ -478,28 +1100,17 @@ public class Lookup implements MessageService {
             out = new Message(
                     local_ticket, 0, 0,
                     getServiceName(), Op.table+" " + queryline + "\n");
-            timeout = System.currentTimeMillis() + timeout;
+            timeout = Clock.get().millis() + timeout;
             while( in == null ) {
                 try {
                     socket.send(ask, out);
                     in = socket.receive(local_ticket, msg_timeout);
                     if( Op.table_res.toString().equals(in.getOperation()) && in.getMessage() != null) {
                         // read result list.
-                        entries = in.getMessage().split("\n");
-                        for( int i = 0; i < entries.length; i++ ) {
-                            if( entries[i] == null ) continue;
-                            try {
-                                result_list.addLast( new QueryResult(entries[i]) );
-                            } catch( IllegalArgumentException iae ) {
-                                // unable to make a query result from line.
-                                // possible to repair result? Ignore for now.
-                                //log.log("Lookup/Tables: IllegalArgumentException; "+iae.getMessage(), Level.medium);
-                                //log.log("Lookup/Tables: Unable to parse query result \""+entries[i]+"\"", Level.medium);
-                            }
-                        }
+                        results( in, result_list, null );
                     } else throw new SocketTimeoutException();
                 } catch( SocketTimeoutException ste ) {
-                    if( System.currentTimeMillis() > timeout ){
+                    if( Clock.get().millis() > timeout ){
                         throw new SocketTimeoutException("lookup timed out");
                     }
                     //log.log("Timeout/problem, trying again", Level.low);
@@ -514,6 +1125,168 @@ public class Lookup implements MessageService {
         }
     }
     
+    /**
+     * Read the result list of a table response.
+     * 
+     * @param in
+     *   Table response.
+     * @param result_list
+     *   List to add the results to.
+     * @param host
+     *   Host the results are from (scatter), or null.
+     */
+    private void results( Message in, LinkedList<QueryResult> result_list, Location host ) {
+        String[] entries = in.getMessage().split("\n");
+        for( int i = 0; i < entries.length; i++ ) {
+            if( entries[i] == null || entries[i].length() == 0 ) continue;
+            try {
+                QueryResult res = new QueryResult(entries[i]);
+                res.host = host;
+                result_list.addLast( res );
+            } catch( IllegalArgumentException iae ) {
+                // unable to make a query result from line.
+                // possible to repair result? Ignore for now.
+            }
+        }
+    }
+    
+    /**
+     * Start a scatter-gather table lookup, see Scatter.
+     * 
+     * @param options
+     *   Query Options (OPT), the timeout is for the whole scatter.
+     * @return
+     *   The new scatter.
+     * @throws IllegalArgumentException
+     *   If the options are not valid.
+     */
+    public Scatter scatter( String options ) throws IllegalArgumentException {
+        LookupOpts opts = new LookupOpts(op.parse(options), true);
+        opts.check();
+        return new Scatter(opts.timeout, opts.msg_timeout);
+    }
+    
+    /**
+     * Scatter-gather table lookup. Table references are added for any number
+     * of hosts, and are all sent at once on one ticket when the first result
+     * is asked for, with the references to the same host in one query. The
+     * results are returned host by host as they arrive, and the hosts that
+     * have not answered are asked again for each message timeout. A scatter
+     * holds a ticket of the thread that uses it, from the first call to next
+     * until it returns null or the scatter is closed.
+     * <pre>
+     *   Lookup.Scatter s = lookup.scatter(null);
+     *   s.add(a, "succ:0");
+     *   s.add(b, "pred:0 succ:0");
+     *   LinkedList&lt;QueryResult&gt; r;
+     *   while( ( r = s.next() ) != null ) ...
+     * </pre>
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public class Scatter {
+        private final LinkedList<Location>       hosts   = new LinkedList<Location>();
+        private final Hashtable<Location,String> queries = new Hashtable<Location,String>();
+        private final long                       msg_timeout;
+        private long                             timeout;
+        private long                             resend  = 0;
+        private int                              ticket  = 0;
+        
+        private Scatter( long _timeout, long _msg_timeout ) {
+            timeout     = _timeout;
+            msg_timeout = _msg_timeout;
+        }
+        
+        /**
+         * Add a table reference or query line to look up from a host.
+         * 
+         * @param ask
+         *   Host to query.
+         * @param tabref
+         *   Table reference "table:index", or query line.
+         * @throws IllegalStateException
+         *   If the scatter is already sent.
+         */
+        public void add( Location ask, String tabref ) throws IllegalStateException {
+            if( resend > 0 ) throw new IllegalStateException("scatter already sent");
+            String q = queries.get(ask);
+            if( q == null ) hosts.addLast(ask);
+            queries.put(ask, q == null ? tabref : q+" "+tabref);
+        }
+        
+        /**
+         * Get the results of the next host to answer.
+         * 
+         * @return
+         *   Results of one host, with the host set, or null when all have
+         *   answered or the scatter timed out.
+         */
+        public LinkedList<QueryResult> next() {
+            Message in;
+            long    now;
+            try {
+                if( resend == 0 ) {
+                    if( hosts.isEmpty() ) return null;
+                    ticket  = socket.requestTicket();
+                    timeout = Clock.get().millis() + timeout;
+                    send();
+                }
+                while( !hosts.isEmpty() ) {
+                    now = Clock.get().millis();
+                    if( now >= timeout ) break;
+                    if( now >= resend ) {
+                        send();
+                        metrics.counter("lookup.retransmit").inc();
+                        continue;
+                    }
+                    try {
+                        in = socket.receive(ticket, Math.min(resend, timeout) - now);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    if( Op.table_res.toString().equals(in.getOperation()) && in.getMessage() != null &&
+                        hosts.remove(in.getSender()) ) {
+                        LinkedList<QueryResult> ret = new LinkedList<QueryResult>();
+                        results( in, ret, in.getSender() );
+                        return ret;
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // no available ticket.
+                log.log("scatter: out of tickets", Level.medium);
+            }
+            close();
+            return null;
+        }
+        
+        /**
+         * @return True if there are hosts that have not answered.
+         */
+        public boolean pending() {
+            return !hosts.isEmpty();
+        }
+        
+        /**
+         * Stop waiting for more results, and free the ticket.
+         */
+        public void close() {
+            hosts.clear();
+            if( ticket > 0 ) socket.freeTicket( ticket );
+            ticket = 0;
+        }
+        
+        /**
+         * Send the query to all hosts that have not answered.
+         */
+        private void send() {
+            for( Location h : hosts ) {
+                socket.send( h, new Message( ticket, 0, 0,
+                        getServiceName(), Op.table+" "+queries.get(h)+"\n") );
+            }
+            resend = Clock.get().millis() + msg_timeout;
+        }
+    }
+    
     /**
      * Looks up a signel table reference to location.
      * 
@@ -602,21 +1375,25 @@ public class Lookup implements MessageService {
         Location   ret          = null;
         Message    in           = null;
         Message    out;
+        String     line;
+        Location   exclude      = null; // recursive: the hop to route around.
+        boolean    acked        = false; // recursive: the first hop has it.
+        int        tries        = 0;     // recursive: sends to the first hop.
         Iter       remiter;
         long       timeout;
         long       msg_timeout;
         long       chk_time;
+        long       start        = Clock.get().nanos();
+        int        hop_count    = 0;
         /*
          * Check remote options.
          */
-        synchronized ( index ) {
-            index.iter        = Iter.undefined; // Default.
-            index.timeout     = Conf.lookup__timeout;
-            index.msg_timeout = Conf.msg_timeout;
-            index.run(opts);
-            remiter     = index.iter;
-            timeout     = index.timeout;
-            msg_timeout = index.msg_timeout;
+        {
+            LookupOpts lopts = new LookupOpts(index.parse(opts), false);
+            lopts.check();
+            remiter     = lopts.iter;
+            timeout     = lopts.timeout;
+            msg_timeout = lopts.msg_timeout;
         }
         // check for defaults.
         if( remiter == Iter.undefined ) remiter = Conf.lookup__iterate;
@@ -627,17 +1404,17 @@ public class Lookup implements MessageService {
         search_stack.addLast( ask );
         
         ticket      = socket.requestTicket();
-        out         = new Message(
-                ticket, 0, 0,
-                getServiceName(),
-                "index --index "+idx.toBase64String()+
-                    " --origin "+table.getMe()+(opts==null?"":" "+opts) );
+        line        = "index --index "+idx.toBase64String()+
+                          " --origin "+table.getMe()+(opts==null?"":" "+opts);
+        out         = new Message( ticket, 0, 0, getServiceName(), line );
         log.log("lookup.index: starting ticket="+ticket+" iter="+remiter, Level.medium);
+        if( journal != null )
+            journal.record(JournalEvent.lookup_start.ordinal(), ticket, idx, remiter);
         /*
          * sends and receives...
          */
         try {
-            chk_time = System.currentTimeMillis();
+            chk_time = Clock.get().millis();
             timeout  = chk_time + timeout;
             chk_time = chk_time + Conf.msg_timeout;
             socket.send( search_stack.getFirst(), out );
@@ -647,7 +1424,13 @@ public class Lookup implements MessageService {
                     //log.log("Lookup/Index: Asking "+search_stack.getFirst()+" for "+idx.toHexString(), Level.low);
                     in = socket.receive( ticket, msg_timeout );
                     //log.log("Lookup/Index: Got response from "+in.getSender(), Level.low);
-                    if( Op.index_res.toString().equals(in.getOperation()) && in.getMessage() != null ){
+                    if( Op.index_ack.toString().equals(in.getOperation()) ) {
+                        // recursive: the first hop has it, wait for the answer.
+                        acked       = true;
+                        tries       = 0;
+                        msg_timeout = Math.max(1, timeout - Clock.get().millis());
+                        in = null;
+                    } else if( Op.index_res.toString().equals(in.getOperation()) && in.getMessage() != null ){
                         // some variables we need for determining result.
                         //log.log("Lookup/Index: Response is an index response...", Level.low);
                         String[] parts;
@@ -671,10 +1454,21 @@ public class Lookup implements MessageService {
                          * Read the response Location itself...
                          */
                         try{
-                            ret = new Location( parts[1] );
+                            ret = Location.get( parts[1] );
                         }catch (UnknownHostException uhe){
                             throw new IndexOutOfBoundsException(uhe.getMessage());
                         }
+                        if( parts.length > 3 ) {
+                            try {
+                                hop_count += Integer.parseInt(parts[3]);
+                            } catch (NumberFormatException e) {
+                                hop_count++;
+                            }
+                        } else {
+                            hop_count++;
+                        }
+                        if( journal != null )
+                            journal.record(JournalEvent.lookup_hop.ordinal(), ticket, ret, parts[2]);
                         /*
                          * Read check index value.
                          */
@@ -692,28 +1486,67 @@ public class Lookup implements MessageService {
                         if( reply ) {
                             //log.log("Lookup/Index: Got good enough result.", Level.low);
                             continue; // satisfies criteria.
-                        } else
-                            //log.log("Lookup/Index: Not good enough... Trying more lookups.", Level.low);
+                        }
+                        //log.log("Lookup/Index: Not good enough... Trying more lookups.", Level.low);
                         
+                        if( remiter == Iter.recursive ) {
+                            // a hop gave up, start over around the owner it knew,
+                            // or wait for the timeout if I already do.
+                            if( !ret.equals( exclude ) ) {
+                                exclude = ret;
+                                out     = new Message( ticket, 0, 0, getServiceName(),
+                                                       line+" --exclude "+exclude );
+                                Location first = first_hop( search_stack.getFirst(), exclude );
+                                search_stack.clear();
+                                search_stack.addFirst( first );
+                                socket.send( first, out );
+                                metrics.counter("lookup.retransmit").inc();
+                            }
+                            msg_timeout = Conf.msg_timeout;
+                            acked = false;
+                            tries = 0;
+                            ret   = null;
+                            in   = null;
+                            continue;
+                        }
                         // else remake and resend!
                         search_stack.addFirst(ret);
+                        socket.send( ret, out );
                         ret = null; // push on the "send attribs"
                         in  = null; // loop criteria.
-                        // loop to resend...
+                        // loop to receive...
                     } else {
                         // phony message, drop it and continue.
+                        metrics.counter("lookup.phony").inc();
                         throw new IndexOutOfBoundsException("phony message");
                     }
                 } catch ( SocketTimeoutException ste ) {
-                    log.log("lookup.index: Timeout "+(System.currentTimeMillis()-chk_time)+" "+ste.getMessage(), Level.low); /**/
-                    if( timeout < System.currentTimeMillis() ){
+                    log.log("lookup.index: Timeout "+(Clock.get().millis()-chk_time)+" "+ste.getMessage(), Level.low); /**/
+                    if( journal != null && !search_stack.isEmpty() )
+                        journal.record(JournalEvent.lookup_timeout.ordinal(), ticket, search_stack.getFirst());
+                    if( timeout < Clock.get().millis() ){
                         log.log("lookup.index: final timeout, lookup failed", Level.medium);
+                        metrics.counter("lookup.timeout").inc();
                         //log.log("Lookup/Index: Final SocketTimeout, breaking.", Level.medium);
-                        //log.log("Lookup/Index: Lookup time = "+(System.currentTimeMillis()-chk_time),Level.low);
+                        //log.log("Lookup/Index: Lookup time = "+(Clock.get().millis()-chk_time),Level.low);
                         throw new SocketTimeoutException( "lookup timed out" );
                     }
-                    // remove non-working lookup...
-                    if( !search_stack.isEmpty() ) {
+                    if( remiter == Iter.recursive ) {
+                        // retransmit to the first hop, or start over around it
+                        // if it does not ack. an answer lost after the ack is
+                        // asked for again.
+                        if( !acked && ++tries > Conf.lookup__hop_retries ) {
+                            exclude = search_stack.getFirst();
+                            out     = new Message( ticket, 0, 0, getServiceName(),
+                                                   line+" --exclude "+exclude );
+                            Location first = first_hop( exclude, exclude );
+                            search_stack.clear();
+                            search_stack.addFirst( first );
+                            tries   = 0;
+                        }
+                        acked = false;
+                    } else if( !search_stack.isEmpty() ) {
+                        // remove non-working lookup...
                         search_stack.removeFirst();
                     }
                     
@@ -727,19 +1560,20 @@ public class Lookup implements MessageService {
                         }
                     }
                     socket.send( search_stack.getFirst(), out );
+                    metrics.counter("lookup.retransmit").inc();
                     
                     msg_timeout = Conf.msg_timeout;
                     ret = null;
                     in  = null; // anyway.
                 } catch ( IndexOutOfBoundsException ioobe ){
                     log.log("lookup.index: Exception: "+ioobe.getMessage(), Level.medium);
-                    if( timeout < System.currentTimeMillis() ){
-                        //log.log("Lookup/Index: Lookup time = "+(System.currentTimeMillis()-chk_time),Level.low);
+                    if( timeout < Clock.get().millis() ){
+                        //log.log("Lookup/Index: Lookup time = "+(Clock.get().millis()-chk_time),Level.low);
                         throw new SocketTimeoutException( ioobe.getMessage() );
                     }
-                    msg_timeout = chk_time - System.currentTimeMillis();
+                    msg_timeout = chk_time - Clock.get().millis();
                     if( msg_timeout <= 0 ){
-                        chk_time    = System.currentTimeMillis()+ Conf.msg_timeout;
+                        chk_time    = Clock.get().millis()+ Conf.msg_timeout;
                         msg_timeout = Conf.msg_timeout;
                     }
                     ret = null;
@@ -748,13 +1582,17 @@ public class Lookup implements MessageService {
             }// loop.
             
             //log.log("Lookup/Index: Returning "+ret, Level.low);
-            //log.log("Lookup/Index: Lookup time = "+(System.currentTimeMillis()-chk_time),Level.low);
+            //log.log("Lookup/Index: Lookup time = "+(Clock.get().millis()-chk_time),Level.low);
+            latency[remiter.ordinal()].record((Clock.get().nanos() - start) / 1000);
+            hops[remiter.ordinal()].record(hop_count);
             return ret;
         } catch( IndexOutOfBoundsException ioobe ) {
             // no available ticket...
             throw new SocketTimeoutException(ioobe.getMessage());
         } finally {
             log.log("lookup.index: ending", Level.low);
+            if( journal != null )
+                journal.record(JournalEvent.lookup_end.ordinal(), ticket, ret == null ? "timeout" : ret);
             //log.log("Lookup/Index: Ending and cleaning up...", Level.low);
             if( ticket > 0 ) socket.freeTicket( ticket );
         }
@@ -1,17 +1,29 @@
 package net.morimekta.accord;
 
 
+import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Vector;
 
 import net.morimekta.accord.tables.LookupTable;
+import net.morimekta.accord.tables.TableSnapshot;
 import net.morimekta.net.Location;
 import net.morimekta.net.Message;
 import net.morimekta.net.MessageService;
 import net.morimekta.net.MessageSocket;
 import net.morimekta.util.index.Index;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Journal;
 import net.morimekta.util.std.Log;
-import net.morimekta.util.std.Options;
+import net.morimekta.util.std.Metrics;
+import net.morimekta.util.std.OptionParser;
 import net.morimekta.util.std.STD;
 import net.morimekta.util.std.Log.Level;
 
@@ -23,11 +35,19 @@ import net.morimekta.util.std.Log.Level;
  * @author Stein Eldar Johnsen
  */
 class Membership implements MessageService {
-    private void prepare( Oper op ) {
+    private void prepare( Oper op, int ticket ) {
         log.log("Prepare: "+op, Level.low);
+        if( journal != null )
+            journal.record(JournalEvent.membership_prepare.ordinal(), ticket, op);
     }
-    private void notify( Oper op, Oper res, String msg ) {
+    private void notify( Oper op, Oper res, String msg, int ticket ) {
         log.log("Notify: "+op+" resulted in "+res+" with message: "+msg, Level.low);
+        metrics.counter("membership."+op+"."+res).inc();
+        if( journal != null )
+            journal.record(JournalEvent.membership_notify.ordinal(), ticket, op, res, msg);
+        if( res == Oper.commit ) {
+            for( MembershipListener l : listeners ) l.committed(op.toString());
+        }
     }
     
     // Exceptional Exit States.
@@ -57,11 +77,13 @@ class Membership implements MessageService {
     }
     
     
-    private String         join_string = 
+    private static final String       join_string  = 
             "h,host,string\n" +
             "m,msg,string\n" +
-            "s,succs,string";
-    private String         leave_string =
+            "s,succs,string\n" +
+            "b,bootstrap\n" +
+            "t,table,string";
+    private static final String       leave_string =
             "h,host,string\n" +
             "M,mypred,string\n" +
             "m,msg,string\n" +
@@ -69,150 +91,98 @@ class Membership implements MessageService {
             "n,no-check\n" +
             "r,respond\n" +
             "N,no-response";
-    private JoinOptions    join        = new JoinOptions();
-    private LeaveOptions   leave       = new LeaveOptions();
+    private static final String       batch_string =
+            "H,hosts,string\n" +
+            "m,msg,string";
+    private static final OptionParser join         = new OptionParser(join_string);
+    private static final OptionParser leave        = new OptionParser(leave_string);
+    private static final OptionParser batch        = new OptionParser(batch_string);
     
-    private class JoinOptions extends Options{
-        Location host;
-        String   msg;
-        String   succ;
-        JoinOptions(){ super(join_string); }
-        public void parse( char op, String arg ) {
-            switch ( op ) {
-                case 'h':
-                    try {
-                        host = new Location(arg);
-                    } catch (UnknownHostException e) {
-                        // ignore.
-                    }
-                    break;
-                case 'm':
-                    msg = arg;
-                    break;
-                case 's':
-                	succ = arg;
-                	break;
-                case '?':
-                default:
-                    break;
-            }
-        }
-    }
-    private class LeaveOptions extends Options{
-        Location host;
-        Location mypred;
-        String   msg;
-        boolean  check;
-        boolean  respond;
-        public LeaveOptions() { super(leave_string); }
-        public void parse( char op, String arg ) {
-            switch ( op ) {
-            case 'h':
-                try {
-                    host = new Location(arg);
-                } catch (UnknownHostException e) {
-                    // ignore.
-                }
-                break;
-            case 'M':
-                try {
-                    mypred = new Location(arg);
-                } catch (UnknownHostException e) {
-                    // ignore.
-                }
-                break;
-            case 'm':
-                msg = arg;
-                break;
-            case 'c':
-                check = true;
-                break;
-            case 'n':
-                check = false;
-                break;
-            case 'r':
-                respond = true;
-                break;
-            case 'N':
-                respond = false;
-                break;
-            case '?':
-            default:
-                break;
-            }
+    /**
+     * Get the location from a host:port string.
+     * 
+     * @param str
+     *     String to parse, or null.
+     * @return
+     *     The Location, or null if none or unknown host.
+     */
+    private static Location location( String str ) {
+        if( str == null ) return null;
+        try {
+            return Location.get(str);
+        } catch (UnknownHostException e) {
+            return null;
         }
     }
     
-    /*
-     * MEMBERSHIP MANAGEMENT CONCURRENCY CONTROL FOR SUCCESSOR
-     */
-    private volatile     Thread   mm_succ_thread = null;
-    private volatile     Location mm_succ_loc    = null;
-    private volatile     int      mm_succ_ticket = 0;
-    private volatile     Oper     mm_succ_op     = Oper.ready; // no oper...
-    
     /**
-     * Begin the Membership Management for this' successor.
+     * Get the locations from a "[host:port,host:port]" list string, as made
+     * by the tables.
      * 
-     * @param host
-     *     The host in question.
-     * @param ticket
-     *     The ticket number the session is using.
-     * @param op
-     *     The operation the session is working on.
-     * @throws AckState
-     *     If the same host is conducting the same operation on this manager.
-     * @throws AbortState 
-     *     If this manager is working on a different succ, or a different
+     * @param str
+     *     String to parse, or null.
+     * @return
+     *     List of locations, without unknown hosts.
      */
-    private synchronized void     mm_succ_begin(Location host, int ticket, Oper op) throws AckState, AbortState {
-        if( host == null || ticket <= 0 || ticket > 255 )
-            throw new IllegalArgumentException("illegal host or ticket");
-        if( mm_succ_thread == null ) {
-            mm_succ_thread = Thread.currentThread();
-            mm_succ_loc    = host;
-            mm_succ_ticket = ticket;
-            mm_succ_op     = op;
-        } else {
-            log.log("Unable to start mm_succ session.", Level.medium);
-            System.err.println(" - Unable to start mm_succ session.");
-            if( host.equals(mm_succ_loc) && op == mm_succ_op ) {
-                throw new AckState(Ack.initiated+" --ticket "+mm_succ_ticket);
-            } else {
-                throw new AbortState(Abort.concurrent_conflict+" --host "+mm_succ_loc+" --ticket "+mm_succ_ticket);
-            }
+    private static LinkedList<Location> locations( String str ) {
+        LinkedList<Location> ret = new LinkedList<Location>();
+        if( str == null ) return ret;
+        if( str.startsWith("[") && str.endsWith("]") ) str = str.substring(1, str.length()-1);
+        String[] locs = str.split(",");
+        Location loc;
+        for( int i = 0; i < locs.length; i++ ) {
+            loc = location(locs[i].trim());
+            if( loc != null && !ret.contains(loc) ) ret.add(loc);
         }
+        return ret;
     }
     
     /**
-     * End the locking membership management of this' successor. If there is no
-     * such session, ignore.
-     * 
-     * @see Membership#mm_succ_begin(Location,int,Oper)
+     * Immutable join options, parsed once per message.
      */
-    private synchronized void     mm_succ_end() {
-        if( Thread.currentThread() == mm_succ_thread ) {
-            mm_succ_thread = null;
-            mm_succ_loc    = null;
-            mm_succ_ticket = 0;
-            mm_succ_op     = Oper.ready;
-        } else {
-            log.log("Ending not started mm_succ session.", Level.medium);
-            System.err.println(" - Ending non-started mm_succ session.");
+    private static class JoinOptions {
+        final Location host;
+        final String   msg;
+        final String   succ;
+        final boolean  bootstrap;
+        final String   table;
+        JoinOptions( OptionParser.Result res ) {
+            host      = location(res.get('h'));
+            msg       = res.get('m');
+            succ      = res.get('s');
+            bootstrap = res.has('b');
+            table     = res.get('t');
         }
     }
     
+    /**
+     * Immutable leave options, parsed once per message.
+     */
+    private static class LeaveOptions {
+        final Location host;
+        final Location mypred;
+        final String   msg;
+        final boolean  check;
+        final boolean  respond;
+        LeaveOptions( OptionParser.Result res ) {
+            host    = location(res.get('h'));
+            mypred  = location(res.get('M'));
+            msg     = res.get('m');
+            check   = res.lastIndexOf('c') > res.lastIndexOf('n');
+            respond = res.lastIndexOf('r') > res.lastIndexOf('N');
+        }
+    }
     
     /*
-     * MEMBERSHIP MANAGEMENT CONCURRENCY CONTROL FOR PREDECESSOR
+     * MEMBERSHIP MANAGEMENT CONCURRENCY CONTROL
      */
-    private volatile     Thread   mm_pred_thread = null;
-    private volatile     Location mm_pred_loc    = null;
-    private volatile     int      mm_pred_ticket = 0;
-    private volatile     Oper     mm_pred_op     = Oper.ready; // no oper...
+    private final SessionManager sessions = new SessionManager(Conf.membership__session_queue);
     
     /**
-     * Begin the Membership Management for this' predecessor.
+     * Begin a Membership Management session on a ring interval. Changes to
+     * this' successor use the interval from this to the host, and changes to
+     * this' predecessor use the interval from the host to this. Sessions for
+     * the local node itself (connect, disconnect) cover the whole ring.
      * 
      * @param host
      *     The host in question.
@@ -220,45 +190,50 @@ class Membership implements MessageService {
      *     The ticket number the session is using.
      * @param op
      *     The operation the session is working on.
+     * @param from
+     *     Start of interval the session changes.
+     * @param to
+     *     End of interval the session changes.
+     * @return
+     *     The session, to be ended with mm_end.
      * @throws AckState
      *     If the same host is conducting the same operation on this manager.
      * @throws AbortState 
-     *     If this manager is working on a different succ, or a different
-     * @see Membership#mm_succ_begin(Location, int, Oper)
+     *     If the interval is taken by a different session, and it did not
+     *     end within the session wait.
+     * @see SessionManager#begin(Location, int, String, Index, Index, long)
      */
-    private synchronized void     mm_pred_begin(Location host, int ticket, Oper op) throws AckState, AbortState {
-        if( host == null || ticket <= 0 || ticket > 255 )
-            throw new IllegalArgumentException("illegal host or ticket");
-        if( mm_pred_thread == null ) {
-            mm_pred_thread = Thread.currentThread();
-            mm_pred_loc    = host;
-            mm_pred_ticket = ticket;
-            mm_pred_op     = op;
-        } else {
-            log.log("Unable to start mm_pred session.", Level.medium);
-            if( host.equals(mm_pred_loc) && op == mm_pred_op ) {
-                throw new AckState(Ack.initiated+" --ticket "+mm_pred_ticket);
-            } else {
-                throw new AbortState(Abort.concurrent_conflict+" --host "+mm_pred_loc+" --ticket "+mm_pred_ticket);
+    private SessionManager.Session mm_begin(Location host, int ticket, Oper op, Location from, Location to)
+            throws AckState, AbortState {
+        try {
+            SessionManager.Session ret = sessions.begin(
+                    host, ticket, op.toString(),
+                    from.getIndex(), to.getIndex(), Conf.membership__session_wait);
+            if( ret.waited > 0 ) {
+                metrics.counter("membership.session.queued").inc();
+                metrics.histogram("membership.session.wait").record(ret.waited);
             }
+            return ret;
+        } catch( SessionManager.Conflict c ) {
+            if( c.same ) {
+                throw new AckState(Ack.initiated+" --ticket "+c.session.ticket);
+            }
+            log.log("Unable to start "+op+" session, conflicts with "+c.session, Level.medium);
+            metrics.counter("membership.conflict").inc();
+            throw new AbortState(Abort.concurrent_conflict+" --host "+c.session.host+" --ticket "+c.session.ticket);
         }
     }
     
     /**
-     * End the locking membership management of this' predecessor. If there is no
-     * such session, ignore.
+     * End a Membership Management session. If there is no such session,
+     * ignore.
      * 
-     * @see Membership#mm_pred_begin(Location,int,Oper)
+     * @param s
+     *     Session to end, or null.
+     * @see Membership#mm_begin(Location, int, Oper, Location, Location)
      */
-    private synchronized void     mm_pred_end() {
-        if( Thread.currentThread() == mm_pred_thread ) {
-            mm_pred_thread = null;
-            mm_pred_loc    = null;
-            mm_pred_ticket = 0;
-            mm_pred_op     = Oper.ready;
-        } else {
-            log.log("Ending not started mm_pred session.", Level.medium);
-        }
+    private void mm_end(SessionManager.Session s) {
+        sessions.end(s);
     }
     
     /**
@@ -280,6 +255,7 @@ class Membership implements MessageService {
         join_pred,
         leave,
         leave_pred,
+        leave_batch,
         // Session Operations
         ack,
         abort,
@@ -318,6 +294,16 @@ class Membership implements MessageService {
     private LookupTable   table;
     private Lookup        lookup;
     private MessageSocket socket;        
+    private Journal       journal = null;
+    private Metrics       metrics = new Metrics();
+    private Stabilizer    stabilizer = null;
+    
+    /*
+     * Nodes that have left in a batch, with the time to forget them.
+     */
+    private final Hashtable<Location, Long> departed = new Hashtable<Location, Long>();
+    
+    private final Vector<MembershipListener> listeners = new Vector<MembershipListener>();
     
     /**
      * Create a new MembershipManager object.
@@ -338,6 +324,62 @@ class Membership implements MessageService {
         socket = _socket;
     }
     
+    /**
+     * Set the journal to write membership transitions to.
+     * 
+     * @param _journal
+     *   Journal, or null to stop journaling.
+     */
+    public void setJournal(Journal _journal) {
+        journal = _journal;
+    }
+    
+    /**
+     * Add a listener to be called when a membership change is committed.
+     * 
+     * @param l
+     *   Listener to add.
+     */
+    public void addListener(MembershipListener l) {
+        if( !listeners.contains(l) ) listeners.add(l);
+    }
+    
+    /**
+     * Remove a membership listener.
+     * 
+     * @param l
+     *   Listener to remove.
+     */
+    public void removeListener(MembershipListener l) {
+        listeners.remove(l);
+    }
+    
+    /**
+     * Set the stabilizer to hold while a batch of nodes is leaving.
+     * 
+     * @param _stabilizer
+     *   Stabilizer, or null.
+     */
+    public void setStabilizer(Stabilizer _stabilizer) {
+        stabilizer = _stabilizer;
+    }
+    
+    /**
+     * Set the metrics registry to count membership results in.
+     * 
+     * @param _metrics
+     *   Metrics registry.
+     */
+    public void setMetrics(Metrics _metrics) {
+        metrics = _metrics;
+        metrics.gauge("membership.session.active", new Metrics.Gauge() {
+            public long value() { return sessions.getActive(); }
+        });
+        metrics.gauge("membership.session.waiting", new Metrics.Gauge() {
+            public long value() { return sessions.getQueued(); }
+        });
+    }
+    
     /**
      * Server side Join-Pred protocol implementation.
      * 
@@ -351,28 +393,27 @@ class Membership implements MessageService {
         String   join_args;
         int      local_ticket = 0;
         long     timeout;
+        SessionManager.Session session = null;
         {
             String[] ops;
             ops = STD.splitString(msg.getMessage());
             ops[0] = null; // ignore "join-pred"
             join_args = STD.assembleString(ops);
-            synchronized ( join ) {
-                join.host = null;
-                join.run(ops);
-                joiner = join.host;
-            }
+            joiner = new JoinOptions(join.parse(ops)).host;
         }
         try {
             log.log("JoinPred: Initializing with joiner "+joiner+".", Level.high);
             local_ticket = socket.requestTicket();
-            mm_pred_begin(joiner, local_ticket, Oper.join_pred);
+            session = mm_begin(joiner, local_ticket, Oper.join_pred, joiner, table.getMe());
             // check validity of joiner. (but should be validated by "master".)
             try {
                 synchronized( table.preds() ){
-                    if( joiner.equals(table.preds().get(0)) ){
+                    // with no preds, the join master is my pred.
+                    Location pred0 = ( table.preds().size() > 0 ? table.preds().get(0) : msg.getSender() );
+                    if( joiner.equals(pred0) ){
                         throw new AckState(Ack.confirm.toString());
                     } else if(!joiner.getIndex().between(
-                            table.preds().get(0).getIndex(),
+                            pred0.getIndex(),
                             table.getMe().getIndex())) {
                         throw new AbortState(Abort.wrong_host.toString());
                     }
@@ -382,12 +423,12 @@ class Membership implements MessageService {
                 throw new AbortState(Abort.internal+" --msg \"index out of bounds\"");
             }
             // Joiner is OK. Lets PREPARE and send READY.
-            prepare(Oper.join_pred);
+            prepare(Oper.join_pred, local_ticket);
             in = null;
             out = new Message(
                     local_ticket, msg.getFromTicket(), 0,
                     Oper.ready.toString(), join_args);
-            timeout = System.currentTimeMillis() + Conf.membership__joinpred_timeout;
+            timeout = Clock.get().millis() + Conf.membership__joinpred_timeout;
             while( in == null ) {
                 try {
                     // send VOTE-COMMIT / READY meaage, and wait for reply.
@@ -395,13 +436,13 @@ class Membership implements MessageService {
                     in = socket.receive(local_ticket, msg.getSender());
                     /**/ if( Oper.commit.toString().equals(in.getOperation()) ); // continue ...
                     else if( Oper.abort.toString().equals(in.getOperation()) ) {
-                        notify(Oper.join_pred, Oper.abort, in.getMessage());
+                        notify(Oper.join_pred, Oper.abort, in.getMessage(), local_ticket);
                         log.log("JoinPred: Got abort from master, abort with no response.", Level.medium);
                         return; // no response.
                     } else throw new SocketTimeoutException(); // check for timeout and loop.
                 } catch (SocketTimeoutException e) {
-                    if( System.currentTimeMillis() > timeout ) {
-                        notify(Oper.join_pred, Oper.abort, Abort.timeout.toString());
+                    if( Clock.get().millis() > timeout ) {
+                        notify(Oper.join_pred, Oper.abort, Abort.timeout.toString(), local_ticket);
                         throw new AbortState(Abort.timeout.toString());
                     }
                     in = null; // loop.
@@ -411,7 +452,7 @@ class Membership implements MessageService {
             synchronized ( table ) {
                 table.preds().add(0, joiner);
             }
-            notify(Oper.join_pred, Oper.commit, "");
+            notify(Oper.join_pred, Oper.commit, "", local_ticket);
             in = null;
             out = new Message(
                     local_ticket, msg.getFromTicket(), 0,
@@ -431,7 +472,7 @@ class Membership implements MessageService {
             log.log("JoinPred: Committed and finished Acking.", Level.low);
         } catch ( AckState ack ) {
             out = new Message(
-                    mm_pred_ticket, msg.getFromTicket(), 0,
+                    local_ticket, msg.getFromTicket(), 0,
                     Oper.ack.toString(), ack.getMessage());
             socket.send(msg.getSender(), out);
             log.log("JoinPred: Acked with message \""+ack.getMessage()+"\"", Level.medium);
@@ -442,7 +483,7 @@ class Membership implements MessageService {
             socket.send(msg.getSender(), out);
             log.log("JoinPred: Acked with message \""+abort.getMessage()+"\"", Level.medium);
         } finally {
-            mm_pred_end();
+            mm_end(session);
             if( local_ticket > 0 ) socket.freeTicket(local_ticket);
             log.log("JoinPred: Ended and released resources.", Level.high);
         }
@@ -464,22 +505,23 @@ class Membership implements MessageService {
         //int      jp_lo_ticket  = 0;
         int      jp_re_ticket  = 0;
         long     timeout       = 0;
+        long     started       = Clock.get().millis();
         Location jp_host       = null;
+        boolean  bootstrap;
+        SessionManager.Session session = null;
         { // initialize arguments.
             String[] ops;
             ops          = STD.splitString(msg.getMessage());
             ops[0]       = null;           // exclude "join"
             join_args    = STD.assembleString(ops);
-            synchronized ( join ) {
-                join.host = null;
-                join.run(ops);
-                joiner = join.host;
-            }
+            JoinOptions opts = new JoinOptions(join.parse(ops));
+            joiner       = opts.host;
+            bootstrap    = opts.bootstrap;
         }
         try { // main end states.
             log.log("Join: Initiated with joiner "+joiner+".", Level.high);
             local_ticket = socket.requestTicket();
-            mm_succ_begin(joiner, local_ticket, Oper.join);
+            session = mm_begin(joiner, local_ticket, Oper.join, table.getMe(), joiner);
             // if index collision, abort.
             if( table.getMe().getIndex().equals(joiner.getIndex()) ){
                 // index collision.
@@ -542,7 +584,7 @@ class Membership implements MessageService {
                     
                     log.log("Join: Sending message to "+jp_host+": \n"+out, Level.low);
                     
-                    timeout = System.currentTimeMillis() + Conf.membership__joinpred_timeout;
+                    timeout = Clock.get().millis() + Conf.membership__joinpred_timeout;
                     socket.send(jp_host, out);
                     while( in == null){
                         try {
@@ -571,7 +613,7 @@ class Membership implements MessageService {
                             jp_re_ticket = in.getFromTicket();
                             // + break loop.
                         } catch ( SocketTimeoutException e1 ) {
-                            if( System.currentTimeMillis() > timeout ){
+                            if( Clock.get().millis() > timeout ){
                                 // dont clear jp_re_ticket, we need to jp_abort.
                                 throw new AbortState(Abort.timeout.toString());
                             }
@@ -587,9 +629,9 @@ class Membership implements MessageService {
 
                         // We have to remove the succ(0) because it is already there...
                         log.log("Join: Succ(0) tried to rejoin, and failed! It leaves!", Level.medium);
-                        prepare(Oper.leave);
+                        prepare(Oper.leave, local_ticket);
                         table.succs().remove(0);
-                        notify(Oper.leave, Oper.commit, as.getMessage());
+                        notify(Oper.leave, Oper.commit, as.getMessage(), local_ticket);
                         
                         if( table.succs().size() == 0 && table.preds().size() > 0 ) {
                             log.log("Join: Cleanup breaks succ-list!", Level.high);
@@ -611,11 +653,11 @@ class Membership implements MessageService {
                     // if joiner not already in place, add it.
                     if( table.succs().size() == 0 ||
                         !joiner.equals(table.succs().get(0)) ){
-                        prepare(Oper.join);
+                        prepare(Oper.join, local_ticket);
                         
                         table.succs().add(0, joiner);
                         
-                        notify(Oper.join, Oper.commit, as.getMessage());
+                        notify(Oper.join, Oper.commit, as.getMessage(), local_ticket);
                     }
                     log.log("Join: jp_host has confirmed host, ack to joiner.", Level.medium);
                     throw new AckState(Ack.confirm+" --host "+jp_host+" --msg \""+as.getMessage()+"\"");
@@ -624,14 +666,15 @@ class Membership implements MessageService {
             //////////////////
             // READY STATE. //
             //////////////////
-            prepare(Oper.join);
+            prepare(Oper.join, local_ticket);
             out = new Message(
                     local_ticket, msg.getFromTicket(), 0,
                     Oper.ready.toString(),
                     	"--host "+(jp_host==null?table.getMe():jp_host)+
-                    	" --succ "+table.succs());
+                    	" --succ "+table.succs()+
+                    	( bootstrap ? bootstrapTable() : "" ));
             in = null;
-            timeout = System.currentTimeMillis() + Conf.membership__connect_timeout;
+            timeout = Clock.get().millis() + Conf.membership__connect_timeout;
             socket.send(msg.getSender(), out);
             while(in == null){
                 try { // READY LOOP.
@@ -674,7 +717,7 @@ class Membership implements MessageService {
                                 // MARK: COMMIT ENDS HERE !!!
                             } catch( SocketTimeoutException ste ){
                                 // JP_COMMIT TIMEOUT
-                                if( System.currentTimeMillis() > timeout ){
+                                if( Clock.get().millis() > timeout ){
                                     log.log("Join: JoinPred host timed out, checking state.",
                                             Level.high);
                                     try{
@@ -702,12 +745,12 @@ class Membership implements MessageService {
                         }
                     } finally { // END OF COMMIT ...
                         // we were in commit mode anyway.
-                        notify(Oper.join, Oper.commit, Ack.table_safe.toString());
+                        notify(Oper.join, Oper.commit, Ack.table_safe.toString(), local_ticket);
                     }
                     // END OF READY
                 } catch( SocketTimeoutException ste ) {
                     // WAIT FOR COMMIT / READY TIMED OUT.
-                    if( System.currentTimeMillis() > timeout ){
+                    if( Clock.get().millis() > timeout ){
                         // no response from JOINER, lets abort both ways.
                         log.log("Join: joiner timed out, aborting", Level.high);
                         throw new AbortState(Abort.timeout.toString());                        
@@ -725,6 +768,8 @@ class Membership implements MessageService {
                     local_ticket, msg.getFromTicket(), 0,
                     Oper.ack.toString(), as.getMessage());
             socket.send(msg.getSender(), out);
+            if( session != null )
+                metrics.histogram("membership.join.latency").record(Clock.get().millis() - started);
             log.log("Join: Acked with message \""+as.getMessage()+"\"", Level.high);
         } catch ( AbortState as ) {
             out = new Message(
@@ -737,12 +782,47 @@ class Membership implements MessageService {
             }
             log.log("Join: Aborted with message \""+as.getMessage()+"\"", Level.high);
         } finally {
-            mm_succ_end();
+            mm_end(session);
             if( local_ticket > 0 ) socket.freeTicket(local_ticket);
             log.log("Join: ended and released resources.", Level.low);
         }
     }
     
+    /**
+     * Make the table snapshot argument for a bootstrapping joiner. The
+     * snapshot is left out if it does not fit in a message together with
+     * the rest of the ready message.
+     * 
+     * @return
+     *   " --table snapshot", or "" if too large.
+     */
+    private String bootstrapTable() {
+        String ret = new TableSnapshot(table).encode();
+        if( ret.length() > socket.getMaxPacketSize() / 2 ) {
+            log.log("Join: Table snapshot too large for bootstrap ("+ret.length()+")", Level.low);
+            return "";
+        }
+        return " --table "+ret;
+    }
+    
+    /**
+     * Read the table snapshot of a ready message.
+     * 
+     * @param str
+     *   Encoded snapshot, or null.
+     * @return
+     *   The snapshot, or null if none or invalid.
+     */
+    private TableSnapshot readSnapshot(String str) {
+        if( str == null ) return null;
+        try {
+            return TableSnapshot.decode(str);
+        } catch( IOException e ) {
+            log.log("Connect: Invalid table snapshot: "+e.getMessage(), Level.warning);
+            return null;
+        }
+    }
+    
     /**
      * Connects the node to a ring.
      * 
@@ -760,24 +840,26 @@ class Membership implements MessageService {
         Index pred0_ownz = table.getMe().getIndex().sub(table.getMe().getIndex().getFactory().getImaxRshN(-1));
         String succ_lst = null;
         Location ask = null;
+        long started = Clock.get().millis();
+        TableSnapshot snapshot = null;
+        SessionManager.Session session = null;
         try {
             ask = to;
             log.log("Connect: Initializing with host: "+to, Level.high);
             local_ticket = socket.requestTicket();
-            mm_succ_begin(table.getMe(), local_ticket, Oper.connect);
-            mm_pred_begin(table.getMe(), local_ticket, Oper.connect);
+            session = mm_begin(table.getMe(), local_ticket, Oper.connect, table.getMe(), table.getMe());
 
             log.log("Connect: My Index:   "+table.getMe().getIndex().toHexString(), Level.low);
             log.log("Connect: Pred0-ownz: "+pred0_ownz.toHexString(), Level.low);
 
-            join_args    = "--host "+table.getMe();
+            join_args    = "--host "+table.getMe()+( Conf.membership__bootstrap ? " --bootstrap" : "" );
             out     = new Message(
                     local_ticket, 0, 0,
             		getServiceName(), Oper.join.toString()+" "+join_args);
             in = null;
             pred0 = initPred0(pred0_ownz, ask, Conf.membership__connect_timeout);
             
-            timeout = System.currentTimeMillis() + Conf.membership__connect_timeout;
+            timeout = Clock.get().millis() + Conf.membership__connect_timeout;
             socket.send(pred0, out);
             while( in == null ){
                 try {
@@ -789,11 +871,13 @@ class Membership implements MessageService {
                         /*  */ if( in.getMessage().startsWith(Abort.concurrent_conflict.toString()) ) {
                             synchronized( this ) {
                                 try {
-                                    // wait to try to let it "go away"...
-                                    wait(Conf.msg_timeout);
+                                    // pred0 has already queued us for a while, so wait a
+                                    // random time to spread out the joiners, and retry.
+                                    Clock.get().await(this, Conf.msg_timeout + (long) (Clock.get().random().nextDouble() * Conf.msg_timeout));
                                 } catch (InterruptedException e) {
                                     e.printStackTrace();
                                 }
+                                socket.send(pred0, out);
                                 in = null; // loop.
                             }
                         } else if( in.getMessage().contains(Abort.wrong_host.toString()) ) {
@@ -808,20 +892,17 @@ class Membership implements MessageService {
                         if( in.getMessage().startsWith(Ack.confirm.toString()) ) {
                             // we are already in the ring.
                             // get succ0 from message.
-                            synchronized ( join ) {
-                                join.msg  = null;
-                                join.host = null;
-                                join.succ = null;
-                                join.run(in.getMessage());
-                                succ0    = join.host;
-                                msg      = join.msg;
-                                succ_lst = join.succ;
+                            {
+                                JoinOptions opts = new JoinOptions(join.parse(in.getMessage()));
+                                succ0    = opts.host;
+                                msg      = opts.msg;
+                                succ_lst = opts.succ;
                             }
                             if( succ0 == null && succ_lst == null ) {
                                 log.log("Connect: Ack/Confirm but Aborting with no succ0 and no succ_lst", Level.warning);
                                 throw new AbortState(Abort.internal+" --msg \"no succ and succ_lst (1)\"");
                             }
-                            prepare(Oper.connect);
+                            prepare(Oper.connect, local_ticket);
                             
                             table.preds().add(0, pred0);
                             
@@ -837,26 +918,24 @@ class Membership implements MessageService {
                         in = null; // loop and recv new message.
                         continue;
                     }
-                    synchronized ( join ) {
-                        join.msg  = null;
-                        join.host = null;
-                        join.succ = null;
-                        join.run(in.getMessage());
-                        succ0    = join.host;
-                        msg      = join.msg;
-                        succ_lst = join.succ;
+                    {
+                        JoinOptions opts = new JoinOptions(join.parse(in.getMessage()));
+                        succ0    = opts.host;
+                        msg      = opts.msg;
+                        succ_lst = opts.succ;
+                        snapshot = readSnapshot(opts.table);
                     }
                     if( succ0 == null ) throw new AbortState(Abort.internal+" --msg \"no succ and no succ_lst (2)\"");
                     remote_ticket = in.getFromTicket();
                     // leave loop.
                 } catch ( NullPointerException e ) {
-                    if( System.currentTimeMillis() > timeout ) {
+                    if( Clock.get().millis() > timeout ) {
                         throw new AbortState(Abort.timeout.toString());
                     }
                     // no resend!
                     in = null; // loop.
                 } catch ( SocketTimeoutException e ) {
-                    if( System.currentTimeMillis() > timeout ) {
+                    if( Clock.get().millis() > timeout ) {
                         throw new AbortState(Abort.timeout.toString());
                     }
                     socket.send(pred0, out);
@@ -868,7 +947,7 @@ class Membership implements MessageService {
             //  PRED(0) is READY, lets commit.
             //
             try {
-                prepare( Oper.connect );
+                prepare( Oper.connect, local_ticket );
                 synchronized ( table ) {
                     table.preds().add(0, pred0);
                     if( succ_lst != null )
@@ -882,7 +961,7 @@ class Membership implements MessageService {
                         Oper.commit.toString(), join_args );
                 in = null;
                 // may result in some weirdness...
-                timeout = System.currentTimeMillis() + Conf.membership__connect_timeout;
+                timeout = Clock.get().millis() + Conf.membership__connect_timeout;
                 while( in == null ) {
                     try {
                         socket.send(pred0, out);
@@ -892,7 +971,7 @@ class Membership implements MessageService {
                             throw new CommitState(in.getMessage());
                         } else throw new SocketTimeoutException();
                     } catch( SocketTimeoutException ste ) {
-                        if( System.currentTimeMillis() > timeout ) {
+                        if( Clock.get().millis() > timeout ) {
                             try {
                                 Location ret = lookup.lookup_table( pred0, "succ:0",
                                         "--timeout "+Conf.membership__connect_msg_timeout);
@@ -915,16 +994,22 @@ class Membership implements MessageService {
                     }
                 }
             } catch( AbortState as ) {
-                notify( Oper.connect, Oper.abort, as.getMessage() );
+                notify( Oper.connect, Oper.abort, as.getMessage(), local_ticket );
                 throw as;
             }
             log.log("Connect: Returning with no message.", Level.medium);
         } catch (CommitState cs) {
             if( succ_lst != null ) // in case list and not host.
                 succ0 = table.succs().get(0);
-            pred0.setTimestamp(System.currentTimeMillis()); // make sure it is max updated on commit.
-            succ0.setTimestamp(System.currentTimeMillis());
-            notify( Oper.connect, Oper.commit, cs.getMessage() );
+            table.touch(pred0, Clock.get().millis()); // make sure it is max updated on commit.
+            table.touch(succ0, Clock.get().millis());
+            notify( Oper.connect, Oper.commit, cs.getMessage(), local_ticket );
+            metrics.histogram("membership.connect.latency").record(Clock.get().millis() - started);
+            if( snapshot != null ) {
+                int seeded = snapshot.seed(table);
+                metrics.counter("membership.bootstrap.seeded").add(seeded);
+                log.log("Connect: Seeded "+seeded+" locations from "+snapshot, Level.medium);
+            }
             log.log("Connect: Commiting connect with pred0: "+pred0+" and succ0: "+succ0+".", Level.medium);
             return true;
         } catch (AckState as) {
@@ -935,8 +1020,7 @@ class Membership implements MessageService {
             return false;
         } finally {
             if( local_ticket > 0 ) socket.freeTicket(local_ticket);
-            mm_pred_end();
-            mm_succ_end();
+            mm_end(session);
             log.log("Connect: Ended and cleaned up.", Level.high);
         }
         return false; // juust in case...
@@ -963,7 +1047,7 @@ class Membership implements MessageService {
         Location pred0 = null,
                  succ0;
         
-        long too = System.currentTimeMillis() + timeout;
+        long too = Clock.get().millis() + timeout;
         
         while( pred0 == null ) {
             try {
@@ -991,7 +1075,7 @@ class Membership implements MessageService {
                         }
                     }
                     log.log("Connect-Pred0: Using succ(0) "+succ0+" instead.", Level.low);
-                    prepare(Oper.connect);
+                    prepare(Oper.connect, 0);
                     synchronized ( table ) {
                         table.preds().add(0, pred0);
                         table.succs().add(0, succ0);
@@ -1005,7 +1089,7 @@ class Membership implements MessageService {
             } catch( IllegalArgumentException e ) {
                 assert false: "Illegal Argument in InitPred0";
             } catch( SocketTimeoutException e ) {
-                if( too < System.currentTimeMillis() ) {
+                if( too < Clock.get().millis() ) {
                     log.log("Connect-Pred0: Unable to locate pred0: "+e.getMessage(), Level.error);
                     throw new AbortState(Abort.internal+" --msg \"unable to locate pred0\"");
                 }
@@ -1032,13 +1116,15 @@ class Membership implements MessageService {
             else if ( msg.getMessage().startsWith( Oper.join_pred +" " ) ) joinPred( msg );
             else if ( msg.getMessage().startsWith( Oper.leave     +" " ) ) leave( msg );
             else if ( msg.getMessage().startsWith( Oper.leave_pred+" " ) ) leavePred( msg );
+            else if ( msg.getMessage().startsWith( Oper.leave_batch+" " ) ) leaveBatch( msg );
             else log.log("Unknown membership operation: "+
                     msg.getMessage().split(" ")[0], Level.warning);
         } catch( Exception e ) {
             log.log("Unhandled exception with message "+e.getMessage(), Level.warning);
             e.printStackTrace();
         } finally {
-            log.log("Updated Result Tables: " + table, Level.low );
+            if( log.isLoggable(Level.low) )
+                log.log("Updated Result Tables: " + table, Level.low );
         }
     }
     
@@ -1051,28 +1137,29 @@ class Membership implements MessageService {
     private void leavePred( Message msg ) {
         Location leaver, pnew;
         Message out;
+        int     local_ticket = 0;
+        SessionManager.Session session = null;
         {
             String[] opt = STD.splitString(msg.getMessage());
             opt[0] = null;
-            synchronized ( leave ) {
-                leave.host    = null;
-                leave.run(opt);
-                leaver        = leave.host;
-            }
+            leaver = new LeaveOptions(leave.parse(opt)).host;
         }
         
         try {
             if( leaver == null ) throw new AbortState("No leaver in leave-pred");
             
-            mm_pred_begin(leaver, 0, Oper.leave_pred);
+            local_ticket = socket.requestTicket();
+            session = mm_begin(leaver, local_ticket, Oper.leave_pred, leaver, table.getMe());
             
             try {
                 log.log("LeavePred: Initialized with leaver "+leaver, Level.low);
-                if( leaver.equals(table.preds().get(0)) ) {
-                    prepare(Oper.leave_pred);
+                // with no preds left (crashed), the sender is the new pred[0].
+                if( table.preds().size() == 0 || leaver.equals(table.preds().get(0)) ) {
+                    prepare(Oper.leave_pred, msg.getFromTicket());
                     try {
                         synchronized ( table ) {
-                            table.preds().remove(0);
+                            if( table.preds().size() > 0 && leaver.equals(table.preds().get(0)) )
+                                table.preds().remove(0);
                             if( table.preds().size() == 0 ) {
                                 pnew = table.getLocation(msg.getSender());
                                 if( pnew == null ) pnew = msg.getSender();
@@ -1080,10 +1167,10 @@ class Membership implements MessageService {
                             }
                         }
                     } catch (IndexOutOfBoundsException e) {
-                        notify(Oper.leave_pred, Oper.abort, Abort.internal.toString());
+                        notify(Oper.leave_pred, Oper.abort, Abort.internal.toString(), msg.getFromTicket());
                         throw e;
                     }
-                    notify(Oper.leave_pred, Oper.commit, "");
+                    notify(Oper.leave_pred, Oper.commit, "", msg.getFromTicket());
                 } else if( leaver.getIndex().between(table.preds().get(0).getIndex(), table.getMe().getIndex()) ) {
                     // already OK.
                 } else throw new AbortState("--mypred "+table.preds().get(0)+" --msg \""+Abort.wrong_host+"\"");
@@ -1104,7 +1191,8 @@ class Membership implements MessageService {
                     Oper.ack.toString(), as.getMessage());
             socket.send(msg.getSender(), out);
         } finally {
-            mm_pred_end();
+            mm_end(session);
+            if( local_ticket > 0 ) socket.freeTicket(local_ticket);
             log.log("LeavePred: Ended and cleaned up.", Level.low);
         }
     }
@@ -1128,21 +1216,22 @@ class Membership implements MessageService {
         long     timeout;
         Location succ1, chksucc;
         Message  out, in = null;
+        SessionManager.Session session = null;
         try {
             log.log("LeaveMe: Init with leaver "+leaver, Level.medium);
             local_ticket = socket.requestTicket();
-            mm_succ_begin(leaver, local_ticket, Oper.leave);
+            session = mm_begin(leaver, local_ticket, Oper.leave, table.getMe(), leaver);
             try {
                 succ1 = table.succs().get(1);
             } catch( IndexOutOfBoundsException e ) {
                 succ1 = table.preds().get(-1);
             }
             try {
-                prepare(Oper.leave);
+                prepare(Oper.leave, local_ticket);
                 out = new Message(
                         local_ticket, 0, 0,
                         getServiceName(), Oper.leave_pred+" "+leave_opts);
-                timeout = System.currentTimeMillis() + Conf.membership__joinpred_timeout;
+                timeout = Clock.get().millis() + Conf.membership__joinpred_timeout;
                 socket.send(succ1, out);
                 while( in == null ) {
                     try {
@@ -1155,11 +1244,7 @@ class Membership implements MessageService {
                                 throw new AckState(in.getMessage());
                             } else throw new SocketTimeoutException(); // ack_initialized...
                         } else if(Oper.abort.toString().equals(in.getOperation())) {
-                            synchronized(leave_opts) {
-                                leave.mypred = null;
-                                leave.run(in.getMessage());
-                                chksucc = leave.mypred;
-                            }
+                            chksucc = new LeaveOptions(leave.parse(in.getMessage())).mypred;
                             if( chksucc != null && 
                                 chksucc.getIndex().between(leaver.getIndex(),succ1.getIndex()) ) {
                                 // Addition between succ0 (leaver) and succ1 I did'nt know about!
@@ -1180,7 +1265,7 @@ class Membership implements MessageService {
                             in = null; // loop.
                         }
                     } catch (SocketTimeoutException e) {
-                        if( System.currentTimeMillis() > timeout ) {
+                        if( Clock.get().millis() > timeout ) {
                             throw new AbortState(Abort.timeout+" --msg \"succ[1] not responding\"");
                         }
                         socket.send(succ1, out);
@@ -1192,13 +1277,13 @@ class Membership implements MessageService {
                 throw new AbortState(Abort.internal+" --msg \"index out of bounds\"");
             }
         } catch( AbortState as ) {
-            notify(Oper.leave, Oper.abort, as.getMessage());
+            notify(Oper.leave, Oper.abort, as.getMessage(), local_ticket);
             throw as;
         } catch( AckState cs ) {
-            notify(Oper.leave, Oper.commit, cs.getMessage());
+            notify(Oper.leave, Oper.commit, cs.getMessage(), local_ticket);
             throw cs;
         } finally {
-            mm_succ_end();
+            mm_end(session);
             if( local_ticket > 0 ) socket.freeTicket(local_ticket);
             log.log("LeaveMe: Ended and cleaned up.", Level.medium);
         }
@@ -1222,14 +1307,11 @@ class Membership implements MessageService {
             String[] opt = STD.splitString(msg.getMessage());
             opt[0] = null; // remove "leave".
             leave_opts = STD.assembleString(opt);
-            synchronized ( leave ) {
-                leave.check   = false;
-                leave.host    = null;
-                leave.respond = false;
-                leave.run(opt);
-                check    = leave.check;
-                leaver   = leave.host;
-                respond  = leave.respond;
+            {
+                LeaveOptions opts = new LeaveOptions(leave.parse(opt));
+                check    = opts.check;
+                leaver   = opts.host;
+                respond  = opts.respond;
             }
             if( ( tmp = table.getLocation(leaver))!=null ) {
                 leaver = tmp;
@@ -1240,6 +1322,12 @@ class Membership implements MessageService {
             try { // exception translation and fullfillment.
                 log.log("Leave: Initializing with leaver "+leaver, Level.high);
                 
+                // left with a batch, the tables are already updated.
+                if( isDeparted(leaver) ) {
+                    table.removeDeparted(Collections.singleton(leaver));
+                    throw new AckState(Ack.confirm+" --msg \"departed\"");
+                }
+                
                 // check if "my responsibility" ...
                 if( leaver.equals(table.succs().get(0)) || 
                     leaver.getIndex().between(
@@ -1249,7 +1337,7 @@ class Membership implements MessageService {
                         try {
                             if( table.getMe().equals(lookup.lookup_table(leaver, "pred:0", "")) &&
                                 lookup.lookup_table(leaver, "succ:0", "") != null ) {
-                                leaver.setTimestamp(System.currentTimeMillis());
+                                table.touch(leaver, Clock.get().millis());
                                 throw new AbortState(Ack.table_safe.toString());
                             } // else leave me...
                         } catch (SocketTimeoutException e) {
@@ -1288,6 +1376,170 @@ class Membership implements MessageService {
         }
     }
     
+    /**
+     * Make a set of nodes leave the ring at once, as for planned maintenance.
+     * Each leaving node is told the whole set, announces it to its own
+     * neighbours and clears its tables, and the neighbours remove the whole
+     * set from their tables in one pass. Nodes further away find the holes
+     * in their finger tables through the ordinary stabilizing.
+     * 
+     * @param hosts
+     *   Nodes to leave, may include the local node.
+     * @return
+     *   Number of nodes that confirmed they left.
+     */
+    public int leaveBatch( Collection<Location> hosts ) {
+        LinkedList<Location> left = new LinkedList<Location>(hosts);
+        String  list         = hostList(left);
+        boolean me           = left.remove(table.getMe());
+        int     local_ticket = 0;
+        int     count        = 0;
+        long    timeout;
+        Message in, out;
+        try {
+            log.log("LeaveBatch: Initiated with "+list, Level.high);
+            if( !left.isEmpty() ) {
+                local_ticket = socket.requestTicket();
+                out = new Message(
+                        local_ticket, 0, 0,
+                        getServiceName(), Oper.leave_batch+" --hosts "+list);
+                timeout = Clock.get().millis() + Conf.membership__connect_timeout;
+                for( Location h : left ) socket.send(h, out);
+                while( !left.isEmpty() && Clock.get().millis() < timeout ) {
+                    try {
+                        in = socket.receive(local_ticket);
+                        if( Oper.ack.toString().equals(in.getOperation()) &&
+                            left.remove(in.getSender()) ) {
+                            count++;
+                        }
+                    } catch( SocketTimeoutException e ) {
+                        for( Location h : left ) socket.send(h, out);
+                    }
+                }
+                if( !left.isEmpty() )
+                    log.log("LeaveBatch: No response from "+hostList(left), Level.medium);
+            }
+            if( me ) {
+                depart(hosts, list, local_ticket);
+                count++;
+            }
+        } catch( IndexOutOfBoundsException e ) {
+            log.log("LeaveBatch: No free ticket.", Level.warning);
+        } finally {
+            if( local_ticket > 0 ) socket.freeTicket(local_ticket);
+            log.log("LeaveBatch: Ended with "+count+" confirmed.", Level.medium);
+        }
+        return count;
+    }
+    
+    /**
+     * Server side of the batch leave. If the local node is in the batch, it
+     * departs, else it removes the batch from its tables. Repeated messages
+     * about the same batch are acked without doing anything.
+     * 
+     * @param msg
+     *     Message from batch initiator or a leaving node.
+     */
+    private void leaveBatch( Message msg ) {
+        LinkedList<Location> hosts, fresh = new LinkedList<Location>();
+        String list;
+        {
+            String[] opt = STD.splitString(msg.getMessage());
+            opt[0] = null; // remove "leave_batch".
+            list   = batch.parse(opt).get('H');
+            hosts  = locations(list);
+        }
+        long until = Clock.get().millis() + Conf.membership__departed_timeout;
+        synchronized( departed ) {
+            Iterator<Long> iter = departed.values().iterator();
+            while( iter.hasNext() ) {
+                if( iter.next() < Clock.get().millis() ) iter.remove();
+            }
+            for( Location h : hosts ) {
+                if( departed.put(h, until) == null ) fresh.add(h);
+            }
+        }
+        
+        if( fresh.contains(table.getMe()) ) {
+            depart(hosts, list, msg.getFromTicket());
+        } else if( !fresh.isEmpty() && !hosts.contains(table.getMe()) ) {
+            if( stabilizer != null ) stabilizer.hold(Conf.membership__batch_hold);
+            prepare(Oper.leave_batch, msg.getFromTicket());
+            int count = table.removeDeparted(hosts);
+            notify(Oper.leave_batch, Oper.commit, "removed "+count+" of "+list, msg.getFromTicket());
+        }
+        
+        if( msg.getFromTicket() > 0 ) {
+            Message out = new Message(
+                    0, msg.getFromTicket(), 0,
+                    Oper.ack.toString(), Ack.confirm.toString());
+            socket.send(msg.getSender(), out);
+        }
+    }
+    
+    /**
+     * Leave as part of a batch. Announces the batch to the neighbours once,
+     * and clears the tables.
+     * 
+     * @param hosts
+     *     The nodes leaving.
+     * @param list
+     *     The nodes leaving as a list string.
+     * @param ticket
+     *     Ticket for the journal.
+     */
+    private void depart( Collection<Location> hosts, String list, int ticket ) {
+        HashSet<Location> neighbours = new HashSet<Location>();
+        synchronized( departed ) {
+            departed.put(table.getMe(), Clock.get().millis() + Conf.membership__departed_timeout);
+        }
+        prepare(Oper.leave_batch, ticket);
+        synchronized( table ) {
+            for( Location l : table.preds() )   if( l != null ) neighbours.add(l);
+            for( Location l : table.succs() )   if( l != null ) neighbours.add(l);
+            for( Location l : table.fingers() ) if( l != null ) neighbours.add(l);
+            table.fingers().setSize(0);
+            table.preds().setSize(0);
+            table.succs().setSize(0);
+        }
+        neighbours.removeAll(hosts);
+        Message out = new Message(
+                0, 0, 0,
+                getServiceName(), Oper.leave_batch+" --hosts "+list);
+        for( Location n : neighbours ) socket.send(n, out);
+        notify(Oper.leave_batch, Oper.commit, "departed, announced to "+neighbours.size(), ticket);
+    }
+    
+    /**
+     * Checks if a node has left in a batch.
+     * 
+     * @param host
+     *     Node to check.
+     * @return
+     *     True if the node has departed.
+     */
+    private boolean isDeparted( Location host ) {
+        Long until = departed.get(host);
+        return until != null && until.longValue() > Clock.get().millis();
+    }
+    
+    /**
+     * Make a list string of locations, as made by the tables.
+     * 
+     * @param hosts
+     *     Locations.
+     * @return
+     *     "[host:port,host:port]".
+     */
+    private static String hostList( Collection<Location> hosts ) {
+        StringBuffer buf = new StringBuffer("[");
+        for( Location h : hosts ) {
+            if( buf.length() > 1 ) buf.append(',');
+            buf.append(h);
+        }
+        return buf.append(']').toString();
+    }
+    
     /**
      * Disconnect form the current ring.
      * 
@@ -1300,25 +1552,34 @@ class Membership implements MessageService {
             table.fingers().clear();
             return false; // no ring to leave.
         }
-        int     local_ticket = 0;
-        long    timeout;
-        Message out, in = null;
-        String  leave_opts = "--host "+table.getMe()+" --no-check --respond";
+        Location pred0;
+        synchronized( table ) {
+            if( table.preds().isEmpty() ) {
+                log.log("disconnect: pred:0 not known yet, can not hand over range", Level.warning);
+                return false;
+            }
+            // the table may change while leaving, so keep to the first pred:0.
+            pred0 = table.preds().get(0);
+        }
+        int      local_ticket = 0;
+        long     timeout;
+        Message  out, in = null;
+        String   leave_opts = "--host "+table.getMe()+" --no-check --respond";
+        SessionManager.Session session = null;
         try {
             local_ticket = socket.requestTicket();
-            mm_succ_begin(table.getMe(), local_ticket, Oper.disconnect);
-            mm_pred_begin(table.getMe(), local_ticket, Oper.disconnect);
+            session = mm_begin(table.getMe(), local_ticket, Oper.disconnect, table.getMe(), table.getMe());
             
             try {
-                prepare(Oper.disconnect);
+                prepare(Oper.disconnect, local_ticket);
                 out = new Message(
                         local_ticket, 0, 0,
                         getServiceName(), Oper.leave+" "+leave_opts);
-                timeout = System.currentTimeMillis() + Conf.membership__connect_timeout;
-                socket.send(table.preds().get(0), out);
+                timeout = Clock.get().millis() + Conf.membership__connect_timeout;
+                socket.send(pred0, out);
                 while( in == null ) {
                     try {
-                        in = socket.receive(local_ticket, table.preds().get(0));
+                        in = socket.receive(local_ticket, pred0, Conf.membership__connect_msg_timeout);
                         /*  */ if( Oper.ack.toString().equals(in.getOperation()) ) {
                             if( in.getMessage().startsWith(Ack.confirm.toString()) || 
                                 in.getMessage().startsWith(Ack.table_safe.toString())) {
@@ -1330,15 +1591,15 @@ class Membership implements MessageService {
                         // No action taken, loop and receive again.
                         in = null;
                     } catch( SocketTimeoutException e ) {
-                        if( System.currentTimeMillis() > timeout ) {
+                        if( Clock.get().millis() > timeout ) {
                             throw new AckState(Abort.timeout.toString()); // no contact, so we must have lost them!
                         }
-                        socket.send(table.preds().get(0), out);
+                        socket.send(pred0, out);
                         in = null; // loop.
                     }
                 } // while ...
             } catch( AbortState as ) {
-                notify(Oper.disconnect, Oper.abort, as.getMessage());
+                notify(Oper.disconnect, Oper.abort, as.getMessage(), local_ticket);
                 throw as;
             } catch( AckState as ) {
                 synchronized( table ) {
@@ -1346,7 +1607,7 @@ class Membership implements MessageService {
                     table.preds().setSize(0);
                     table.succs().setSize(0);
                 }
-                notify(Oper.disconnect, Oper.commit, as.getMessage());
+                notify(Oper.disconnect, Oper.commit, as.getMessage(), local_ticket);
                 throw as;
             }
         } catch (AckState e) {
@@ -1356,8 +1617,7 @@ class Membership implements MessageService {
         } catch (AbortState e) {
             return false;
         } finally {
-            mm_succ_end();
-            mm_pred_end();
+            mm_end(session);
             if( local_ticket > 0 ) socket.freeTicket(local_ticket);
         }
         return false;
@@ -0,0 +1,22 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+/**
+ * Listener for membership changes of the local node. It is called from the
+ * membership message handlers after a change is committed to the local
+ * tables, so it must return quickly, and leave any work to its own thread.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public interface MembershipListener {
+    /**
+     * A membership change is committed.
+     * 
+     * @param op
+     *     The membership operation, as "join", "join_pred", "leave",
+     *     "leave_pred", "leave_batch", "connect" or "disconnect".
+     */
+    public void committed(String op);
+}
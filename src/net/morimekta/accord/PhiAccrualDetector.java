@@ -0,0 +1,196 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.morimekta.net.Location;
+
+/**
+ * Phi-accrual failure detector (Hayashibara et al.). Keeps a window of the
+ * last heartbeat intervals of each host, and gives the suspicion as
+ * <code>phi = -log10(P(interval &gt; elapsed))</code> with the intervals
+ * taken as normal distributed. Phi of 1 means about 10% chance that the
+ * host is suspected wrongly, 2 about 1% and so on, so the threshold picks
+ * the trade-off between detection time and false suspicions directly, and
+ * adapts to the network and to the heartbeat rate.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class PhiAccrualDetector implements FailureDetector {
+    /**
+     * Heartbeat history of one host.
+     */
+    private static class History {
+        private final long[] intervals;
+        private int          count = 0;
+        private int          next  = 0;
+        private double       sum   = 0;
+        private double       sumsq = 0;
+        private long         last;
+        
+        History(int window, long now, long bootstrap) {
+            intervals = new long[window];
+            last      = now;
+            // two bootstrap samples, so the deviation is not zero.
+            add(bootstrap - bootstrap / 4);
+            add(bootstrap + bootstrap / 4);
+        }
+        
+        private void add(long interval) {
+            if( count == intervals.length ) {
+                sum   -= intervals[next];
+                sumsq -= (double) intervals[next] * intervals[next];
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            sum   += interval;
+            sumsq += (double) interval * interval;
+            next   = ( next + 1 ) % intervals.length;
+        }
+        
+        synchronized void heartbeat(long now) {
+            if( now > last ) {
+                add(now - last);
+                last = now;
+            }
+        }
+        
+        synchronized double phi(long now, double min_std, long pause) {
+            double mean     = sum / count;
+            double variance = sumsq / count - mean * mean;
+            double std      = Math.max(Math.sqrt(Math.max(variance, 0)), min_std);
+            return PhiAccrualDetector.phi(now - last, mean + pause, std);
+        }
+        
+        synchronized long getLast() {
+            return last;
+        }
+    }
+    
+    private final ConcurrentHashMap<Location, History> hosts = new ConcurrentHashMap<Location, History>();
+    private final double threshold;
+    private final int    window;
+    private final double min_std;
+    private final long   pause;
+    private final long   bootstrap;
+    private final int    max_hosts;
+    
+    /**
+     * Create a phi-accrual detector from the configuration.
+     */
+    public PhiAccrualDetector() {
+        this(Conf.detector__phi_threshold,
+             Conf.detector__window,
+             Conf.detector__min_std,
+             Conf.detector__acceptable_pause,
+             Conf.iamalive__cycle_time > 0 ? Conf.iamalive__cycle_time : 1000,
+             Conf.detector__max_hosts);
+    }
+    
+    /**
+     * Create a phi-accrual detector.
+     * 
+     * @param _threshold
+     *     Phi level where a host is suspected.
+     * @param _window
+     *     Number of heartbeat intervals to keep for each host.
+     * @param _min_std
+     *     Smallest standard deviation of the intervals in milliseconds, so
+     *     very regular heartbeats does not make phi too sensitive.
+     * @param _pause
+     *     Acceptable pause in milliseconds added to the mean interval, as
+     *     for garbage collection.
+     * @param _bootstrap
+     *     Expected heartbeat interval of a new host in milliseconds.
+     * @param _max_hosts
+     *     Maximum number of hosts to monitor. The host heard from the
+     *     longest time ago is forgotten first.
+     */
+    public PhiAccrualDetector(double _threshold, int _window, double _min_std,
+                              long _pause, long _bootstrap, int _max_hosts) {
+        threshold = _threshold;
+        window    = _window;
+        min_std   = _min_std;
+        pause     = _pause;
+        bootstrap = _bootstrap;
+        max_hosts = _max_hosts;
+    }
+    
+    public void heartbeat(Location host, long now) {
+        history(host, now).heartbeat(now);
+    }
+    
+    public boolean isMonitored(Location host) {
+        return hosts.containsKey(host);
+    }
+    
+    public double suspicion(Location host, long now) {
+        History h = hosts.get(host);
+        if( h == null ) return 0.0;
+        return h.phi(now, min_std, pause);
+    }
+    
+    public boolean isSuspected(Location host, long now) {
+        return suspicion(host, now) > threshold;
+    }
+    
+    public void remove(Location host) {
+        hosts.remove(host);
+    }
+    
+    /**
+     * Calculate phi from the time since the last heartbeat, using the
+     * logistic approximation of the normal distribution.
+     * 
+     * @param elapsed
+     *     Time since last heartbeat.
+     * @param mean
+     *     Mean heartbeat interval.
+     * @param std
+     *     Standard deviation of the heartbeat interval.
+     * @return
+     *     Phi, 0 or more.
+     */
+    static double phi(long elapsed, double mean, double std) {
+        double y = ( elapsed - mean ) / std;
+        double e = Math.exp(-y * ( 1.5976 + 0.070566 * y * y ));
+        double p;
+        if( elapsed > mean ) p = e / ( 1.0 + e );
+        else                 p = 1.0 - 1.0 / ( 1.0 + e );
+        if( p < Double.MIN_VALUE ) return 324.0; // -log10(Double.MIN_VALUE)
+        return Math.max(0.0, -Math.log10(p));
+    }
+    
+    /**
+     * Get the history of a host, and start monitoring it if not known. Only
+     * for heartbeats, so only hosts heard from can evict others.
+     */
+    private History history(Location host, long now) {
+        History ret = hosts.get(host);
+        if( ret == null ) {
+            if( hosts.size() >= max_hosts ) evict();
+            History tmp = hosts.putIfAbsent(host, ret = new History(window, now, bootstrap));
+            if( tmp != null ) ret = tmp;
+        }
+        return ret;
+    }
+    
+    /**
+     * Forget the host heard from the longest time ago.
+     */
+    private void evict() {
+        Location oldest = null;
+        long     last   = Long.MAX_VALUE;
+        for( Map.Entry<Location, History> e : hosts.entrySet() ) {
+            if( e.getValue().getLast() < last ) {
+                last   = e.getValue().getLast();
+                oldest = e.getKey();
+            }
+        }
+        if( oldest != null ) hosts.remove(oldest);
+    }
+}
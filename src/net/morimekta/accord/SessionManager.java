@@ -0,0 +1,216 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+import java.util.LinkedList;
+
+import net.morimekta.net.Location;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.std.Clock;
+
+/**
+ * Concurrency control for the membership sessions of a node. Each session
+ * is keyed by the ring interval it changes, from (including) the 'from' index
+ * to (but not including) the 'to' index. An interval where from equals to is
+ * the whole ring.
+ * 
+ * Sessions on disjoint intervals run concurrently. A session that overlaps a
+ * running session is queued, and admitted in order when no earlier session
+ * overlaps it. The queue is bounded both in length and in waiting time, so a
+ * session that cannot be admitted fails with a Conflict instead of blocking
+ * the message handler.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+class SessionManager {
+    /**
+     * A membership session.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    static class Session {
+        final Location host;
+        final int      ticket;
+        final String   op;
+        final Index    from;
+        final Index    to;
+        final long     started;
+        long           waited = 0;
+        
+        Session(Location _host, int _ticket, String _op, Index _from, Index _to) {
+            host    = _host;
+            ticket  = _ticket;
+            op      = _op;
+            from    = _from;
+            to      = _to;
+            started = Clock.get().millis();
+        }
+        
+        /**
+         * Check if the session changes the same part of the ring as another.
+         * 
+         * @param s
+         *     Session to check against.
+         * @return
+         *     True if the intervals overlap.
+         */
+        boolean overlaps(Session s) {
+            if( from.equals(to) || s.from.equals(s.to) ) return true;
+            return from.between(s.from, s.to) || s.from.between(from, to);
+        }
+        
+        /**
+         * Check if the session is the same operation on the same host as
+         * another, that is a retransmit of the same request.
+         * 
+         * @param s
+         *     Session to check against.
+         * @return
+         *     True if the same.
+         */
+        boolean same(Session s) {
+            return host.equals(s.host) && op.equals(s.op);
+        }
+        
+        public String toString() {
+            return op+" "+host+" ["+from.toHexString()+","+to.toHexString()+")";
+        }
+    }
+    
+    /**
+     * Thrown when a session cannot be admitted.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    static class Conflict extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        final Session  session;
+        final boolean  same;
+        
+        Conflict(Session _session, boolean _same) {
+            super(_session.toString());
+            session = _session;
+            same    = _same;
+        }
+    }
+    
+    private final LinkedList<Session> active = new LinkedList<Session>();
+    private final LinkedList<Session> queued = new LinkedList<Session>();
+    private final int                 max_queue;
+    
+    /**
+     * Create a session manager.
+     * 
+     * @param _max_queue
+     *     Maximum number of sessions waiting at once.
+     */
+    SessionManager(int _max_queue) {
+        max_queue = _max_queue;
+    }
+    
+    /**
+     * Begin a session. If the same host is already running or waiting with
+     * the same operation, fail at once, as this is a retransmit of a request
+     * in progress. If the interval overlaps a running or earlier queued
+     * session, wait until it can be admitted.
+     * 
+     * @param host
+     *     The host in question.
+     * @param ticket
+     *     The ticket number the session is using.
+     * @param op
+     *     The operation the session is working on.
+     * @param from
+     *     Start of interval (including).
+     * @param to
+     *     End of interval (not including).
+     * @param wait
+     *     Maximum time to wait in queue in milliseconds.
+     * @return
+     *     The admitted Session.
+     * @throws Conflict
+     *     If not admitted, with the Session in the way.
+     */
+    synchronized Session begin(Location host, int ticket, String op, Index from, Index to, long wait)
+            throws Conflict {
+        if( host == null || ticket <= 0 || ticket > 255 )
+            throw new IllegalArgumentException("illegal host or ticket");
+        Session ret = new Session(host, ticket, op, from, to);
+        for( Session s : active ) if( ret.same(s) ) throw new Conflict(s, true);
+        for( Session s : queued ) if( ret.same(s) ) throw new Conflict(s, true);
+        
+        Session block = blocking(ret);
+        if( block == null ) {
+            active.add(ret);
+            return ret;
+        }
+        if( queued.size() >= max_queue ) throw new Conflict(block, false);
+        
+        long timeout = Clock.get().millis() + wait;
+        long left;
+        queued.add(ret);
+        try {
+            while( ( block = blocking(ret) ) != null ) {
+                left = timeout - Clock.get().millis();
+                if( left <= 0 ) throw new Conflict(block, false);
+                try {
+                    Clock.get().await(this, left);
+                } catch (InterruptedException e) {
+                    throw new Conflict(block, false);
+                }
+            }
+        } finally {
+            queued.remove(ret);
+            // a session behind this may wait for it to leave the queue.
+            Clock.get().signal(this);
+        }
+        ret.waited = Clock.get().millis() - ret.started;
+        active.add(ret);
+        return ret;
+    }
+    
+    /**
+     * End a session. If the session is null or not running, ignore.
+     * 
+     * @param s
+     *     Session to end.
+     */
+    synchronized void end(Session s) {
+        if( s != null && active.remove(s) ) Clock.get().signal(this);
+    }
+    
+    /**
+     * @return Number of running sessions.
+     */
+    synchronized int getActive() {
+        return active.size();
+    }
+    
+    /**
+     * @return Number of waiting sessions.
+     */
+    synchronized int getQueued() {
+        return queued.size();
+    }
+    
+    /**
+     * Get the first session that stops a session from being admitted, that
+     * is a running session or a session ahead of it in the queue that
+     * overlaps it.
+     * 
+     * @param s
+     *     Session to check.
+     * @return
+     *     The blocking Session, or null if it can be admitted.
+     */
+    private Session blocking(Session s) {
+        for( Session a : active ) if( a.overlaps(s) ) return a;
+        for( Session q : queued ) {
+            if( q == s ) break;
+            if( q.overlaps(s) ) return q;
+        }
+        return null;
+    }
+}
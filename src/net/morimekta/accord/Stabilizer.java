@@ -1,13 +1,18 @@
 package net.morimekta.accord;
 
+import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 
 import net.morimekta.accord.tables.LookupTable;
+import net.morimekta.accord.tables.TableSnapshot;
 import net.morimekta.net.MessageSocket;
 import net.morimekta.net.Location;
 import net.morimekta.util.index.Index;
 import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.std.Clock;
 import net.morimekta.util.std.Log;
+import net.morimekta.util.std.Metrics;
 import net.morimekta.util.std.STD;
 import net.morimekta.util.std.Log.Level;
 
@@ -44,6 +49,10 @@ public class Stabilizer {
 
     private long              concurrent_timeout        = 0;
     private long              backoff_timeout           = 0;
+    private volatile long     hold_timeout              = 0;
+    private long              persist_timeout           = 0;
+    private byte[]            persist_last              = null;
+    private volatile String   persist_file              = null;
     private volatile boolean  is_stable                 = true;
     private volatile boolean  cont_cycle                = true;
     private int               lastN;
@@ -54,9 +63,10 @@ public class Stabilizer {
     private MessageSocket     socket;
     private Membership        membership;
     private Log               log;
+    private Metrics           metrics = new Metrics();
     
     private Index             border_index;
-    private Thread            stabilizer = new Thread() {
+    private Thread            stabilizer = Clock.get().thread(new Runnable() {
         public void run() {
             try {
                 runLoop();
@@ -64,7 +74,7 @@ public class Stabilizer {
                 e.printStackTrace();
             }
         }
-    };
+    });
     
     /**
      * Creates a stabilizer thread object, but does not start it.
@@ -144,39 +154,49 @@ public class Stabilizer {
     private void runLoop() {
         log.log("Thread is started.", Level.high);
         
-        synchronized ( this ) {
-            while ( cont_cycle ) {
-                try {
-                    /*
-                     * This should theoretically be the responsibility of iamalive or to interconnect these in some way.
-                     * Note: Do not check the nodes too often, as it could congest the system (response problems) after
-                     * a while... Still iamalive should not be prevented full operating because of updating
-                     * neighbours...
-                     */
-                    if ( !is_stable ||
-                         ( concurrent_timeout == 0 ) ||
-                         ( concurrent_timeout < System.currentTimeMillis() ) ) {
-                        stabilize_concurrent();
-                        concurrent_timeout = System.currentTimeMillis() + Conf.stabilizer__concurrent;
-                        
-                        if ( !is_stable ||
-                             ( backoff_timeout == 0 ) ||
-                             ( backoff_timeout < System.currentTimeMillis() ) ) {
-                            stabilize_backoff();
-                            backoff_timeout = System.currentTimeMillis() + Conf.stabilizer__backoff;
-                        }
-                    }
-                    // source of unfreed tickets was the ping system.
-                    //log.log("Freeing "+socket.freeTickets()+" unfree'd locks.", Level.medium);
+        while ( cont_cycle ) {
+            try {
+                /*
+                 * This should theoretically be the responsibility of iamalive or to interconnect these in some way.
+                 * Note: Do not check the nodes too often, as it could congest the system (response problems) after
+                 * a while... Still iamalive should not be prevented full operating because of updating
+                 * neighbours...
+                 */
+                if ( !is_stable ||
+                     ( concurrent_timeout == 0 ) ||
+                     ( concurrent_timeout < Clock.get().millis() ) ) {
+                    long start = Clock.get().nanos();
+                    stabilize_concurrent();
+                    metrics.histogram("stabilizer.concurrent").record((Clock.get().nanos() - start) / 1000);
+                    concurrent_timeout = Clock.get().millis() + Conf.stabilizer__concurrent;
                     
-                    // sleep for Config.stabilizer__cycle_time milliseconds.
-                    wait( Conf.stabilizer__cycle_time );
-                } catch ( InterruptedException e ) {
-                    log.log("Interrupted while waiting.", Level.low);
-                    // loop, just without the rest of the wait.
-                } // try
-            } // while
-        } // sync
+                    if ( hold_timeout > Clock.get().millis() ) {
+                        // planned maintenance, let the membership changes settle first.
+                        metrics.counter("stabilizer.held").inc();
+                    } else if ( !is_stable ||
+                         ( backoff_timeout == 0 ) ||
+                         ( backoff_timeout < Clock.get().millis() ) ) {
+                        start = Clock.get().nanos();
+                        stabilize_backoff();
+                        metrics.histogram("stabilizer.backoff").record((Clock.get().nanos() - start) / 1000);
+                        if( !is_stable ) metrics.counter("stabilizer.unstable").inc();
+                        backoff_timeout = Clock.get().millis() + Conf.stabilizer__backoff;
+                    }
+                    persist();
+                }
+                // source of unfreed tickets was the ping system.
+                //log.log("Freeing "+socket.freeTickets()+" unfree'd locks.", Level.medium);
+                
+                // sleep for Config.stabilizer__cycle_time milliseconds. The lock
+                // is only held for the wait, so stop() does not block on a cycle.
+                synchronized ( this ) {
+                    if ( cont_cycle ) Clock.get().await( this, Conf.stabilizer__cycle_time );
+                }
+            } catch ( InterruptedException e ) {
+                log.log("Interrupted while waiting.", Level.low);
+                // loop, just without the rest of the wait.
+            } // try
+        } // while
         
         log.log("Thread is stopped.", Level.high);
     } // run()
@@ -187,7 +207,7 @@ public class Stabilizer {
      */
     public synchronized void start() {
         try {
-            stabilizer.start();
+            Clock.get().start(stabilizer);
         } catch (RuntimeException e) {
             System.err.println(e.getMessage());
         }
@@ -196,18 +216,58 @@ public class Stabilizer {
      * Stop the Stabilizer.
      *
      */
-    public synchronized void stop() {
+    public void stop() {
+        // the thread waits for the next cycle on the lock, so join without it.
+        synchronized ( this ) {
+            if( !cont_cycle ) return;
+            cont_cycle = false;
+            Clock.get().signal(this);
+        }
         try {
-            if( cont_cycle ) {
-                cont_cycle = false;
-                stabilizer.interrupt();
-                stabilizer.join();
-            }
+            Clock.get().join(stabilizer);
         } catch (InterruptedException e) {
             System.err.println("Join on Stabilizer interrupted.");
         }
     }
     
+    /**
+     * Hold the backoff stabilizing (rebuild and rebalance of tables) for a
+     * while, as when a batch of nodes are leaving and the tables are updated
+     * by the membership. The concurrent stabilizing is not held. A hold never
+     * shortens an earlier hold. Only read by the stabilizer thread, so not
+     * synchronized.
+     * 
+     * @param millis
+     *     Time to hold in milliseconds.
+     */
+    public void hold( long millis ) {
+        long until = Clock.get().millis() + millis;
+        if( until > hold_timeout ) hold_timeout = until;
+    }
+    
+    /**
+     * Set the file to save table snapshots to. The snapshot is saved when the
+     * tables are stable and changed since the last save, at most once every
+     * persist.interval.
+     * 
+     * @param file
+     *     File name, or null to stop saving.
+     */
+    public void setPersistFile( String file ) {
+        persist_file = file;
+    }
+    
+    /**
+     * Set the metrics registry to record stabilize cycle times (microseconds)
+     * in.
+     * 
+     * @param _metrics
+     *     Metrics registry.
+     */
+    public void setMetrics( Metrics _metrics ) {
+        metrics = _metrics;
+    }
+    
     /**
      * Tries to tell whether or not the list or table is stable. This should give a quite accurate view of whether or
      * not stabilize_backoff() must be run. Returning true will often mean the stabilize_backoff will not be run.
@@ -218,6 +278,37 @@ public class Stabilizer {
         return is_stable;
     }
 
+    /**
+     * Save a snapshot of the tables if due. Tables without preds or succs are
+     * not saved, so a node that has not yet reconnected after a restart does
+     * not overwrite the snapshot it is about to restore from.
+     */
+    private void persist() {
+        String file = persist_file;
+        if( file == null || !is_stable || persist_timeout > Clock.get().millis() ) return;
+        persist_timeout = Clock.get().millis() + Conf.persist__interval;
+        try {
+            long          start = Clock.get().nanos();
+            TableSnapshot snap;
+            synchronized ( table ) {
+                if( table.preds().size() == 0 || table.succs().size() == 0 ) return;
+                snap = new TableSnapshot(table);
+            }
+            // finger replacements do not change the table versions, compare content.
+            byte[] bytes = snap.toBytes();
+            if( Arrays.equals(bytes, persist_last) ) return;
+            snap.save(file);
+            persist_last = bytes;
+            metrics.histogram("persist.save").record((Clock.get().nanos() - start) / 1000);
+        } catch ( IOException e ) {
+            log.log("persist: unable to save snapshot: "+e.getMessage(), Level.warning);
+            metrics.counter("persist.save_failed").inc();
+        } catch ( IllegalStateException e ) {
+            log.log("persist: unable to encode snapshot: "+e.getMessage(), Level.warning);
+            metrics.counter("persist.save_failed").inc();
+        }
+    }
+    
     /**
      * Stabilize the most crucial part of the list. This will check and update the nodes in the list that the system is
      * wideliy dependent on.
@@ -242,12 +333,44 @@ public class Stabilizer {
             // rebalance fingers/neighours
             stabilize_rebalance();
             check_stability();
-            log.log("backoff.end "+table, Level.low);
+            if( log.isLoggable(Level.low) )
+                log.log("backoff.end "+table, Level.low);
+        } else if( table.succs().size() > 0 ) {
+            seed_preds();
         } else {
             log.log("backoff trivial tables", Level.low);
         }
     }
     
+    /**
+     * Find pred:0 when the preds are empty, but not the succs, as the preds
+     * are only rebuilt from the last pred. Pred:0 owns the index before me,
+     * and the lookup starts at succ:0, as I own everything with no preds.
+     */
+    private void seed_preds() {
+        try {
+            Location     succ0   = table.succs().get(0);
+            IndexFactory factory = table.getMe().getIndex().getFactory();
+            byte[]       one     = new byte[table.getMe().getIndex().getBytes().length];
+            one[one.length-1] = 1;
+            Index    idx = factory.getIndex(table.getMe().getIndex().sub(factory.getIndex(one)).getBytes());
+            Location loc = lookup.lookup(idx, null, succ0);
+            if( loc == null || loc.equals(table.getMe()) ) return;
+            Location known = table.getLocation(loc);
+            synchronized ( table.preds() ) {
+                if( table.preds().size() == 0 ) {
+                    log.log("backoff: no preds, inserting pred[0] "+loc, Level.medium);
+                    table.preds().add( known == null ? loc : known );
+                    table.preds().setStable(false);
+                }
+            }
+        } catch ( SocketTimeoutException e ) {
+            log.log("backoff: no preds, unable to locate pred:0", Level.low);
+        } catch ( IndexOutOfBoundsException e ) {
+            // succs emptied meanwhile.
+        }
+    }
+    
     /**
      * Rebalances the fingers and succ/pred lists after general stabilizing procedure.
      */
@@ -348,10 +471,11 @@ public class Stabilizer {
                 } else {
                     // lists are of different length ...
                     log.log("backoff.rebalance: Unequal succs ("+ succ_size+") and preds ("+pred_size+"), rebuilding preds.", Level.low);
+                    // the rebuilds do lookups, so not under the table lock.
+                    table.succs().stabilizeRebuild(succ_size);
+                    table.preds().stabilizeRebuild(succ_size);
+//                  table.fingers().stabilizeRebuild(0); // already empty.
                     synchronized ( table ) {
-                        table.succs().stabilizeRebuild(succ_size);
-                        table.preds().stabilizeRebuild(succ_size);
-//                      table.fingers().stabilizeRebuild(0); // already empty.
                         table.preds().crop(succ_size); // just in case ?
                     }
                     if( table.succs().size() < Conf.stabilizer__min_succ ) {
@@ -0,0 +1,52 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.morimekta.net.Location;
+
+/**
+ * Failure detector with a fixed timeout since the last heartbeat. The
+ * suspicion level is the time since the last heartbeat in timeouts, so the
+ * host is suspected at level 1.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class TimeoutDetector implements FailureDetector {
+    private final ConcurrentHashMap<Location, Long> last = new ConcurrentHashMap<Location, Long>();
+    private final long timeout;
+    
+    /**
+     * Create a timeout detector.
+     * 
+     * @param _timeout
+     *     Time in milliseconds without heartbeat before a host is suspected.
+     */
+    public TimeoutDetector(long _timeout) {
+        timeout = _timeout;
+    }
+    
+    public void heartbeat(Location host, long now) {
+        last.put(host, now);
+    }
+    
+    public boolean isMonitored(Location host) {
+        return last.containsKey(host);
+    }
+    
+    public double suspicion(Location host, long now) {
+        Long tmp = last.get(host);
+        if( tmp == null ) return 0.0;
+        return (double) Math.max(0, now - tmp.longValue()) / timeout;
+    }
+    
+    public boolean isSuspected(Location host, long now) {
+        return suspicion(host, now) > 1.0;
+    }
+    
+    public void remove(Location host) {
+        last.remove(host);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.store;
+
+import java.util.List;
+
+import net.morimekta.util.index.Index;
+
+/**
+ * The local key-value store of a node, holding the values of the keys the
+ * node owns. Keys are Indices on the same ring as the nodes, and values are
+ * opaque byte arrays. Implementations must be thread safe.
+ * 
+ * @see net.morimekta.accord.store.StoreService
+ * @author Stein Eldar Johnsen
+ */
+public interface LocalStore {
+    /**
+     * Type of local store.
+     */
+    public enum Type {
+        /**
+         * Values are kept in memory only.
+         * @see MemoryStore
+         */
+        memory,
+        /**
+         * Values are appended to a memory mapped log file.
+         * @see LogStore
+         */
+        log
+    }
+    
+    /**
+     * Get the value of a key.
+     * 
+     * @param key
+     *     Key to get.
+     * @return
+     *     Copy of value, or null if no such key.
+     */
+    public byte[] get(Index key);
+    
+    /**
+     * Set the value of a key, replacing any old value.
+     * 
+     * @param key
+     *     Key to set.
+     * @param value
+     *     New value.
+     */
+    public void put(Index key, byte[] value);
+    
+    /**
+     * Delete a key.
+     * 
+     * @param key
+     *     Key to delete.
+     * @return
+     *     True if the key existed.
+     */
+    public boolean delete(Index key);
+    
+    /**
+     * @return Number of keys in store.
+     */
+    public int size();
+    
+    /**
+     * Get the keys in a ring interval, from (including) the 'from' index to
+     * (but not including) the 'to' index, in ring order. If from equals to,
+     * all keys are returned.
+     * 
+     * @param from
+     *     Start of interval.
+     * @param to
+     *     End of interval.
+     * @return
+     *     List of keys.
+     */
+    public List<Index> keys(Index from, Index to);
+    
+    /**
+     * Get the first keys in a ring interval, in ring order, as for paging
+     * through a range without listing all of it.
+     * 
+     * @param from
+     *     Start of interval (including).
+     * @param to
+     *     End of interval (not including).
+     * @param limit
+     *     Maximum number of keys.
+     * @return
+     *     List of at most limit keys.
+     * @see #keys(Index, Index)
+     */
+    public List<Index> keys(Index from, Index to, int limit);
+    
+    /**
+     * Close the store and release its resources.
+     */
+    public void close();
+}
@@ -0,0 +1,261 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.TreeMap;
+
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+
+/**
+ * Local store appending every change to a memory mapped log file, with an
+ * in-memory map from key to value position. The file is grown (and mapped
+ * again) by doubling when full, and is read back on open, so the store
+ * survives a restart of the node.
+ * 
+ * Format: <code>magic:int (op:byte klen:byte key:byte[klen]
+ * vlen:int value:byte[vlen])*</code> where op is 1 for put and 2 for delete
+ * (with no value). The op byte is written last, so a record torn by a crash
+ * reads as the end of the log (the unused part of the file is zero). The
+ * rest of a torn record is cleared on recovery, so it can not be read as
+ * records when shorter records are written over it. Only the torn record is
+ * cleared, or the whole tail if its header is not readable.
+ * 
+ * Deleted and replaced values are left in the log until compact() is called.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class LogStore implements LocalStore {
+    private static final int  MAGIC  = 0x41534c47; // "ASLG"
+    private static final byte PUT    = 1;
+    private static final byte DELETE = 2;
+    
+    private final String                  name;
+    private final IndexFactory            factory;
+    private final TreeMap<Index, Integer> offsets = new TreeMap<Index, Integer>();
+    private RandomAccessFile              file;
+    private FileChannel                   channel;
+    private MappedByteBuffer              map;
+    private int                           position;
+    private int                           garbage = 0;
+    
+    /**
+     * Open a log store, creating the file if it does not exist.
+     * 
+     * @param _name
+     *     File name of the log.
+     * @param _factory
+     *     Factory to make keys with.
+     * @param size
+     *     Initial file size in bytes, if created.
+     * @throws IOException
+     *     If unable to open or map the file, or it is not a log store.
+     */
+    public LogStore(String _name, IndexFactory _factory, int size) throws IOException {
+        name    = _name;
+        factory = _factory;
+        open(Math.max(size, 64));
+    }
+    
+    private void open(int size) throws IOException {
+        file    = new RandomAccessFile(name, "rw");
+        channel = file.getChannel();
+        boolean create = file.length() == 0;
+        if( create ) file.setLength(size);
+        if( file.length() > Integer.MAX_VALUE ) throw new IOException("log too large: "+name);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        if( create ) {
+            map.putInt(0, MAGIC);
+        } else if( map.getInt(0) != MAGIC ) {
+            close();
+            throw new IOException("not a log store: "+name);
+        }
+        recover();
+    }
+    
+    /**
+     * Read the log and build the key map.
+     */
+    private void recover() {
+        offsets.clear();
+        garbage  = 0;
+        position = 4;
+        int limit = map.capacity();
+        while( position + 2 <= limit ) {
+            byte op   = map.get(position);
+            int  klen = map.get(position+1) & 0xff;
+            if( op != PUT && op != DELETE ) break;
+            int  vpos = position + 2 + klen;
+            if( vpos + 4 > limit ) break;
+            int  vlen = map.getInt(vpos);
+            if( vlen < 0 || vpos + 4 + vlen > limit ) break;
+            
+            Index key = key(position+2, klen);
+            Integer old = ( op == PUT ? offsets.put(key, vpos) : offsets.remove(key) );
+            if( old != null ) garbage++;
+            if( op == DELETE ) garbage++;
+            position = vpos + 4 + vlen;
+        }
+        // clear a torn record, the file after it is zero.
+        int end = limit;
+        if( position + 2 <= limit && map.get(position) == 0 ) {
+            int vpos = position + 2 + ( map.get(position+1) & 0xff );
+            if( vpos + 4 <= limit ) {
+                int vlen = map.getInt(vpos);
+                if( vlen >= 0 && vpos + 4 + vlen <= limit ) end = vpos + 4 + vlen;
+            }
+        }
+        zero(position, end);
+    }
+    
+    /**
+     * Clear the bytes from..to of the log.
+     */
+    private void zero(int from, int to) {
+        if( from >= to ) return;
+        ByteBuffer buf   = map.duplicate();
+        byte[]     zeros = new byte[Math.min(4096, to - from)];
+        buf.position(from);
+        while( buf.position() < to ) buf.put(zeros, 0, Math.min(zeros.length, to - buf.position()));
+    }
+    
+    private Index key(int pos, int len) {
+        byte[] bytes = new byte[len];
+        for( int i = 0; i < len; i++ ) bytes[i] = map.get(pos+i);
+        return factory.getIndex(bytes);
+    }
+    
+    /**
+     * Append a record, the op byte last.
+     */
+    private int append(byte op, Index key, byte[] value) {
+        byte[] k    = key.getBytes();
+        int    vlen = ( value == null ? 0 : value.length );
+        if( k.length > 0xff ) throw new IllegalArgumentException("key too long");
+        ensure(2 + k.length + 4 + vlen);
+        
+        int start = position;
+        int vpos  = start + 2 + k.length;
+        map.put(start+1, (byte) k.length);
+        for( int i = 0; i < k.length; i++ ) map.put(start+2+i, k[i]);
+        map.putInt(vpos, vlen);
+        for( int i = 0; i < vlen; i++ ) map.put(vpos+4+i, value[i]);
+        map.put(start, op);
+        position = vpos + 4 + vlen;
+        return vpos;
+    }
+    
+    /**
+     * Make room for a record of len bytes, growing the file if needed.
+     */
+    private void ensure(int len) {
+        if( position + len <= map.capacity() ) return;
+        long size = Math.max(2L * map.capacity(), (long) position + len);
+        if( size > Integer.MAX_VALUE ) throw new IllegalStateException("log full: "+name);
+        try {
+            map.force();
+            file.setLength(size);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to grow log "+name+": "+e.getMessage());
+        }
+    }
+    
+    public synchronized byte[] get(Index key) {
+        Integer vpos = offsets.get(key);
+        if( vpos == null ) return null;
+        byte[] ret = new byte[map.getInt(vpos)];
+        for( int i = 0; i < ret.length; i++ ) ret[i] = map.get(vpos+4+i);
+        return ret;
+    }
+    
+    public synchronized void put(Index key, byte[] value) {
+        if( offsets.put(key, append(PUT, key, value)) != null ) garbage++;
+    }
+    
+    public synchronized boolean delete(Index key) {
+        if( !offsets.containsKey(key) ) return false;
+        append(DELETE, key, null);
+        offsets.remove(key);
+        garbage += 2;
+        return true;
+    }
+    
+    public synchronized int size() {
+        return offsets.size();
+    }
+    
+    public synchronized List<Index> keys(Index from, Index to) {
+        return MemoryStore.range(offsets, from, to, Integer.MAX_VALUE);
+    }
+    
+    public synchronized List<Index> keys(Index from, Index to, int limit) {
+        return MemoryStore.range(offsets, from, to, limit);
+    }
+    
+    /**
+     * @return Number of dead records in the log (replaced values and
+     *     deletes).
+     */
+    public synchronized int getGarbage() {
+        return garbage;
+    }
+    
+    /**
+     * Flush the log to disk.
+     */
+    public synchronized void sync() {
+        map.force();
+    }
+    
+    /**
+     * Rewrite the log with the live values only. The new log is written
+     * beside the old, and renamed in place.
+     * 
+     * @throws IOException
+     *     If unable to write or rename the new log. The old log is then
+     *     still in use.
+     */
+    public synchronized void compact() throws IOException {
+        String   tmp_name = name+".compact";
+        new File(tmp_name).delete();
+        LogStore tmp      = new LogStore(tmp_name, factory, position);
+        try {
+            for( Index key : offsets.keySet() ) tmp.put(key, get(key));
+            tmp.sync();
+        } finally {
+            tmp.close();
+        }
+        close();
+        File dst = new File(name);
+        if( !new File(tmp_name).renameTo(dst) ) {
+            dst.delete();
+            if( !new File(tmp_name).renameTo(dst) ) {
+                throw new IOException("unable to rename "+tmp_name+" to "+name);
+            }
+        }
+        open(64);
+    }
+    
+    public synchronized void close() {
+        try {
+            if( map != null ) map.force();
+            if( channel != null ) channel.close();
+            if( file != null ) file.close();
+        } catch (IOException e) {
+            // nothing more to do.
+        }
+    }
+    
+    public String toString() {
+        return "LogStore["+name+";keys="+offsets.size()+";garbage="+garbage+";bytes="+position+"]";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.morimekta.util.index.Index;
+
+/**
+ * Local store keeping all values in memory, sorted by key.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class MemoryStore implements LocalStore {
+    private final TreeMap<Index, byte[]> values = new TreeMap<Index, byte[]>();
+    
+    public synchronized byte[] get(Index key) {
+        byte[] ret = values.get(key);
+        return ret == null ? null : ret.clone();
+    }
+    
+    public synchronized void put(Index key, byte[] value) {
+        values.put(key, value.clone());
+    }
+    
+    public synchronized boolean delete(Index key) {
+        return values.remove(key) != null;
+    }
+    
+    public synchronized int size() {
+        return values.size();
+    }
+    
+    public synchronized List<Index> keys(Index from, Index to) {
+        return range(values, from, to, Integer.MAX_VALUE);
+    }
+    
+    public synchronized List<Index> keys(Index from, Index to, int limit) {
+        return range(values, from, to, limit);
+    }
+    
+    public void close() {
+        // nothing to release.
+    }
+    
+    /**
+     * Get the keys of a sorted map in a ring interval.
+     * 
+     * @param map
+     *     Map to get keys from.
+     * @param from
+     *     Start of interval (including).
+     * @param to
+     *     End of interval (not including).
+     * @param limit
+     *     Maximum number of keys.
+     * @return
+     *     List of keys in ring order.
+     * @see LocalStore#keys(Index, Index, int)
+     */
+    static <V> ArrayList<Index> range(SortedMap<Index, V> map, Index from, Index to, int limit) {
+        ArrayList<Index> ret = new ArrayList<Index>();
+        if( from.compareTo(to) < 0 ) {
+            add(ret, map.subMap(from, to).keySet(), limit);
+        } else {
+            // wraps around zero, or the whole ring.
+            add(ret, map.tailMap(from).keySet(), limit);
+            add(ret, map.headMap(to).keySet(), limit);
+        }
+        return ret;
+    }
+    
+    private static void add(ArrayList<Index> ret, Collection<Index> keys, int limit) {
+        for( Index key : keys ) {
+            if( ret.size() >= limit ) return;
+            ret.add(key);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.store;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import net.morimekta.util.index.Index;
+import net.morimekta.util.std.Clock;
+
+/**
+ * Hash tree over the keys of a local store in a ring interval, for comparing
+ * the content of two stores with little traffic. The leaves are the 2^depth
+ * buckets given by the top 'depth' bits of the key, so two trees over the
+ * same interval and depth are comparable node by node, wherever the stores
+ * are. A leaf hash is the XOR of the digests of its key-value entries, and
+ * an inner node hash is a digest of its two children. Empty subtrees hash
+ * to 0.
+ * 
+ * Nodes are numbered as in a heap: the root is 1, the children of n are 2n
+ * and 2n+1, and the leaves are 2^depth to 2^(depth+1)-1.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+class MerkleTree {
+    /**
+     * Maximum tree depth.
+     */
+    static final int MAX_DEPTH = 16;
+    
+    final Index           from;
+    final Index           to;
+    final int             depth;
+    final long            created;
+    private final long[]  nodes;
+    private final LinkedHashMap<Index, Long> digests = new LinkedHashMap<Index, Long>();
+    
+    /**
+     * Build the tree over the keys of a store.
+     * 
+     * @param store
+     *     Store to read.
+     * @param _from
+     *     Start of interval (including).
+     * @param _to
+     *     End of interval (not including). If equal to from, the whole ring.
+     * @param _depth
+     *     Tree depth, 0 to MAX_DEPTH.
+     */
+    MerkleTree(LocalStore store, Index _from, Index _to, int _depth) {
+        if( _depth < 0 || _depth > MAX_DEPTH ) throw new IllegalArgumentException("illegal depth "+_depth);
+        from    = _from;
+        to      = _to;
+        depth   = _depth;
+        created = Clock.get().millis();
+        nodes   = new long[2 << depth];
+        
+        MessageDigest md  = digest();
+        int           off = 1 << depth;
+        List<Index>   keys = store.keys(from, to);
+        byte[]        value;
+        for( Index key : keys ) {
+            value = store.get(key);
+            if( value == null ) continue; // deleted meanwhile.
+            long d = entry(md, key, value);
+            digests.put(key, d);
+            nodes[off + bucket(key, depth)] ^= d;
+        }
+        for( int n = off - 1; n > 0; n-- ) {
+            nodes[n] = mix(md, nodes[2*n], nodes[2*n+1]);
+        }
+    }
+    
+    /**
+     * @return Number of nodes, including the unused node 0.
+     */
+    int size() {
+        return nodes.length;
+    }
+    
+    /**
+     * Check if a node is a leaf.
+     * 
+     * @param n
+     *     Node number.
+     * @return
+     *     True if leaf.
+     */
+    boolean isLeaf(int n) {
+        return n >= ( 1 << depth );
+    }
+    
+    /**
+     * Get the hash of a node.
+     * 
+     * @param n
+     *     Node number.
+     * @return
+     *     Hash value.
+     */
+    long hash(int n) {
+        return nodes[n];
+    }
+    
+    /**
+     * Get the entry digests of a leaf.
+     * 
+     * @param n
+     *     Leaf node number.
+     * @return
+     *     Map of key to digest, in ring order.
+     */
+    LinkedHashMap<Index, Long> entries(int n) {
+        int b = n - ( 1 << depth );
+        LinkedHashMap<Index, Long> ret = new LinkedHashMap<Index, Long>();
+        for( Index key : digests.keySet() ) {
+            if( bucket(key, depth) == b ) ret.put(key, digests.get(key));
+        }
+        return ret;
+    }
+    
+    /**
+     * Check if the tree is built over the same interval and depth as given.
+     */
+    boolean covers(Index _from, Index _to, int _depth) {
+        return depth == _depth && from.equals(_from) && to.equals(_to);
+    }
+    
+    /**
+     * Get the bucket of a key, the top 'depth' bits of the key.
+     * 
+     * @param key
+     *     Key to check.
+     * @param depth
+     *     Tree depth.
+     * @return
+     *     Bucket number.
+     */
+    static int bucket(Index key, int depth) {
+        if( depth == 0 ) return 0;
+        byte[] b = key.getBytes();
+        int    v = 0;
+        for( int i = 0; i < 4; i++ ) v = ( v << 8 ) | ( i < b.length ? b[i] & 0xff : 0 );
+        return v >>> ( 32 - depth );
+    }
+    
+    /**
+     * Get the digest of a key-value entry.
+     * 
+     * @param md
+     *     Message digest to use.
+     * @param key
+     *     Key of entry.
+     * @param value
+     *     Value of entry.
+     * @return
+     *     64 bit digest.
+     */
+    static long entry(MessageDigest md, Index key, byte[] value) {
+        md.reset();
+        md.update(key.getBytes());
+        md.update(value);
+        return first64(md.digest());
+    }
+    
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("no SHA-1 digest");
+        }
+    }
+    
+    private static long mix(MessageDigest md, long a, long b) {
+        if( a == 0 && b == 0 ) return 0;
+        md.reset();
+        for( int i = 56; i >= 0; i -= 8 ) md.update((byte) ( a >>> i ));
+        for( int i = 56; i >= 0; i -= 8 ) md.update((byte) ( b >>> i ));
+        return first64(md.digest());
+    }
+    
+    private static long first64(byte[] d) {
+        long ret = 0;
+        for( int i = 0; i < 8; i++ ) ret = ( ret << 8 ) | ( d[i] & 0xff );
+        return ret;
+    }
+}
@@ -0,0 +1,702 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.store;
+
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import net.iharder.xmlizable.Base64;
+import net.morimekta.accord.Conf;
+import net.morimekta.accord.MembershipListener;
+import net.morimekta.accord.tables.LookupTable;
+import net.morimekta.net.Location;
+import net.morimekta.net.Message;
+import net.morimekta.net.MessageService;
+import net.morimekta.net.MessageSocket;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Log;
+import net.morimekta.util.std.Metrics;
+import net.morimekta.util.std.Log.Level;
+
+/**
+ * Streams the keys of a range to its new owner when the ownership moves. A
+ * node owns [me, succ:0), so when a node joins as my succ:0, it takes over
+ * [joiner, old succ:0) from me, and when I leave, pred:0 takes over
+ * [me, succ:0).
+ * 
+ * The old owner sends the keys in ring order, in chunks of at most
+ * handoff.chunk keys that fit in one message, with up to handoff.window
+ * chunks unacked at a time. Only the chunks in flight are held in memory,
+ * as the keys are read from the LocalStore a chunk at a time. Each chunk
+ * carries the interval of the ring it covers, and the receiver acks it with
+ * the cursor below which it has all keys. An interrupted transfer is retried
+ * after handoff.retry, and resumes at the cursor the receiver reports.
+ * 
+ * Until the receiver acks the end of the transfer, the old owner serves the
+ * range, and the new owner redirects requests for it back to the old owner,
+ * so reads never wait for the transfer. Changes to keys already sent are
+ * sent again before the end. While the last changes are sent, the old owner
+ * answers moved to writes in the range, and the requester retries.
+ * 
+ * Messages: <code>
+ * begin from to | chunk seq (start end | - -) (key:value | key:-)* | end
+ * </code> where begin is answered with the resume cursor, chunk with the
+ * sequence number and cursor, and end when the range is complete.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class RangeHandoff implements MessageService, MembershipListener {
+    protected enum Op {
+        begin,
+        begin_res,
+        chunk,
+        chunk_res,
+        end,
+        end_res,
+    }
+    
+    private static final String NONE = "-";
+    
+    /**
+     * A range sent from the local node.
+     */
+    private static class Transfer {
+        final Location host;
+        final Index    from;
+        final Index    to;
+        Index          sent;    // next key to send, null when all is sent.
+        volatile boolean closing = false;
+        long           retry = 0;
+        boolean        drop  = true; // drop the keys when done.
+        // changes to sent keys, null value for deleted.
+        final HashMap<Index, byte[]> dirty = new HashMap<Index, byte[]>();
+        
+        Transfer(Location _host, Index _from, Index _to) {
+            host = _host;
+            from = _from;
+            to   = _to;
+            sent = _from;
+        }
+        
+        boolean contains(Index key) {
+            return from.equals(to) || key.between(from, to);
+        }
+        
+        public String toString() {
+            return host+" ["+from.toHexString()+","+to.toHexString()+")";
+        }
+    }
+    
+    /**
+     * A range received by the local node.
+     */
+    private static class Incoming {
+        final Location host;    // null for pred:0, when not known yet.
+        final Index    from;
+        final Index    to;
+        Index          cursor;
+        long           expires;
+        // chunks received ahead of the cursor, start to end.
+        final HashMap<Index, Index> ahead = new HashMap<Index, Index>();
+        
+        Incoming(Location _host, Index _from, Index _to) {
+            host    = _host;
+            from    = _from;
+            to      = _to;
+            cursor  = _from;
+            expires = Clock.get().millis() + Conf.handoff__timeout;
+        }
+        
+        boolean contains(Index key) {
+            return from.equals(to) || key.between(from, to);
+        }
+    }
+    
+    /**
+     * A chunk in flight.
+     */
+    private static class Chunk {
+        final int     seq;
+        final Message msg;
+        
+        Chunk(int _seq, Message _msg) {
+            seq = _seq;
+            msg = _msg;
+        }
+    }
+    
+    private Log                 log;
+    private LookupTable         table;
+    private MessageSocket       socket;
+    private LocalStore          store;
+    private IndexFactory        factory;
+    private Metrics             metrics = new Metrics();
+    
+    private final LinkedList<Transfer> queue    = new LinkedList<Transfer>();
+    private final Vector<Transfer>     outgoing = new Vector<Transfer>();
+    private volatile boolean           changed  = false;
+    private volatile boolean           rebase   = false;
+    private volatile boolean           work     = true;
+    private Location                   last_succ0 = null;
+    
+    private final Hashtable<String, Incoming> incoming = new Hashtable<String, Incoming>(); // by range.
+    private final Hashtable<String, Incoming> sessions = new Hashtable<String, Incoming>(); // by sender ticket.
+    
+    private Thread daemon = Clock.get().thread(new Runnable() {
+        public void run() {
+            try {
+                runLoop();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    });
+    
+    /**
+     * Create a range handoff service.
+     * 
+     * @param _log
+     *     Log to log on.
+     * @param _table
+     *     Lookup table of the node.
+     * @param _socket
+     *     Socket to send and receive messages on.
+     * @param _store
+     *     Local store to send from and receive to.
+     */
+    public RangeHandoff(Log _log, LookupTable _table, MessageSocket _socket, LocalStore _store) {
+        log     = _log;
+        table   = _table;
+        socket  = _socket;
+        store   = _store;
+        factory = _table.getMe().getIndex().getFactory();
+        daemon.setDaemon(true);
+        daemon.setName(_table.getMe()+".Handoff");
+    }
+    
+    /**
+     * Set the metrics registry to count sent and received chunks and keys in.
+     * 
+     * @param _metrics
+     *     Metrics registry.
+     */
+    public void setMetrics(Metrics _metrics) {
+        metrics = _metrics;
+        metrics.gauge("handoff.outgoing", new Metrics.Gauge() {
+            public long value() { return outgoing.size(); }
+        });
+        metrics.gauge("handoff.incoming", new Metrics.Gauge() {
+            public long value() { return incoming.size(); }
+        });
+    }
+    
+    public String getServiceName() {
+        return "handoff";
+    }
+    
+    /**
+     * Start the handoff thread.
+     */
+    public synchronized void start() {
+        if( !daemon.isAlive() ) {
+            work = true;
+            Clock.get().start(daemon);
+        }
+    }
+    
+    /**
+     * Stop the handoff thread.
+     */
+    public void stop() {
+        // join without the lock, the services may need it meanwhile.
+        synchronized( this ) {
+            if( !work ) return;
+            work = false;
+            Clock.get().interrupt(daemon);
+        }
+        try {
+            Clock.get().join(daemon);
+        } catch (InterruptedException e) {
+            System.err.println("Join on Handoff interrupted.");
+        }
+    }
+    
+    public void committed(String op) {
+        if( "connect".equals(op) ) {
+            // I joined, and my range comes from pred:0.
+            Location succ0 = null;
+            synchronized( table.succs() ) {
+                if( table.succs().size() > 0 ) succ0 = table.succs().get(0);
+            }
+            if( succ0 != null ) {
+                Incoming in = new Incoming(pred0(), table.getMe().getIndex(), succ0.getIndex());
+                incoming.put(in.from.toBase64String()+" "+in.to.toBase64String(), in);
+            }
+            rebase = true;
+        } else if( "disconnect".equals(op) ) {
+            rebase = true;
+        }
+        synchronized( queue ) {
+            changed = true;
+            Clock.get().signal(queue);
+        }
+    }
+    
+    /**
+     * Check if the local node serves a key it does not own, as it is still
+     * sending it to the new owner.
+     * 
+     * @param key
+     *     Key to check.
+     * @param write
+     *     True if the key is to be changed.
+     * @return
+     *     True if served here.
+     */
+    public boolean serving(Index key, boolean write) {
+        synchronized( outgoing ) {
+            for( Transfer t : outgoing ) {
+                if( t.contains(key) ) return !( write && t.closing );
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Get the node a key is redirected to, as it owns the key but has not
+     * received it yet.
+     * 
+     * @param key
+     *     Key to check.
+     * @return
+     *     The old owner, or null if not redirected.
+     */
+    public Location redirect(Index key) {
+        long now = Clock.get().millis();
+        synchronized( incoming ) {
+            for( Iterator<Incoming> i = incoming.values().iterator(); i.hasNext(); ) {
+                Incoming in = i.next();
+                if( in.expires < now ) {
+                    log.log("handoff from "+in.host+" expired", Level.medium);
+                    metrics.counter("handoff.expired").inc();
+                    i.remove();
+                } else if( in.contains(key) ) {
+                    return ( in.host == null ? pred0() : in.host );
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return The current pred:0, or null if none.
+     */
+    private Location pred0() {
+        synchronized( table.preds() ) {
+            return ( table.preds().size() > 0 ? table.preds().get(0) : null );
+        }
+    }
+    
+    /**
+     * @return True if any range is being received.
+     */
+    public boolean receiving() {
+        return !incoming.isEmpty();
+    }
+    
+    /**
+     * Note a change to a stored key, so it is sent again if the key is in a
+     * range being sent, and already sent.
+     * 
+     * @param key
+     *     Changed key.
+     * @param value
+     *     New value, or null if deleted.
+     */
+    public void changed(Index key, byte[] value) {
+        synchronized( outgoing ) {
+            for( Transfer t : outgoing ) {
+                synchronized( t ) {
+                    if( t.sent == null ? t.contains(key) :
+                        !t.sent.equals(t.from) && key.between(t.from, t.sent) ) t.dirty.put(key, value);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Send the owned range to pred:0 before leaving the ring. Returns when
+     * pred:0 has all the keys, or on failure.
+     * 
+     * @return
+     *     True if the range was handed off, or there is no one to hand it to.
+     */
+    public boolean leave() {
+        Location pred0 = pred0(), succ0 = null;
+        synchronized( table.succs() ) {
+            if( table.succs().size() > 0 ) succ0 = table.succs().get(0);
+        }
+        if( pred0 == null || succ0 == null || pred0.equals(table.getMe()) ) return true;
+        Transfer t = new Transfer(pred0, table.getMe().getIndex(), succ0.getIndex());
+        // still owned until the leave commits.
+        t.drop = false;
+        outgoing.add(t);
+        // a failed leave handoff is not retried.
+        if( transfer(t) ) return true;
+        outgoing.remove(t);
+        return false;
+    }
+    
+    /**
+     * Runs the transfers from membership changes, and retries the
+     * interrupted ones.
+     */
+    private void runLoop() {
+        Transfer t;
+        boolean  check;
+        long     now;
+        log.log("starting thread", Level.high);
+        
+        while( work ) {
+            try {
+                synchronized( queue ) {
+                    t   = null;
+                    now = Clock.get().millis();
+                    long wait = Conf.handoff__retry;
+                    for( Transfer q : queue ) {
+                        if( q.retry <= now ) {
+                            t = q;
+                            break;
+                        }
+                        wait = Math.min(wait, q.retry - now);
+                    }
+                    if( t == null && !changed ) Clock.get().await(queue, wait);
+                    check   = changed;
+                    changed = false;
+                    if( t != null ) queue.remove(t);
+                }
+                if( check ) checkTables();
+                if( t != null && !transfer(t) ) {
+                    t.retry = Clock.get().millis() + Conf.handoff__retry;
+                    synchronized( queue ) {
+                        queue.addLast(t);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.log("Thread Interrupted.", Level.high);
+            }
+        }
+        log.log("Thread is stopped.", Level.high);
+    }
+    
+    /**
+     * Compare succ:0 with the last seen, and start a transfer when a node
+     * joined in my range.
+     */
+    private void checkTables() {
+        Location me    = table.getMe();
+        Location succ0 = null;
+        synchronized( table.succs() ) {
+            if( table.succs().size() > 0 ) succ0 = table.succs().get(0);
+        }
+        if( rebase ) {
+            // my own join or leave, there is nothing to send.
+            rebase     = false;
+            last_succ0 = succ0;
+            return;
+        }
+        if( succ0 != null && !succ0.equals(last_succ0) ) {
+            Index last = ( last_succ0 == null ? me.getIndex() : last_succ0.getIndex() );
+            if( last_succ0 == null || succ0.getIndex().between(me.getIndex(), last) ) {
+                // succ:0 joined in my range, it owns [succ0, last) now.
+                Transfer t = new Transfer(succ0, succ0.getIndex(), last);
+                log.log("handoff "+t, Level.medium);
+                outgoing.add(t);
+                synchronized( queue ) {
+                    queue.addLast(t);
+                }
+            }
+        }
+        last_succ0 = succ0;
+    }
+    
+    /**
+     * Send a range to its new owner.
+     * 
+     * @param t
+     *     The transfer, resumed where the receiver has the keys to.
+     * @return
+     *     True if done, false if interrupted.
+     */
+    private boolean transfer(Transfer t) {
+        long start  = Clock.get().millis();
+        int  ticket = socket.requestTicket();
+        int  keys   = 0;
+        try {
+            Message in = call(t.host, ticket, Op.begin+" "+t.from.toBase64String()+" "+t.to.toBase64String(),
+                              Op.begin_res, null);
+            Index cursor = factory.getIndex(in.getMessage());
+            if( cursor == null ) throw new IllegalArgumentException("bad cursor");
+            synchronized( t ) {
+                if( !cursor.equals(t.to) && !t.contains(cursor) ) cursor = t.from;
+                if( !cursor.equals(t.from) ) log.log("handoff "+t+" resumed", Level.low);
+                // the receiver has all keys before the cursor.
+                t.sent = ( cursor.equals(t.to) && !t.from.equals(t.to) ? null : cursor );
+            }
+            
+            // stream the range, with at most handoff.window chunks in flight.
+            LinkedList<Chunk> flight   = new LinkedList<Chunk>();
+            boolean           done     = false;
+            long              progress = Clock.get().millis();
+            int               seq      = 0;
+            while( !done || !flight.isEmpty() ) {
+                while( !done && flight.size() < Conf.handoff__window ) {
+                    Chunk c = next(t, ++seq, ticket);
+                    done = ( c == null );
+                    if( done ) break;
+                    flight.addLast(c);
+                    socket.send(t.host, c.msg);
+                    metrics.counter("handoff.chunks").inc();
+                }
+                if( flight.isEmpty() ) break;
+                try {
+                    in = socket.receive(ticket, t.host, Conf.msg_timeout);
+                    if( !Op.chunk_res.toString().equals(in.getOperation()) || in.getMessage() == null ) continue;
+                    String[] w = in.getMessage().split(" ");
+                    int s = Integer.parseInt(w[0]);
+                    for( Iterator<Chunk> i = flight.iterator(); i.hasNext(); ) {
+                        if( i.next().seq == s ) {
+                            i.remove();
+                            progress = Clock.get().millis();
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    if( progress + Conf.handoff__timeout < Clock.get().millis() ) throw e;
+                    metrics.counter("handoff.retransmit").inc();
+                    for( Chunk c : flight ) socket.send(t.host, c.msg);
+                }
+            }
+            
+            // send the changes to the keys already sent, and close.
+            t.closing = true;
+            while( true ) {
+                String body;
+                synchronized( t ) {
+                    if( t.dirty.isEmpty() ) break;
+                    body = dirty(t, ++seq);
+                }
+                call(t.host, ticket, body, Op.chunk_res, Integer.toString(seq));
+                metrics.counter("handoff.chunks").inc();
+            }
+            call(t.host, ticket, Op.end.toString(), Op.end_res, null);
+            outgoing.remove(t);
+            
+            if( t.drop && !Conf.replication__enabled ) {
+                // without replicas nothing else needs the range here.
+                List<Index> drop = store.keys(t.from, t.to);
+                for( Index key : drop ) store.delete(key);
+                keys = drop.size();
+            }
+            log.log("handoff "+t+" done in "+(Clock.get().millis() - start)+" ms", Level.medium);
+            metrics.counter("handoff.done").inc();
+            metrics.histogram("handoff.latency").record(Clock.get().millis() - start);
+            if( keys > 0 ) metrics.counter("handoff.dropped").add(keys);
+            return true;
+        } catch (SocketTimeoutException e) {
+            log.log("handoff "+t+" interrupted", Level.low);
+            metrics.counter("handoff.interrupted").inc();
+        } catch (IllegalArgumentException e) {
+            log.log("handoff "+t+": bad reply "+e.getMessage(), Level.warning);
+        } finally {
+            t.closing = false;
+            socket.freeTicket(ticket);
+        }
+        return false;
+    }
+    
+    /**
+     * Build the next chunk of a range from the sent cursor, and move the
+     * cursor past it.
+     * 
+     * @return
+     *     The chunk, or null if all is sent.
+     */
+    private Chunk next(Transfer t, int seq, int ticket) {
+        synchronized( t ) {
+            if( t.sent == null ) return null;
+            List<Index> keys = store.keys(t.sent, t.to, Conf.handoff__chunk + 1);
+            StringBuilder entries = new StringBuilder();
+            Index end = null;
+            int   n   = 0;
+            for( Index key : keys ) {
+                String entry = entry(key, store.get(key));
+                if( n >= Conf.handoff__chunk ||
+                    ( n > 0 && entries.length() + entry.length() + 100 > budget() ) ) {
+                    end = key;
+                    break;
+                }
+                entries.append(entry);
+                n++;
+            }
+            String body = Op.chunk+" "+seq+" "+t.sent.toBase64String()+" "+
+                          ( end == null ? t.to : end ).toBase64String()+entries;
+            // the last chunk leaves sent at null.
+            t.sent = end;
+            metrics.counter("handoff.keys").add(n);
+            return new Chunk(seq, new Message(ticket, 0, 0, getServiceName(), body));
+        }
+    }
+    
+    /**
+     * Build a chunk of changed keys, and remove them from the dirty set.
+     */
+    private String dirty(Transfer t, int seq) {
+        StringBuilder body = new StringBuilder(Op.chunk+" "+seq+" "+NONE+" "+NONE);
+        for( Iterator<Map.Entry<Index, byte[]>> i = t.dirty.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Index, byte[]> e = i.next();
+            String entry = entry(e.getKey(), e.getValue());
+            if( body.length() > 20 && body.length() + entry.length() > budget() ) break;
+            body.append(entry);
+            i.remove();
+        }
+        return body.toString();
+    }
+    
+    private static String entry(Index key, byte[] value) {
+        return " "+key.toBase64String()+":"+
+               ( value == null ? NONE : Base64.encodeBytes(value, Base64.DONT_BREAK_LINES) );
+    }
+    
+    /**
+     * @return Max message body length.
+     */
+    private int budget() {
+        return socket.getMaxPacketSize() - Message.header_size - getServiceName().length();
+    }
+    
+    /**
+     * Send a request and wait for the reply, retransmitting until
+     * handoff.timeout.
+     * 
+     * @param seq
+     *     First word the reply must have, or null for any.
+     * @return
+     *     The reply.
+     */
+    private Message call(Location peer, int ticket, String body, Op res, String seq) throws SocketTimeoutException {
+        long    timeout = Clock.get().millis() + Conf.handoff__timeout;
+        Message out     = new Message(ticket, 0, 0, getServiceName(), body);
+        Message in;
+        socket.send(peer, out);
+        while( true ) {
+            try {
+                in = socket.receive(ticket, peer, Conf.msg_timeout);
+                if( res.toString().equals(in.getOperation()) && in.getMessage() != null &&
+                    ( seq == null || in.getMessage().split(" ")[0].equals(seq) ) ) return in;
+                // an old reply, wait on.
+            } catch (SocketTimeoutException e) {
+                if( Clock.get().millis() > timeout ) throw e;
+                metrics.counter("handoff.retransmit").inc();
+                socket.send(peer, out);
+            }
+        }
+    }
+    
+    public void invoke(Message msg) {
+        String[] w       = msg.getMessage().split(" ");
+        String   session = msg.getSender()+" "+msg.getFromTicket();
+        String   reply;
+        Op       res;
+        try {
+            Op op = Op.valueOf(w[0]);
+            switch( op ) {
+                case begin: {
+                    Index from = factory.getIndex(w[1]);
+                    Index to   = factory.getIndex(w[2]);
+                    if( from == null || to == null ) throw new IllegalArgumentException("bad range");
+                    Incoming in;
+                    synchronized( incoming ) {
+                        in = incoming.get(w[1]+" "+w[2]);
+                        if( in == null || !msg.getSender().equals(in.host) ) {
+                            // the range may differ from the one expected on connect.
+                            for( Iterator<Incoming> i = incoming.values().iterator(); i.hasNext(); ) {
+                                Location host = i.next().host;
+                                if( host == null || host.equals(msg.getSender()) ) i.remove();
+                            }
+                            in = new Incoming(msg.getSender(), from, to);
+                            incoming.put(w[1]+" "+w[2], in);
+                        }
+                        in.expires = Clock.get().millis() + Conf.handoff__timeout;
+                    }
+                    sessions.put(session, in);
+                    synchronized( in ) {
+                        reply = in.cursor.toBase64String();
+                    }
+                    res = Op.begin_res;
+                    break;
+                }
+                case chunk: {
+                    Incoming in = sessions.get(session);
+                    // an unknown session is restarted by the sender with begin.
+                    if( in == null ) return;
+                    int count = 0;
+                    for( int i = 4; i < w.length; i++ ) {
+                        int   c   = w[i].indexOf(':');
+                        Index key = factory.getIndex(w[i].substring(0, c));
+                        if( key == null ) continue;
+                        String value = w[i].substring(c+1);
+                        if( NONE.equals(value) ) store.delete(key);
+                        else store.put(key, Base64.decode(value));
+                        count++;
+                    }
+                    metrics.counter("handoff.received").add(count);
+                    synchronized( in ) {
+                        in.expires = Clock.get().millis() + Conf.handoff__timeout;
+                        if( !NONE.equals(w[2]) ) {
+                            Index start = factory.getIndex(w[2]);
+                            Index end   = factory.getIndex(w[3]);
+                            if( start == null || end == null ) throw new IllegalArgumentException("bad chunk range");
+                            if( start.equals(in.cursor) ) {
+                                in.cursor = end;
+                                while( in.ahead.containsKey(in.cursor) ) in.cursor = in.ahead.remove(in.cursor);
+                            } else if( in.ahead.size() < 4 * Conf.handoff__window ) {
+                                in.ahead.put(start, end);
+                            }
+                        }
+                        reply = w[1]+" "+in.cursor.toBase64String();
+                    }
+                    res = Op.chunk_res;
+                    break;
+                }
+                case end: {
+                    Incoming in = sessions.remove(session);
+                    if( in != null ) {
+                        incoming.remove(in.from.toBase64String()+" "+in.to.toBase64String());
+                        log.log("handoff from "+in.host+" complete", Level.medium);
+                    }
+                    reply = "";
+                    res   = Op.end_res;
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unexpected "+op);
+            }
+        } catch (IllegalArgumentException e) {
+            log.log("invalid handoff message from "+msg.getSender()+": "+e.getMessage(), Level.warning);
+            return;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            log.log("invalid handoff message from "+msg.getSender(), Level.warning);
+            return;
+        }
+        socket.send(msg.getSender(), new Message(0, msg.getFromTicket(), 0, res.toString(), reply));
+    }
+}
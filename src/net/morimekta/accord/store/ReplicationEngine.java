@@ -0,0 +1,619 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.store;
+
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.iharder.xmlizable.Base64;
+import net.morimekta.accord.Conf;
+import net.morimekta.accord.MembershipListener;
+import net.morimekta.accord.tables.LookupTable;
+import net.morimekta.net.Location;
+import net.morimekta.net.Message;
+import net.morimekta.net.MessageService;
+import net.morimekta.net.MessageSocket;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Log;
+import net.morimekta.util.std.Metrics;
+import net.morimekta.util.std.Log.Level;
+
+/**
+ * Replicates the stored keys of a node to the nodes that take over its range
+ * if it fails. A node owns [me, succ:0), and when it leaves, pred:0 inherits
+ * the range, so the replicas of the keys are on the first
+ * replication.factor-1 preds. A node in turn keeps the keys in
+ * [me, succ:factor-1), that is its own and those it is a replica for.
+ * 
+ * Each put and delete on the owner is pushed to the replicas at once, with
+ * no ack. Lost pushes and missed changes are repaired by anti-entropy: the
+ * owner compares a MerkleTree of its range with the same tree on each
+ * replica, descending only into differing subtrees, and pushes the keys of
+ * the differing leaves that the replica lacks or has other values for. The
+ * replica deletes the keys of a compared leaf the owner does not have. The
+ * repair traffic is thus proportional to the divergence, not the data.
+ * 
+ * On committed membership changes the engine compares the tables with what
+ * it saw last, and repairs exactly the affected ranges: the range inherited
+ * from a leaving succ:0 is sent to the replicas, and new replicas get the
+ * owned range. The range of a node that joined as succ:0 is streamed to it by
+ * the RangeHandoff. As the owner is the authority of a repair, nothing is
+ * repaired while the node is still receiving a range.
+ * 
+ * Messages: <code>
+ * put key value | delete key |
+ * diff seq from to depth (node:hash)* | leaf seq from to depth node last (key:digest)*
+ * </code> where diff is answered with the differing nodes, and the last leaf
+ * message with the keys the replica needs.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class ReplicationEngine implements MessageService, MembershipListener {
+    protected enum Op {
+        put,
+        delete,
+        diff,
+        diff_res,
+        leaf,
+        leaf_res,
+    }
+    
+    /**
+     * A range to repair on a peer.
+     */
+    private static class Task {
+        final Location peer;
+        final Index    from;
+        final Index    to;
+        
+        Task(Location _peer, Index _from, Index _to) {
+            peer = _peer;
+            from = _from;
+            to   = _to;
+        }
+        
+        public boolean equals(Object o) {
+            if( !( o instanceof Task ) ) return false;
+            Task t = (Task) o;
+            return peer.equals(t.peer) && from.equals(t.from) && to.equals(t.to);
+        }
+        
+        public int hashCode() {
+            return peer.hashCode() ^ from.hashCode();
+        }
+    }
+    
+    /**
+     * Leaf entries received in parts.
+     */
+    private static class Partial {
+        final long                 started = Clock.get().millis();
+        final HashMap<Index, Long> entries = new HashMap<Index, Long>();
+    }
+    
+    private Log                          log;
+    private LookupTable                  table;
+    private MessageSocket                socket;
+    private LocalStore                   store;
+    private RangeHandoff                 handoff = null;
+    private IndexFactory                 factory;
+    private Metrics                      metrics = new Metrics();
+    
+    private final LinkedList<Task>       tasks    = new LinkedList<Task>();
+    private volatile boolean             changed  = true;
+    private volatile boolean             rebase   = true;
+    private volatile boolean             work     = true;
+    private Location                     last_succ0    = null;
+    private LinkedList<Location>         last_replicas = new LinkedList<Location>();
+    private int                          seq = 0;
+    
+    private MerkleTree                   cached = null; // last tree built for a diff.
+    private final Hashtable<String, Partial> partials = new Hashtable<String, Partial>();
+    
+    private Thread daemon = Clock.get().thread(new Runnable() {
+        public void run() {
+            try {
+                runLoop();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    });
+    
+    /**
+     * Create a replication engine.
+     * 
+     * @param _log
+     *     Log to log on.
+     * @param _table
+     *     Lookup table of the node.
+     * @param _socket
+     *     Socket to send and receive messages on.
+     * @param _store
+     *     Local store to replicate.
+     */
+    public ReplicationEngine(Log _log, LookupTable _table, MessageSocket _socket, LocalStore _store) {
+        log     = _log;
+        table   = _table;
+        socket  = _socket;
+        store   = _store;
+        factory = _table.getMe().getIndex().getFactory();
+        daemon.setDaemon(true);
+        daemon.setName(_table.getMe()+".Replication");
+    }
+    
+    /**
+     * Set the metrics registry to count pushed, repaired and handed off keys
+     * in.
+     * 
+     * @param _metrics
+     *     Metrics registry.
+     */
+    public void setMetrics(Metrics _metrics) {
+        metrics = _metrics;
+    }
+    
+    /**
+     * Set the handoff service of the node, to not repair while receiving a
+     * range.
+     * 
+     * @param _handoff
+     *     Range handoff service, or null.
+     */
+    public void setHandoff(RangeHandoff _handoff) {
+        handoff = _handoff;
+    }
+    
+    public String getServiceName() {
+        return "replica";
+    }
+    
+    /**
+     * Start the replication thread.
+     */
+    public synchronized void start() {
+        if( !daemon.isAlive() ) {
+            work = true;
+            Clock.get().start(daemon);
+        }
+    }
+    
+    /**
+     * Stop the replication thread.
+     */
+    public void stop() {
+        // join without the lock, the services may need it meanwhile.
+        synchronized( this ) {
+            if( !work ) return;
+            work = false;
+            Clock.get().interrupt(daemon);
+        }
+        try {
+            Clock.get().join(daemon);
+        } catch (InterruptedException e) {
+            System.err.println("Join on Replication interrupted.");
+        }
+    }
+    
+    /**
+     * Get the replicas of the local node, the first replication.factor-1
+     * preds.
+     * 
+     * @return
+     *     List of replicas.
+     */
+    public LinkedList<Location> getReplicas() {
+        LinkedList<Location> ret = new LinkedList<Location>();
+        synchronized( table.preds() ) {
+            for( Location l : table.preds() ) {
+                if( ret.size() >= Conf.replication__factor - 1 ) break;
+                if( l == null || l.equals(table.getMe()) || ret.contains(l) ) continue;
+                ret.add(l);
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * Push a change of an owned key to the replicas.
+     * 
+     * @param key
+     *     Changed key.
+     * @param value
+     *     New value, or null if deleted.
+     */
+    public void replicate(Index key, byte[] value) {
+        String body = ( value == null ?
+                        Op.delete+" "+key.toBase64String() :
+                        Op.put+" "+key.toBase64String()+" "+Base64.encodeBytes(value, Base64.DONT_BREAK_LINES) );
+        Message out = new Message(0, 0, 0, getServiceName(), body);
+        for( Location l : getReplicas() ) {
+            socket.send(l, out);
+            metrics.counter("replication.pushed").inc();
+        }
+    }
+    
+    public void committed(String op) {
+        // after my own join or leave the tables are new, not changed.
+        if( "connect".equals(op) || "disconnect".equals(op) ) rebase = true;
+        synchronized( tasks ) {
+            changed = true;
+            Clock.get().signal(tasks);
+        }
+    }
+    
+    private void add(Task t) {
+        synchronized( tasks ) {
+            if( !tasks.contains(t) ) tasks.addLast(t);
+        }
+    }
+    
+    /**
+     * Runs the repair tasks from membership changes, and a full repair round
+     * every replication.interval.
+     */
+    private void runLoop() {
+        long next = Clock.get().millis() + Conf.replication__interval;
+        long now;
+        Task task;
+        boolean check;
+        log.log("starting thread", Level.high);
+        
+        while( work ) {
+            try {
+                synchronized( tasks ) {
+                    now = Clock.get().millis();
+                    if( tasks.isEmpty() && !changed && next > now ) Clock.get().await(tasks, next - now);
+                    check   = changed;
+                    changed = false;
+                    task    = ( tasks.isEmpty() ? null : tasks.removeFirst() );
+                }
+                if( check ) checkTables();
+                if( handoff != null && handoff.receiving() ) {
+                    // repair when the range is here, put the task back.
+                    if( task != null ) add(task);
+                    task = null;
+                    next = Math.max(next, Clock.get().millis() + Conf.handoff__retry);
+                    Clock.get().sleep(Conf.msg_timeout);
+                } else if( task != null ) {
+                    repair(task.peer, task.from, task.to);
+                } else if( next <= Clock.get().millis() ) {
+                    round();
+                    next = Clock.get().millis() + Conf.replication__interval;
+                }
+            } catch (InterruptedException e) {
+                log.log("Thread Interrupted.", Level.high);
+            }
+        }
+        log.log("Thread is stopped.", Level.high);
+    }
+    
+    /**
+     * Compare the tables with the last seen, and add repair tasks for the
+     * affected ranges.
+     */
+    private void checkTables() {
+        Location me    = table.getMe();
+        Location succ0 = null;
+        synchronized( table.succs() ) {
+            if( table.succs().size() > 0 ) succ0 = table.succs().get(0);
+        }
+        LinkedList<Location> replicas = getReplicas();
+        
+        if( rebase ) {
+            rebase        = false;
+            last_succ0    = succ0;
+            last_replicas = replicas;
+            return;
+        }
+        if( succ0 != null && last_succ0 != null && !succ0.equals(last_succ0) &&
+            !succ0.getIndex().between(me.getIndex(), last_succ0.getIndex()) ) {
+            // succ:0 left, and I own [last, succ0) too.
+            for( Location r : replicas ) add(new Task(r, last_succ0.getIndex(), succ0.getIndex()));
+        }
+        Index to = ( succ0 == null ? me.getIndex() : succ0.getIndex() );
+        for( Location r : replicas ) {
+            if( !last_replicas.contains(r) ) add(new Task(r, me.getIndex(), to));
+        }
+        last_succ0    = succ0;
+        last_replicas = replicas;
+    }
+    
+    /**
+     * Repair the owned range on all replicas, and drop the keys that are
+     * neither owned nor replicated here.
+     */
+    private void round() {
+        Index to = table.getMe().getIndex();
+        synchronized( table.succs() ) {
+            if( table.succs().size() > 0 ) to = table.succs().get(0).getIndex();
+        }
+        for( Location r : getReplicas() ) repair(r, table.getMe().getIndex(), to);
+        metrics.counter("replication.rounds").inc();
+        gc();
+    }
+    
+    /**
+     * Delete the keys outside [me, succ:factor-1). Only done when the succs
+     * are stable and long enough, as shorter succs would drop keys still
+     * replicated here.
+     */
+    private void gc() {
+        Index to;
+        synchronized( table.succs() ) {
+            if( !table.succs().isStable() || table.succs().size() < Conf.replication__factor ) return;
+            Location l = table.succs().get(Conf.replication__factor - 1);
+            if( l == null ) return;
+            to = l.getIndex();
+        }
+        List<Index> drop = store.keys(to, table.getMe().getIndex());
+        for( Index key : drop ) store.delete(key);
+        if( drop.size() > 0 ) {
+            log.log("gc: dropped "+drop.size()+" keys", Level.low);
+            metrics.counter("replication.gc").add(drop.size());
+        }
+    }
+    
+    /**
+     * Make a peer hold the same keys and values as the local store in a
+     * range.
+     * 
+     * @param peer
+     *     Node to repair.
+     * @param from
+     *     Start of range (including).
+     * @param to
+     *     End of range (not including).
+     * @return
+     *     Number of keys pushed.
+     */
+    private int repair(Location peer, Index from, Index to) {
+        int depth  = Math.min(Conf.replication__depth, MerkleTree.MAX_DEPTH);
+        int ticket = 0;
+        int pushed = 0;
+        try {
+            MerkleTree          mine     = new MerkleTree(store, from, to, depth);
+            String              head     = from.toBase64String()+" "+to.toBase64String()+" "+depth;
+            LinkedList<Integer> frontier = new LinkedList<Integer>();
+            LinkedList<Integer> leaves   = new LinkedList<Integer>();
+            ticket = socket.requestTicket();
+            frontier.add(1);
+            
+            // descend into the differing subtrees.
+            while( !frontier.isEmpty() ) {
+                StringBuilder body = new StringBuilder();
+                int           s    = ++seq;
+                body.append(Op.diff).append(' ').append(s).append(' ').append(head);
+                while( !frontier.isEmpty() && body.length() + 32 < budget() ) {
+                    int n = frontier.removeFirst();
+                    body.append(' ').append(n).append(':').append(Long.toHexString(mine.hash(n)));
+                }
+                String[] diff = call(peer, ticket, s, body.toString(), Op.diff_res);
+                metrics.counter("replication.repair.diff").inc();
+                for( String id : diff ) {
+                    int n = Integer.parseInt(id);
+                    if( n < 1 || n >= mine.size() ) continue;
+                    if( mine.isLeaf(n) ) leaves.add(n);
+                    else {
+                        frontier.add(2*n);
+                        frontier.add(2*n+1);
+                    }
+                }
+            }
+            
+            // compare the differing leaves key by key.
+            for( int n : leaves ) {
+                metrics.counter("replication.repair.leaf").inc();
+                Iterator<Map.Entry<Index, Long>> iter = mine.entries(n).entrySet().iterator();
+                String[] need;
+                do {
+                    StringBuilder entries = new StringBuilder();
+                    while( iter.hasNext() && entries.length() + head.length() + 64 < budget() ) {
+                        Map.Entry<Index, Long> e = iter.next();
+                        entries.append(' ').append(e.getKey().toBase64String())
+                               .append(':').append(Long.toHexString(e.getValue()));
+                    }
+                    int s = ++seq;
+                    need = call(peer, ticket, s, Op.leaf+" "+s+" "+head+" "+n+" "+
+                                ( iter.hasNext() ? 0 : 1 )+entries, Op.leaf_res);
+                } while( iter.hasNext() );
+                
+                for( String k : need ) {
+                    Index  key   = factory.getIndex(k);
+                    byte[] value = ( key == null ? null : store.get(key) );
+                    if( value == null ) continue;
+                    socket.send(peer, new Message(0, 0, 0, getServiceName(),
+                            Op.put+" "+k+" "+Base64.encodeBytes(value, Base64.DONT_BREAK_LINES)));
+                    pushed++;
+                }
+            }
+            metrics.counter("replication.repair.keys").add(pushed);
+            if( pushed > 0 || !leaves.isEmpty() )
+                log.log("repair "+peer+": "+leaves.size()+" leaves differ, pushed "+pushed+" keys", Level.low);
+        } catch (SocketTimeoutException e) {
+            log.log("repair "+peer+" timed out", Level.low);
+            metrics.counter("replication.repair.timeout").inc();
+        } catch (NumberFormatException e) {
+            log.log("repair "+peer+": bad reply "+e.getMessage(), Level.warning);
+        } finally {
+            if( ticket > 0 ) socket.freeTicket(ticket);
+        }
+        return pushed;
+    }
+    
+    /**
+     * @return Max message body length.
+     */
+    private int budget() {
+        return socket.getMaxPacketSize() - Message.header_size - getServiceName().length();
+    }
+    
+    /**
+     * Send a request and wait for the reply with the same sequence number,
+     * retransmitting until replication.timeout.
+     * 
+     * @return
+     *     The reply words after the sequence number.
+     */
+    private String[] call(Location peer, int ticket, int s, String body, Op res) throws SocketTimeoutException {
+        long    timeout = Clock.get().millis() + Conf.replication__timeout;
+        Message out     = new Message(ticket, 0, 0, getServiceName(), body);
+        Message in;
+        socket.send(peer, out);
+        while( true ) {
+            try {
+                in = socket.receive(ticket, peer, Conf.msg_timeout);
+                if( res.toString().equals(in.getOperation()) && in.getMessage() != null ) {
+                    String[] words = in.getMessage().split(" ");
+                    if( words[0].equals(Integer.toString(s)) ) {
+                        String[] ret = new String[words.length - 1];
+                        System.arraycopy(words, 1, ret, 0, ret.length);
+                        return ret;
+                    }
+                }
+                // an old reply, wait on.
+            } catch (SocketTimeoutException e) {
+                if( Clock.get().millis() > timeout ) throw e;
+                metrics.counter("replication.retransmit").inc();
+                socket.send(peer, out);
+            }
+        }
+    }
+    
+    /**
+     * Get a tree over a range, reusing the last built if it is over the same
+     * range and younger than replication.timeout.
+     */
+    private synchronized MerkleTree tree(Index from, Index to, int depth) {
+        if( cached == null || !cached.covers(from, to, depth) ||
+            cached.created + Conf.replication__timeout < Clock.get().millis() ) {
+            cached = new MerkleTree(store, from, to, depth);
+        }
+        return cached;
+    }
+    
+    public void invoke(Message msg) {
+        String[] w = msg.getMessage().split(" ");
+        try {
+            Op op = Op.valueOf(w[0]);
+            switch( op ) {
+                case put:
+                    if( w.length < 3 ) throw new IllegalArgumentException("too few arguments");
+                    Index  key   = factory.getIndex(w[1]);
+                    byte[] value = Base64.decode(w[2]);
+                    if( key == null || value == null ) throw new IllegalArgumentException("bad key or value");
+                    store.put(key, value);
+                    return;
+                case delete:
+                    if( w.length < 2 || factory.getIndex(w[1]) == null ) throw new IllegalArgumentException("bad key");
+                    store.delete(factory.getIndex(w[1]));
+                    return;
+                case diff:
+                    invoke_diff(msg, w);
+                    return;
+                case leaf:
+                    invoke_leaf(msg, w);
+                    return;
+                default:
+                    throw new IllegalArgumentException("unexpected "+op);
+            }
+        } catch (IllegalArgumentException e) {
+            log.log("invalid replica message from "+msg.getSender()+": "+e.getMessage(), Level.warning);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            log.log("invalid replica message from "+msg.getSender(), Level.warning);
+        }
+    }
+    
+    /**
+     * Answer a diff with the nodes that differ.
+     */
+    private void invoke_diff(Message msg, String[] w) {
+        MerkleTree    tree  = tree(factory.getIndex(w[2]), factory.getIndex(w[3]), Integer.parseInt(w[4]));
+        StringBuilder reply = new StringBuilder(w[1]);
+        for( int i = 5; i < w.length; i++ ) {
+            int  c = w[i].indexOf(':');
+            int  n = Integer.parseInt(w[i].substring(0, c));
+            long h = parseHash(w[i].substring(c+1));
+            if( n < 1 || n >= tree.size() ) continue;
+            if( tree.hash(n) != h ) reply.append(' ').append(n);
+        }
+        socket.send(msg.getSender(), new Message(0, msg.getFromTicket(), 0, Op.diff_res.toString(), reply.toString()));
+    }
+    
+    /**
+     * Collect the entries of a leaf, and on the last part delete the keys the
+     * owner does not have, and answer with the keys that are missing or
+     * differ.
+     */
+    private void invoke_leaf(Message msg, String[] w) {
+        Index   from  = factory.getIndex(w[2]);
+        Index   to    = factory.getIndex(w[3]);
+        int     depth = Integer.parseInt(w[4]);
+        int     n     = Integer.parseInt(w[5]);
+        boolean last  = "1".equals(w[6]);
+        String  id    = msg.getSender()+" "+msg.getFromTicket()+" "+n;
+        Partial part;
+        
+        synchronized( partials ) {
+            part = partials.get(id);
+            if( part == null ) {
+                // forget the parts of aborted repairs.
+                for( Iterator<Partial> i = partials.values().iterator(); i.hasNext(); ) {
+                    if( i.next().started + 10 * Conf.replication__timeout < Clock.get().millis() ) i.remove();
+                }
+                part = new Partial();
+                partials.put(id, part);
+            }
+            if( last ) partials.remove(id);
+        }
+        synchronized( part ) {
+            for( int i = 7; i < w.length; i++ ) {
+                int   c   = w[i].indexOf(':');
+                Index key = factory.getIndex(w[i].substring(0, c));
+                if( key != null ) part.entries.put(key, parseHash(w[i].substring(c+1)));
+            }
+        }
+        
+        StringBuilder reply = new StringBuilder(w[1]);
+        if( last ) {
+            MerkleTree tree = tree(from, to, depth);
+            if( n < tree.size() && tree.isLeaf(n) ) {
+                LinkedHashMap<Index, Long> local = tree.entries(n);
+                int deleted = 0;
+                for( Index key : local.keySet() ) {
+                    if( !part.entries.containsKey(key) && store.delete(key) ) deleted++;
+                }
+                metrics.counter("replication.repair.deleted").add(deleted);
+                for( Map.Entry<Index, Long> e : part.entries.entrySet() ) {
+                    if( e.getValue().equals(local.get(e.getKey())) ) continue;
+                    String k = e.getKey().toBase64String();
+                    // the rest is repaired next round.
+                    if( reply.length() + k.length() + 1 >= budget() ) break;
+                    reply.append(' ').append(k);
+                }
+            }
+        }
+        socket.send(msg.getSender(), new Message(0, msg.getFromTicket(), 0, Op.leaf_res.toString(), reply.toString()));
+    }
+    
+    private static long parseHash(String str) {
+        // Long.parseLong does not take the unsigned hex of Long.toHexString.
+        if( str.length() > 16 ) throw new NumberFormatException("hash too long: "+str);
+        long ret = 0;
+        for( int i = 0; i < str.length(); i++ ) {
+            int d = Character.digit(str.charAt(i), 16);
+            if( d < 0 ) throw new NumberFormatException("bad hash: "+str);
+            ret = ( ret << 4 ) | d;
+        }
+        return ret;
+    }
+}
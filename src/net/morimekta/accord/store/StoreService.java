@@ -0,0 +1,412 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.store;
+
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import net.iharder.xmlizable.Base64;
+import net.morimekta.accord.Conf;
+import net.morimekta.accord.Lookup;
+import net.morimekta.accord.tables.LookupTable;
+import net.morimekta.net.Location;
+import net.morimekta.net.Message;
+import net.morimekta.net.MessageService;
+import net.morimekta.net.MessageSocket;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Log;
+import net.morimekta.util.std.Metrics;
+import net.morimekta.util.std.Log.Level;
+
+/**
+ * Key-value storage on top of the overlay. Each key is stored on the node
+ * owning its index, that is the closest node at or before the key, found
+ * with Lookup.lookup. The owner keeps the values in a LocalStore.
+ * 
+ * Messages: <code>
+ * put key value | get key | delete key | count
+ * </code> with key and value in Base64, answered with a "store_res" message
+ * of <code>ok [value|count] | none | moved [host:port] | error message</code>,
+ * where error means the local store failed (e.g. is full), and moved means the
+ * node does not own the key (any more), and the requester looks up the owner
+ * again, or asks the given node. The given node is the old owner of a range
+ * that is handed off to this node, see RangeHandoff. Requests are
+ * retransmitted until store.timeout, so put and delete must be (and are)
+ * idempotent. A value must fit in one message, with room for a handoff
+ * chunk header, that is a bit less than 3/4 of the max packet size.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class StoreService implements MessageService {
+    protected enum Op {
+        put,
+        get,
+        delete,
+        count,
+        store_res,
+    }
+    
+    private static final String OK    = "ok";
+    private static final String NONE  = "none";
+    private static final String MOVED = "moved";
+    private static final String ERROR = "error";
+    // room for the longer header of a handoff chunk.
+    private static final int    RESERVE = 96;
+    
+    private Log               log;
+    private LookupTable       table;
+    private Lookup            lookup;
+    private MessageSocket     socket;
+    private LocalStore        store;
+    private ReplicationEngine replication = null;
+    private RangeHandoff      handoff = null;
+    private IndexFactory      factory;
+    private Metrics           metrics;
+    private Metrics.Histogram[] latency;
+    
+    /**
+     * Create a store service.
+     * 
+     * @param _log
+     *     Log to log on.
+     * @param _table
+     *     Lookup table of the node, to check ownership.
+     * @param _lookup
+     *     Lookup service to find key owners with.
+     * @param _socket
+     *     Socket to send and receive messages on.
+     * @param _store
+     *     Local store of owned keys.
+     */
+    public StoreService(Log _log, LookupTable _table, Lookup _lookup, MessageSocket _socket, LocalStore _store) {
+        log     = _log;
+        table   = _table;
+        lookup  = _lookup;
+        socket  = _socket;
+        store   = _store;
+        factory = _table.getMe().getIndex().getFactory();
+        setMetrics(new Metrics());
+    }
+    
+    /**
+     * Set the metrics registry to record request latency (microseconds) and
+     * message counters in.
+     * 
+     * @param _metrics
+     *     Metrics registry.
+     */
+    public void setMetrics(Metrics _metrics) {
+        Metrics.Histogram[] tmp = new Metrics.Histogram[3];
+        tmp[Op.put.ordinal()]    = _metrics.histogram("store.latency.put");
+        tmp[Op.get.ordinal()]    = _metrics.histogram("store.latency.get");
+        tmp[Op.delete.ordinal()] = _metrics.histogram("store.latency.delete");
+        latency = tmp;
+        metrics = _metrics;
+        metrics.gauge("store.keys", new Metrics.Gauge() {
+            public long value() { return store.size(); }
+        });
+    }
+    
+    /**
+     * Set the replication engine to push changes of owned keys to.
+     * 
+     * @param _replication
+     *     Replication engine, or null to not replicate.
+     */
+    public void setReplication(ReplicationEngine _replication) {
+        replication = _replication;
+    }
+    
+    /**
+     * Set the handoff service, to serve the ranges it sends, redirect the
+     * ranges it receives, and to note changes to keys in them.
+     * 
+     * @param _handoff
+     *     Range handoff service, or null.
+     */
+    public void setHandoff(RangeHandoff _handoff) {
+        handoff = _handoff;
+    }
+    
+    /**
+     * @return The local store of owned (and replicated) keys.
+     */
+    public LocalStore getLocalStore() {
+        return store;
+    }
+    
+    public String getServiceName() {
+        return "store";
+    }
+    
+    /**
+     * Check if the local node owns a key, that is the key is in [me, succ:0).
+     * A node with no succs owns everything.
+     * 
+     * @param key
+     *     Key to check.
+     * @return
+     *     True if owned here.
+     */
+    public boolean owns(Index key) {
+        synchronized( table.succs() ) {
+            if( table.succs().size() == 0 ) return true;
+            return key.between(table.getMe().getIndex(), table.succs().get(0).getIndex());
+        }
+    }
+    
+    /**
+     * Store a value on the owner of the key.
+     * 
+     * @param key
+     *     Key to store.
+     * @param value
+     *     Value to store.
+     * @throws SocketTimeoutException
+     *     If the owner did not answer within store.timeout.
+     * @throws IllegalArgumentException
+     *     If the value is too large for a message.
+     * @throws IllegalStateException
+     *     If the owner could not store it.
+     */
+    public void put(Index key, byte[] value)
+            throws SocketTimeoutException, IllegalArgumentException, IllegalStateException {
+        request(Op.put, key, Base64.encodeBytes(value, Base64.DONT_BREAK_LINES));
+    }
+    
+    /**
+     * Get a value from the owner of the key.
+     * 
+     * @param key
+     *     Key to get.
+     * @return
+     *     The value, or null if not stored.
+     * @throws SocketTimeoutException
+     *     If the owner did not answer within store.timeout.
+     */
+    public byte[] get(Index key) throws SocketTimeoutException {
+        String res = request(Op.get, key, null);
+        if( res.startsWith(OK+" ") ) return Base64.decode(res.substring(OK.length()+1));
+        return null;
+    }
+    
+    /**
+     * Delete a value from the owner of the key.
+     * 
+     * @param key
+     *     Key to delete.
+     * @return
+     *     True if the key was stored. A retransmitted delete may report false
+     *     for a key it deleted.
+     * @throws SocketTimeoutException
+     *     If the owner did not answer within store.timeout.
+     */
+    public boolean delete(Index key) throws SocketTimeoutException {
+        return OK.equals(request(Op.delete, key, null));
+    }
+    
+    /**
+     * Count the keys a node owns, as a measure of its load.
+     * 
+     * @param node
+     *     Node to ask.
+     * @return
+     *     Number of keys in [node, node's succ:0).
+     * @throws SocketTimeoutException
+     *     If the node did not answer within store.timeout.
+     */
+    public long count(Location node) throws SocketTimeoutException {
+        if( node.equals(table.getMe()) ) return owned();
+        long    timeout = Clock.get().millis() + Conf.store__timeout;
+        int     ticket  = socket.requestTicket();
+        Message out     = new Message(ticket, 0, 0, getServiceName(), Op.count.toString());
+        Message in;
+        try {
+            while( true ) {
+                socket.send(node, out);
+                try {
+                    in = socket.receive(ticket, node, Conf.msg_timeout);
+                    if( Op.store_res.toString().equals(in.getOperation()) && in.getMessage() != null &&
+                        in.getMessage().startsWith(OK+" ") ) {
+                        return Long.parseLong(in.getMessage().substring(OK.length()+1));
+                    }
+                } catch (SocketTimeoutException e) {
+                    if( timeout < Clock.get().millis() ) throw e;
+                } catch (NumberFormatException e) {
+                    throw new SocketTimeoutException("bad count from "+node);
+                }
+            }
+        } finally {
+            socket.freeTicket(ticket);
+        }
+    }
+    
+    /**
+     * @return Number of keys in [me, succ:0).
+     */
+    private long owned() {
+        Index to = table.getMe().getIndex();
+        synchronized( table.succs() ) {
+            if( table.succs().size() > 0 ) to = table.succs().get(0).getIndex();
+        }
+        return store.keys(table.getMe().getIndex(), to).size();
+    }
+    
+    /**
+     * Send a request to the owner of the key, and wait for the result. The
+     * owner is looked up again on each retransmit, and when the asked node
+     * does not own the key, unless it redirects to the old owner.
+     * 
+     * @param op
+     *     Operation.
+     * @param key
+     *     Key to operate on.
+     * @param value
+     *     Base64 value for put, or null.
+     * @return
+     *     Result line.
+     * @throws SocketTimeoutException
+     *     If no owner answered within store.timeout.
+     */
+    private String request(Op op, Index key, String value) throws SocketTimeoutException {
+        long     start   = Clock.get().nanos();
+        long     timeout = Clock.get().millis() + Conf.store__timeout;
+        String   body    = op+" "+key.toBase64String()+( value == null ? "" : " "+value );
+        int      ticket  = 0;
+        Location owner;
+        Location next    = null;
+        Message  in, out;
+        
+        if( body.length() + getServiceName().length() + Message.header_size + RESERVE > socket.getMaxPacketSize() )
+            throw new IllegalArgumentException("value too large for a message");
+            
+        try {
+            while( true ) {
+                if( next != null ) {
+                    owner = next;
+                    next  = null;
+                } else {
+                    try {
+                        owner = lookup.lookup(key);
+                    } catch (SocketTimeoutException e) {
+                        if( timeout < Clock.get().millis() ) throw e;
+                        continue;
+                    }
+                }
+                
+                if( owner.equals(table.getMe()) ) {
+                    Location old = ( handoff == null ? null : handoff.redirect(key) );
+                    if( old == null ) {
+                        metrics.counter("store.local").inc();
+                        return local(op, key, value);
+                    }
+                    metrics.counter("store.redirect").inc();
+                    owner = old;
+                }
+                
+                if( ticket == 0 ) ticket = socket.requestTicket();
+                out = new Message(ticket, 0, 0, getServiceName(), body);
+                socket.send(owner, out);
+                try {
+                    in = socket.receive(ticket, owner, Conf.msg_timeout);
+                    if( Op.store_res.toString().equals(in.getOperation()) && in.getMessage() != null ) {
+                        if( in.getMessage().startsWith(ERROR) ) {
+                            metrics.counter("store.error").inc();
+                            throw new IllegalStateException(owner+": "+in.getMessage());
+                        }
+                        if( !in.getMessage().startsWith(MOVED) ) return in.getMessage();
+                        metrics.counter("store.moved").inc();
+                        if( in.getMessage().startsWith(MOVED+" ") ) {
+                            try {
+                                next = Location.get(in.getMessage().substring(MOVED.length()+1));
+                            } catch (UnknownHostException e) {
+                                // look it up again.
+                            }
+                        }
+                    } else {
+                        metrics.counter("store.phony").inc();
+                    }
+                } catch (SocketTimeoutException e) {
+                    metrics.counter("store.retransmit").inc();
+                }
+                if( timeout < Clock.get().millis() ) {
+                    metrics.counter("store.timeout").inc();
+                    throw new SocketTimeoutException("store "+op+" timed out");
+                }
+            }
+        } finally {
+            if( ticket > 0 ) socket.freeTicket(ticket);
+            latency[op.ordinal()].record((Clock.get().nanos() - start) / 1000);
+        }
+    }
+    
+    /**
+     * Execute an operation on the local store.
+     * 
+     * @return
+     *     Result line.
+     */
+    private String local(Op op, Index key, String value) {
+        switch( op ) {
+            case put:
+                byte[] bytes = ( value == null ? null : Base64.decode(value) );
+                if( bytes == null ) throw new IllegalArgumentException("invalid value");
+                store.put(key, bytes);
+                if( replication != null ) replication.replicate(key, bytes);
+                if( handoff != null ) handoff.changed(key, bytes);
+                return OK;
+            case get:
+                byte[] ret = store.get(key);
+                return ret == null ? NONE : OK+" "+Base64.encodeBytes(ret, Base64.DONT_BREAK_LINES);
+            case delete:
+                if( !store.delete(key) ) return NONE;
+                if( replication != null ) replication.replicate(key, null);
+                if( handoff != null ) handoff.changed(key, null);
+                return OK;
+            default:
+                throw new IllegalArgumentException("invalid store operation "+op);
+        }
+    }
+    
+    public void invoke(Message msg) {
+        String[] parts = msg.getMessage().split(" ");
+        String   reply = null;
+        try {
+            if( Op.count.toString().equals(parts[0]) ) {
+                socket.send(msg.getSender(), new Message(0, msg.getFromTicket(), 0, Op.store_res.toString(), OK+" "+owned()));
+                return;
+            }
+            if( parts.length < 2 ) throw new IllegalArgumentException("too few arguments");
+            Op    op  = Op.valueOf(parts[0]);
+            Index key = factory.getIndex(parts[1]);
+            if( key == null ) throw new IllegalArgumentException("invalid key");
+            Location old = null;
+            if( owns(key) ) {
+                if( handoff != null ) old = handoff.redirect(key);
+            } else if( handoff == null || !handoff.serving(key, op != Op.get) ) {
+                metrics.counter("store.moved").inc();
+                reply = MOVED;
+            }
+            if( old != null ) {
+                // not here yet, the old owner serves it.
+                metrics.counter("store.redirect").inc();
+                reply = MOVED+" "+old;
+            } else if( reply == null ) {
+                reply = local(op, key, parts.length > 2 ? parts[2] : null);
+                metrics.counter("store.served."+op).inc();
+            }
+        } catch (IllegalArgumentException e) {
+            log.log("invalid store request from "+msg.getSender()+": "+e.getMessage(), Level.warning);
+            return;
+        } catch (IllegalStateException e) {
+            // e.g. the log is full.
+            log.log("store request from "+msg.getSender()+" failed: "+e.getMessage(), Level.warning);
+            metrics.counter("store.error").inc();
+            reply = ERROR+" "+e.getMessage();
+        }
+        socket.send(msg.getSender(), new Message(0, msg.getFromTicket(), 0, Op.store_res.toString(), reply));
+    }
+}
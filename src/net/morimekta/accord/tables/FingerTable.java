@@ -4,13 +4,14 @@
 package net.morimekta.accord.tables;
 
 import java.net.SocketTimeoutException;
-import java.util.ConcurrentModificationException;
-import java.util.ListIterator;
+import java.util.Iterator;
+import java.util.LinkedList;
 
 import net.morimekta.accord.Conf;
 import net.morimekta.net.Location;
 import net.morimekta.util.index.Index;
 import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.std.Clock;
 import net.morimekta.util.std.Log.Level;
 
 /**
@@ -21,6 +22,10 @@ import net.morimekta.util.std.Log.Level;
 public class FingerTable extends OverlayContainer {
     private static final long serialVersionUID = 4049353123799577139L;
     private transient IndexFactory factory = null;
+    // runs of the last version of the table, see intervals.
+    private transient LinkedList<Interval> runs = null;
+    private transient int   runs_version  = 0;
+    private transient int   runs_distinct = 0;
     
     /**
      * Returns the hash value finger "i" should be the owner of. In an ideal finger-table each finger(i) should be the
@@ -46,133 +51,324 @@ public class FingerTable extends OverlayContainer {
         factory = sortBase.getIndex().getFactory();
     }
     
+    public String getName() {
+        return "finger";
+    }
+    
+    /**
+     * A run of consecutive fingers with the same owner. In all but the
+     * largest rings most fingers are owned by a few nodes, so the fingers are
+     * checked and stabilized run by run, and each distinct node is probed
+     * once. The runs are computed from the table, which still holds one slot
+     * per finger, so they reduce the cost of stabilizing, not the size of the
+     * table. They are kept until the table changes.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public static class Interval {
+        /**
+         * Owner of the fingers, or null for a hole.
+         */
+        public final Location owner;
+        /**
+         * First finger of the run, the one with the highest finger index.
+         */
+        public final int      first;
+        /**
+         * Last finger of the run.
+         */
+        public final int      last;
+        
+        Interval(Location _owner, int _first, int _last) {
+            owner = _owner;
+            first = _first;
+            last  = _last;
+        }
+        
+        public String toString() {
+            return first+"-"+last+":"+owner;
+        }
+    }
+    
+    /**
+     * Get the runs of consecutive fingers with the same owner. The list is
+     * built from the slots when the table has changed since the last call,
+     * and is shared, so it must not be modified.
+     * 
+     * @return
+     *     List of intervals, in finger order.
+     */
+    public synchronized LinkedList<Interval> intervals() {
+        if( runs != null && runs_version == version() ) return runs;
+        LinkedList<Interval> ret   = new LinkedList<Interval>();
+        int                  count = 0;
+        Location             last  = null;
+        int first = 0;
+        for( int i = 1; i <= size(); i++ ) {
+            if( i == size() || !same(get(first), get(i)) ) {
+                Location owner = get(first);
+                ret.addLast(new Interval(owner, first, i - 1));
+                // the owners of the fingers are sorted, so a new owner is a
+                // new node, unless a hole splits the run.
+                if( owner != null && !owner.equals(last) ) count++;
+                if( owner != null ) last = owner;
+                first = i;
+            }
+        }
+        runs          = ret;
+        runs_distinct = count;
+        runs_version  = version();
+        return ret;
+    }
+    
+    /**
+     * @return Number of distinct nodes in the finger table.
+     */
+    public synchronized int distinct() {
+        intervals();
+        return runs_distinct;
+    }
+    
+    /**
+     * Sets a finger, and counts a new owner as a change of the table, as
+     * for the structural changes.
+     * 
+     * @see OverlayContainer#set(int, Location)
+     */
+    @Override
+    public synchronized Location set(int idx, Location loc) {
+        Location old = super.set(idx, loc);
+        if( !same(old, loc) ) modCount++;
+        return old;
+    }
+    
+    private static boolean same(Location a, Location b) {
+        return a == null ? b == null : a.equals(b);
+    }
+    
+    /**
+     * Check if a location is the owner of a finger index, as far as it is
+     * between me and the index.
+     */
+    private boolean covers(Location loc, Index f_idx) {
+        return loc.getIndex().between(sortBase.getIndex(), f_idx) || loc.getIndex().equals(f_idx);
+    }
+    
+    /**
+     * Set a finger to a new owner, and the following fingers of the run that
+     * the owner covers, as long as they still have the old owner.
+     * 
+     * @param run
+     *     Run of fingers to set in.
+     * @param loc
+     *     New owner of the first finger.
+     * @return
+     *     Number of fingers set.
+     */
+    private synchronized int setRun(Interval run, Location loc) {
+        int count = 0;
+        Location tmp = ( loc == null ? null : getLocation(loc) );
+        if( tmp != null ) loc = tmp;
+        for( int k = run.first; k <= run.last && k < size(); k++ ) {
+            if( !same(get(k), run.owner) ) break;
+            if( k > run.first && ( loc == null ? false : !covers(loc, fingerIndex(k)) ) ) break;
+            set(k, loc);
+            count++;
+        }
+        return count;
+    }
+    
     @Override
     public void stabilizeConcurrent( ) {
-        try {
-            if( size() > 0 ) {
-                int version = version();
-                ListIterator<Location> iter = this.listIterator();
-                Location loc;
-                iter.next();
-                while( iter.hasNext() ) {
-                    loc = iter.next();
-                    if( loc == null ) setStable(false);
-                    else if( loc.getTimestamp()+Conf.stabilizer__alive_timeout > System.currentTimeMillis()) {
-                        // check for activity...
-                        long ping = -1;
-                        socket.ping(loc, Conf.stabilizer__ping_timeout, Conf.stabilizer__alive_ping_count);
-                        if( ping < 0 ) {
-                            iter.set(null);
-                            setStable(false);
-                        } else {
-                            loc.setTimestamp(System.currentTimeMillis());
-                        }
+        if( size() > 0 ) {
+            int version = version();
+            for( Interval run : intervals() ) {
+                if( run.owner == null ) setStable(false);
+                else if( isSuspect(run.owner) ) {
+                    // check for activity, once for the run.
+                    if( !checkAlive(run.owner) ) {
+                        clearRun(run);
+                        setStable(false);
                     }
                 }
-                synchronized ( this ) {
-                    if( version == version() ) {
-                        setStable(true);
-                    }
+            }
+            synchronized ( this ) {
+                if( version == version() ) {
+                    setStable(true);
                 }
-            } else {
-                setStable(true);
-                // empty list is always stable...
             }
-        } catch( ConcurrentModificationException e ) {
-            setStable(false);
+        } else {
+            setStable(true);
+            // empty list is always stable...
         }
     }
-
+    
+    /**
+     * Clear all fingers of a run that still have its owner.
+     */
+    private synchronized void clearRun(Interval run) {
+        for( int k = run.first; k <= run.last && k < size(); k++ ) {
+            if( same(get(k), run.owner) ) set(k, null);
+        }
+    }
+    
     @Override
-    // TODO: Check this !!
     public void stabilizeBackoff() {
-        ListIterator<Location> iter = listIterator(size());
-        Location cur, insert;
+        LinkedList<Interval> runs = intervals();
+        Location             insert;
         
-        // iterate reverse order...
-        while( iter.hasPrevious() ) {
-            cur = iter.previous();
-            if( cur == null ) {
-                // no cur, just replace with a new node.
-                try {
-                    insert = lookup.lookup(fingerIndex(iter.nextIndex()+1));
-                    insert.setTimestamp(System.currentTimeMillis());
-                    iter.set(insert);
+        // iterate reverse order, one lookup for each run.
+        for( Iterator<Interval> iter = runs.descendingIterator(); iter.hasNext(); ) {
+            Interval run = iter.next();
+            try {
+                if( run.owner == null ) {
+                    // no owner, just replace with a new node.
+                    insert = lookup.lookup(fingerIndex(run.first));
+                    touch(insert);
+                    setRun(run, insert);
                     setStable(false);
-                } catch (SocketTimeoutException e) {
-                    // ignore ...
-                } catch (IllegalArgumentException e) {
-                    assert false : "FingerTable: IllegalArgument from lookup ...";
-                }
-            } else {
-                // cur exists.
-                if( (cur.getTimestamp()+Conf.stabilizer__alive_timeout) > System.currentTimeMillis() ) {
-                    long ping = socket.ping(
-                            cur,
-                            Conf.stabilizer__ping_timeout,
-                            Conf.stabilizer__alive_ping_count);
-                    if( ping < 0 ) {
-                        iter.set(null);
-                        iter.next();
-                        // try again ...
+                } else {
+                    if( isSuspect(run.owner) && !checkAlive(run.owner) ) {
+                        clearRun(run);
+                        setStable(false);
                         continue;
-                    } else {
-                        cur.setTimestamp(System.currentTimeMillis());
                     }
-                    // we have an active current :)
-                    try {
-                        insert = lookup.lookup(fingerIndex(iter.nextIndex()+1), null, cur);
-                        if( !cur.equals(insert) ) {
-                            cur = getLocation(insert);
-                            if( cur != null ) {
-                                insert = cur;
-                            }
-                            iter.set(insert);
-                            setStable(false);
-                        }
-                    } catch (SocketTimeoutException e) {
-                        // gah ... ignore.
-                    } catch (IllegalArgumentException e) {
-                        assert false : "FingerTable: IllegalArgument from lookup ...";
+                    // if the owner of the first finger is the same, so is the
+                    // owner of the rest of the run.
+                    insert = lookup.lookup(fingerIndex(run.first), null, run.owner);
+                    if( !run.owner.equals(insert) ) {
+                        setRun(run, insert);
+                        setStable(false);
                     }
                 }
+            } catch (SocketTimeoutException e) {
+                // gah ... ignore.
+            } catch (IllegalArgumentException e) {
+                assert false : "FingerTable: IllegalArgument from lookup ...";
             }
         }
     }
-
+    
+    /**
+     * A finger table rebuild in progress. The fingers are looked up by a
+     * number of threads at once, and a finger that is known to have the same
+     * owner as a finger before it is not looked up. The found fingers are
+     * added to the table as soon as all fingers before them are found.
+     */
+    private class Rebuild implements Runnable {
+        private final Location[] found;
+        private final Index[]    f_idx;
+        private int              next;
+        private int              failed;
+        private int              version;
+        private int              skipped = 0;
+        
+        Rebuild(int start, int len) {
+            found   = new Location[len];
+            f_idx   = new Index[len];
+            next    = start;
+            failed  = len;
+            version = version();
+            for( int i = start; i < len; i++ ) f_idx[i] = fingerIndex(i);
+        }
+        
+        /**
+         * Get the next finger to look up.
+         * 
+         * @return
+         *     Finger number, or -1 if there are no more.
+         */
+        synchronized int next() {
+            while( next < failed && found[next] != null ) next++;
+            return next < failed ? next++ : -1;
+        }
+        
+        /**
+         * A finger is found. It is also the owner of the following fingers
+         * that are not before it on the ring. Install all fingers that can be.
+         * 
+         * @param i
+         *     Finger number.
+         * @param loc
+         *     Owner of the finger index.
+         */
+        synchronized void found(int i, Location loc) {
+            if( found[i] == null ) found[i] = loc;
+            for( int k = i + 1; k < failed; k++ ) {
+                if( !covers(loc, f_idx[k]) ) break;
+                if( found[k] == null ) {
+                    found[k] = loc;
+                    skipped++;
+                }
+            }
+            synchronized ( FingerTable.this ) {
+                if( version != version() ) {
+                    // changed under us, stop.
+                    failed = 0;
+                    return;
+                }
+                while( size() < failed && found[size()] != null ) {
+                    Location ins = getLocation(found[size()]);
+                    if( ins == null ) ins = found[size()];
+                    log.log("backoff.rebuild: inserting finger["+size()+"] "+ins, Level.low);
+                    add(ins);
+                }
+                version = version();
+            }
+        }
+        
+        /**
+         * A finger could not be found, the fingers after it are not looked up.
+         * 
+         * @param i
+         *     Finger number.
+         */
+        synchronized void failed(int i) {
+            if( i < failed ) failed = i;
+        }
+        
+        public void run() {
+            int i;
+            while( ( i = next() ) >= 0 ) {
+                try {
+                    found(i, lookup.lookup( f_idx[i], null, null ));
+                } catch ( IllegalArgumentException e ) {
+                    assert false : "IllegalArgumentException in FingerTable.stabilizeRebuild(int)";
+                    failed(i);
+                } catch (SocketTimeoutException e) {
+                    log.log("backoff.rebuild: Unable to locate finger["+i+"]", Level.low);
+                    setStable(false);
+                    failed(i);
+                }
+            }
+        }
+    }
+    
     @Override
     public void stabilizeRebuild(int len) {
         if( log == null || lookup == null ) return;
-        Location loc, loc2;
-        Index       f_idx;
-        long        version;
-        // fingers.
-        while( size() < len ){
+        int start = size();
+        if( start >= len ) return;
+        
+        // fingers, looked up by the stabilizer and some helpers.
+        Rebuild  rebuild = new Rebuild(start, len);
+        Thread[] helpers = new Thread[Math.max(0, Math.min(Conf.stabilizer__rebuild_window, len - start) - 1)];
+        for( int i = 0; i < helpers.length; i++ ) {
+            helpers[i] = Clock.get().thread(rebuild);
+            helpers[i].setName(Thread.currentThread().getName());
+            helpers[i].setDaemon(true);
+            Clock.get().start(helpers[i]);
+        }
+        rebuild.run();
+        for( Thread h : helpers ) {
             try {
-                version = version();
-                f_idx   = fingerIndex(size());
-                loc     = lookup.lookup( f_idx, null, null);
-                if( ( loc2 = getLocation(loc) ) != null ){
-                    loc = loc2;
-                }
-                
-                synchronized ( this ) {
-                    if( version != version() ) break; // Concurrency-Control.
-                    else {
-                        log.log("backoff.rebuild: inserting finger["+size()+"] "+loc, Level.low);
-                        add(loc);
-                    }
-                }
-                
-            } catch ( IllegalArgumentException e ) {
-                assert false : "IllegalArgumentException in FingerTable.stabilizeRebuild(int)";
-                break;
-            } catch (SocketTimeoutException e) {
-                log.log("backoff.rebuild: Unable to locate next finger", Level.low);
-                setStable(false);
-                break;
+                Clock.get().join(h);
+            } catch (InterruptedException e) {
+                // ignore.
             }
         }
+        if( rebuild.skipped > 0 )
+            log.log("backoff.rebuild: "+rebuild.skipped+" fingers shared an owner", Level.low);
     }
 
 }
@@ -0,0 +1,84 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tables;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.morimekta.net.Location;
+
+/**
+ * When a node last heard from each of the hosts it knows. The Locations are
+ * interned and shared by all nodes in the process, so the activity of a
+ * host is kept here, one for each node, and not in the Location.
+ * 
+ * The hosts are kept in least recently heard from order, and the table is
+ * bounded: when full, the host not heard from for the longest time is
+ * forgotten, as if never heard from.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class Liveness {
+    private final LinkedHashMap<Location, Long> seen;
+    
+    /**
+     * Create an empty liveness table.
+     * 
+     * @param _max_hosts
+     *     Maximum number of hosts to remember.
+     */
+    public Liveness(final int _max_hosts) {
+        seen = new LinkedHashMap<Location, Long>() {
+            private static final long serialVersionUID = 1L;
+            
+            protected boolean removeEldestEntry(Map.Entry<Location, Long> eldest) {
+                return size() > _max_hosts;
+            }
+        };
+    }
+    
+    /**
+     * Mark a host as heard from.
+     * 
+     * @param host
+     *     Host heard from.
+     * @param now
+     *     Time in milliseconds.
+     */
+    public synchronized void touch(Location host, long now) {
+        // re-insert, so the order is kept.
+        seen.remove(host);
+        seen.put(host, Long.valueOf(now));
+    }
+    
+    /**
+     * Get the time a host was last heard from.
+     * 
+     * @param host
+     *     Host to check.
+     * @return
+     *     Time in milliseconds, or 0 if never heard from.
+     */
+    public synchronized long lastSeen(Location host) {
+        Long ret = seen.get(host);
+        return ret == null ? 0 : ret.longValue();
+    }
+    
+    /**
+     * Forget a host.
+     * 
+     * @param host
+     *     Host to forget.
+     */
+    public synchronized void remove(Location host) {
+        seen.remove(host);
+    }
+    
+    /**
+     * @return Number of hosts remembered.
+     */
+    public synchronized int size() {
+        return seen.size();
+    }
+}
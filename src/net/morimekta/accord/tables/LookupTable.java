@@ -2,11 +2,16 @@ package net.morimekta.accord.tables;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
 
+import net.morimekta.accord.Conf;
+import net.morimekta.accord.FailureDetector;
 import net.morimekta.accord.Lookup;
 import net.morimekta.net.Location;
 import net.morimekta.net.MessageSocket;
 import net.morimekta.util.index.Index;
+import net.morimekta.util.std.Journal;
 import net.morimekta.util.std.Log;
 
 /*
@@ -61,6 +66,7 @@ public class LookupTable {
 	private   OverlayContainer succs;   // succlist
 	private   OverlayContainer fingers; // fingertable
     private   Location         me;      // reference back to "me"
+    private   Liveness         liveness;
     
 	public    OverlayContainer preds(){  return preds;}
 	public    OverlayContainer succs(){  return succs;}
@@ -82,6 +88,30 @@ public class LookupTable {
         succs   = new SuccList   (_me);
         fingers = new FingerTable(_me);
         me      = _me;
+        
+        liveness = new Liveness(Conf.detector__max_hosts);
+        preds.setLiveness(liveness);
+        succs.setLiveness(liveness);
+        fingers.setLiveness(liveness);
+    }
+    
+    /**
+     * @return When the locations of the tables were last heard from.
+     */
+    public Liveness liveness() {
+        return liveness;
+    }
+    
+    /**
+     * Mark a location as heard from.
+     * 
+     * @param loc
+     *    Location heard from.
+     * @param now
+     *    Time in milliseconds.
+     */
+    public void touch(Location loc, long now) {
+        liveness.touch(loc, now);
     }
     
     /**
@@ -143,7 +173,7 @@ public class LookupTable {
         String   tmpS = tmpA[2].split("=")[1];
         String   tmpF = tmpA[3].split("=")[1];
         try {
-            me = new Location(tmpM);
+            me = Location.get(tmpM);
         } catch (UnknownHostException e) {
             return;
         }
@@ -171,6 +201,76 @@ public class LookupTable {
         }
     }
     
+    /**
+     * Remove a set of departed locations from all tables in one pass. The
+     * preds and succs are closed around the holes, and fingers pointing to a
+     * departed location are moved to the closest remaining known owner of
+     * the finger index. The finger table is cropped where the rest is owned
+     * by me.
+     * 
+     * @param gone
+     *     Departed locations.
+     * @return
+     *     Number of table entries removed or moved.
+     */
+    public int removeDeparted(Collection<Location> gone) {
+        int count = 0;
+        synchronized ( this ) {
+            for( int i = preds.size()-1; i >= 0; i-- ) {
+                if( gone.contains(preds.get(i)) ) { preds.remove(i); count++; }
+            }
+            for( int i = succs.size()-1; i >= 0; i-- ) {
+                if( gone.contains(succs.get(i)) ) { succs.remove(i); count++; }
+            }
+            if( fingers instanceof FingerTable ) {
+                ArrayList<Location> known = new ArrayList<Location>();
+                for( Location l : preds )   if( l != null && !known.contains(l) ) known.add(l);
+                for( Location l : succs )   if( l != null && !known.contains(l) ) known.add(l);
+                for( Location l : fingers ) if( l != null && !known.contains(l) && !gone.contains(l) ) known.add(l);
+                
+                Location loc;
+                for( int i = 0; i < fingers.size(); i++ ) {
+                    if( !gone.contains(fingers.get(i)) ) continue;
+                    count++;
+                    loc = closest(known, me, ((FingerTable) fingers).fingerIndex(i));
+                    if( loc == null ) {
+                        fingers.crop(i); // rest is owned by me.
+                        break;
+                    }
+                    fingers.set(i, loc);
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Find the known location that owns an index, that is the closest
+     * location at or before it.
+     * 
+     * @param known
+     *     Known locations, not including me.
+     * @param me
+     *     The local node.
+     * @param idx
+     *     Index to find owner of.
+     * @return
+     *     The owner, or null if owned by me.
+     */
+    static Location closest(Collection<Location> known, Location me, Index idx) {
+        Location ret  = null;
+        Index    dist = idx.sub(me.getIndex());
+        Index    tmp;
+        for( Location l : known ) {
+            tmp = idx.sub(l.getIndex());
+            if( tmp.compareTo(dist) < 0 ) {
+                dist = tmp;
+                ret  = l;
+            }
+        }
+        return ret;
+    }
+    
     /**
      * Fetch a Location from a String with table:index.
      * 
@@ -247,6 +347,30 @@ public class LookupTable {
         fingers.setLog(log);
     }
     
+    /**
+     * Set the journal for all the tables.
+     * 
+     * @param journal
+     *    Journal to set.
+     */
+    public void setJournal(Journal journal) {
+        preds.setJournal(journal);
+        succs.setJournal(journal);
+        fingers.setJournal(journal);
+    }
+    
+    /**
+     * Set the failure detector for all the tables.
+     * 
+     * @param detector
+     *    Failure detector, or null.
+     */
+    public void setDetector(FailureDetector detector) {
+        preds.setDetector(detector);
+        succs.setDetector(detector);
+        fingers.setDetector(detector);
+    }
+    
     /**
      * Set the Lookup for the tables.
      * 
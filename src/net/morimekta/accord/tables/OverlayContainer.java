@@ -11,13 +11,19 @@ import java.util.Collection;
 import java.util.LinkedList;
 import java.util.Vector;
 
+import net.morimekta.accord.Conf;
+import net.morimekta.accord.FailureDetector;
+import net.morimekta.accord.JournalEvent;
 import net.morimekta.accord.Lookup;
 import net.morimekta.net.Location;
 import net.morimekta.net.MessageSocket;
 import net.morimekta.util.index.Index;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Journal;
 import net.morimekta.util.std.Log;
 
 public abstract class OverlayContainer extends Vector<Location> {
+    private static final long serialVersionUID = 3067626621925802035L;
     
     /**
      * Sorting order of an OverlayContainer.
@@ -46,6 +52,9 @@ public abstract class OverlayContainer extends Vector<Location> {
     protected transient MessageSocket socket = null;
     protected transient Log           log    = null;
     protected transient Lookup        lookup = null;
+    protected transient Journal       journal = null;
+    protected transient FailureDetector detector = null;
+    protected transient Liveness        liveness = null;
     
     /**
      * Overrides the vector get method, and adds negative indices.
@@ -72,8 +81,137 @@ public abstract class OverlayContainer extends Vector<Location> {
      * @see Vector#remove(int)
      */
     public synchronized Location remove(int idx) {
-        if( idx < 0 ) return super.remove( idx+size() );
-        else          return super.remove( idx );
+        if( idx < 0 ) idx += size();
+        Location loc = super.remove( idx );
+        if( journal != null ) journal(JournalEvent.table_remove, idx, loc);
+        return loc;
+    }
+    
+    @Override
+    public synchronized boolean remove(Object o) {
+        int idx = indexOf(o);
+        if( idx < 0 ) return false;
+        remove(idx);
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean removeAll(Collection<?> coll) {
+        if( journal != null ) {
+            for( int i = 0; i < size(); i++ ) {
+                if( coll.contains(get(i)) ) journal(JournalEvent.table_remove, i, get(i));
+            }
+        }
+        return super.removeAll(coll);
+    }
+    
+    @Override
+    public synchronized void add(int idx, Location loc) {
+        super.add(idx, loc);
+        if( journal != null ) journal(JournalEvent.table_add, idx, loc);
+    }
+    
+    @Override
+    public synchronized boolean add(Location loc) {
+        super.add(loc);
+        if( journal != null ) journal(JournalEvent.table_add, size()-1, loc);
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean addAll(Collection<? extends Location> coll) {
+        return addAll(size(), coll);
+    }
+    
+    @Override
+    public synchronized boolean addAll(int idx, Collection<? extends Location> coll) {
+        if( journal != null ) {
+            int i = idx;
+            for( Location loc : coll ) journal(JournalEvent.table_add, i++, loc);
+        }
+        return super.addAll(idx, coll);
+    }
+    
+    @Override
+    public synchronized Location set(int idx, Location loc) {
+        Location old = super.set(idx, loc);
+        if( journal != null && old != loc ) {
+            if( old != null ) journal(JournalEvent.table_remove, idx, old);
+            if( loc != null ) journal(JournalEvent.table_add, idx, loc);
+        }
+        return old;
+    }
+    
+    @Override
+    public synchronized void setSize(int size) {
+        if( journal != null && size < size() ) {
+            journal.record(JournalEvent.table_clear.ordinal(), 0, getName(), size);
+        }
+        super.setSize(size);
+    }
+    
+    @Override
+    public synchronized void removeAllElements() {
+        if( journal != null ) journal.record(JournalEvent.table_clear.ordinal(), 0, getName(), 0);
+        super.removeAllElements();
+    }
+    
+    /**
+     * Write a table mutation to the journal.
+     * 
+     * @param ev
+     *     Event type.
+     * @param idx
+     *     Position in table.
+     * @param loc
+     *     Location added or removed.
+     */
+    private void journal(JournalEvent ev, int idx, Location loc) {
+        journal.record(ev.ordinal(), 0, getName(), idx, loc);
+    }
+    
+    /**
+     * Check if a location should be pinged before it is trusted. With a
+     * failure detector that monitors the location that is when the detector
+     * suspects it, and else when it has not been heard from within the
+     * alive timeout. A ping response starts the monitoring.
+     * 
+     * @param loc
+     *     Location to check.
+     * @return
+     *     True if the location should be checked.
+     */
+    protected boolean isSuspect(Location loc) {
+        long now = Clock.get().millis();
+        if( detector != null && detector.isMonitored(loc) ) return detector.isSuspected(loc, now);
+        if( liveness == null ) return true;
+        return liveness.lastSeen(loc) + Conf.stabilizer__alive_timeout < now;
+    }
+    
+    /**
+     * Ping a location, and count a response as a heartbeat.
+     * 
+     * @param loc
+     *     Location to ping.
+     * @return
+     *     True if the location responded.
+     */
+    protected boolean checkAlive(Location loc) {
+        long ping = socket.ping(loc, Conf.stabilizer__ping_timeout, Conf.stabilizer__alive_ping_count);
+        if( ping < 0 ) return false;
+        touch(loc);
+        if( detector != null ) detector.heartbeat(loc, Clock.get().millis());
+        return true;
+    }
+    
+    /**
+     * Mark a location as heard from now.
+     * 
+     * @param loc
+     *     Location heard from.
+     */
+    protected void touch(Location loc) {
+        if( liveness != null ) liveness.touch(loc, Clock.get().millis());
     }
     
     /**
@@ -139,6 +277,7 @@ public abstract class OverlayContainer extends Vector<Location> {
         log      = base.log;
         socket   = base.socket;
         lookup   = base.lookup;
+        liveness = base.liveness;
     }
     
     /**
@@ -248,7 +387,7 @@ public abstract class OverlayContainer extends Vector<Location> {
         }
         // if sorted
         Location loc;
-        for( int i = 0 ; i < size() ; i-- ) {
+        for( int i = 0 ; i < size() ; i++ ) {
             // for successor list only... (may add toe table with this later)
             if( sort == Sorting.ASCENDING ) loc = get(-1-i); // since we starts with [size-1]
             // for predecessor list and finger table.
@@ -272,13 +411,15 @@ public abstract class OverlayContainer extends Vector<Location> {
      */
     public synchronized boolean containsOwnerOf(Index idx) {
         if( size() < 1 ) return false;
+        Location loc = null;
         /*  */ if( sort == Sorting.ASCENDING ) {
-            return idx.between(get(0).getIndex(),        sortBase.getIndex());
+            for( int i = 0; i < size() && loc == null; i++ ) loc = get(i);
         } else if ( sort == Sorting.DESCENDING ){
-            return idx.between(get(size()-1).getIndex(), sortBase.getIndex());
-        } else {
-            return false;
+            // the finger table may have holes.
+            for( int i = size()-1; i >= 0 && loc == null; i-- ) loc = get(i);
         }
+        if( loc == null ) return false;
+        return idx.between(loc.getIndex(), sortBase.getIndex());
     }
     
     /**
@@ -311,7 +452,7 @@ public abstract class OverlayContainer extends Vector<Location> {
         LinkedList<Location> list = new LinkedList<Location>();
         try {
             for( int i = 0; i < locs.length; i++ ) {
-                list.addLast(new Location(locs[i]));
+                list.addLast(Location.get(locs[i]));
             }
         } catch (UnknownHostException e) {
             // TODO Auto-generated catch block
@@ -360,6 +501,14 @@ public abstract class OverlayContainer extends Vector<Location> {
         return this.modCount;
     }
     
+    /**
+     * Get the name of the table, as used in table queries.
+     * 
+     * @return
+     *     Table name, "pred", "succ" or "finger".
+     */
+    public abstract String getName();
+    
     /**
      * Stabilize imminent "problems" such as dead nodes.
      *
@@ -401,6 +550,40 @@ public abstract class OverlayContainer extends Vector<Location> {
         this.log = log;
     }
     
+    /**
+     * Set the journal to write table mutations to. Copies of the container
+     * does not inherit the journal.
+     * 
+     * @param journal
+     *    Journal to set, or null to stop journaling.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Set the failure detector that decides which locations to ping. Without
+     * a detector, locations not heard from within the alive timeout are
+     * pinged.
+     * 
+     * @param detector
+     *    Failure detector, or null.
+     */
+    public void setDetector(FailureDetector detector) {
+        this.detector = detector;
+    }
+    
+    /**
+     * Set the table of when the locations were last heard from, shared by
+     * the tables of a node.
+     * 
+     * @param liveness
+     *    Liveness table.
+     */
+    public void setLiveness(Liveness liveness) {
+        this.liveness = liveness;
+    }
+    
     /**
      * Get the Lookup.
      * 
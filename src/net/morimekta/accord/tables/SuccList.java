@@ -35,6 +35,10 @@ public class SuccList extends OverlayContainer {
         sort = Sorting.ASCENDING;
     }
     
+    public String getName() {
+        return "succ";
+    }
+    
     @Override
     public void stabilizeConcurrent( ) {
         try {
@@ -45,17 +49,10 @@ public class SuccList extends OverlayContainer {
                 iter.next();
                 while( iter.hasNext() ) {
                     loc = iter.next();
-                    if( loc != null && 
-                        loc.getTimestamp()+Conf.stabilizer__alive_timeout > System.currentTimeMillis()) {
+                    if( loc != null && isSuspect(loc) ) {
                         // check for activity...
-                        long ping = socket.ping(
-                                loc,
-                                Conf.stabilizer__ping_timeout,
-                                Conf.stabilizer__alive_ping_count);
-                        if( ping < 0 ) {
+                        if( !checkAlive(loc) ) {
                             iter.remove();
-                        } else {
-                            loc.setTimestamp(System.currentTimeMillis());
                         }
                     }
                 }
@@ -76,61 +73,66 @@ public class SuccList extends OverlayContainer {
     @Override
     public void stabilizeBackoff() {
         // TODO Find a way to "remember" i-am-alive fix-length...
-        if( size() > Conf.stabilizer__min_succ ) {
-            ListIterator<Location> cur = listIterator(Conf.stabilizer__min_succ);
-            Location insert, loc, next;
-            while( cur.hasNext() ) {
-                loc = cur.next();
-                // check for dead nodes...
-                if( loc.getTimestamp() < ( System.currentTimeMillis() - Conf.stabilizer__alive_timeout ) ) {
-                    if( socket.ping( loc, Conf.stabilizer__ping_timeout, Conf.stabilizer__alive_ping_count) < 0 ) {
-                        // ping timeout...
-                        cur.remove();
-                        loc = cur.previous();
-                        setStable(false);
-                    } else {
-                        loc.setTimestamp(System.currentTimeMillis());
+        try {
+            if( size() > Conf.stabilizer__min_succ ) {
+                ListIterator<Location> cur = listIterator(Conf.stabilizer__min_succ);
+                Location insert, loc, next;
+                while( cur.hasNext() ) {
+                    loc = cur.next();
+                    // check for dead nodes...
+                    if( isSuspect(loc) ) {
+                        if( !checkAlive(loc) ) {
+                            // ping timeout...
+                            cur.remove();
+                            loc = cur.previous();
+                            setStable(false);
+                        }
                     }
-                }
-                // lets check for insertions...
-                if( cur.hasNext() ) {
-                    try {
-                        insert = lookup.lookup_table(loc, "succ:0", null);
-                        loc.setTimestamp(System.currentTimeMillis());
+                    // lets check for insertions...
+                    if( cur.hasNext() ) {
+                        try {
+                            insert = lookup.lookup_table(loc, "succ:0", null);
+                            touch(loc);
                         
-                        next   = getLocation(insert);
-                        if( next != null ) insert = next;
-                        next   = get(cur.nextIndex());
+                            next   = getLocation(insert);
+                            if( next != null ) insert = next;
+                            next   = get(cur.nextIndex());
                         
-                        if( insert.equals(next) ) {
-                            // no change...
-                        } else if (insert.getIndex().between(loc.getIndex(),next.getIndex())) {
-                            // insert...
-                            cur.add(insert);
-                            cur.previous(); // check the new ...
-                            setStable(false);
-                        } else {
-                            // remove some nodes !!!
-                            while( cur.hasNext() ) {
-                                loc = cur.next();
-                                if( !loc.equals(insert) &&
-                                    loc.getIndex().between(sortBase.getIndex(),insert.getIndex()) ) {
-                                    cur.remove();
-                                }
-                            }
-                            if( !loc.equals(insert) ) {
+                            if( insert.equals(next) ) {
+                                // no change...
+                            } else if (insert.getIndex().between(loc.getIndex(),next.getIndex())) {
+                                // insert...
                                 cur.add(insert);
+                                cur.previous(); // check the new ...
+                                setStable(false);
+                            } else {
+                                // remove some nodes !!!
+                                while( cur.hasNext() ) {
+                                    loc = cur.next();
+                                    if( !loc.equals(insert) &&
+                                        loc.getIndex().between(sortBase.getIndex(),insert.getIndex()) ) {
+                                        cur.remove();
+                                    }
+                                }
+                                if( !loc.equals(insert) ) {
+                                    cur.add(insert);
+                                }
+                                setStable(false);
                             }
-                            setStable(false);
+                        } catch (SocketTimeoutException e) {
+                            // ignore.
+                        } catch (IllegalArgumentException e) {
+                            assert false : "PredList - Illegal argument to lookup_table.";
                         }
-                    } catch (SocketTimeoutException e) {
-                        // ignore.
-                    } catch (IllegalArgumentException e) {
-                        assert false : "PredList - Illegal argument to lookup_table.";
-                    }
-                } // if point in adding nodes (has more)
-            } // while locations ...
-        } // no locations, ignore.
+                    } // if point in adding nodes (has more)
+                } // while locations ...
+            } // no locations, ignore.
+        } catch( ConcurrentModificationException e ) {
+            // changed by the i-am-alives during a lookup.
+            setStable(false);
+        } catch( IndexOutOfBoundsException e ) {
+            setStable(false);
+        }
     } 
 
     @Override
@@ -148,6 +150,11 @@ public class SuccList extends OverlayContainer {
                     long   version = version();
                     try {
                         loc = lookup.lookup_table( loc, "succ:0", "" );
+                        if( loc == null ) {
+                            // last succ has an empty table itself, try later.
+                            setStable(false);
+                            break;
+                        }
                         
                         // avoids duplicate locations.
                         if( ( loc2 = getLocation(loc) ) != null ){
@@ -0,0 +1,414 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tables;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import net.iharder.xmlizable.Base64;
+import net.morimekta.net.Location;
+
+/**
+ * Immutable copy of the preds, succs and fingers of a node, with a compact
+ * binary form for sending it to a joining node. Each distinct Location is
+ * written once as address and port, and the tables refer to it by number,
+ * so the snapshot of a full table fits in one message.
+ * 
+ * Format: <code>
+ * version:byte count:byte (alen:byte addr:byte[alen] port:short)[count]
+ * owner:byte (len:byte ref:byte[len])[3]
+ * </code> where the three lists are preds, succs and fingers, and a ref of
+ * 0xff is an empty finger.
+ * 
+ * On file the snapshot is framed as <code>
+ * magic:int length:int crc32:long snapshot:byte[length]
+ * </code> and written to a temporary file that is renamed in place, so a
+ * crash while saving leaves the last complete snapshot.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class TableSnapshot {
+    private static final int VERSION = 1;
+    private static final int NONE    = 0xff;
+    private static final int MAGIC   = 0x41544253; // "ATBS"
+    private static final int MAX_LEN = 1 << 16;
+    
+    private final Location   owner;
+    private final Location[] preds;
+    private final Location[] succs;
+    private final Location[] fingers;
+    
+    /**
+     * Take a snapshot of a lookup table.
+     * 
+     * @param table
+     *     Table to copy.
+     */
+    public TableSnapshot(LookupTable table) {
+        synchronized( table ) {
+            owner   = table.getMe();
+            preds   = copy(table.preds(), false);
+            succs   = copy(table.succs(), false);
+            fingers = copy(table.fingers(), true);
+        }
+    }
+    
+    private TableSnapshot(Location _owner, Location[] _preds, Location[] _succs, Location[] _fingers) {
+        owner   = _owner;
+        preds   = _preds;
+        succs   = _succs;
+        fingers = _fingers;
+    }
+    
+    /**
+     * @return The node the snapshot was taken on.
+     */
+    public Location getOwner() {
+        return owner;
+    }
+    
+    /**
+     * @return Copy of the predecessor list.
+     */
+    public Location[] getPreds() {
+        return preds.clone();
+    }
+    
+    /**
+     * @return Copy of the successor list.
+     */
+    public Location[] getSuccs() {
+        return succs.clone();
+    }
+    
+    /**
+     * @return Copy of the finger table, with null for empty fingers.
+     */
+    public Location[] getFingers() {
+        return fingers.clone();
+    }
+    
+    /**
+     * Seed the tables of a joining node from the snapshot of its pred[0].
+     * The preds are extended with the preds of pred[0], and an empty finger
+     * table is filled with the closest known owner of each finger index, as
+     * many fingers as pred[0] has. The stabilizer corrects what the snapshot
+     * got wrong.
+     * 
+     * @param table
+     *     Table of the joining node, with pred[0] being the snapshot owner.
+     * @return
+     *     Number of locations added.
+     */
+    public int seed(LookupTable table) {
+        Location me    = table.getMe();
+        int      count = 0;
+        synchronized( table ) {
+            OverlayContainer p = table.preds();
+            if( p.size() == 0 || !owner.equals(p.get(0)) ) return 0;
+            
+            int max = Math.max(preds.length, table.succs().size());
+            for( int i = 0; i < preds.length && p.size() < max; i++ ) {
+                if( me.equals(preds[i]) || p.contains(preds[i]) ) break; // wrapped.
+                p.add(preds[i]);
+                count++;
+            }
+            
+            if( table.fingers().size() == 0 && table.fingers() instanceof FingerTable ) {
+                ArrayList<Location> known = new ArrayList<Location>();
+                known.add(owner);
+                add(known, preds);
+                add(known, succs);
+                add(known, fingers);
+                add(known, table.succs().toArray(new Location[0]));
+                known.remove(me);
+                count += fill((FingerTable) table.fingers(), known);
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Restore the tables of a restarted node from its own snapshot, after it
+     * has connected to the ring again. Only the locations known to be alive
+     * are used. Preds and succs are added beyond the current pred[0] and
+     * succ[0], up to their old lengths, and an empty finger table is filled
+     * with the closest live owner of each finger index.
+     * 
+     * @param table
+     *     Table of the restarted node, owned by the snapshot owner.
+     * @param alive
+     *     Locations from the snapshot that answered a ping.
+     * @return
+     *     Number of locations added.
+     */
+    public int restore(LookupTable table, Collection<Location> alive) {
+        Location me    = table.getMe();
+        int      count = 0;
+        if( !owner.equals(me) ) return 0;
+        synchronized( table ) {
+            OverlayContainer p = table.preds();
+            OverlayContainer s = table.succs();
+            if( p.size() == 0 || s.size() == 0 ) return 0;
+            
+            for( Location l : preds ) {
+                if( p.size() >= preds.length ) break;
+                // only beyond pred[0], the ring has the last word on that.
+                if( !alive.contains(l) || p.contains(l) ||
+                    !p.get(0).getIndex().between(l.getIndex(), me.getIndex()) ) continue;
+                if( p.addSorted(l) ) count++;
+            }
+            for( Location l : succs ) {
+                if( s.size() >= succs.length ) break;
+                if( !alive.contains(l) || s.contains(l) ||
+                    !s.get(0).getIndex().between(me.getIndex(), l.getIndex()) ) continue;
+                if( s.addSorted(l) ) count++;
+            }
+            
+            if( table.fingers().size() == 0 && table.fingers() instanceof FingerTable ) {
+                ArrayList<Location> known = new ArrayList<Location>();
+                for( Location l : alive ) if( l != null && !known.contains(l) ) known.add(l);
+                add(known, p.toArray(new Location[0]));
+                add(known, s.toArray(new Location[0]));
+                known.remove(me);
+                count += fill((FingerTable) table.fingers(), known);
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Save the snapshot to file. The snapshot is written and synced to
+     * 'file.tmp', and then renamed to 'file'.
+     * 
+     * @param file
+     *     File name to save to.
+     * @throws IOException
+     *     If unable to write or rename the file.
+     */
+    public void save(String file) throws IOException {
+        byte[] body = toBytes();
+        CRC32  crc  = new CRC32();
+        crc.update(body);
+        
+        File dst = new File(file);
+        File tmp = new File(file+".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(body.length);
+            out.writeLong(crc.getValue());
+            out.write(body);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if( !tmp.renameTo(dst) ) {
+            // some platforms will not rename onto an existing file.
+            dst.delete();
+            if( !tmp.renameTo(dst) ) throw new IOException("unable to rename "+tmp+" to "+dst);
+        }
+    }
+    
+    /**
+     * Load a snapshot from file.
+     * 
+     * @param file
+     *     File name to load from.
+     * @return
+     *     The snapshot.
+     * @throws IOException
+     *     If the file cannot be read, is not a snapshot file, or fails the
+     *     checksum.
+     */
+    public static TableSnapshot load(String file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            DataInputStream in = new DataInputStream(fis);
+            if( in.readInt() != MAGIC ) throw new IOException("not a snapshot file: "+file);
+            int len = in.readInt();
+            if( len <= 0 || len > MAX_LEN ) throw new IOException("bad snapshot length "+len);
+            long   sum  = in.readLong();
+            byte[] body = new byte[len];
+            in.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if( crc.getValue() != sum ) throw new IOException("snapshot checksum mismatch: "+file);
+            return fromBytes(body);
+        } finally {
+            fis.close();
+        }
+    }
+    
+    /**
+     * Encode the snapshot in binary form.
+     * 
+     * @return
+     *     Encoded snapshot.
+     */
+    public byte[] toBytes() {
+        HashMap<Location, Integer> refs = new HashMap<Location, Integer>();
+        ArrayList<Location>        locs = new ArrayList<Location>();
+        ref(refs, locs, owner);
+        for( Location l : preds )   ref(refs, locs, l);
+        for( Location l : succs )   ref(refs, locs, l);
+        for( Location l : fingers ) ref(refs, locs, l);
+        if( locs.size() >= NONE ) throw new IllegalStateException("too many locations in snapshot");
+        
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream      out = new DataOutputStream(buf);
+            out.writeByte(VERSION);
+            out.writeByte(locs.size());
+            for( Location l : locs ) {
+                byte[] addr = l.getAddress().getAddress();
+                out.writeByte(addr.length);
+                out.write(addr);
+                out.writeShort(l.getPort());
+            }
+            out.writeByte(refs.get(owner));
+            write(out, refs, preds);
+            write(out, refs, succs);
+            write(out, refs, fingers);
+            out.flush();
+            return buf.toByteArray();
+        } catch (IOException e) {
+            // not possible on a byte array.
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+    
+    /**
+     * Decode a snapshot from binary form.
+     * 
+     * @param bytes
+     *     Encoded snapshot.
+     * @return
+     *     The snapshot.
+     * @throws IOException
+     *     If the snapshot is truncated, of wrong version or has bad
+     *     references.
+     */
+    public static TableSnapshot fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if( in.readUnsignedByte() != VERSION ) throw new IOException("unknown snapshot version");
+        Location[] locs = new Location[in.readUnsignedByte()];
+        for( int i = 0; i < locs.length; i++ ) {
+            byte[] addr = new byte[in.readUnsignedByte()];
+            in.readFully(addr);
+            locs[i] = Location.get(InetAddress.getByAddress(addr), in.readUnsignedShort());
+        }
+        Location owner = read(in, locs);
+        if( owner == null ) throw new IOException("no snapshot owner");
+        return new TableSnapshot(owner, read(in, locs, false), read(in, locs, false), read(in, locs, true));
+    }
+    
+    /**
+     * Encode the snapshot as a Base64 string without line breaks, for use as
+     * a message argument.
+     * 
+     * @return
+     *     Encoded snapshot.
+     */
+    public String encode() {
+        return Base64.encodeBytes(toBytes(), Base64.DONT_BREAK_LINES);
+    }
+    
+    /**
+     * Decode a snapshot from a Base64 string.
+     * 
+     * @param str
+     *     Encoded snapshot.
+     * @return
+     *     The snapshot.
+     * @throws IOException
+     *     If not a valid snapshot.
+     */
+    public static TableSnapshot decode(String str) throws IOException {
+        byte[] bytes = Base64.decode(str);
+        if( bytes == null ) throw new IOException("invalid base64 snapshot");
+        return fromBytes(bytes);
+    }
+    
+    public String toString() {
+        return "TableSnapshot[owner="+owner+";preds="+preds.length+
+               ";succs="+succs.length+";fingers="+fingers.length+"]";
+    }
+    
+    private static Location[] copy(OverlayContainer c, boolean holes) {
+        ArrayList<Location> ret = new ArrayList<Location>();
+        synchronized( c ) {
+            for( Location l : c ) {
+                if( l != null || holes ) ret.add(l);
+            }
+        }
+        return ret.toArray(new Location[ret.size()]);
+    }
+    
+    /**
+     * Fill an empty finger table with the closest known owner of each finger
+     * index, as many fingers as the snapshot has.
+     */
+    private int fill(FingerTable f, ArrayList<Location> known) {
+        Location me    = f.sortBase;
+        Location loc;
+        int      count = 0;
+        for( int i = 0; i < fingers.length; i++ ) {
+            loc = LookupTable.closest(known, me, f.fingerIndex(i));
+            if( loc == null ) break; // rest is owned by me.
+            f.add(loc);
+            count++;
+        }
+        return count;
+    }
+    
+    private static void add(ArrayList<Location> known, Location[] locs) {
+        for( Location l : locs ) {
+            if( l != null && !known.contains(l) ) known.add(l);
+        }
+    }
+    
+    private static void ref(HashMap<Location, Integer> refs, ArrayList<Location> locs, Location l) {
+        if( l != null && !refs.containsKey(l) ) {
+            refs.put(l, locs.size());
+            locs.add(l);
+        }
+    }
+    
+    private static void write(DataOutputStream out, HashMap<Location, Integer> refs, Location[] list)
+            throws IOException {
+        if( list.length > NONE ) throw new IllegalStateException("too long table in snapshot");
+        out.writeByte(list.length);
+        for( Location l : list ) out.writeByte(l == null ? NONE : refs.get(l));
+    }
+    
+    private static Location read(DataInputStream in, Location[] locs) throws IOException {
+        int ref = in.readUnsignedByte();
+        if( ref == NONE ) return null;
+        if( ref >= locs.length ) throw new IOException("bad snapshot reference "+ref);
+        return locs[ref];
+    }
+    
+    private static Location[] read(DataInputStream in, Location[] locs, boolean holes) throws IOException {
+        Location[] ret = new Location[in.readUnsignedByte()];
+        for( int i = 0; i < ret.length; i++ ) {
+            ret[i] = read(in, locs);
+            if( ret[i] == null && !holes ) throw new IOException("empty location in snapshot list");
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tools;
+
+import java.io.FileNotFoundException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+import net.morimekta.accord.AccordNode;
+import net.morimekta.accord.Conf;
+import net.morimekta.net.Location;
+import net.morimekta.net.SimNetwork;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Config;
+import net.morimekta.util.std.Metrics;
+import net.morimekta.util.std.OptionParser;
+import net.morimekta.util.std.SimClock;
+
+/**
+ * Measures routing consistency and convergence of a ring under churn. The
+ * ring runs in one process, on the loopback or on a simulated network. For
+ * a period, nodes join, leave and crash as Poisson processes with the given
+ * rates, one event at a time, while lookups of random indices are sampled
+ * from random nodes and checked against the owner computed from the members
+ * of the ring. A lookup is consistent if it matches the owner at the start
+ * or at the end of the lookup. After the churn, the time until all nodes are
+ * stable is measured. It prints:
+ * <pre>
+ *   nodes secs joins leaves crashes failed lookups wrong timeouts wrong_pct stable_pct converge_ms stab_msgs hb_msgs
+ * </pre>
+ * where stable_pct is the part of the churn period where all nodes were
+ * stable, and the messages are the ones sent by the Stabilizer and the
+ * IAmAlive threads per node and second.
+ * 
+ * Usage: <code>ChurnBenchmark --config file [--nodes n] [--time s]
+ * [--join rate] [--leave rate] [--crash rate] [--lookups rate] [--sim]
+ * [--virtual] [--mean ms] [--loss p] [--seed n]</code>, where the rates are
+ * per second, and the config file has the timing settings of the nodes.
+ * --virtual runs on a simulated network and a SimClock, and a run is then
+ * repeated exactly with the same seed.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class ChurnBenchmark {
+    private static final String       optline =
+            "c,config,string\n" +
+            "n,nodes,int\n" +
+            "t,time,int\n" +
+            "J,join,double\n" +
+            "L,leave,double\n" +
+            "X,crash,double\n" +
+            "q,lookups,double\n" +
+            "S,sim\n" +
+            "v,virtual\n" +
+            "m,mean,long\n" +
+            "l,loss,double\n" +
+            "s,seed,long";
+    private static final OptionParser opts    = new OptionParser(optline);
+    
+    private final SimNetwork         network;
+    private final Random             random;
+    private final Vector<AccordNode> members = new Vector<AccordNode>();
+    private final Vector<AccordNode> retired = new Vector<AccordNode>();
+    private final Metrics            metrics = new Metrics();
+    private final IndexFactory       factory;
+    
+    /**
+     * Ground truth, the sorted indices of the members and their locations.
+     */
+    private Index[]    sorted = new Index[0];
+    private Location[] hosts  = new Location[0];
+    
+    private volatile boolean churning    = false;
+    private long             node_millis = 0;
+    private long             stable_ms   = 0;
+    
+    /**
+     * Create a churn benchmark, and start the ring.
+     * 
+     * @param _nodes
+     *     Number of nodes in the ring at the start.
+     * @param _network
+     *     Simulated network, or null for the loopback.
+     * @param seed
+     *     Random seed.
+     */
+    public ChurnBenchmark(int _nodes, SimNetwork _network, long seed) {
+        network = _network;
+        random  = new Random(seed);
+        if( network != null ) network.start();
+        for( int i = 0; i < _nodes; i++ ) join();
+        factory = members.get(0).getLocation().getIndex().getFactory();
+    }
+    
+    /**
+     * Start a node and join it through a random member, and make it a member
+     * if it joined.
+     * 
+     * @return
+     *     True if the node joined.
+     */
+    private boolean join() {
+        AccordNode n = ( network == null ? new AccordNode(0) :
+                         new AccordNode(network.open(Conf.port > 0 ? Conf.port : 7000), null) );
+        if( !members.isEmpty() ) {
+            Location via   = members.get(random.nextInt(members.size())).getLocation();
+            int      tries = 0;
+            while( !n.connect(via) ) {
+                if( ++tries == 3 ) {
+                    n.close();
+                    retired.add(n);
+                    return false;
+                }
+            }
+        }
+        members.add(n);
+        update();
+        return true;
+    }
+    
+    /**
+     * Let a random member leave the ring. A member that fails to leave stays
+     * in the ring.
+     * 
+     * @return
+     *     True if it left.
+     */
+    private boolean leave() {
+        if( members.size() < 2 ) return false;
+        AccordNode n = members.get(random.nextInt(members.size()));
+        if( !n.disconnect() ) return false;
+        members.remove(n);
+        update();
+        n.close();
+        retired.add(n);
+        return true;
+    }
+    
+    /**
+     * Crash a random member, it is closed without leaving the ring.
+     * 
+     * @return
+     *     True if a member crashed.
+     */
+    private boolean crash() {
+        if( members.size() < 2 ) return false;
+        AccordNode n = members.remove(random.nextInt(members.size()));
+        update();
+        n.close();
+        retired.add(n);
+        return true;
+    }
+    
+    /**
+     * Update the ground truth from the members.
+     */
+    private synchronized void update() {
+        AccordNode[] tmp = members.toArray(new AccordNode[0]);
+        Index[]      idx = new Index[tmp.length];
+        Location[]   loc = new Location[tmp.length];
+        for( int i = 0; i < tmp.length; i++ ) idx[i] = tmp[i].getLocation().getIndex();
+        Arrays.sort(idx);
+        for( AccordNode n : tmp ) loc[Arrays.binarySearch(idx, n.getLocation().getIndex())] = n.getLocation();
+        sorted = idx;
+        hosts  = loc;
+    }
+    
+    /**
+     * Get the owner of an index among the members, the member with the
+     * highest index at or below it, or else the highest index.
+     */
+    private synchronized Location owner(Index idx) {
+        int pos = Arrays.binarySearch(sorted, idx);
+        if( pos < 0 ) pos = -pos - 2;
+        return hosts[pos < 0 ? sorted.length - 1 : pos];
+    }
+    
+    /**
+     * @return True if all members are stable.
+     */
+    private boolean stable() {
+        synchronized( members ) {
+            for( AccordNode n : members ) {
+                if( !n.is_stable() ) return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Wait until all members are stable.
+     * 
+     * @param timeout
+     *     Maximum time to wait in milliseconds.
+     * @return
+     *     Time until stable in milliseconds, or -1 if not stable in time.
+     */
+    public long settle(long timeout) throws InterruptedException {
+        long start = Clock.get().millis();
+        while( Clock.get().millis() - start < timeout ) {
+            if( stable() ) return Clock.get().millis() - start;
+            Clock.get().sleep(100);
+        }
+        return -1;
+    }
+    
+    /**
+     * Sample lookups from random members until the churn stops.
+     */
+    private class Sampler implements Runnable {
+        private final double rate;
+        private final Random rand;
+        
+        Sampler(double _rate, long seed) {
+            rate = _rate;
+            rand = new Random(seed);
+        }
+        
+        public void run() {
+            byte[] key = new byte[20];
+            while( churning ) {
+                AccordNode n;
+                synchronized( members ) {
+                    n = members.get(rand.nextInt(members.size()));
+                }
+                rand.nextBytes(key);
+                Index    idx    = factory.getIndexOf(key);
+                Location before = owner(idx);
+                try {
+                    Location got = n.lookup(idx);
+                    metrics.counter("lookups").inc();
+                    if( !before.equals(got) && !owner(idx).equals(got) ) metrics.counter("wrong").inc();
+                } catch (SocketTimeoutException e) {
+                    metrics.counter("timeouts").inc();
+                } catch (IllegalArgumentException e) {
+                    metrics.counter("timeouts").inc();
+                }
+                try {
+                    Clock.get().sleep((long) ( -Math.log(1.0 - rand.nextDouble()) * 1000.0 / rate ));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Keep the node time and the stable time of the churn period, every
+     * 100 ms.
+     */
+    private class Monitor implements Runnable {
+        public void run() {
+            long last = Clock.get().millis();
+            while( churning ) {
+                try {
+                    Clock.get().sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = Clock.get().millis();
+                synchronized( ChurnBenchmark.this ) {
+                    node_millis += members.size() * ( now - last );
+                    if( stable() ) stable_ms += now - last;
+                }
+                last = now;
+            }
+        }
+    }
+    
+    /**
+     * Run the churn for a period, with Poisson processes of join, leave and
+     * crash events. The events are done one at a time, so a slow join delays
+     * the next event.
+     * 
+     * @param millis
+     *     Length of the period in milliseconds.
+     * @param join
+     *     Join rate per second.
+     * @param leave
+     *     Leave rate per second.
+     * @param crash
+     *     Crash rate per second.
+     * @param lookups
+     *     Lookup sample rate per second.
+     */
+    public void churn(long millis, double join, double leave, double crash, double lookups)
+            throws InterruptedException {
+        double  total   = join + leave + crash;
+        Thread  sampler = Clock.get().thread(new Sampler(lookups, random.nextLong()));
+        Thread  monitor = Clock.get().thread(new Monitor());
+        sampler.setName("ChurnBenchmark.Sampler");
+        sampler.setDaemon(true);
+        monitor.setName("ChurnBenchmark.Monitor");
+        monitor.setDaemon(true);
+        churning = true;
+        Clock.get().start(sampler);
+        Clock.get().start(monitor);
+        
+        long end = Clock.get().millis() + millis;
+        while( total > 0 ) {
+            long wait = (long) ( -Math.log(1.0 - random.nextDouble()) * 1000.0 / total );
+            if( Clock.get().millis() + wait >= end ) break;
+            Clock.get().sleep(wait);
+            double  r  = random.nextDouble() * total;
+            String  ev = ( r < join ? "joins" : ( r < join + leave ? "leaves" : "crashes" ) );
+            boolean ok;
+            /**/ if( "joins".equals(ev) )  ok = join();
+            else if( "leaves".equals(ev) ) ok = leave();
+            else                      ok = crash();
+            metrics.counter(ok ? ev : "failed").inc();
+        }
+        long rest = end - Clock.get().millis();
+        if( rest > 0 ) Clock.get().sleep(rest);
+        churning = false;
+        Clock.get().join(sampler);
+        Clock.get().join(monitor);
+    }
+    
+    /**
+     * Sum a counter over all nodes that have been started.
+     */
+    private long sum(String counter) {
+        long ret = 0;
+        synchronized( members ) {
+            for( AccordNode n : members ) ret += n.getMetrics().counter(counter).get();
+        }
+        synchronized( retired ) {
+            for( AccordNode n : retired ) ret += n.getMetrics().counter(counter).get();
+        }
+        return ret;
+    }
+    
+    /**
+     * Print one line of results.
+     * 
+     * @param millis
+     *     Length of the churn period.
+     * @param converge_ms
+     *     Time until stable after the churn.
+     */
+    public void report(long millis, long converge_ms) {
+        long   lookups = metrics.counter("lookups").get();
+        long   wrong   = metrics.counter("wrong").get();
+        double node_s  = node_millis / 1000.0;
+        System.out.println(String.format("%5d %5d %5d %6d %7d %6d %7d %5d %8d %9.2f %10.1f %11d %9.2f %7.2f",
+                members.size(), millis / 1000,
+                metrics.counter("joins").get(), metrics.counter("leaves").get(),
+                metrics.counter("crashes").get(), metrics.counter("failed").get(),
+                lookups, wrong, metrics.counter("timeouts").get(),
+                lookups > 0 ? 100.0 * wrong / lookups : 0.0,
+                millis > 0 ? 100.0 * stable_ms / millis : 0.0,
+                converge_ms,
+                node_s > 0 ? sum("socket.sent.Stabilizer") / node_s : 0.0,
+                node_s > 0 ? sum("socket.sent.IAmAlive") / node_s : 0.0));
+    }
+    
+    public static void main(String[] args) {
+        OptionParser.Result res = opts.parse(args);
+        try {
+            if( !res.has('c') ) {
+                System.err.println("usage: ChurnBenchmark --config file [options]");
+                System.exit(1);
+            }
+            Config.loadFile(res.get('c'), Conf.class, null);
+            
+            long       seed    = res.has('s') ? Long.parseLong(res.get('s')) : 1;
+            SimNetwork network = null;
+            SimClock   clock   = null;
+            if( res.has('v') ) {
+                // a fixed start, so the runs of a seed are the same.
+                clock = new SimClock(1000000000000L, seed);
+                Clock.set(clock);
+                clock.start();
+            }
+            if( res.has('S') || res.has('v') ) {
+                network = new SimNetwork(seed);
+                network.setLatency(SimNetwork.Latency.uniform,
+                        res.has('m') ? Long.parseLong(res.get('m')) : 5,
+                        res.has('m') ? Long.parseLong(res.get('m')) / 2 : 2);
+                if( res.has('l') ) network.setLoss(Double.parseDouble(res.get('l')));
+            }
+            
+            int  time = res.has('t') ? Integer.parseInt(res.get('t')) : 60;
+            long wall = System.currentTimeMillis();
+            ChurnBenchmark bench = new ChurnBenchmark(
+                    res.has('n') ? Integer.parseInt(res.get('n')) : 20, network, seed);
+            if( bench.settle(600000) < 0 ) System.err.println("# ring not stable, running anyway");
+            bench.churn(time * 1000L,
+                    res.has('J') ? Double.parseDouble(res.get('J')) : 0.1,
+                    res.has('L') ? Double.parseDouble(res.get('L')) : 0.1,
+                    res.has('X') ? Double.parseDouble(res.get('X')) : 0.0,
+                    res.has('q') ? Double.parseDouble(res.get('q')) : 10.0);
+            long converge = bench.settle(600000);
+            
+            System.out.println("nodes  secs joins leaves crashes failed lookups wrong timeouts wrong_pct stable_pct converge_ms stab_msgs hb_msgs");
+            bench.report(time * 1000L, converge);
+            if( clock != null ) {
+                System.out.println(String.format("# %d turns, digest %016x, %d escapes",
+                        clock.getTurns(), clock.getDigest(), clock.getEscapes()));
+            }
+            System.out.println("# "+( System.currentTimeMillis() - wall )+" ms wall clock time");
+            System.exit(0);
+        } catch (FileNotFoundException e) {
+            System.err.println("no such config file: "+e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("invalid argument: "+e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.err.println("interrupted");
+            System.exit(1);
+        }
+    }
+}
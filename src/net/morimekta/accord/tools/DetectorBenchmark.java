@@ -0,0 +1,223 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tools;
+
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.morimekta.accord.FailureDetector;
+import net.morimekta.accord.PhiAccrualDetector;
+import net.morimekta.accord.TimeoutDetector;
+import net.morimekta.net.Location;
+import net.morimekta.util.std.OptionParser;
+
+/**
+ * Measures the trade-off between detection time and false suspicions of the
+ * failure detectors, on simulated time. Heartbeats arrive at a fixed interval
+ * with normal distributed jitter, and now and then after a pause (as for
+ * garbage collection). For each detector and threshold it prints:
+ * <pre>
+ *   detector threshold false_per_hour detect_mean_ms detect_p99_ms
+ * </pre>
+ * where false suspicions are counted on live hosts, and the detection time
+ * is from the last heartbeat of a crashed host until it is suspected.
+ * 
+ * Usage: <code>DetectorBenchmark [--interval ms] [--jitter ms]
+ * [--pause-prob p] [--pause ms] [--beats n] [--trials n] [--accept ms]
+ * [--seed n]</code>, where accept is the acceptable pause of the phi
+ * detector.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class DetectorBenchmark {
+    private static final String       optline =
+            "i,interval,long\n" +
+            "j,jitter,long\n" +
+            "P,pause-prob,double\n" +
+            "p,pause,long\n" +
+            "b,beats,int\n" +
+            "t,trials,int\n" +
+            "a,accept,long\n" +
+            "s,seed,long";
+    private static final OptionParser opts    = new OptionParser(optline);
+    
+    private static final double[] PHI      = { 1, 2, 3, 5, 8, 12, 16 };
+    private static final double[] TIMEOUTS = { 2, 3, 5, 10 };
+    
+    private final long   interval;
+    private final long   jitter;
+    private final double pause_prob;
+    private final long   pause;
+    private final int    beats;
+    private final int    trials;
+    private final long   accept;
+    private final Random random;
+    private int          host_count = 0;
+    
+    /**
+     * Create a benchmark.
+     * 
+     * @param _interval
+     *     Heartbeat interval in milliseconds.
+     * @param _jitter
+     *     Standard deviation of heartbeat interval in milliseconds.
+     * @param _pause_prob
+     *     Chance of a pause before each heartbeat.
+     * @param _pause
+     *     Mean pause length in milliseconds, exponentially distributed.
+     * @param _beats
+     *     Number of heartbeats of the live host, for false suspicions.
+     * @param _trials
+     *     Number of crashed hosts, for detection time.
+     * @param _accept
+     *     Acceptable pause of the phi detector in milliseconds.
+     * @param seed
+     *     Random seed.
+     */
+    public DetectorBenchmark(long _interval, long _jitter, double _pause_prob, long _pause,
+                             int _beats, int _trials, long _accept, long seed) {
+        interval   = _interval;
+        jitter     = _jitter;
+        pause_prob = _pause_prob;
+        pause      = _pause;
+        beats      = _beats;
+        trials     = _trials;
+        accept     = _accept;
+        random     = new Random(seed);
+    }
+    
+    /**
+     * Get the time until the next heartbeat.
+     */
+    private long next() {
+        long ret = interval + (long) ( random.nextGaussian() * jitter );
+        if( random.nextDouble() < pause_prob ) {
+            ret += (long) ( -Math.log(1.0 - random.nextDouble()) * pause );
+        }
+        return Math.max(1, ret);
+    }
+    
+    private Location host() throws UnknownHostException {
+        host_count++;
+        return Location.get("10."+( ( host_count >> 16 ) & 0xff )+"."+
+                            ( ( host_count >> 8 ) & 0xff )+"."+( host_count & 0xff )+":7000");
+    }
+    
+    /**
+     * Count false suspicions of a live host. Suspicion only grows between
+     * heartbeats, so a host is suspected between two heartbeats if and only
+     * if it is suspected just before the second.
+     * 
+     * @param fd
+     *     Detector to test.
+     * @return
+     *     False suspicions per hour.
+     * @throws UnknownHostException
+     *     Never.
+     */
+    public double falsePerHour(FailureDetector fd) throws UnknownHostException {
+        Location host  = host();
+        long     now   = 0;
+        long     count = 0;
+        fd.heartbeat(host, now);
+        for( int i = 0; i < beats; i++ ) {
+            now += next();
+            if( fd.isSuspected(host, now - 1) ) count++;
+            fd.heartbeat(host, now);
+        }
+        return count * 3600000.0 / now;
+    }
+    
+    /**
+     * Measure the detection times of crashed hosts, each with a history of
+     * 200 heartbeats.
+     * 
+     * @param fd
+     *     Detector to test.
+     * @return
+     *     Sorted detection times in milliseconds.
+     * @throws UnknownHostException
+     *     Never.
+     */
+    public long[] detectionTimes(FailureDetector fd) throws UnknownHostException {
+        long[] ret = new long[trials];
+        for( int t = 0; t < trials; t++ ) {
+            Location host = host();
+            long     now  = 0;
+            fd.heartbeat(host, now);
+            for( int i = 0; i < 200; i++ ) {
+                now += next();
+                fd.heartbeat(host, now);
+            }
+            // binary search for the first suspected time.
+            long lo = 0, hi = interval * 1000, mid;
+            while( lo < hi ) {
+                mid = ( lo + hi ) / 2;
+                if( fd.isSuspected(host, now + mid) ) hi = mid;
+                else                                  lo = mid + 1;
+            }
+            ret[t] = lo;
+            fd.remove(host);
+        }
+        Arrays.sort(ret);
+        return ret;
+    }
+    
+    private void report(String name, double threshold, FailureDetector fd) throws UnknownHostException {
+        double fph    = falsePerHour(fd);
+        long[] detect = detectionTimes(fd);
+        long   sum    = 0;
+        for( long d : detect ) sum += d;
+        System.out.println(String.format("%-8s %9.1f %14.3f %14d %13d",
+                name, threshold, fph,
+                detect.length == 0 ? 0 : sum / detect.length,
+                detect.length == 0 ? 0 : detect[(int) Math.min(detect.length - 1, Math.ceil(detect.length * 0.99) - 1)]));
+    }
+    
+    /**
+     * Run the benchmark for all detectors and thresholds.
+     * 
+     * @throws UnknownHostException
+     *     Never.
+     */
+    public void run() throws UnknownHostException {
+        System.out.println("# interval="+interval+" jitter="+jitter+" pause_prob="+pause_prob+
+                           " pause="+pause+" beats="+beats+" trials="+trials+" accept="+accept);
+        System.out.println("detector threshold false_per_hour detect_mean_ms detect_p99_ms");
+        for( double phi : PHI ) {
+            report("phi", phi, new PhiAccrualDetector(phi, 100, interval / 10.0, accept, interval, trials + 2));
+        }
+        for( double mult : TIMEOUTS ) {
+            report("timeout", mult, new TimeoutDetector((long) ( interval * mult )));
+        }
+    }
+    
+    /**
+     * Run the benchmark.
+     * 
+     * @param args
+     *     Options, see class description.
+     */
+    public static void main(String[] args) {
+        OptionParser.Result res = opts.parse(args);
+        try {
+            new DetectorBenchmark(
+                    res.has('i') ? Long.parseLong(res.get('i'))       : 1000,
+                    res.has('j') ? Long.parseLong(res.get('j'))       : 100,
+                    res.has('P') ? Double.parseDouble(res.get('P'))   : 0.01,
+                    res.has('p') ? Long.parseLong(res.get('p'))       : 2000,
+                    res.has('b') ? Integer.parseInt(res.get('b'))     : 100000,
+                    res.has('t') ? Integer.parseInt(res.get('t'))     : 1000,
+                    res.has('a') ? Long.parseLong(res.get('a'))       : 0,
+                    res.has('s') ? Long.parseLong(res.get('s'))       : 1).run();
+        } catch (NumberFormatException e) {
+            System.err.println("invalid number: "+e.getMessage());
+            System.exit(1);
+        } catch (UnknownHostException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tools;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import net.morimekta.accord.JournalEvent;
+import net.morimekta.util.std.Journal;
+import net.morimekta.util.std.Journal.Reader;
+import net.morimekta.util.std.Journal.Record;
+
+/**
+ * Reads the binary journals of several nodes, and merges them into one
+ * timeline ordered by the absolute time of each record. Prints one line
+ * per record:
+ * <pre>
+ *   yy.MM.dd HH:mm:ss.SSS +offset_us node event ticket payload
+ * </pre>
+ * Note that the timeline is only as correct as the clocks of the nodes.
+ * 
+ * Usage: <code>JournalReader file.journal [file.journal ...]</code>
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class JournalReader {
+    private Reader[] readers;
+    private Record[] heads;
+    
+    /**
+     * Open the journals to merge.
+     * 
+     * @param files
+     *     Journal file names.
+     * @throws IOException
+     *     If unable to read one of the journals.
+     */
+    public JournalReader(String[] files) throws IOException {
+        readers = new Reader[files.length];
+        heads   = new Record[files.length];
+        for( int i = 0; i < files.length; i++ ) {
+            readers[i] = new Journal.Reader(files[i]);
+            heads[i]   = readers[i].next();
+        }
+    }
+    
+    /**
+     * Get the next record in time from all journals.
+     * 
+     * @return
+     *     The next Record, or null when all journals are read.
+     */
+    public Record next() {
+        int first = -1;
+        for( int i = 0; i < heads.length; i++ ) {
+            if( heads[i] != null &&
+                ( first < 0 || heads[i].time < heads[first].time ) ) {
+                first = i;
+            }
+        }
+        if( first < 0 ) return null;
+        Record ret   = heads[first];
+        heads[first] = readers[first].next();
+        return ret;
+    }
+    
+    /**
+     * Print the merged timeline of the journals given as arguments.
+     * 
+     * @param args
+     *     Journal file names.
+     */
+    public static void main(String[] args) {
+        if( args.length == 0 ) {
+            System.err.println("usage: JournalReader file.journal [file.journal ...]");
+            System.exit(1);
+        }
+        try {
+            JournalReader      reader = new JournalReader(args);
+            DateFormat         format = new SimpleDateFormat("yy.MM.dd HH:mm:ss.SSS");
+            JournalEvent[]     events = JournalEvent.values();
+            Record             rec;
+            long               start  = -1;
+            String             event;
+            while( ( rec = reader.next() ) != null ) {
+                if( start < 0 ) start = rec.time;
+                if( rec.type >= 0 && rec.type < events.length ) event = events[rec.type].toString();
+                else                                            event = "type-"+rec.type;
+                System.out.println(
+                        format.format(new Date(rec.time / 1000000L))+
+                        " +"+((rec.time-start) / 1000L)+
+                        " "+rec.node+
+                        " "+event+
+                        " "+rec.ticket+
+                        " "+rec.payload);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tools;
+
+import java.io.FileNotFoundException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+import net.morimekta.accord.AccordNode;
+import net.morimekta.accord.Conf;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.std.Config;
+import net.morimekta.util.std.Metrics;
+import net.morimekta.util.std.OptionParser;
+
+/**
+ * Drives a load of lookups, table lookups and churn against a ring of nodes
+ * in one process, talking over the loopback, once for each lookup iteration
+ * mode. Each client thread picks an operation from the mix for each step:
+ * <ul>
+ * <li><code>lookup</code> looks up a random index from a random node.</li>
+ * <li><code>tables</code> asks a random node for the nearest neighbours
+ *     of another with lookup_tables.</li>
+ * <li><code>churn</code> lets a random node (not the first) leave the ring,
+ *     and joins a new node in its place. Churn is done one at a time, and
+ *     waits for the ring to be stable after the last.</li>
+ * </ul>
+ * It prints:
+ * <pre>
+ *   iter op count p50_us p99_us p999_us max_us timeouts
+ * </pre>
+ * for each mode and operation, followed by the throughput and the hop
+ * count distribution of the mode. The hop counts are summed from the nodes,
+ * so the mode of the config also counts the lookups of the nodes
+ * themselves. The percentiles are read from a Metrics.Histogram, so they
+ * are the upper bound of a bucket, at most about 3% above the measured
+ * value, and max_us is exact.
+ * 
+ * Usage: <code>LoadGenerator --config file [--nodes n] [--threads n]
+ * [--ops n] [--tables r] [--churn r] [--iter mode,...] [--seed n]</code>,
+ * where the config file has the timing settings of the nodes, and the ops
+ * are per thread and mode.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class LoadGenerator {
+    private static final String       optline =
+            "c,config,string\n" +
+            "n,nodes,int\n" +
+            "t,threads,int\n" +
+            "o,ops,int\n" +
+            "T,tables,double\n" +
+            "C,churn,double\n" +
+            "i,iter,string\n" +
+            "s,seed,long";
+    private static final OptionParser opts    = new OptionParser(optline);
+    
+    /**
+     * The lookup iteration modes, see Lookup.
+     */
+    private static final String[] ITERS = { "unsafe", "safe", "neighbor", "self", "no_neighbor", "no_safe", "recursive" };
+    private static final String[] OPS   = { "lookup", "tables", "churn" };
+    private static final String   QUERY = "pred:0 pred:1 succ:0 succ:1 finger:first";
+    
+    private final int                threads;
+    private final int                ops;
+    private final double             table_ratio;
+    private final double             churn_ratio;
+    private final long               seed;
+    private final Vector<AccordNode> nodes   = new Vector<AccordNode>();
+    private final Vector<AccordNode> retired = new Vector<AccordNode>();
+    private final Metrics            metrics = new Metrics();
+    private final IndexFactory       factory;
+    
+    /**
+     * Create a load generator, and start the ring of nodes.
+     * 
+     * @param _nodes
+     *     Number of nodes in the ring.
+     * @param _threads
+     *     Number of client threads.
+     * @param _ops
+     *     Number of operations per thread and mode.
+     * @param _table_ratio
+     *     Part of the operations that are table lookups.
+     * @param _churn_ratio
+     *     Part of the operations that are churn.
+     * @param _seed
+     *     Random seed.
+     */
+    public LoadGenerator(int _nodes, int _threads, int _ops, double _table_ratio,
+                         double _churn_ratio, long _seed) {
+        threads     = _threads;
+        ops         = _ops;
+        table_ratio = _table_ratio;
+        churn_ratio = _churn_ratio;
+        seed        = _seed;
+        
+        for( int i = 0; i < _nodes; i++ ) {
+            AccordNode n = ( i == 0 ? new AccordNode(0) : join() );
+            if( n != null ) nodes.add(n);
+        }
+        factory = nodes.get(0).getLocation().getIndex().getFactory();
+    }
+    
+    /**
+     * Start a new node and join it through the first node.
+     * 
+     * @return
+     *     The node, or null if it failed to join.
+     */
+    private AccordNode join() {
+        AccordNode n     = new AccordNode(0);
+        int        tries = 0;
+        while( !n.connect(nodes.get(0).getLocation()) ) {
+            if( ++tries == 3 ) {
+                System.err.println("# node "+n+" failed to connect");
+                n.close();
+                return null;
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * Let a random node leave, and join a new node in its place, when the
+     * ring is stable after the last churn. The time of the leave and join is
+     * recorded, or a failure counted if either fails. A node that fails to
+     * leave is kept in the ring.
+     * 
+     * @param rand
+     *     Random source of the calling thread.
+     * @param name
+     *     Name of the histogram and counter.
+     */
+    private synchronized void churn(Random rand, String name) throws InterruptedException {
+        settle(30000);
+        long       start = System.nanoTime();
+        AccordNode old = null;
+        synchronized( nodes ) {
+            // a node can not leave before it knows its pred:0.
+            for( int tries = 0; old == null && nodes.size() > 1 && tries < 2 * nodes.size(); tries++ ) {
+                AccordNode n = nodes.get(1 + rand.nextInt(nodes.size() - 1));
+                if( n.table_at("pred:0") != null ) old = n;
+            }
+            if( old == null ) {
+                metrics.counter(name).inc();
+                return;
+            }
+            nodes.remove(old);
+        }
+        if( !old.disconnect() ) {
+            // still in the ring, as when pred:0 did not agree.
+            nodes.add(old);
+            metrics.counter(name).inc();
+            return;
+        }
+        old.close();
+        retired.add(old);
+        AccordNode n = join();
+        if( n == null ) {
+            metrics.counter(name).inc();
+            return;
+        }
+        nodes.add(n);
+        metrics.histogram(name).record((System.nanoTime() - start) / 1000);
+    }
+    
+    /**
+     * Get a random live node.
+     */
+    private AccordNode any(Random rand) {
+        synchronized( nodes ) {
+            return nodes.get(rand.nextInt(nodes.size()));
+        }
+    }
+    
+    /**
+     * Get a random live node other than the given one, if there is any.
+     */
+    private AccordNode other(Random rand, AccordNode not) {
+        synchronized( nodes ) {
+            if( nodes.size() < 2 ) return not;
+            int i = rand.nextInt(nodes.size() - 1);
+            if( nodes.get(i) == not ) i = nodes.size() - 1;
+            return nodes.get(i);
+        }
+    }
+    
+    /**
+     * Wait until all nodes have stable tables.
+     * 
+     * @param timeout
+     *     Maximum time to wait in milliseconds.
+     * @return
+     *     True if stable.
+     */
+    public boolean settle(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while( System.currentTimeMillis() < end ) {
+            boolean stable = true;
+            synchronized( nodes ) {
+                for( AccordNode n : nodes ) stable &= n.is_stable();
+            }
+            if( stable ) return true;
+            Thread.sleep(100);
+        }
+        return false;
+    }
+    
+    /**
+     * Run the client threads with one iteration mode.
+     * 
+     * @param iter
+     *     Lookup iteration mode.
+     * @return
+     *     Wall clock time in milliseconds.
+     */
+    public long run(final String iter) throws InterruptedException {
+        final String lookup_opts = "--iter "+iter;
+        Thread[] workers = new Thread[threads];
+        for( int i = 0; i < threads; i++ ) {
+            final Random rand = new Random(seed + i + 1);
+            workers[i] = new Thread() {
+                public void run() {
+                    byte[] key = new byte[20];
+                    for( int j = 0; j < ops; j++ ) {
+                        double r     = rand.nextDouble();
+                        String op    = ( r < churn_ratio ? "churn" :
+                                       ( r < churn_ratio + table_ratio ? "tables" : "lookup" ) );
+                        String name  = iter+"."+op;
+                        long   start = System.nanoTime();
+                        try {
+                            if( "churn".equals(op) ) {
+                                churn(rand, name);
+                                continue;
+                            } else if( "tables".equals(op) ) {
+                                AccordNode from = any(rand);
+                                from.lookup_tables(other(rand, from).getLocation(), QUERY, null);
+                            } else {
+                                rand.nextBytes(key);
+                                Index idx = factory.getIndexOf(key);
+                                any(rand).lookup(idx, lookup_opts);
+                            }
+                            metrics.histogram(name).record((System.nanoTime() - start) / 1000);
+                        } catch (SocketTimeoutException e) {
+                            metrics.counter(name).inc();
+                        } catch (IllegalArgumentException e) {
+                            metrics.counter(name).inc();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for( Thread w : workers ) w.start();
+        for( Thread w : workers ) w.join();
+        return System.currentTimeMillis() - start;
+    }
+    
+    /**
+     * Print the results of one iteration mode.
+     * 
+     * @param iter
+     *     Lookup iteration mode.
+     * @param millis
+     *     Wall clock time of the run.
+     */
+    public void report(String iter, long millis) {
+        long total = 0;
+        for( String op : OPS ) {
+            Metrics.Histogram h = metrics.histogram(iter+"."+op);
+            long              t = metrics.counter(iter+"."+op).get();
+            if( h.getCount() + t == 0 ) continue;
+            total += h.getCount();
+            System.out.println(String.format("%-11s %-6s %8d %8d %8d %8d %8d %8d",
+                    iter, op, h.getCount(), h.getPercentile(50), h.getPercentile(99),
+                    h.getPercentile(99.9), h.getMax(), t));
+        }
+        
+        Metrics.Histogram hops = new Metrics.Histogram();
+        synchronized( nodes ) {
+            for( AccordNode n : nodes ) hops.add(n.getMetrics().histogram("lookup.hops."+iter));
+        }
+        for( AccordNode n : retired ) hops.add(n.getMetrics().histogram("lookup.hops."+iter));
+        System.out.println(String.format(
+                "# %s: %d ops in %d ms, %.0f ops/s, hops count=%d mean=%.2f p50=%d p99=%d max=%d",
+                iter, total, millis, millis > 0 ? total * 1000.0 / millis : 0.0,
+                hops.getCount(), hops.getCount() > 0 ? hops.getSum() / (double) hops.getCount() : 0.0,
+                hops.getPercentile(50), hops.getPercentile(99), hops.getMax()));
+    }
+    
+    public static void main(String[] args) {
+        OptionParser.Result res = opts.parse(args);
+        try {
+            if( !res.has('c') ) {
+                System.err.println("usage: LoadGenerator --config file [options]");
+                System.exit(1);
+            }
+            Config.loadFile(res.get('c'), Conf.class, null);
+            
+            String[] iters = ITERS;
+            if( res.has('i') ) {
+                iters = res.get('i').split(",");
+                for( String i : iters ) {
+                    if( !Arrays.asList(ITERS).contains(i) ) throw new IllegalArgumentException("no such iter mode: "+i);
+                }
+            }
+            LoadGenerator gen = new LoadGenerator(
+                    res.has('n') ? Integer.parseInt(res.get('n'))   : 10,
+                    res.has('t') ? Integer.parseInt(res.get('t'))   : 8,
+                    res.has('o') ? Integer.parseInt(res.get('o'))   : 1000,
+                    res.has('T') ? Double.parseDouble(res.get('T')) : 0.1,
+                    res.has('C') ? Double.parseDouble(res.get('C')) : 0.0,
+                    res.has('s') ? Long.parseLong(res.get('s'))     : 1);
+                    
+            System.out.println("# nodes="+gen.nodes.size()+" threads="+gen.threads+" ops="+gen.ops+
+                               " tables="+gen.table_ratio+" churn="+gen.churn_ratio+
+                               " default_iter="+Conf.lookup__iterate);
+            System.out.println("iter        op        count   p50_us   p99_us  p999_us   max_us timeouts");
+            for( String iter : iters ) {
+                if( !gen.settle(30000) ) System.err.println("# ring not stable, running "+iter+" anyway");
+                gen.report(iter, gen.run(iter));
+            }
+            System.exit(0);
+        } catch (FileNotFoundException e) {
+            System.err.println("no such config file: "+e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("invalid argument: "+e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.err.println("interrupted");
+            System.exit(1);
+        }
+    }
+}
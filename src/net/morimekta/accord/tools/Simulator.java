@@ -0,0 +1,388 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tools;
+
+import java.io.FileNotFoundException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.morimekta.accord.AccordNode;
+import net.morimekta.accord.Conf;
+import net.morimekta.net.Location;
+import net.morimekta.net.SimNetwork;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Config;
+import net.morimekta.util.std.Metrics;
+import net.morimekta.util.std.OptionParser;
+import net.morimekta.util.std.SimClock;
+
+/**
+ * Runs a ring of nodes on a simulated network in one process, and measures
+ * the time to stable tables, lookup hop counts and lookup correctness. The
+ * nodes join one at a time through the first node. Then a number of nodes
+ * crash, and the time from the crash until the rest is stable again is
+ * measured, at least the leave timeout. Lookups
+ * are checked against the owner computed from the live nodes. It prints:
+ * <pre>
+ *   phase nodes stable_ms lookups wrong timeouts hops_mean hops_max
+ * </pre>
+ * With --scale, a number of new nodes join all at once after the first
+ * phase, each through a random node in the ring, to measure the join
+ * throughput of a mass scale-out. It prints:
+ * <pre>
+ *   # scale joins join_ms joins_per_s failed conflicts queued connect_ms_p50 connect_ms_max
+ * </pre>
+ * 
+ * Usage: <code>Simulator --config file [--nodes n] [--scale n] [--crash n]
+ * [--lookups n] [--latency constant|uniform|exponential] [--mean ms]
+ * [--jitter ms] [--loss p] [--reorder p] [--virtual] [--seed n]</code>,
+ * where the config file has the timing settings of the nodes. With
+ * --virtual the nodes run on a SimClock, and the times are virtual.
+ * 
+ * Each node still runs its own threads: the socket, the stabilizer, the
+ * i-am-alive loop and the log writer, and a thread per request it handles.
+ * Measured on one CPU, with iamalive.cycle_time 500, stabilizer.cycle_time
+ * 250, a phi detector, 5&plusmn;2 ms latency and no loss:
+ * <pre>
+ *   nodes  failed_joins  stable_ms  wrong/timeouts of 500  wall
+ *     100             0       1307                  0 / 0   57 s
+ *     200             0       2404                  0 / 0   66 s
+ *     300             0       3113                 46 / 361 190 s
+ *     400            40    not in 600 s           483 / 11  22 min
+ * </pre>
+ * Above 200 nodes the threads are not scheduled in time, the i-am-alives
+ * are late and neighbours are suspected and removed while alive, so a run
+ * on the wall clock on one CPU is limited to about 200 nodes.
+ * 
+ * With --virtual the threads run one at a time on the SimClock, handing
+ * over in the order of the virtual time, so the i-am-alives are never late
+ * and a run is repeated exactly with the same seed: the turns and the
+ * digest of their order are printed at the end. The same settings:
+ * <pre>
+ *   nodes  failed_joins  stable_ms  wrong/timeouts of 500  wall
+ *     100             0        600                  0 / 0   10 s
+ *     200             0       1400                  0 / 0   21 s
+ *     400             0       2300                  0 / 0   76 s
+ *    1000             0       2700                  0 / 0   13 min
+ * </pre>
+ * The target of 10000 nodes is not reached: it would need more than 40000
+ * threads, above the usual process limits.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class Simulator {
+    private static final String       optline =
+            "c,config,string\n" +
+            "n,nodes,int\n" +
+            "o,scale,int\n" +
+            "x,crash,int\n" +
+            "q,lookups,int\n" +
+            "l,latency,string\n" +
+            "m,mean,long\n" +
+            "j,jitter,long\n" +
+            "L,loss,double\n" +
+            "r,reorder,double\n" +
+            "v,virtual\n" +
+            "s,seed,long";
+    private static final OptionParser opts    = new OptionParser(optline);
+    
+    private final SimNetwork   network;
+    private final Random       random;
+    private final int          lookups;
+    private AccordNode[]       nodes;
+    
+    /**
+     * Create a simulator, and start the nodes on the network.
+     * 
+     * @param _nodes
+     *     Number of nodes in the ring.
+     * @param _lookups
+     *     Number of lookups per phase.
+     * @param _network
+     *     Simulated network, with latency and loss set.
+     * @param seed
+     *     Random seed.
+     */
+    public Simulator(int _nodes, int _lookups, SimNetwork _network, long seed) {
+        network = _network;
+        lookups = _lookups;
+        random  = new Random(seed);
+        nodes   = new AccordNode[_nodes];
+        network.start();
+        for( int i = 0; i < nodes.length; i++ ) {
+            nodes[i] = new AccordNode(network.open(Conf.port > 0 ? Conf.port : 7000), null);
+        }
+    }
+    
+    /**
+     * Join all nodes through the first one.
+     * 
+     * @return
+     *     Number of nodes that failed to join.
+     */
+    public int join() {
+        int fail = 0;
+        for( int i = 1; i < nodes.length; i++ ) {
+            int tries = 0;
+            while( !nodes[i].connect(nodes[0].getLocation()) ) {
+                if( ++tries == 3 ) {
+                    fail++;
+                    break;
+                }
+            }
+        }
+        return fail;
+    }
+    
+    /**
+     * Start a number of new nodes and join them all at once, each through
+     * a random node already in the ring, and print the join throughput.
+     * 
+     * @param count
+     *     Number of nodes to add.
+     * @return
+     *     Number of nodes that failed to join.
+     */
+    public int scaleOut(int count) throws InterruptedException {
+        final AccordNode[] added = new AccordNode[count];
+        final Location[]   via   = new Location[count];
+        final boolean[]    ok    = new boolean[count];
+        long conflicts0 = 0, queued0 = 0;
+        for( AccordNode n : nodes ) {
+            conflicts0 += n.getMetrics().counter("membership.conflict").get();
+            queued0    += n.getMetrics().counter("membership.session.queued").get();
+        }
+        for( int i = 0; i < count; i++ ) {
+            added[i] = new AccordNode(network.open(Conf.port > 0 ? Conf.port : 7000), null);
+            via[i]   = nodes[random.nextInt(nodes.length)].getLocation();
+        }
+        
+        Thread[] joins = new Thread[count];
+        long     start = Clock.get().millis();
+        for( int i = 0; i < count; i++ ) {
+            final int j = i;
+            joins[i] = Clock.get().thread(new Runnable() {
+                public void run() {
+                    for( int tries = 0; tries < 3 && !ok[j]; tries++ ) {
+                        ok[j] = added[j].connect(via[j]);
+                    }
+                }
+            });
+            joins[i].setName("Simulator.join-"+i);
+            Clock.get().start(joins[i]);
+        }
+        for( Thread t : joins ) Clock.get().join(t);
+        long ms = Math.max(1, Clock.get().millis() - start);
+        
+        int  fail = 0;
+        long conflicts = 0, queued = 0;
+        for( boolean b : ok ) if( !b ) fail++;
+        AccordNode[] all = new AccordNode[nodes.length + count];
+        System.arraycopy(nodes, 0, all, 0, nodes.length);
+        System.arraycopy(added, 0, all, nodes.length, count);
+        nodes = all;
+        Metrics.Histogram connect = new Metrics.Histogram();
+        for( AccordNode n : nodes ) {
+            conflicts += n.getMetrics().counter("membership.conflict").get();
+            queued    += n.getMetrics().counter("membership.session.queued").get();
+        }
+        for( AccordNode n : added ) connect.add(n.getMetrics().histogram("membership.connect.latency"));
+        System.out.println(String.format("# scale %5d %8d %11.1f %6d %9d %6d %14d %14d",
+                count, ms, ( count - fail ) * 1000.0 / ms, fail,
+                conflicts - conflicts0, queued - queued0,
+                connect.getPercentile(50), connect.getMax()));
+        return fail;
+    }
+    
+    /**
+     * Crash a number of random nodes, not the first. The nodes are closed
+     * without leaving the ring.
+     * 
+     * @param count
+     *     Number of nodes to crash.
+     */
+    public void crash(int count) {
+        count = Math.min(count, nodes.length - 1);
+        for( int i = 0; i < count; i++ ) {
+            int j = 1 + random.nextInt(nodes.length - 1);
+            nodes[j].close();
+            AccordNode[] rest = new AccordNode[nodes.length - 1];
+            System.arraycopy(nodes, 0, rest, 0, rest.length);
+            if( j < rest.length ) rest[j] = nodes[rest.length];
+            nodes = rest;
+        }
+    }
+    
+    /**
+     * Wait until all nodes have stable tables.
+     * 
+     * @param timeout
+     *     Maximum time to wait in milliseconds.
+     * @return
+     *     Time until stable in milliseconds, or -1 if not stable in time.
+     */
+    public long settle(long timeout) throws InterruptedException {
+        long start = Clock.get().millis();
+        while( Clock.get().millis() - start < timeout ) {
+            boolean stable = true;
+            for( AccordNode n : nodes ) {
+                if( !n.is_stable() ) {
+                    stable = false;
+                    break;
+                }
+            }
+            if( stable ) return Clock.get().millis() - start;
+            Clock.get().sleep(100);
+        }
+        return -1;
+    }
+    
+    /**
+     * Get the owner of an index among the live nodes, the node with the
+     * highest index at or below it, or else the highest index.
+     */
+    private static Location owner(Index[] sorted, Location[] hosts, Index idx) {
+        int pos = Arrays.binarySearch(sorted, idx);
+        if( pos < 0 ) pos = -pos - 2;
+        return hosts[pos < 0 ? sorted.length - 1 : pos];
+    }
+    
+    /**
+     * Run lookups of random indices from random nodes, and print one line of
+     * results.
+     * 
+     * @param phase
+     *     Name of the phase.
+     * @param stable_ms
+     *     Time until stable.
+     */
+    public void measure(String phase, long stable_ms) {
+        Location[] hosts  = new Location[nodes.length];
+        Index[]    sorted = new Index[nodes.length];
+        for( int i = 0; i < nodes.length; i++ ) sorted[i] = nodes[i].getLocation().getIndex();
+        Arrays.sort(sorted);
+        for( AccordNode n : nodes ) {
+            hosts[Arrays.binarySearch(sorted, n.getLocation().getIndex())] = n.getLocation();
+        }
+        
+        String hist = "lookup.hops."+Conf.lookup__iterate;
+        long   count0 = 0, sum0 = 0;
+        for( AccordNode n : nodes ) {
+            count0 += n.getMetrics().histogram(hist).getCount();
+            sum0   += n.getMetrics().histogram(hist).getSum();
+        }
+        
+        IndexFactory factory  = sorted[0].getFactory();
+        byte[]       key      = new byte[20];
+        int          wrong    = 0;
+        int          timeouts = 0;
+        for( int i = 0; i < lookups; i++ ) {
+            random.nextBytes(key);
+            Index idx = factory.getIndexOf(key);
+            try {
+                Location got = nodes[random.nextInt(nodes.length)].lookup(idx);
+                if( !owner(sorted, hosts, idx).equals(got) ) wrong++;
+            } catch (SocketTimeoutException e) {
+                timeouts++;
+            }
+        }
+        
+        long count = 0, sum = 0, max = 0;
+        for( AccordNode n : nodes ) {
+            Metrics.Histogram h = n.getMetrics().histogram(hist);
+            count += h.getCount();
+            sum   += h.getSum();
+            max    = Math.max(max, h.getMax());
+        }
+        count -= count0;
+        sum   -= sum0;
+        System.out.println(String.format("%-6s %6d %9d %7d %5d %8d %9.2f %8d",
+                phase, nodes.length, stable_ms, lookups, wrong, timeouts,
+                count > 0 ? sum / (double) count : 0.0, max));
+    }
+    
+    /**
+     * Print the network counters.
+     * 
+     * @param metrics
+     *     Metrics of the network.
+     */
+    public void report(Metrics metrics) {
+        System.out.println("# "+metrics.snapshot());
+    }
+    
+    public static void main(String[] args) {
+        OptionParser.Result res = opts.parse(args);
+        try {
+            if( !res.has('c') ) {
+                System.err.println("usage: Simulator --config file [options]");
+                System.exit(1);
+            }
+            Config.loadFile(res.get('c'), Conf.class, null);
+            
+            long       seed    = res.has('s') ? Long.parseLong(res.get('s')) : 1;
+            int        crash   = res.has('x') ? Integer.parseInt(res.get('x')) : 0;
+            SimClock   clock   = null;
+            if( res.has('v') ) {
+                // a fixed start, so the runs of a seed are the same.
+                clock = new SimClock(1000000000000L, seed);
+                Clock.set(clock);
+                clock.start();
+            }
+            long       wall    = System.currentTimeMillis();
+            SimNetwork network = new SimNetwork(seed);
+            Metrics    metrics = new Metrics();
+            network.setMetrics(metrics);
+            network.setLatency(
+                    res.has('l') ? SimNetwork.Latency.valueOf(res.get('l')) : SimNetwork.Latency.uniform,
+                    res.has('m') ? Long.parseLong(res.get('m'))             : 5,
+                    res.has('j') ? Long.parseLong(res.get('j'))             : 2);
+            if( res.has('L') ) network.setLoss(Double.parseDouble(res.get('L')));
+            if( res.has('r') ) network.setReorder(Double.parseDouble(res.get('r')));
+            
+            Simulator sim = new Simulator(
+                    res.has('n') ? Integer.parseInt(res.get('n')) : 50,
+                    res.has('q') ? Integer.parseInt(res.get('q')) : 1000,
+                    network, seed);
+            System.out.println("phase   nodes stable_ms lookups wrong timeouts hops_mean hops_max");
+            long start = Clock.get().millis();
+            int  fail  = sim.join();
+            if( fail > 0 ) System.err.println("# "+fail+" nodes failed to join");
+            System.out.println("# joined one at a time in "+( Clock.get().millis() - start )+" ms");
+            sim.measure("join", sim.settle(600000));
+            if( res.has('o') ) {
+                int scale = Integer.parseInt(res.get('o'));
+                fail = sim.scaleOut(scale);
+                if( fail > 0 ) System.err.println("# "+fail+" nodes failed to join");
+                sim.measure("scale", sim.settle(600000));
+            }
+            if( crash > 0 ) {
+                sim.crash(crash);
+                // the crashed nodes are not missed before the leave timeout.
+                Clock.get().sleep(Conf.iamalive__leave_timeout);
+                long ms = sim.settle(600000);
+                sim.measure("crash", ms < 0 ? ms : ms + Conf.iamalive__leave_timeout);
+            }
+            sim.report(metrics);
+            if( clock != null ) {
+                System.out.println(String.format("# %d turns, digest %016x, %d escapes",
+                        clock.getTurns(), clock.getDigest(), clock.getEscapes()));
+            }
+            System.out.println("# "+( System.currentTimeMillis() - wall )+" ms wall clock time");
+            System.exit(0);
+        } catch (FileNotFoundException e) {
+            System.err.println("no such config file: "+e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("invalid argument: "+e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.err.println("interrupted");
+            System.exit(1);
+        }
+    }
+}
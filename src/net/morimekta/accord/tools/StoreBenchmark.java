@@ -0,0 +1,252 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.accord.tools;
+
+import java.io.FileNotFoundException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.morimekta.accord.AccordNode;
+import net.morimekta.accord.Conf;
+import net.morimekta.accord.store.LocalStore;
+import net.morimekta.accord.store.StoreService;
+import net.morimekta.util.index.Index;
+import net.morimekta.util.index.IndexFactory;
+import net.morimekta.util.std.Config;
+import net.morimekta.util.std.Metrics;
+import net.morimekta.util.std.OptionParser;
+
+/**
+ * Measures the throughput and latency of the key-value store on a ring of
+ * nodes in one process, talking over the loopback. A set of keys is first
+ * stored, and then a number of client threads each run get and put on a
+ * random key through a random node. It prints:
+ * <pre>
+ *   op count p50_us p99_us max_us timeouts
+ * </pre>
+ * for each operation, and the total throughput.
+ * 
+ * Usage: <code>StoreBenchmark --config file [--nodes n] [--keys n]
+ * [--ops n] [--threads n] [--size bytes] [--get-ratio r]
+ * [--type memory|log] [--seed n]</code>, where the config file has the
+ * timing settings of the nodes.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class StoreBenchmark {
+    private static final String       optline =
+            "c,config,string\n" +
+            "n,nodes,int\n" +
+            "k,keys,int\n" +
+            "o,ops,int\n" +
+            "t,threads,int\n" +
+            "S,size,int\n" +
+            "g,get-ratio,double\n" +
+            "T,type,string\n" +
+            "s,seed,long";
+    private static final OptionParser opts    = new OptionParser(optline);
+    
+    private final int          keys;
+    private final int          ops;
+    private final int          threads;
+    private final int          size;
+    private final double       get_ratio;
+    private final long         seed;
+    private final AccordNode[] nodes;
+    private final Index[]      key_set;
+    private final Metrics      metrics = new Metrics();
+    
+    /**
+     * Create a benchmark, and start the ring of nodes.
+     * 
+     * @param _nodes
+     *     Number of nodes in the ring.
+     * @param _keys
+     *     Number of distinct keys.
+     * @param _ops
+     *     Number of operations per thread.
+     * @param _threads
+     *     Number of client threads.
+     * @param _size
+     *     Value size in bytes.
+     * @param _get_ratio
+     *     Part of the operations that are get, the rest are put.
+     * @param _seed
+     *     Random seed.
+     */
+    public StoreBenchmark(int _nodes, int _keys, int _ops, int _threads, int _size,
+                          double _get_ratio, long _seed) {
+        keys      = _keys;
+        ops       = _ops;
+        threads   = _threads;
+        size      = _size;
+        get_ratio = _get_ratio;
+        seed      = _seed;
+        nodes     = new AccordNode[_nodes];
+        key_set   = new Index[_keys];
+        
+        for( int i = 0; i < nodes.length; i++ ) {
+            nodes[i] = new AccordNode(0);
+            if( i == 0 ) continue;
+            int tries = 0;
+            while( !nodes[i].connect(nodes[0].getLocation()) ) {
+                if( ++tries == 3 ) {
+                    System.err.println("# node "+nodes[i]+" failed to connect");
+                    break;
+                }
+            }
+        }
+        IndexFactory factory = nodes[0].getLocation().getIndex().getFactory();
+        for( int i = 0; i < keys; i++ ) key_set[i] = factory.getIndexOf("key"+i);
+    }
+    
+    /**
+     * Wait until all nodes have stable tables.
+     * 
+     * @param timeout
+     *     Maximum time to wait in milliseconds.
+     * @return
+     *     True if stable.
+     */
+    public boolean settle(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while( System.currentTimeMillis() < end ) {
+            boolean stable = true;
+            for( AccordNode n : nodes ) stable &= n.is_stable();
+            if( stable ) return true;
+            Thread.sleep(100);
+        }
+        return false;
+    }
+    
+    /**
+     * Store all keys once.
+     * 
+     * @return
+     *     Number of failed puts.
+     */
+    public int load() {
+        Random rand  = new Random(seed);
+        byte[] value = new byte[size];
+        int    fail  = 0;
+        for( int i = 0; i < keys; i++ ) {
+            rand.nextBytes(value);
+            try {
+                nodes[i % nodes.length].getStore().put(key_set[i], value);
+            } catch (SocketTimeoutException e) {
+                fail++;
+            }
+        }
+        return fail;
+    }
+    
+    /**
+     * Run the client threads.
+     * 
+     * @return
+     *     Wall clock time in milliseconds.
+     */
+    public long run() throws InterruptedException {
+        final AtomicInteger timeouts = new AtomicInteger(0);
+        Thread[] workers = new Thread[threads];
+        for( int i = 0; i < threads; i++ ) {
+            final Random rand = new Random(seed + i + 1);
+            workers[i] = new Thread() {
+                public void run() {
+                    byte[] value = new byte[size];
+                    for( int j = 0; j < ops; j++ ) {
+                        StoreService store = nodes[rand.nextInt(nodes.length)].getStore();
+                        Index        key   = key_set[rand.nextInt(keys)];
+                        boolean      get   = rand.nextDouble() < get_ratio;
+                        long         start = System.nanoTime();
+                        try {
+                            if( get ) {
+                                store.get(key);
+                            } else {
+                                rand.nextBytes(value);
+                                store.put(key, value);
+                            }
+                            metrics.histogram(get ? "get" : "put").record((System.nanoTime() - start) / 1000);
+                        } catch (SocketTimeoutException e) {
+                            metrics.counter(get ? "get" : "put").inc();
+                            timeouts.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for( Thread w : workers ) w.start();
+        for( Thread w : workers ) w.join();
+        return System.currentTimeMillis() - start;
+    }
+    
+    private void print(String op) {
+        Metrics.Histogram h = metrics.histogram(op);
+        System.out.println(String.format("%-6s %8d %8d %8d %8d %8d",
+                op, h.getCount(), h.getPercentile(50), h.getPercentile(99), h.getMax(),
+                metrics.counter(op).get()));
+    }
+    
+    /**
+     * Print the results.
+     * 
+     * @param millis
+     *     Wall clock time of the run.
+     */
+    public void report(long millis) {
+        int min = Integer.MAX_VALUE, max = 0;
+        for( AccordNode n : nodes ) {
+            int count = n.getStore().getLocalStore().size();
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+        System.out.println("# nodes="+nodes.length+" keys="+keys+" threads="+threads+" size="+size+
+                           " get_ratio="+get_ratio+" type="+Conf.store__type);
+        System.out.println("# keys per node: min="+min+" max="+max);
+        System.out.println("op        count   p50_us   p99_us   max_us timeouts");
+        print("get");
+        print("put");
+        long total = metrics.histogram("get").getCount() + metrics.histogram("put").getCount();
+        System.out.println(String.format("# %d ops in %d ms, %.0f ops/s",
+                total, millis, millis > 0 ? total * 1000.0 / millis : 0.0));
+    }
+    
+    public static void main(String[] args) {
+        OptionParser.Result res = opts.parse(args);
+        try {
+            if( !res.has('c') ) {
+                System.err.println("usage: StoreBenchmark --config file [options]");
+                System.exit(1);
+            }
+            Config.loadFile(res.get('c'), Conf.class, null);
+            Conf.store__enabled = true;
+            if( res.has('T') ) Conf.store__type = LocalStore.Type.valueOf(res.get('T'));
+            
+            StoreBenchmark bench = new StoreBenchmark(
+                    res.has('n') ? Integer.parseInt(res.get('n'))     : 5,
+                    res.has('k') ? Integer.parseInt(res.get('k'))     : 1000,
+                    res.has('o') ? Integer.parseInt(res.get('o'))     : 2000,
+                    res.has('t') ? Integer.parseInt(res.get('t'))     : 4,
+                    res.has('S') ? Integer.parseInt(res.get('S'))     : 100,
+                    res.has('g') ? Double.parseDouble(res.get('g'))   : 0.9,
+                    res.has('s') ? Long.parseLong(res.get('s'))       : 1);
+            if( !bench.settle(30000) ) System.err.println("# ring not stable, running anyway");
+            int fail = bench.load();
+            if( fail > 0 ) System.err.println("# "+fail+" puts failed while loading");
+            bench.report(bench.run());
+            System.exit(0);
+        } catch (FileNotFoundException e) {
+            System.err.println("no such config file: "+e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("invalid argument: "+e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.err.println("interrupted");
+            System.exit(1);
+        }
+    }
+}
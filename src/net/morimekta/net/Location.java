@@ -1,6 +1,8 @@
 package net.morimekta.net;
 
 import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -8,7 +10,9 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.morimekta.util.index.Index;
 import net.morimekta.util.index.SHA1Factory;
@@ -32,17 +36,132 @@ public class Location extends InetSocketAddress implements Comparable<Location>,
      * viewed to the local host.
      */
     private static ArrayList<InetAddress> localAddresses = null;
-
+    
     /**
-     * Known activity timestamp.
+     * Intern table of all known locations, keyed on the raw address bytes and
+     * port. The locations are weakly referenced, so a location no longer in
+     * use by any node is dropped from the table, and the table is bounded by
+     * the locations in use.
      */
-    private long timestamp = 0;
-    
+    private static final ConcurrentHashMap<Object, Ref> interned =
+        new ConcurrentHashMap<Object, Ref>();
+        
+    /**
+     * Intern table of the canonical "ip:port" strings, so a repeated peer string
+     * costs only a single lookup. Weak as the interned table.
+     */
+    private static final ConcurrentHashMap<Object, Ref> strings  =
+        new ConcurrentHashMap<Object, Ref>();
+        
+    /**
+     * Queue of the interned locations that has been collected.
+     */
+    private static final ReferenceQueue<Location>       collected =
+        new ReferenceQueue<Location>();
+        
     /**
      * Index of host in ring.
      */
     private Index index;
+    
+    /**
+     * Cached "ip:port" string.
+     */
+    private transient String string = null;
+    
+    /**
+     * Key of the intern table. Raw address bytes and port number.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    private static final class Key {
+        private final byte[] addr;
+        private final int    port;
+        private final int    hash;
+        
+        Key(byte[] _addr, int _port) {
+            addr = _addr;
+            port = _port;
+            hash = 31*Arrays.hashCode(_addr) + _port;
+        }
+        
+        public int hashCode() {
+            return hash;
+        }
+        
+        public boolean equals(Object o) {
+            if( !(o instanceof Key) ) return false;
+            Key k = (Key) o;
+            return port == k.port && Arrays.equals(addr, k.addr);
+        }
+    }
 
+    /**
+     * Weak reference to an interned Location, that knows its key and table so
+     * it can be removed when collected.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    private static final class Ref extends WeakReference<Location> {
+        private final Object                          key;
+        private final ConcurrentHashMap<Object, Ref> table;
+        
+        Ref(Location loc, Object _key, ConcurrentHashMap<Object, Ref> _table) {
+            super(loc, collected);
+            key   = _key;
+            table = _table;
+        }
+    }
+    
+    /**
+     * Get an interned Location.
+     * 
+     * @return
+     *     The Location, or null if not interned.
+     */
+    private static Location lookup(ConcurrentHashMap<Object, Ref> table, Object key) {
+        Ref ref = table.get(key);
+        return ref == null ? null : ref.get();
+    }
+    
+    /**
+     * Intern a Location, unless another Location is already interned with
+     * the same key.
+     * 
+     * @return
+     *     The interned Location.
+     */
+    private static Location intern(ConcurrentHashMap<Object, Ref> table, Object key, Location loc) {
+        expunge();
+        Ref ref = new Ref(loc, key, table);
+        while( true ) {
+            Ref old = table.putIfAbsent(key, ref);
+            if( old == null ) return loc;
+            Location tmp = old.get();
+            if( tmp != null ) return tmp;
+            // collected, but not yet expunged.
+            if( table.replace(key, old, ref) ) return loc;
+        }
+    }
+    
+    /**
+     * Remove the collected locations from the intern tables.
+     */
+    private static void expunge() {
+        Ref ref;
+        while( ( ref = (Ref) collected.poll() ) != null ) {
+            ref.table.remove(ref.key, ref);
+        }
+    }
+    
+    /**
+     * @return Number of interned locations.
+     */
+    public static int interned() {
+        expunge();
+        return interned.size();
+    }
+    
     /**
      * Prevent no-argument instantiation.
      *
@@ -86,12 +205,21 @@ public class Location extends InetSocketAddress implements Comparable<Location>,
      *
      */
     private void calculateIndex() throws UnknownHostException {
-        String tmp = toString();
+        if( getAddress() != null && !isUnresolved() ) {
+            // reuse the index of a known location, avoids re-hashing.
+            Location known = lookup(interned, new Key(getAddress().getAddress(), getPort()));
+            if( known != null ) {
+                setIndex(known.index);
+                return;
+            }
+        }
+        String tmp = null;
         try {
             // Default is SHA1Index.
             if( getAddress() == null || isUnresolved() ) {
                 throw new Exception("unable to resolve host");
             }
+            tmp = toString();
             setIndex(SHA1Factory.getInstance().getIndexOf(tmp));
         } catch( Exception e ) {
             // and we forwards the stack-trace so we dont looses the original ...
@@ -126,6 +254,61 @@ public class Location extends InetSocketAddress implements Comparable<Location>,
         this(getHostnameFrom(host_port), getPortFrom(host_port));
     }
     
+    /**
+     * Get the interned Location of the address and port. Repeated calls with
+     * the same address and port returns the same Location object, and the
+     * index is only calculated once. The Location is shared by all nodes in
+     * the process, so it only holds the identity of the host; what a node
+     * knows about the host (as when it was last heard from) is kept by the
+     * node.
+     * 
+     * @param addr
+     *     InetAddress (IP) of host.
+     * @param port
+     *     Port number to host/service.
+     * @return
+     *     The interned Location.
+     * @throws UnknownHostException
+     *     If the address is not valid.
+     */
+    public static Location get(InetAddress addr, int port) throws UnknownHostException {
+        if( addr == null ) throw new UnknownHostException("no address");
+        Key      key = new Key(addr.getAddress(), port);
+        Location ret = lookup(interned, key);
+        if( ret == null ) ret = intern(interned, key, new Location(addr, port));
+        return ret;
+    }
+    
+    /**
+     * Get the interned Location from a host:port string. Numeric (IPv4)
+     * addresses are parsed directly and never go through name resolution.
+     * 
+     * @param host_port
+     *     Host:Port string.
+     * @return
+     *     The interned Location.
+     * @throws UnknownHostException
+     *     If the host part cannot be resolved.
+     */
+    public static Location get(String host_port) throws UnknownHostException {
+        Location ret = lookup(strings, host_port);
+        if( ret != null ) return ret;
+        
+        String host = getHostnameFrom(host_port);
+        int    port = getPortFrom(host_port);
+        byte[] addr = parseNumeric(host);
+        if( addr != null ) {
+            ret = get(InetAddress.getByAddress(addr), port);
+            // only cache the canonical string form.
+            if( host_port.equals(ret.toString()) ) ret = intern(strings, host_port, ret);
+        } else {
+            // host name, needs the resolver.
+            Location tmp = new Location(host, port);
+            ret = get(tmp.getAddress(), port);
+        }
+        return ret;
+    }
+    
     /**
      * Create a Location from a host string and a port number.
      * 
@@ -170,12 +353,13 @@ public class Location extends InetSocketAddress implements Comparable<Location>,
      * @return String representaiton of Location
      */
     public String toString() {
-        if( getAddress() == null || isUnresolved() ) {
-            throw new RuntimeException("Location has no valid address");
-        } else {
-            String[] tmp = getAddress().toString().split("/");
-            return tmp[1]+":"+getPort();
+        if( string == null ) {
+            if( getAddress() == null || isUnresolved() ) {
+                throw new RuntimeException("Location has no valid address");
+            }
+            string = getAddress().getHostAddress()+":"+getPort();
         }
+        return string;
     }
     
     /**
@@ -231,6 +415,36 @@ public class Location extends InetSocketAddress implements Comparable<Location>,
         return ret;
     }
     
+    /**
+     * Parses a numeric IPv4 address ("a.b.c.d") without the use of the
+     * resolver.
+     * 
+     * @param host
+     *    Host string to parse.
+     * @return
+     *    The 4 address bytes, or null if host is not a numeric IPv4 address.
+     */
+    private static final byte[] parseNumeric(String host) {
+        byte[] ret  = new byte[4];
+        int    part = 0,
+               val  = -1;
+        for( int i = 0; i < host.length(); i++ ) {
+            char c = host.charAt(i);
+            if( c >= '0' && c <= '9' ) {
+                val = ( val < 0 ? 0 : val*10 ) + (c - '0');
+                if( val > 255 ) return null;
+            } else if( c == '.' && val >= 0 && part < 3 ) {
+                ret[part++] = (byte) val;
+                val = -1;
+            } else {
+                return null;
+            }
+        }
+        if( part != 3 || val < 0 ) return null;
+        ret[3] = (byte) val;
+        return ret;
+    }
+    
     /**
      * get the local ip address (as viewed from the outside).
      * 
@@ -276,24 +490,4 @@ public class Location extends InetSocketAddress implements Comparable<Location>,
             System.err.println(e.getMessage());
         }
     }
-    
-    
-    /**
-     * Get the timestamp of the link.
-     * @return
-     *     Timestamp value.
-     */
-    public long getTimestamp() {
-        return timestamp;
-    }
-
-    
-    /**
-     * Set the timestamp of the link to a new value.
-     * @param _timestamp
-     */
-    public void setTimestamp(long _timestamp) {
-        timestamp = _timestamp;
-    }
-
 }
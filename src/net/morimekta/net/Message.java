@@ -3,6 +3,7 @@ package net.morimekta.net;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.DatagramPacket;
+import java.net.UnknownHostException;
 import java.util.Arrays;
 
 import net.morimekta.util.std.STD;
@@ -202,10 +203,13 @@ public class Message implements Comparable<Message>, Serializable {
      * 
      * @param in
      *    Packet to create message from.
+     * @throws UnknownHostException
+     *    If unable to make a Location of the packet sender.
      */
-    protected Message(DatagramPacket in) {
+    protected Message(DatagramPacket in) throws UnknownHostException {
         int  p_len = in.getLength();
         // sender of packet.
+        sender     = Location.get(in.getAddress(), in.getPort());
         // content
         data       = new byte[p_len];
         STD.strcpy(in.getData(), data);
@@ -348,6 +352,14 @@ public class Message implements Comparable<Message>, Serializable {
 	public Location getSender() {
 		return sender;
 	}
+
+    /**
+     * Sets the sender, for a message unpacked from another message.
+     * @param _sender sender of the message.
+     */
+    public void setSender(Location _sender) {
+        sender = _sender;
+    }
     
     /**
      * Get the operation.
@@ -1,7 +1,6 @@
 package net.morimekta.net;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
@@ -11,6 +10,9 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Metrics;
+
 /**
  * General Messaging Socket.
  * 
@@ -19,6 +21,9 @@ import java.util.LinkedList;
  * needed to make safer transmission.
  * <br><br>
  * Uses also MessageServices to invoke services listening to the socket.
+ * <br><br>
+ * The packets go through a Transport, a UDP socket by default, or an
+ * endpoint on a SimNetwork.
  * 
  * @author Stein Eldar Johnsen
  */
@@ -42,9 +47,9 @@ public class MessageSocket {
     private int             max_thread_count    = 10;
     
     /**
-     * DatagramSocket object.
+     * Packet transport.
      */
-    private DatagramSocket  socket;
+    private Transport       socket;
     
     /**
      * The local locaiton, used for self reference.
@@ -53,6 +58,8 @@ public class MessageSocket {
         
     private Thread[] ticket_map = new Thread[TICKET_COUNT];
     private int      last_ticket = 0;
+    // listener of a ticket, or null if its messages are queued for receive.
+    private MessageService[] listener_map = new MessageService[TICKET_COUNT];
     
     private static Message ping = new Message(0, 0, Message.PING);
     private static Message pong = new Message(0, 0, Message.PONG);
@@ -64,7 +71,7 @@ public class MessageSocket {
     /**
      * Running socket thread (daemon).
      */
-    private Thread           running = new Thread() {
+    private Thread           running = Clock.get().thread(new Runnable() {
         public void run(){
             try {
                 receiveLoop();
@@ -74,7 +81,7 @@ public class MessageSocket {
             }
         }
         
-    };
+    });
     
     // HashMap is faster than TreeMap when there is a large amount of services (20+).
     private Hashtable<String,MessageService> services = new Hashtable<String,MessageService>();
@@ -83,7 +90,31 @@ public class MessageSocket {
     
     private long  invoke_count = 0;
     
-    private class ServiceInvoker extends Thread {
+    /**
+     * Time of the last valid message received.
+     */
+    private volatile long activity = 0;
+    
+    private volatile Metrics metrics = new Metrics();
+    
+    /**
+     * The socket.sent counter of a thread, for the metrics registry it was
+     * made from.
+     */
+    private static class Sent {
+        final Metrics         metrics;
+        final Metrics.Counter counter;
+        
+        Sent(Metrics _metrics, Metrics.Counter _counter) {
+            metrics = _metrics;
+            counter = _counter;
+        }
+    }
+    
+    // the source of a thread does not change, so its counter is cached.
+    private final ThreadLocal<Sent> sent = new ThreadLocal<Sent>();
+    
+    private class ServiceInvoker implements Runnable {
         public MessageService service;
         public Message        message;
         
@@ -103,6 +134,23 @@ public class MessageSocket {
         }
     }
     
+    /**
+     * Invoke a service with a message in a new thread, started on the clock.
+     * 
+     * @param serv
+     *     Service to invoke.
+     * @param msg
+     *     Message to the service.
+     */
+    private void invoke(MessageService serv, Message msg) {
+        ServiceInvoker inv = new ServiceInvoker();
+        inv.message = msg;
+        inv.service = serv;
+        Thread thread = Clock.get().thread(inv);
+        thread.setName(getLocation()+"."+serv.getServiceName()+"#"+(++invoke_count));
+        Clock.get().start(thread);
+    }
+    
     /*
      * THREAD CONTROL
      */
@@ -115,7 +163,6 @@ public class MessageSocket {
         Message msg;
         String  op;
         MessageService serv;
-        ServiceInvoker inv;
         byte[]         buffer = new byte[max_packet_size];
         while( operate ) {
             try {
@@ -127,7 +174,7 @@ public class MessageSocket {
                 msg = new Message(p);
                 
                 // mark for activity ! We have received a valid message.
-                location.setTimestamp(System.currentTimeMillis());
+                activity = Clock.get().millis();
                 
                 // no need to make new packet if timeout... 
                 p = new DatagramPacket(new byte[max_packet_size], max_packet_size);
@@ -143,14 +190,29 @@ public class MessageSocket {
                     /* DEBUG *
                     System.out.println(" --- "+getHost()+" MESSAGE TO "+msg.getSender()+"-"+msg.toTicket);
                     /* DEBUG */ 
+                    serv = null;
                     // prevent ticket mess...
                     synchronized ( this ) {
                         // only receive requested messages! This prevents "phony" messages
                         // from previous sessions to interfere with new sessions.
                         if  (   msg.toTicket < ticket_map.length &&
                                 ticket_map[msg.toTicket] != null   ) {
-                            queue.addLast( msg );
-                            notifyAll();
+                            serv = listener_map[msg.toTicket];
+                            if( serv == null ) {
+                                queue.addLast( msg );
+                                Clock.get().signal(this);
+                            }
+                        } else {
+                            metrics.counter("socket.phony").inc();
+                        }
+                    }
+                    if( serv != null ) {
+                        // outside the lock, the listener may send.
+                        try {
+                            serv.invoke(msg);
+                        } catch( RuntimeException e ) {
+                            System.err.println("Exception: "+e.getMessage());
+                            e.printStackTrace();
                         }
                     }
                 } else {
@@ -162,24 +224,20 @@ public class MessageSocket {
                         serv = services.get(op);
                         
                         if( serv != null ) {
-                            inv = new ServiceInvoker();
-                            inv.message = msg;
-                            inv.service = serv;
-                            inv.setName(getLocation()+"."+serv.getServiceName()+"#"+(++invoke_count));
-                            inv.start();
+                            invoke(serv, msg);
                         } else {
                             /* DEBUG *
                             System.out.println(" --- "+getHost()+" NO SUCH SERVICE SERVICE "+msg.operation);
                             /* DEBUG */ 
+                            metrics.counter("socket.no_service").inc();
                         }
                     } else {
                         /* DEBUG *
                         System.out.println(" --- "+getHost()+" INVALID MESSAGE ");
                         /* DEBUG */ 
+                        metrics.counter("socket.invalid").inc();
                     }
                 }
-                
-                System.gc(); // is not so slow ...
             } catch (SocketTimeoutException e) {
                 // loop...
             } catch (UnknownHostException e ) {
@@ -204,15 +262,20 @@ public class MessageSocket {
      * @throws SocketException 
      */
     public MessageSocket(int port) throws SocketException {
-        if( port >= 0 ){
-            socket = new DatagramSocket(port);
-        } else {
-            socket = new DatagramSocket();
-        }
+        this(new UdpTransport(port));
+    }
+    
+    /**
+     * Creates a socket on a transport.
+     * @param transport packet transport, e.g. an endpoint of a SimNetwork.
+     * @throws SocketException 
+     */
+    public MessageSocket(Transport transport) throws SocketException {
+        socket = transport;
         
         ticket_map[0] = running;
         try {
-            location = new Location(Location.getLocalAddress(), socket.getLocalPort());
+            location = Location.get(socket.getLocalAddress(), socket.getLocalPort());
         } catch( Exception e ) {
             System.err.println("Unhandled Exception in Location<init>(addr,port):");
             System.err.println(e.getClass().getSimpleName()+": "+e.getMessage());
@@ -224,7 +287,7 @@ public class MessageSocket {
         }
         running.setDaemon(true);
         running.setName(toString()+".Socket");
-        running.start();
+        Clock.get().start(running);
     }
 	
     /*
@@ -296,7 +359,7 @@ public class MessageSocket {
         long to, rest;
         
         if( timeout < 0 ) to = -1;
-        else              to = System.currentTimeMillis() + timeout ;
+        else              to = Clock.get().millis() + timeout ;
         
         for( ;; ){
             try{
@@ -310,18 +373,18 @@ public class MessageSocket {
                 
                 // not found...
                 
-                if( to > 0 && to < System.currentTimeMillis() ) {
+                if( to > 0 && to < Clock.get().millis() ) {
                     throw new SocketTimeoutException("message receive timeout");
                 } else if( to > 0 ) {
-                    rest = to - System.currentTimeMillis();
+                    rest = to - Clock.get().millis();
                     if( rest > 0 ) {
-                        wait(rest);
+                        Clock.get().await(this, rest);
                     } else {
                         throw new SocketTimeoutException("message receive timeout");
                     }
                 } else {
                     // no timeout limit.
-                    wait();
+                    Clock.get().await(this, 0);
                 }
             } catch( InterruptedException e ){
                 // loop.
@@ -345,9 +408,17 @@ public class MessageSocket {
         if( msg == null || to == null ) return false;
         try{
             if( location.equals(to) && msg.getToTicket() == 0 ) {
+                MessageService serv = ( msg.operation == null ? null : services.get(msg.operation) );
+                if( serv != null ) {
+                    // a service message to self, as a leave check from IAmAlive.
+                    Message copy = new Message(msg);
+                    copy.sender = location;
+                    invoke(serv, copy);
+                    return true;
+                }
                 synchronized ( this ) {
                     queue.addLast(msg);
-                    notifyAll();
+                    Clock.get().signal(this);
                     return true;
                 }
             }
@@ -366,16 +437,53 @@ public class MessageSocket {
             p.setAddress(ip);
             p.setPort(to.getPort());
             socket.send(p);
+            sentCounter().inc();
             /* DEBUG *
             System.out.println(" --- "+getHost()+" SENDING MESSAGE TO "+ ip+":"+to.getPort());
             /* DEBUG */ 
             return true;
         } catch( IOException e ){
             //assert false : "MessageSocket.send(): "+e.getMessage();
+            metrics.counter("socket.send_failed").inc();
             return false;
         }
     }
     
+    /**
+     * Get the socket.sent counter of the source of the calling thread. It is
+     * looked up once for each thread, and again if the metrics registry is
+     * replaced.
+     * 
+     * @return
+     *     Counter of sent messages.
+     */
+    private Metrics.Counter sentCounter() {
+        Sent    s = sent.get();
+        Metrics m = metrics;
+        if( s == null || s.metrics != m ) {
+            s = new Sent(m, m.counter("socket.sent."+source()));
+            sent.set(s);
+        }
+        return s.counter;
+    }
+    
+    /**
+     * Get the source of a message sent by the calling thread, from the name
+     * of the thread. The threads of the node are named "location.Source" or
+     * "location.service#n", as "Stabilizer", "IAmAlive" or "Socket" (pongs).
+     * Other threads are "client".
+     * 
+     * @return
+     *     Source name.
+     */
+    private String source() {
+        String name   = Thread.currentThread().getName();
+        String prefix = location.toString();
+        if( name.length() <= prefix.length() + 1 || !name.startsWith(prefix) ) return "client";
+        int end = name.indexOf('#', prefix.length());
+        return name.substring(prefix.length() + 1, end < 0 ? name.length() : end);
+    }
+    
     /*
      * TICKETS
      */
@@ -396,6 +504,7 @@ public class MessageSocket {
         }
         
         if( ticket_map[ticket] != null ) {
+            metrics.counter("socket.ticket_exhausted").inc();
             throw new IndexOutOfBoundsException("out of free ticket numbers");
         }
         
@@ -403,6 +512,40 @@ public class MessageSocket {
         ticket_map[ticket] = Thread.currentThread();
         return ticket;
     }
+    /**
+     * Request a ticket whose messages are given to a listener as they
+     * arrive, instead of being queued for receive. The listener is called on
+     * the socket thread, so it must not block, and the ticket is held until
+     * freed with the listener, not by the thread that requested it.
+     * 
+     * @param listener
+     *     Service to give the messages to.
+     * @return assigned ticket number.
+     * @throws IndexOutOfBoundsException
+     *     If there are none available.
+     * @see MessageSocket#freeTicket(int, MessageService)
+     */
+    public synchronized int requestTicket(MessageService listener) throws IndexOutOfBoundsException {
+        int ticket = requestTicket();
+        ticket_map[ticket]   = running;
+        listener_map[ticket] = listener;
+        return ticket;
+    }
+    
+    /**
+     * Free a ticket held by a listener.
+     * 
+     * @param ticket number to free.
+     * @param listener the ticket was requested with.
+     * @return true if freed, false otherwise.
+     */
+    public synchronized boolean freeTicket(int ticket, MessageService listener){
+        if( listener == null || listener_map[ticket] != listener ) return false;
+        listener_map[ticket] = null;
+        ticket_map[ticket]   = null;
+        return true;
+    }
+    
     /**
      * Free a certain ticket for further requests.
      * 
@@ -410,7 +553,7 @@ public class MessageSocket {
      * @return true if freed, false otherwise.
      */
     public synchronized boolean freeTicket(int ticket){
-        if( Thread.currentThread().equals(ticket_map[ticket]) ){
+        if( Thread.currentThread().equals(ticket_map[ticket]) && listener_map[ticket] == null ){
             ticket_map[ticket] = null;
             
             // clear away "stale" messages. This prevents a lot of
@@ -476,7 +619,7 @@ public class MessageSocket {
             msg = new Message(ping);
             msg.setFromTicket(ticket);
 
-            start = System.currentTimeMillis();
+            start = Clock.get().millis();
             ptimeout = start + timeout;
             mtimeout = timeout/tries;
             
@@ -485,12 +628,14 @@ public class MessageSocket {
                 try {
                     response = receive(ticket, mtimeout);
                     if( response.sender.equals(to) ) {
-                        if( (response.opts & Message.PONG) > 0 ) return System.currentTimeMillis() - start;
+                        if( (response.opts & Message.PONG) > 0 ) return Clock.get().millis() - start;
                     } else response = null; // loop.
                 } catch ( SocketTimeoutException e) {
-                    if( ptimeout < System.currentTimeMillis() ) {
+                    if( ptimeout < Clock.get().millis() ) {
+                        metrics.counter("socket.ping_timeout").inc();
                         return -1; // unreachable.
                     }
+                    metrics.counter("socket.ping_retransmit").inc();
                     send(to, msg);
                 }
             }
@@ -529,7 +674,7 @@ public class MessageSocket {
      *    MessageService retrieved.
      */
     public synchronized MessageService getService(String name){
-        return (MessageService) services.get(name);
+        return services.get(name);
     }
     
     
@@ -542,7 +687,7 @@ public class MessageSocket {
      *    MessageService unregisteres or null if not in list.
      */
     public synchronized MessageService unregister(String name){
-        return (MessageService) services.remove(name);
+        return services.remove(name);
     }
     
 
@@ -559,6 +704,25 @@ public class MessageSocket {
         return location;
     }
     
+    /**
+     * @return Time of the last valid message received, in milliseconds.
+     */
+    public long getActivity() {
+        return activity;
+    }
+    
+    /**
+     * Set the metrics registry to count sent messages by source (as
+     * socket.sent.Stabilizer), dropped messages, ticket exhaustion
+     * and retransmits in.
+     * 
+     * @param _metrics
+     *    Metrics registry.
+     */
+    public void setMetrics(Metrics _metrics) {
+        metrics = _metrics;
+    }
+    
     /**
      * Set new max packet size limit.
      * 
@@ -615,13 +779,6 @@ public class MessageSocket {
     public void close() {
         System.err.println(" - NO CLOSING OPERATION! -");
         operate = false;
-        if( socket.isBound() ) {
-            socket.close();
-        }
-    }
-    
-    @Override
-    protected void finalize() {
-        close();
+        socket.close();
     }
 }
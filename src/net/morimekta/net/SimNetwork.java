@@ -0,0 +1,425 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import net.morimekta.util.std.Clock;
+import net.morimekta.util.std.Metrics;
+
+/**
+ * In-memory simulated network. Each endpoint is a Transport with its own
+ * address in 10.0.0.0/8, so a MessageSocket (and an AccordNode) can run on
+ * it as on a real UDP socket, and many nodes can run in the same JVM.
+ * 
+ * Packets are delivered after a latency drawn from the latency distribution,
+ * and can be lost, reordered, or dropped by a partition. Without reordering,
+ * packets between two endpoints are delivered in the order they were sent.
+ * The randomness is seeded, and the nodes draw from it in the order their
+ * threads run. The latency is on the current Clock, so with a SimClock it is
+ * virtual time, and as the threads then run one at a time, the network
+ * decisions are repeatable too.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class SimNetwork {
+    /**
+     * Latency distribution of the packets.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public enum Latency {
+        /**
+         * Always the mean.
+         */
+        constant,
+        /**
+         * Uniform in [mean - jitter, mean + jitter].
+         */
+        uniform,
+        /**
+         * Jitter plus an exponential distribution, so the mean is kept.
+         */
+        exponential,
+    }
+    
+    /**
+     * A packet in flight.
+     */
+    private static class Packet implements Comparable<Packet> {
+        final long     at;
+        final long     seq;
+        final Location from;
+        final Location to;
+        final byte[]   data;
+        
+        Packet(long _at, long _seq, Location _from, Location _to, byte[] _data) {
+            at   = _at;
+            seq  = _seq;
+            from = _from;
+            to   = _to;
+            data = _data;
+        }
+        
+        public int compareTo(Packet o) {
+            if( at != o.at ) return at < o.at ? -1 : 1;
+            return seq < o.seq ? -1 : ( seq > o.seq ? 1 : 0 );
+        }
+    }
+    
+    /**
+     * Endpoint on the simulated network.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public class Endpoint implements Transport {
+        private final Location           location;
+        private final LinkedList<Packet> inbox = new LinkedList<Packet>();
+        private volatile boolean         closed = false;
+        
+        private Endpoint(Location _location) {
+            location = _location;
+        }
+        
+        public void send(DatagramPacket p) throws IOException {
+            if( closed ) throw new SocketException("endpoint closed");
+            byte[] data = new byte[p.getLength()];
+            System.arraycopy(p.getData(), p.getOffset(), data, 0, data.length);
+            transmit(location, Location.get(p.getAddress(), p.getPort()), data);
+        }
+        
+        public synchronized void receive(DatagramPacket p) throws IOException {
+            while( inbox.isEmpty() ) {
+                if( closed ) throw new SocketException("endpoint closed");
+                try {
+                    Clock.get().await(this, 0);
+                } catch (InterruptedException e) {
+                    throw new SocketTimeoutException("interrupted");
+                }
+            }
+            Packet in  = inbox.removeFirst();
+            int    len = Math.min(in.data.length, p.getData().length);
+            System.arraycopy(in.data, 0, p.getData(), 0, len);
+            p.setLength(len);
+            p.setAddress(in.from.getAddress());
+            p.setPort(in.from.getPort());
+        }
+        
+        private synchronized void deliver(Packet p) {
+            inbox.addLast(p);
+            Clock.get().signal(this);
+        }
+        
+        /**
+         * @return The Location of the endpoint.
+         */
+        public Location getLocation() {
+            return location;
+        }
+        
+        public InetAddress getLocalAddress() {
+            return location.getAddress();
+        }
+        
+        public int getLocalPort() {
+            return location.getPort();
+        }
+        
+        public boolean isClosed() {
+            return closed;
+        }
+        
+        public void close() {
+            synchronized( this ) {
+                closed = true;
+                inbox.clear();
+                Clock.get().signal(this);
+            }
+            endpoints.remove(location);
+        }
+        
+        public String toString() {
+            return "Endpoint["+location+"]";
+        }
+    }
+    
+    private final Hashtable<Location, Endpoint> endpoints = new Hashtable<Location, Endpoint>();
+    private final Hashtable<Location, Integer>  groups    = new Hashtable<Location, Integer>();
+    private final PriorityQueue<Packet>         flight    = new PriorityQueue<Packet>();
+    private final HashMap<String, Long>         last      = new HashMap<String, Long>();
+    private final Random                        random;
+    
+    private Latency latency        = Latency.constant;
+    private long    latency_mean   = 1;
+    private long    latency_jitter = 0;
+    private double  loss           = 0.0;
+    private double  reorder        = 0.0;
+    private int     next_host      = 0;
+    private int     next_group     = 0;
+    private long    seq            = 0;
+    
+    private volatile Metrics metrics = new Metrics();
+    private volatile boolean operate = false;
+    
+    /**
+     * Delivery thread (daemon).
+     */
+    private Thread daemon = Clock.get().thread(new Runnable() {
+        public void run() {
+            deliverLoop();
+        }
+    });
+    
+    /**
+     * Create a simulated network.
+     * 
+     * @param seed
+     *    Seed of the network randomness.
+     */
+    public SimNetwork(long seed) {
+        random = new Random(seed);
+        daemon.setDaemon(true);
+        daemon.setName("SimNetwork.Delivery");
+    }
+    
+    /**
+     * Open an endpoint on a new host address.
+     * 
+     * @param port
+     *    Port number of the endpoint.
+     * @return
+     *    The new endpoint.
+     */
+    public synchronized Endpoint open(int port) {
+        int n = ++next_host;
+        if( n >= ( 1 << 24 ) - 1 ) throw new IllegalStateException("out of simulated addresses");
+        try {
+            InetAddress addr = InetAddress.getByAddress(new byte[]{
+                    10, (byte) ( n >> 16 ), (byte) ( n >> 8 ), (byte) n });
+            Endpoint e = new Endpoint(Location.get(addr, port));
+            endpoints.put(e.getLocation(), e);
+            return e;
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+    
+    /**
+     * Open an endpoint on the address of an earlier endpoint, as another
+     * virtual node of the same host.
+     * 
+     * @param addr
+     *    Host address of the endpoint.
+     * @param port
+     *    Port number of the endpoint.
+     * @return
+     *    The new endpoint.
+     */
+    public synchronized Endpoint open(InetAddress addr, int port) {
+        try {
+            Endpoint e = new Endpoint(Location.get(addr, port));
+            if( endpoints.containsKey(e.getLocation()) ) throw new IllegalStateException(e+" is taken");
+            endpoints.put(e.getLocation(), e);
+            return e;
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+    
+    /**
+     * Start delivering packets.
+     */
+    public synchronized void start() {
+        if( operate ) return;
+        operate = true;
+        Clock.get().start(daemon);
+    }
+    
+    /**
+     * Stop delivering packets, the packets in flight are lost.
+     */
+    public void stop() {
+        synchronized( this ) {
+            operate = false;
+            flight.clear();
+            Clock.get().signal(this);
+        }
+        try {
+            Clock.get().join(daemon);
+        } catch (InterruptedException e) {
+            // ignore.
+        }
+    }
+    
+    /**
+     * Set the latency distribution.
+     * 
+     * @param _latency
+     *    Distribution.
+     * @param mean
+     *    Mean latency (ms).
+     * @param jitter
+     *    Jitter (ms), see Latency.
+     */
+    public synchronized void setLatency(Latency _latency, long mean, long jitter) {
+        latency        = _latency;
+        latency_mean   = Math.max(0, mean);
+        latency_jitter = Math.max(0, Math.min(jitter, latency_mean));
+    }
+    
+    /**
+     * @param _loss
+     *    Probability that a packet is lost.
+     */
+    public synchronized void setLoss(double _loss) {
+        loss = _loss;
+    }
+    
+    /**
+     * @param _reorder
+     *    Probability that a packet is held back for up to two mean latencies,
+     *    and may be overtaken by later packets.
+     */
+    public synchronized void setReorder(double _reorder) {
+        reorder = _reorder;
+    }
+    
+    /**
+     * Split the hosts off into a partition of their own. Packets between
+     * hosts in different partitions are dropped, and hosts not in any
+     * partition are together in the rest.
+     * 
+     * @param hosts
+     *    Hosts of the partition.
+     */
+    public synchronized void partition(Collection<Location> hosts) {
+        Integer group = Integer.valueOf(++next_group);
+        for( Location h : hosts ) groups.put(h, group);
+    }
+    
+    /**
+     * Remove all partitions.
+     */
+    public synchronized void heal() {
+        groups.clear();
+    }
+    
+    /**
+     * Set the metrics registry to count sent, delivered and dropped packets in.
+     * 
+     * @param _metrics
+     *    Metrics registry.
+     */
+    public void setMetrics(Metrics _metrics) {
+        metrics = _metrics;
+    }
+    
+    /**
+     * @return Number of open endpoints.
+     */
+    public int size() {
+        return endpoints.size();
+    }
+    
+    /**
+     * Put a packet in flight.
+     */
+    private synchronized void transmit(Location from, Location to, byte[] data) {
+        metrics.counter("sim.sent").inc();
+        if( !operate ) {
+            metrics.counter("sim.lost").inc();
+            return;
+        }
+        if( loss > 0.0 && random.nextDouble() < loss ) {
+            metrics.counter("sim.lost").inc();
+            return;
+        }
+        Integer gf = groups.get(from), gt = groups.get(to);
+        if( gf == null ? gt != null : !gf.equals(gt) ) {
+            metrics.counter("sim.partitioned").inc();
+            return;
+        }
+        
+        long   now = Clock.get().millis();
+        long   at  = now + delay();
+        String key = from+">"+to;
+        if( reorder > 0.0 && random.nextDouble() < reorder ) {
+            at += (long) ( random.nextDouble() * 2 * latency_mean );
+            metrics.counter("sim.reordered").inc();
+        } else {
+            // keep the link in order.
+            Long prev = last.get(key);
+            if( prev != null && prev.longValue() > at ) at = prev.longValue();
+            last.put(key, Long.valueOf(at));
+        }
+        flight.add(new Packet(at, ++seq, from, to, data));
+        Clock.get().signal(this);
+    }
+    
+    /**
+     * @return A latency drawn from the distribution.
+     */
+    private long delay() {
+        switch( latency ) {
+            case uniform:
+                return latency_mean - latency_jitter +
+                       (long) ( random.nextDouble() * ( 2 * latency_jitter + 1 ) );
+            case exponential:
+                return latency_jitter + (long) ( -Math.log(1.0 - random.nextDouble()) *
+                                                 ( latency_mean - latency_jitter ) );
+            default:
+                return latency_mean;
+        }
+    }
+    
+    /**
+     * Deliver the packets in flight when their time has come.
+     */
+    private void deliverLoop() {
+        while( operate ) {
+            Packet p = null;
+            synchronized( this ) {
+                try {
+                    if( flight.isEmpty() ) {
+                        Clock.get().await(this, 0);
+                    } else {
+                        long rest = flight.peek().at - Clock.get().millis();
+                        if( rest > 0 ) Clock.get().await(this, rest);
+                        else           p = flight.poll();
+                    }
+                } catch (InterruptedException e) {
+                    // loop.
+                }
+                if( last.size() > 4 * endpoints.size() + 1024 ) {
+                    // forget links without packets in flight.
+                    last.clear();
+                    for( Packet f : flight ) {
+                        String key = f.from+">"+f.to;
+                        Long   at  = last.get(key);
+                        if( at == null || at.longValue() < f.at ) last.put(key, Long.valueOf(f.at));
+                    }
+                }
+            }
+            if( p == null ) continue;
+            Endpoint e = endpoints.get(p.to);
+            if( e != null ) {
+                e.deliver(p);
+                metrics.counter("sim.delivered").inc();
+            } else {
+                metrics.counter("sim.unreachable").inc();
+            }
+        }
+    }
+}
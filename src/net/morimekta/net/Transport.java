@@ -0,0 +1,58 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+/**
+ * Packet transport under the MessageSocket. The default is UdpTransport on a
+ * DatagramSocket, and SimNetwork gives in-memory endpoints for running many
+ * nodes in one JVM.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public interface Transport {
+    /**
+     * Send a packet to the address and port set in it.
+     * 
+     * @param p
+     *    Packet to send.
+     * @throws IOException
+     *    If unable to send.
+     */
+    public void send(DatagramPacket p) throws IOException;
+    
+    /**
+     * Receive a packet, blocks until one arrives. The data, length, address
+     * and port of the packet is set to the received packet.
+     * 
+     * @param p
+     *    Packet to receive into.
+     * @throws IOException
+     *    If unable to receive, or the transport is closed.
+     */
+    public void receive(DatagramPacket p) throws IOException;
+    
+    /**
+     * @return The address others reach this transport on.
+     */
+    public InetAddress getLocalAddress();
+    
+    /**
+     * @return The local port number.
+     */
+    public int getLocalPort();
+    
+    /**
+     * @return True if closed.
+     */
+    public boolean isClosed();
+    
+    /**
+     * Close the transport, and release any blocked receive.
+     */
+    public void close();
+}
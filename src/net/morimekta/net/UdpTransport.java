@@ -0,0 +1,59 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+/**
+ * Transport on a real UDP DatagramSocket.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class UdpTransport implements Transport {
+    private final DatagramSocket socket;
+    
+    /**
+     * Create a transport on a port.
+     * 
+     * @param port
+     *    Port number, or negative for a vacant port.
+     * @throws SocketException
+     *    If unable to bind the port.
+     */
+    public UdpTransport(int port) throws SocketException {
+        if( port >= 0 ) {
+            socket = new DatagramSocket(port);
+        } else {
+            socket = new DatagramSocket();
+        }
+    }
+    
+    public void send(DatagramPacket p) throws IOException {
+        socket.send(p);
+    }
+    
+    public void receive(DatagramPacket p) throws IOException {
+        socket.receive(p);
+    }
+    
+    public InetAddress getLocalAddress() {
+        return Location.getLocalAddress();
+    }
+    
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+    
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+    
+    public void close() {
+        if( socket.isBound() ) socket.close();
+    }
+}
@@ -19,7 +19,7 @@ import net.morimekta.util.std.STD;
  * 
  * @author Stein Eldar Johnsen
  */
-public final class Index implements Comparable, Serializable {
+public final class Index implements Comparable<Index>, Serializable {
     /**
      * Index is not to be instansiated from any other place than serializable and
      * from the IndexFactories.
@@ -159,22 +159,6 @@ public final class Index implements Comparable, Serializable {
             return false; // all objects are not equal if not compatible.
     }
     
-    /**
-     * Compares the index numerically with another object.
-     * 
-     * @param o
-     *   Index to compare with.
-     * @return
-     *   Positive if this index is "larger" than idx, 0 if they are equivalent and 
-     *   negative otherwise. If the object is not assignable to Index, return -1.
-     */
-    public final int compareTo(Object  o){
-        if( Index.class.isAssignableFrom(o.getClass()) )
-            return compareTo((Index) o);
-        else
-            return -1; // all objects are "smaller" than this if not compatible.
-    }
-    
     /**
      * get the standard hashCode from the index data. Hashcodes the data array, and
      * is thus <em>not</em> linear equivalent to the index.
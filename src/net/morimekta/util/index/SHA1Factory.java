@@ -50,7 +50,10 @@ public class SHA1Factory extends IndexFactory {
             // no value... no hash.
             ret.setBytes(STD.zeroes(length));
         } else {
-            ret.setBytes(mac.digest(a));
+            // MessageDigest is not thread safe.
+            synchronized ( mac ) {
+                ret.setBytes(mac.digest(a));
+            }
         }
         return ret;
     }
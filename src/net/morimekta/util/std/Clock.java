@@ -0,0 +1,173 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import java.util.Random;
+
+/**
+ * Time source and scheduler of timed waits. All timing in the nodes goes
+ * through the current clock, which is the system clock unless a SimClock is
+ * set, so a simulation can run on virtual time.
+ *
+ * Code that used <code>wait(timeout)</code> on a monitor calls
+ * <code>Clock.get().await(monitor, timeout)</code> while holding the monitor,
+ * with the same semantics, including spurious wakeups, and
+ * <code>Clock.get().signal(monitor)</code> instead of <code>notifyAll()</code>.
+ * The threads of the nodes are made by <code>thread()</code>, and started,
+ * joined and interrupted through the clock, so a SimClock can run them one
+ * at a time.
+ *
+ * @author Stein Eldar Johnsen
+ */
+public abstract class Clock {
+    /**
+     * The system clock, on wall clock time.
+     */
+    public static final Clock SYSTEM = new Clock() {
+        private final Random random = new Random();
+
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        public long nanos() {
+            return System.nanoTime();
+        }
+
+        public void await(Object monitor, long timeout) throws InterruptedException {
+            monitor.wait(timeout);
+        }
+
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+        
+        public void signal(Object monitor) {
+            monitor.notifyAll();
+        }
+        
+        public Thread thread(Runnable body) {
+            return new Thread(body);
+        }
+        
+        public void start(Thread thread) {
+            thread.start();
+        }
+        
+        public void join(Thread thread) throws InterruptedException {
+            thread.join();
+        }
+        
+        public void interrupt(Thread thread) {
+            thread.interrupt();
+        }
+
+        public Random random() {
+            return random;
+        }
+    };
+
+    private static volatile Clock clock = SYSTEM;
+
+    /**
+     * @return The current clock.
+     */
+    public static Clock get() {
+        return clock;
+    }
+
+    /**
+     * Set the clock. Must be set before the nodes are created, as deadlines
+     * already computed are not moved.
+     *
+     * @param _clock
+     *    New clock, or null for the system clock.
+     */
+    public static void set(Clock _clock) {
+        clock = ( _clock == null ? SYSTEM : _clock );
+    }
+
+    /**
+     * @return Current time in milliseconds.
+     */
+    public abstract long millis();
+
+    /**
+     * @return Current time in nanoseconds, for measuring intervals only.
+     */
+    public abstract long nanos();
+
+    /**
+     * Wait on a monitor held by the calling thread, until notified or the
+     * timeout has passed on this clock.
+     *
+     * @param monitor
+     *    Monitor to wait on.
+     * @param timeout
+     *    Timeout in milliseconds, 0 waits until notified.
+     * @throws InterruptedException
+     *    If interrupted.
+     */
+    public abstract void await(Object monitor, long timeout) throws InterruptedException;
+
+    /**
+     * Sleep on this clock.
+     *
+     * @param millis
+     *    Time to sleep in milliseconds.
+     * @throws InterruptedException
+     *    If interrupted.
+     */
+    public abstract void sleep(long millis) throws InterruptedException;
+
+    /**
+     * Wake all threads waiting on a monitor held by the calling thread.
+     * 
+     * @param monitor
+     *    Monitor to signal.
+     */
+    public abstract void signal(Object monitor);
+    
+    /**
+     * Make a thread, to be started by start().
+     * 
+     * @param body
+     *    What the thread runs.
+     * @return
+     *    The new thread.
+     */
+    public abstract Thread thread(Runnable body);
+    
+    /**
+     * Start a thread made by thread().
+     * 
+     * @param thread
+     *    Thread to start.
+     */
+    public abstract void start(Thread thread);
+    
+    /**
+     * Wait until a thread has ended.
+     * 
+     * @param thread
+     *    Thread to join.
+     * @throws InterruptedException
+     *    If interrupted.
+     */
+    public abstract void join(Thread thread) throws InterruptedException;
+    
+    /**
+     * Interrupt a thread, so its wait, sleep or join on the clock throws an
+     * InterruptedException.
+     * 
+     * @param thread
+     *    Thread to interrupt.
+     */
+    public abstract void interrupt(Thread thread);
+    
+    /**
+     * @return Random source for timing jitter, seeded on a SimClock.
+     */
+    public abstract Random random();
+}
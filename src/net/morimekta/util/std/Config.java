@@ -195,6 +195,25 @@ public class Config {
         }
     }
     
+    /**
+     * Get an enum constant by name, as Enum.valueOf for a type only known to
+     * be an enum.
+     * @param type
+     *    Enum type.
+     * @param name
+     *    Name of the constant.
+     * @return
+     *    The enum constant.
+     * @throws IllegalArgumentException
+     *    If the type has no such constant.
+     */
+    private static Object enumValue(Class<?> type, String name) {
+        for( Object c : type.getEnumConstants() ) {
+            if( ((Enum<?>) c).name().equals(name) ) return c;
+        }
+        throw new IllegalArgumentException("No enum constant "+type.getName()+"."+name);
+    }
+    
     /**
      * Tries to store a key=value pair into the class or object's field.
      * @param seckey
@@ -220,7 +239,7 @@ public class Config {
             type     = field.getType();
             if( type.isEnum()) {
                 tmp = value.replaceAll("-", "_"); // - is invalid enum stuff... replace with _.
-                field.set(object, Enum.valueOf((Class<? extends Enum>) type, tmp));
+                field.set(object, enumValue(type, tmp));
             }
             else if( type.isAssignableFrom(Integer.TYPE) )   field.setInt(object, Integer.parseInt(value));
             else if( type.isAssignableFrom(Long.TYPE) )     field.setLong(object, Long.parseLong(value));
@@ -0,0 +1,447 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import net.iharder.xmlizable.Base64;
+import net.morimekta.util.index.Index;
+
+/**
+ * Compact binary event journal written through a memory mapped file. Each
+ * record holds a nanosecond timestamp, an event type, a ticket ID and a
+ * payload of typed binary fields. The journal is meant to be left on, so
+ * writing a record is only a few puts into the mapped buffer.
+ * 
+ * File layout:
+ * <pre>
+ *   header: int magic, short version, long millis, long nanos, short len, byte[len] node
+ *   record: int len, long nanos, short type, int ticket, byte[len-14] payload
+ *   field:  byte tag, value
+ * </pre>
+ * The header millis is the wall clock time when the journal was created, and
+ * the header nanos the <code>nanoTime</code> at the same time, which has an
+ * arbitrary origin. The record nanos are relative to the header nanos, so the
+ * absolute time of a record is <code>millis * 1000000</code> of the header
+ * plus the record nanos. A record length of 0 marks the end of the journal.
+ * 
+ * The field values are: an int, a long, <code>short len, byte[len]</code>
+ * for an Index or a byte array, <code>byte len, byte[len] address, short
+ * port</code> for a socket address (such as a Location), and <code>short len,
+ * byte[len]</code> UTF-8 for a string, which is written for anything else.
+ * A null field is only the tag.
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class Journal {
+    /**
+     * Magic number at start of journal files ("JRNL").
+     */
+    public static final int    MAGIC   = 0x4a524e4c;
+    /**
+     * Version of the journal file format.
+     */
+    public static final short  VERSION = 2;
+    
+    private static final int     RECORD_HEADER = 4+8+2+4;
+    private static final Charset UTF8          = Charset.forName("UTF-8");
+    
+    private static final byte    TAG_NULL    = 0;
+    private static final byte    TAG_INT     = 1;
+    private static final byte    TAG_LONG    = 2;
+    private static final byte    TAG_BYTES   = 3;
+    private static final byte    TAG_ADDRESS = 4;
+    private static final byte    TAG_STRING  = 5;
+    
+    /**
+     * Buffer to encode the payload in before taking the lock, per thread.
+     */
+    private static final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(256);
+        }
+    };
+    
+    private RandomAccessFile file;
+    private FileChannel      channel;
+    private MappedByteBuffer buffer;
+    private long             offset;   // file offset of the mapped buffer.
+    private final int        chunk;
+    private final long       millis;
+    private final long       nanos;
+    private final String     node;
+    private boolean          closed = false;
+    
+    /**
+     * A single journal record, as read back by the Reader.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public static class Record {
+        /**
+         * Node that wrote the record.
+         */
+        public final String node;
+        /**
+         * Absolute time of the record in nanoseconds since epoch.
+         */
+        public final long   time;
+        /**
+         * Event type.
+         */
+        public final int    type;
+        /**
+         * Ticket ID of the event, 0 if none.
+         */
+        public final int    ticket;
+        /**
+         * Fields of the payload: Integer, Long, byte[] (for an Index),
+         * InetSocketAddress, String or null.
+         */
+        public final Object[] fields;
+        /**
+         * The fields as text, separated by spaces, empty if none.
+         */
+        public final String payload;
+        
+        Record(String _node, long _time, int _type, int _ticket, Object[] _fields, String _payload) {
+            node    = _node;
+            time    = _time;
+            type    = _type;
+            ticket  = _ticket;
+            fields  = _fields;
+            payload = _payload;
+        }
+    }
+    
+    /**
+     * Reads records from a journal file in written order.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public static class Reader {
+        private ByteBuffer buffer;
+        private String     node;
+        private long       base;
+        private short      version;
+        
+        /**
+         * Open a journal file for reading.
+         * 
+         * @param name
+         *     Name of journal file.
+         * @throws IOException
+         *     If unable to read the file, or it is not a journal.
+         */
+        public Reader(String name) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(name, "r");
+            try {
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+            try {
+                if( buffer.getInt() != MAGIC )
+                    throw new IOException(name+": not a journal file");
+                version = buffer.getShort();
+                if( version != 1 && version != VERSION )
+                    throw new IOException(name+": unsupported journal version");
+                long   millis = buffer.getLong();
+                buffer.getLong(); // nanos, only used by writer.
+                byte[] tmp    = new byte[buffer.getShort()];
+                buffer.get(tmp);
+                node = new String(tmp, UTF8);
+                base = millis * 1000000L;
+            } catch( BufferUnderflowException e ) {
+                throw new IOException(name+": truncated journal header");
+            }
+        }
+        
+        /**
+         * Get the node name of the journal.
+         * 
+         * @return
+         *     Node name.
+         */
+        public String getNode() {
+            return node;
+        }
+        
+        /**
+         * Read the next record.
+         * 
+         * @return
+         *     The next Record, or null if end of journal, or the record is
+         *     corrupt.
+         */
+        public Record next() {
+            if( buffer.remaining() < RECORD_HEADER ) return null;
+            int len = buffer.getInt();
+            if( len < RECORD_HEADER-4 || len > buffer.remaining() ) return null;
+            long   time   = buffer.getLong();
+            int    type   = buffer.getShort();
+            int    ticket = buffer.getInt();
+            byte[] tmp    = new byte[len-(RECORD_HEADER-4)];
+            buffer.get(tmp);
+            if( version == 1 ) {
+                // the payload was a string.
+                String str = new String(tmp, UTF8);
+                return new Record(node, base+time, type, ticket, new Object[]{ str }, str);
+            }
+            
+            ByteBuffer        in     = ByteBuffer.wrap(tmp);
+            ArrayList<Object> fields = new ArrayList<Object>();
+            StringBuilder     text   = new StringBuilder();
+            try {
+                while( in.hasRemaining() ) {
+                    Object field = get(in);
+                    if( fields.size() > 0 ) text.append(' ');
+                    text.append(render(field));
+                    fields.add(field);
+                }
+            } catch( BufferUnderflowException e ) {
+                return null;
+            } catch( IllegalArgumentException e ) {
+                return null;
+            }
+            return new Record(node, base+time, type, ticket, fields.toArray(), text.toString());
+        }
+        
+        /**
+         * Read a payload field.
+         */
+        private static Object get(ByteBuffer in) throws IllegalArgumentException {
+            byte   tag = in.get();
+            byte[] tmp;
+            switch( tag ) {
+                case TAG_NULL:
+                    return null;
+                case TAG_INT:
+                    return Integer.valueOf(in.getInt());
+                case TAG_LONG:
+                    return Long.valueOf(in.getLong());
+                case TAG_BYTES:
+                    tmp = new byte[in.getShort() & 0xffff];
+                    in.get(tmp);
+                    return tmp;
+                case TAG_ADDRESS:
+                    tmp = new byte[in.get() & 0xff];
+                    in.get(tmp);
+                    int port = in.getShort() & 0xffff;
+                    try {
+                        return new InetSocketAddress(InetAddress.getByAddress(tmp), port);
+                    } catch( UnknownHostException e ) {
+                        throw new IllegalArgumentException("invalid address length "+tmp.length);
+                    }
+                case TAG_STRING:
+                    tmp = new byte[in.getShort() & 0xffff];
+                    in.get(tmp);
+                    return new String(tmp, UTF8);
+                default:
+                    throw new IllegalArgumentException("unknown field tag "+tag);
+            }
+        }
+        
+        /**
+         * Make the text of a field, as the field was written as text.
+         */
+        private static String render(Object field) {
+            if( field instanceof byte[] ) return Base64.encodeBytes((byte[]) field);
+            if( field instanceof InetSocketAddress ) {
+                InetSocketAddress addr = (InetSocketAddress) field;
+                return addr.getAddress().getHostAddress()+":"+addr.getPort();
+            }
+            return String.valueOf(field);
+        }
+    }
+    
+    /**
+     * Create a journal in the file 'name'. Any existing file is overwritten.
+     * 
+     * @param name
+     *     Name of journal file.
+     * @param _node
+     *     Name of the node writing the journal.
+     * @param _chunk
+     *     Number of bytes to map at a time.
+     * @throws IOException
+     *     If unable to create or map the file.
+     */
+    public Journal(String name, String _node, int _chunk) throws IOException {
+        File tmp = new File(name);
+        if( tmp.exists() ) tmp.delete();
+        
+        file    = new RandomAccessFile(tmp, "rw");
+        channel = file.getChannel();
+        chunk   = _chunk;
+        node    = _node;
+        offset  = 0;
+        buffer  = channel.map(FileChannel.MapMode.READ_WRITE, offset, chunk);
+        
+        byte[] bytes = node.getBytes(UTF8);
+        millis  = Clock.get().millis();
+        nanos   = Clock.get().nanos();
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putLong(millis);
+        buffer.putLong(nanos);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+    
+    /**
+     * Write a record to the journal.
+     * 
+     * @param type
+     *     Event type.
+     * @param ticket
+     *     Ticket ID of event, 0 if none.
+     * @param fields
+     *     Payload fields, see the class doc for how each is written.
+     */
+    public void record(int type, int ticket, Object... fields) {
+        ByteBuffer payload = encode(fields);
+        int        len     = payload.remaining();
+        synchronized ( this ) {
+            if( closed ) return;
+            try {
+                if( buffer.remaining() < RECORD_HEADER+len+4 ) remap(RECORD_HEADER+len+4);
+            } catch( IOException e ) {
+                e.printStackTrace();
+                closed = true;
+                return;
+            }
+            // timed under the lock, so the records of a file are in time order.
+            buffer.putInt(RECORD_HEADER-4+len);
+            buffer.putLong(Clock.get().nanos() - nanos);
+            buffer.putShort((short) type);
+            buffer.putInt(ticket);
+            buffer.put(payload);
+        }
+    }
+    
+    /**
+     * Encode payload fields in the scratch buffer of the thread.
+     * 
+     * @param fields
+     *     Fields to encode.
+     * @return
+     *     Buffer with the payload between position and limit.
+     */
+    private static ByteBuffer encode(Object[] fields) {
+        ByteBuffer buf = scratch.get();
+        for( ;; ) {
+            buf.clear();
+            try {
+                for( Object field : fields ) put(buf, field);
+                buf.flip();
+                return buf;
+            } catch( BufferOverflowException e ) {
+                buf = ByteBuffer.allocate(2 * buf.capacity());
+                scratch.set(buf);
+            }
+        }
+    }
+    
+    /**
+     * Write a payload field.
+     */
+    private static void put(ByteBuffer buf, Object field) {
+        if( field == null ) {
+            buf.put(TAG_NULL);
+        } else if( field instanceof Integer ) {
+            buf.put(TAG_INT);
+            buf.putInt(((Integer) field).intValue());
+        } else if( field instanceof Long ) {
+            buf.put(TAG_LONG);
+            buf.putLong(((Long) field).longValue());
+        } else if( field instanceof Index || field instanceof byte[] ) {
+            byte[] bytes = ( field instanceof Index ? ((Index) field).getBytes() : (byte[]) field );
+            int    len   = Math.min(bytes.length, 0xffff);
+            buf.put(TAG_BYTES);
+            buf.putShort((short) len);
+            buf.put(bytes, 0, len);
+        } else if( field instanceof InetSocketAddress &&
+                   ((InetSocketAddress) field).getAddress() != null ) {
+            InetSocketAddress addr  = (InetSocketAddress) field;
+            byte[]            bytes = addr.getAddress().getAddress();
+            buf.put(TAG_ADDRESS);
+            buf.put((byte) bytes.length);
+            buf.put(bytes);
+            buf.putShort((short) addr.getPort());
+        } else {
+            byte[] bytes = field.toString().getBytes(UTF8);
+            int    len   = Math.min(bytes.length, 0xffff);
+            buf.put(TAG_STRING);
+            buf.putShort((short) len);
+            buf.put(bytes, 0, len);
+        }
+    }
+    
+    /**
+     * Map the next chunk of the file, after the last written record.
+     * 
+     * @param need
+     *     Number of bytes needed in the new chunk.
+     * @throws IOException
+     *     If unable to map the file.
+     */
+    private void remap(int need) throws IOException {
+        offset += buffer.position();
+        buffer  = channel.map(FileChannel.MapMode.READ_WRITE, offset, Math.max(chunk, need));
+    }
+    
+    /**
+     * Get the name of the node writing the journal.
+     * 
+     * @return
+     *     Node name.
+     */
+    public String getNode() {
+        return node;
+    }
+    
+    /**
+     * Flush written records to disk.
+     */
+    public synchronized void flush() {
+        if( !closed ) buffer.force();
+    }
+    
+    /**
+     * Close the journal, and truncate the file to the written records.
+     */
+    public synchronized void close() {
+        if( closed ) return;
+        closed = true;
+        try {
+            buffer.force();
+            long length = offset + buffer.position();
+            buffer = null;
+            // unmapped regions are released by the GC, truncate may fail
+            // on some systems while mapped, so just try.
+            try {
+                channel.truncate(length);
+            } catch( IOException e ) {
+                // ignore, the reader stops at the zero length marker.
+            }
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -10,16 +10,25 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Asynchronous log. Entries are put on a lock-free ring buffer by the logging
+ * threads, and formatted and written by a background writer thread, that
+ * flushes once for each batch of entries. If the ring buffer is full, the entry
+ * is dropped and counted. If writing the file fails, the file is closed, and
+ * the entries are only printed.
+ * 
  * @author morimekta
  */
 public class Log {
-    private final int        max_write_queue = 5;
+    private final int        max_write_queue = 1024; // power of 2.
     private BufferedWriter   writer  = null;
 //    private PrintWriter      print   = null;
     private DateFormat       format  = null;
-    private int              count   = 0;
 	/**
      * Get the logging level.
      * 
@@ -51,8 +60,8 @@ public class Log {
 		this.verboseLevel = verbose;
 	}
     
-    private Level            loggingLevel = Level.fatal;
-    private Level            verboseLevel = Level.high;
+    private volatile Level   loggingLevel = Level.fatal;
+    private volatile Level   verboseLevel = Level.high;
     
     /**
      * Levels of logging. Note that the levels "none" and "all" are not for
@@ -107,6 +116,51 @@ public class Log {
         "  ", // LOW
         "[]", // ALL
     };
+    
+    /**
+     * A single log entry waiting to be written.
+     */
+    private static final class Entry {
+        final long   millis;
+        final Level  lvl;
+        final String thread;
+        final String msg;
+        Entry(long _millis, Level _lvl, String _thread, String _msg) {
+            millis = _millis;
+            lvl    = _lvl;
+            thread = _thread;
+            msg    = _msg;
+        }
+    }
+    
+    /*
+     * RING BUFFER
+     *  Bounded multi-producer queue. Each slot has a sequence number telling
+     *  if it is free for the producer at 'tail' (seq == pos), or filled for
+     *  the writer at 'head' (seq == pos+1).
+     */
+    private final Entry[]         ring     = new Entry[max_write_queue];
+    private final AtomicLongArray sequence = new AtomicLongArray(max_write_queue);
+    private final AtomicLong      tail     = new AtomicLong(0);
+    private long                  head     = 0; // writer thread only.
+    
+    private final AtomicLong      dropped  = new AtomicLong(0);
+    private long                  reported = 0; // writer thread only.
+    private boolean               failed   = false; // writer thread only.
+    // logging threads past the 'closed' check.
+    private final AtomicInteger   active   = new AtomicInteger(0);
+    private volatile boolean      waiting  = false;
+    private volatile boolean      closed   = false;
+    
+    /**
+     * Background writer thread (daemon).
+     */
+    private Thread                daemon   = new Thread() {
+        public void run() {
+            writeLoop();
+        }
+    };
+    
     /**
      * Create a log in the file 'name'.
      * 
@@ -129,55 +183,191 @@ public class Log {
             System.err.println("Caught Exception in LogFile: "+e.getMessage());
             e.printStackTrace();
         }
+        for( int i = 0; i < max_write_queue; i++ ) {
+            sequence.set(i, i);
+        }
+        daemon.setDaemon(true);
+        daemon.setName(name+".Writer");
+        daemon.start();
     }
 
     /**
-     * Write an entry in the logfile.
+     * Checks if an entry of the given level will be written anywhere. Use this
+     * before building expensive log messages.
+     * 
+     * @param lvl
+     *     Importance of entry.
+     * @return
+     *     True if the entry would be logged or printed.
+     */
+    public boolean isLoggable(Level lvl) {
+        return lvl.ordinal() <= loggingLevel.ordinal() ||
+               lvl.ordinal() <= verboseLevel.ordinal();
+    }
+    
+    /**
+     * Write an entry in the logfile. The entry is queued, and written by the
+     * background writer.
      * 
      * @param arg0
      *     String to write in logfile.
      * @param lvl
      *     Importance of entry to log. 
      */
-    public synchronized void log(String arg0, Level lvl) {
-        long     millis  = System.currentTimeMillis();
-        String[] lines   = arg0.split("\n");
+    public void log(String arg0, Level lvl) {
+        if( !isLoggable(lvl) ) return;
+        // close() waits for the entries of the active threads.
+        active.incrementAndGet();
+        try {
+            if( closed ) return;
+            
+            Entry entry = new Entry(
+                    Clock.get().millis(), lvl,
+                    Thread.currentThread().getName(), arg0);
+                    
+            long pos = tail.get();
+            for( ;; ) {
+                int  idx = (int) pos & (max_write_queue-1);
+                long dif = sequence.get(idx) - pos;
+                if( dif == 0 ) {
+                    if( tail.compareAndSet(pos, pos+1) ) {
+                        ring[idx] = entry;
+                        sequence.set(idx, pos+1); // publish.
+                        break;
+                    }
+                    pos = tail.get();
+                } else if( dif < 0 ) {
+                    // ring is full.
+                    dropped.incrementAndGet();
+                    return;
+                } else {
+                    pos = tail.get();
+                }
+            }
+        } finally {
+            active.decrementAndGet();
+        }
+        if( waiting ) {
+            LockSupport.unpark(daemon);
+        }
+    }
+    
+    /**
+     * Get the number of log entries dropped because the write queue was full.
+     * 
+     * @return
+     *     Number of dropped entries.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    /**
+     * Take the next entry from the ring buffer. Writer thread only.
+     * 
+     * @return
+     *     The next entry, or null if the ring is empty.
+     */
+    private Entry poll() {
+        int idx = (int) head & (max_write_queue-1);
+        if( sequence.get(idx) != head+1 ) return null;
+        Entry entry = ring[idx];
+        ring[idx]   = null;
+        sequence.set(idx, head+max_write_queue); // free the slot.
+        head++;
+        return entry;
+    }
+    
+    /**
+     * Formats and writes an entry. Writer thread only.
+     * 
+     * @param entry
+     *     Entry to write.
+     */
+    private void write(Entry entry) throws IOException {
+        String[] lines   = entry.msg.split("\n");
         String   part    =
-            format.format(millis)+
-            " ("+OPS[lvl.ordinal()]+") "+
-            Thread.currentThread().getName()+
+            format.format(entry.millis)+
+            " ("+OPS[entry.lvl.ordinal()]+") "+
+            entry.thread+
             ": ";
         for( int i = 0; i < lines.length; i++ ) {
             String str = part+lines[i];
-            if( lvl.ordinal() <= verboseLevel.ordinal() ){
+            if( entry.lvl.ordinal() <= verboseLevel.ordinal() ){
                 System.out.println(str);
             }
-            if( lvl.ordinal() <= loggingLevel.ordinal() ) {
-            	try {
-                    writer.write(str);
-                    writer.newLine();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            if( !failed && entry.lvl.ordinal() <= loggingLevel.ordinal() ) {
+                writer.write(str);
+                writer.newLine();
+            }
+        }
+    }
+    
+    /**
+     * The writer loop. Writes all queued entries, and flushes once per batch.
+     */
+    private void writeLoop() {
+        Entry entry;
+        int   count;
+        for( ;; ) {
+            try {
+                count = 0;
+                while( ( entry = poll() ) != null ) {
+                    write(entry);
+                    count++;
+                }
+                if( reported != dropped.get() ) {
+                    long tmp = dropped.get();
+                    write(new Entry(Clock.get().millis(), Level.warning, daemon.getName(),
+                                    "dropped "+(tmp-reported)+" log entries, write queue full"));
+                    reported = tmp;
+                    count++;
+                }
+                if( count > 0 ) {
+                    if( !failed ) writer.flush();
+                } else if( closed ) {
+                    // all claimed slots are published and written.
+                    if( active.get() == 0 && head == tail.get() ) break;
+                    Thread.yield();
+                } else {
+                    waiting = true;
+                    // check again, in case a producer missed the 'waiting' flag.
+                    if( sequence.get((int) head & (max_write_queue-1)) != head+1 ) {
+                        LockSupport.parkNanos(100*1000*1000);
+                    }
+                    waiting = false;
+                }
+            } catch (IOException e) {
+                // do not retry a failing file on every entry.
+                System.err.println(daemon.getName()+": unable to write log, closing it: "+e.getMessage());
+                failed = true;
+                try {
+                    writer.close();
+                } catch (IOException e2) {
+                    // already failed.
                 }
             }
         }
-        // TODO: Make fewer log entries ??
+        if( failed ) return;
         try {
-            writer.flush();
+            writer.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
     
     /**
-     * Close the log file.
-     *
+     * Close the log file. Waits for the queued entries to be written,
+     * including those of threads logging while it closes.
+     * 
      */
     public void close() {
         log("Closing Log.", Level.low);
+        closed = true;
+        LockSupport.unpark(daemon);
         try {
-            writer.close();
-        } catch (IOException e) {
+            daemon.join();
+        } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
@@ -0,0 +1,309 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of named counters, histograms and gauges. Counters and histograms
+ * are lock free, so they can be updated from the message handlers without
+ * serializing them. Names are dotted, as "lookup.timeout".
+ * 
+ * @author Stein Eldar Johnsen
+ */
+public class Metrics {
+    /**
+     * A monotonic counter.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong(0);
+        
+        /**
+         * Increment the counter by one.
+         */
+        public void inc() {
+            value.incrementAndGet();
+        }
+        
+        /**
+         * Add to the counter.
+         * 
+         * @param n
+         *     Amount to add.
+         */
+        public void add(long n) {
+            value.addAndGet(n);
+        }
+        
+        /**
+         * @return Current value of the counter.
+         */
+        public long get() {
+            return value.get();
+        }
+    }
+    
+    /**
+     * Histogram of non-negative values, with log-linear buckets: each power
+     * of 2 is split into 32 linear sub-buckets, so a percentile is off by
+     * less than 1/32 (about 3%) of the value. Values below 64 are exact.
+     * 
+     * The buckets are kept in rows of 32, one row for the values below 32
+     * and one for each power of 2 above, and a row is only allocated when a
+     * value is recorded in it.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB      = 1 << SUB_BITS;
+        private static final int ROWS     = 64 - SUB_BITS;
+        
+        private final AtomicReferenceArray<AtomicLongArray> rows =
+            new AtomicReferenceArray<AtomicLongArray>(ROWS);
+        private final AtomicLong      count   = new AtomicLong(0);
+        private final AtomicLong      sum     = new AtomicLong(0);
+        private final AtomicLong      max     = new AtomicLong(0);
+        
+        /**
+         * Record a value. Negative values are recorded as 0.
+         * 
+         * @param value
+         *     Value to record.
+         */
+        public void record(long value) {
+            if( value < 0 ) value = 0;
+            int r = row(value);
+            row(r).incrementAndGet(column(value, r));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long tmp;
+            while( value > ( tmp = max.get() ) ) {
+                if( max.compareAndSet(tmp, value) ) break;
+            }
+        }
+        
+        /**
+         * Get the row of a value. Row 0 holds the values below 32, and row r
+         * the values from 2^(r+4) to 2^(r+5) - 1.
+         */
+        private static int row(long value) {
+            if( value < SUB ) return 0;
+            return 63 - Long.numberOfLeadingZeros(value) - ( SUB_BITS - 1 );
+        }
+        
+        /**
+         * Get the sub-bucket of a value in its row.
+         */
+        private static int column(long value, int r) {
+            if( r == 0 ) return (int) value;
+            return (int) ( value >>> ( r - 1 ) ) - SUB;
+        }
+        
+        /**
+         * Get the largest value of a bucket.
+         */
+        private static long upper(int r, int c) {
+            if( r == 0 ) return c;
+            return ( (long) ( SUB + c + 1 ) << ( r - 1 ) ) - 1;
+        }
+        
+        /**
+         * Get a row of buckets, and allocate it if needed.
+         */
+        private AtomicLongArray row(int r) {
+            AtomicLongArray ret = rows.get(r);
+            if( ret == null ) {
+                rows.compareAndSet(r, null, new AtomicLongArray(SUB));
+                ret = rows.get(r);
+            }
+            return ret;
+        }
+        
+        /**
+         * @return Number of recorded values.
+         */
+        public long getCount() {
+            return count.get();
+        }
+        
+        /**
+         * @return Sum of recorded values.
+         */
+        public long getSum() {
+            return sum.get();
+        }
+        
+        /**
+         * @return Largest recorded value.
+         */
+        public long getMax() {
+            return max.get();
+        }
+        
+        /**
+         * Get an estimate of a percentile. The estimate is the upper bound of
+         * the bucket holding the percentile, but no more than the max value,
+         * so it is never below the true percentile and less than 1/32 above.
+         * 
+         * @param p
+         *     Percentile, between 0 and 100.
+         * @return
+         *     Estimated percentile value.
+         */
+        public long getPercentile(double p) {
+            long total = count.get();
+            if( total == 0 ) return 0;
+            long rank = (long) Math.ceil(total * p / 100.0);
+            long seen = 0;
+            for( int r = 0; r < ROWS; r++ ) {
+                AtomicLongArray row = rows.get(r);
+                if( row == null ) continue;
+                for( int c = 0; c < SUB; c++ ) {
+                    seen += row.get(c);
+                    if( seen >= rank && seen > 0 ) return Math.min(upper(r, c), max.get());
+                }
+            }
+            return max.get();
+        }
+        
+        /**
+         * Add the recorded values of another histogram to this one, as to
+         * sum up a histogram over a number of nodes.
+         * 
+         * @param other
+         *     Histogram to add.
+         */
+        public void add(Histogram other) {
+            for( int r = 0; r < ROWS; r++ ) {
+                AtomicLongArray from = other.rows.get(r);
+                if( from == null ) continue;
+                AtomicLongArray to = row(r);
+                for( int c = 0; c < SUB; c++ ) {
+                    long n = from.get(c);
+                    if( n > 0 ) to.addAndGet(c, n);
+                }
+            }
+            count.addAndGet(other.getCount());
+            sum.addAndGet(other.getSum());
+            long value = other.getMax(), tmp;
+            while( value > ( tmp = max.get() ) ) {
+                if( max.compareAndSet(tmp, value) ) break;
+            }
+        }
+    }
+    
+    /**
+     * A value read when the metrics are read, as table sizes.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public interface Gauge {
+        /**
+         * @return Current value of the gauge.
+         */
+        public long value();
+    }
+    
+    private final ConcurrentHashMap<String, Counter>   counters   = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentHashMap<String, Gauge>     gauges     = new ConcurrentHashMap<String, Gauge>();
+    
+    /**
+     * Get a counter, and create it if it does not exist.
+     * 
+     * @param name
+     *     Name of counter.
+     * @return
+     *     The Counter.
+     */
+    public Counter counter(String name) {
+        Counter ret = counters.get(name);
+        if( ret == null ) {
+            Counter tmp = counters.putIfAbsent(name, ret = new Counter());
+            if( tmp != null ) ret = tmp;
+        }
+        return ret;
+    }
+    
+    /**
+     * Get a histogram, and create it if it does not exist.
+     * 
+     * @param name
+     *     Name of histogram.
+     * @return
+     *     The Histogram.
+     */
+    public Histogram histogram(String name) {
+        Histogram ret = histograms.get(name);
+        if( ret == null ) {
+            Histogram tmp = histograms.putIfAbsent(name, ret = new Histogram());
+            if( tmp != null ) ret = tmp;
+        }
+        return ret;
+    }
+    
+    /**
+     * Register a gauge, replacing any gauge with the same name.
+     * 
+     * @param name
+     *     Name of gauge.
+     * @param gauge
+     *     The Gauge.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+    
+    /**
+     * Take a snapshot of all metrics. Histograms are expanded into the
+     * values name.count, name.mean, name.p50, name.p90, name.p99 and
+     * name.max.
+     * 
+     * @return
+     *     Sorted map of metric name to value.
+     */
+    public TreeMap<String, Long> snapshot() {
+        TreeMap<String, Long> ret = new TreeMap<String, Long>();
+        for( Map.Entry<String, Counter> e : counters.entrySet() ) {
+            ret.put(e.getKey(), e.getValue().get());
+        }
+        for( Map.Entry<String, Gauge> e : gauges.entrySet() ) {
+            ret.put(e.getKey(), e.getValue().value());
+        }
+        for( Map.Entry<String, Histogram> e : histograms.entrySet() ) {
+            Histogram h     = e.getValue();
+            long      count = h.getCount();
+            ret.put(e.getKey()+".count", count);
+            ret.put(e.getKey()+".mean",  count == 0 ? 0 : h.getSum() / count);
+            ret.put(e.getKey()+".p50",   h.getPercentile(50));
+            ret.put(e.getKey()+".p90",   h.getPercentile(90));
+            ret.put(e.getKey()+".p99",   h.getPercentile(99));
+            ret.put(e.getKey()+".max",   h.getMax());
+        }
+        return ret;
+    }
+    
+    /**
+     * Make a text dump of a snapshot of all metrics, one "name = value" per
+     * line.
+     * 
+     * @return
+     *     Text dump of metrics.
+     */
+    public String dump() {
+        StringBuffer buf = new StringBuffer();
+        for( Map.Entry<String, Long> e : snapshot().entrySet() ) {
+            buf.append(e.getKey()).append(" = ").append(e.getValue()).append('\n');
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compiled option parser. The option string is compiled once, and the parser
+ * can then be used from any number of threads at once, as parsing only
+ * produces a new immutable Result.
+ * 
+ * Option string format: <code>
+ * "char,name[,argument]"
+ * </code> separated by newlines, the same as for Options.
+ * 
+ * @author Stein Eldar Johnsen
+ * @see net.morimekta.util.std.Options
+ */
+public final class OptionParser {
+    /**
+     * Option char given to unknown options and stray words.
+     */
+    public static final char UNKNOWN = '?';
+    
+    private final HashMap<String, Character> names;
+    private final boolean[]                  known;
+    private final boolean[]                  needs_arg;
+    
+    /**
+     * The parsed options, in the order they were given. The Result is
+     * immutable.
+     * 
+     * @author Stein Eldar Johnsen
+     */
+    public static final class Result {
+        private final char[]   ops;
+        private final String[] args;
+        
+        Result(char[] _ops, String[] _args) {
+            ops  = _ops;
+            args = _args;
+        }
+        
+        /**
+         * @return Number of parsed options.
+         */
+        public int size() {
+            return ops.length;
+        }
+        
+        /**
+         * Get the option char of the i'th parsed option.
+         * 
+         * @param i
+         *     Position of option.
+         * @return
+         *     Option char, or UNKNOWN.
+         */
+        public char getOption(int i) {
+            return ops[i];
+        }
+        
+        /**
+         * Get the argument of the i'th parsed option.
+         * 
+         * @param i
+         *     Position of option.
+         * @return
+         *     Argument, or null if none.
+         */
+        public String getArgument(int i) {
+            return args[i];
+        }
+        
+        /**
+         * Get the position of the last occurence of an option.
+         * 
+         * @param op
+         *     Option char.
+         * @return
+         *     Position of option, or -1 if not given.
+         */
+        public int lastIndexOf(char op) {
+            for( int i = ops.length-1; i >= 0; i-- ) {
+                if( ops[i] == op ) return i;
+            }
+            return -1;
+        }
+        
+        /**
+         * Check if an option was given.
+         * 
+         * @param op
+         *     Option char.
+         * @return
+         *     True if given.
+         */
+        public boolean has(char op) {
+            return lastIndexOf(op) >= 0;
+        }
+        
+        /**
+         * Get the argument of the last occurence of an option.
+         * 
+         * @param op
+         *     Option char.
+         * @return
+         *     Argument, or null if the option was not given or had no
+         *     argument.
+         */
+        public String get(char op) {
+            int i = lastIndexOf(op);
+            return ( i < 0 ? null : args[i] );
+        }
+    }
+    
+    /**
+     * Compile an option string.
+     * 
+     * @param _opts
+     *    Options string to generate parser from.
+     * @throws IllegalArgumentException
+     *    If an option char is not ASCII.
+     */
+    public OptionParser( String _opts ) {
+        names     = new HashMap<String, Character>();
+        known     = new boolean[128];
+        needs_arg = new boolean[128];
+        
+        String[] args, opts = _opts.split("\n");
+        char     c;
+        for( int i = 0; i < opts.length; i++ ) {
+            args = opts[i].split(",");
+            if( args.length < 2 || args[0].length() == 0 ) continue;
+            c            = args[0].charAt(0);
+            if( c >= 128 ) throw new IllegalArgumentException("option char not ascii: "+c);
+            known[c]     = true;
+            needs_arg[c] = args.length > 2;
+            names.put(args[1], c);
+        }
+    }
+    
+    /**
+     * Parse the first line of a string of options. Words are split with
+     * STD.splitString, so quoted arguments are kept whole.
+     * 
+     * @param line
+     *    String with options, or null.
+     * @return
+     *    The parsed options.
+     */
+    public Result parse( String line ) {
+        if( line == null ) return new Result(new char[0], new String[0]);
+        int nl = line.indexOf('\n');
+        if( nl >= 0 ) line = line.substring(0, nl);
+        return parse(STD.splitString(line));
+    }
+    
+    /**
+     * Parse a set of words. Null words are skipped, and "--" ends the
+     * options.
+     * 
+     * @param words
+     *    Words to parse.
+     * @return
+     *    The parsed options.
+     */
+    public Result parse( String[] words ) {
+        ArrayList<Character> ops  = new ArrayList<Character>();
+        ArrayList<String>    args = new ArrayList<String>();
+        Character            op;
+        char                 c;
+        String               arg;
+        
+        int i = 0;
+        while( i < words.length ) {
+            if( words[i] == null ) {
+                // do nothing...
+            } else if( words[i].equals("--") ) {
+                // end of arguments ...
+                break;
+            } else if( words[i].startsWith("--") ) {
+                // long argument.
+                op = names.get(words[i].substring(2));
+                if( op != null ) {
+                    arg = null;
+                    if( needs_arg[op.charValue()] ) {
+                        if( i < (words.length - 1) )
+                            arg = words[i+1];
+                        i++;
+                    }
+                    ops.add(op);
+                    args.add(arg);
+                } else {
+                    ops.add(UNKNOWN);
+                    args.add(words[i]);
+                }
+            } else if( words[i].startsWith("-") ) {
+                // short arg list...
+                for( int j = 1; j < words[i].length(); j++ ) {
+                    c = words[i].charAt(j);
+                    if( c < 128 && known[c] ) {
+                        if( needs_arg[c] &&                 // needs argument
+                            j == ( words[i].length()-1 ) && // last short arg.
+                            i < words.length-1 ) {          // have argument.
+                            i++;
+                            ops.add(c);
+                            args.add(words[i]);
+                            break;
+                        } else {
+                            ops.add(c);
+                            args.add(null);
+                        }
+                    } else {
+                        ops.add(UNKNOWN);
+                        args.add("-"+c);
+                    }
+                }
+            } else if( words[i].length() > 0 ) {
+                // unknown string.
+                ops.add(UNKNOWN);
+                args.add(words[i]);
+            }
+            i++;
+        }
+        
+        char[] ret = new char[ops.size()];
+        for( int j = 0; j < ret.length; j++ ) ret[j] = ops.get(j);
+        return new Result(ret, args.toArray(new String[args.size()]));
+    }
+}
@@ -3,8 +3,6 @@ package net.morimekta.util.std;
  * Created on 07.jan.2005
  */
 
-import java.util.TreeMap;
-
 /**
  * Option string format: <code>
  * "char,name[,argument]"
@@ -16,21 +14,8 @@ public abstract class Options {
     
     public  final static char NOOP = '\0';
     
-    private String[] last_run;
-    private TreeMap<String, Opt> map;
-    private Opt[]   arr;
-    
-    private class Opt {
-        char    c;
-        String  name;
-        boolean arg;
-        
-        Opt( char _c, String _name, boolean _arg ){
-            c        = _c;
-            name     = _name;
-            arg      = _arg;
-        }
-    }
+    private String[]     last_run;
+    private OptionParser parser;
     
     /**
      * Create an Options object instance
@@ -39,41 +24,19 @@ public abstract class Options {
      *    Options string to generate parser from.
      */
     public Options( String _opts ){
-        map = new TreeMap<String, Opt>();
-        arr = new Opt[128];
+        this( new OptionParser(_opts) );
+    }
+    
+    /**
+     * Create an Options object instance from a compiled parser. The parser
+     *  may be shared between several Options objects.
+     * 
+     * @param _parser
+     *    Compiled option parser.
+     */
+    public Options( OptionParser _parser ){
+        parser   = _parser;
         last_run = null;
-        
-        String[] args, opts = _opts.split("\n");
-        Opt      opt;
-        char     c;
-        String   name;
-        boolean  arg;
-        
-        for( int i = 0; i < opts.length; i++ ){
-            args = opts[i].split(",");
-            c    = NOOP;
-            name = null;
-            arg  = false;
-            
-            // parse option args
-            switch( args.length ){
-                default:
-                case 3:
-                    arg    = true;
-                case 2:
-                    name   = args[1];
-                    c      = args[0].charAt(0);
-                    // make opt entry
-                    opt    = new Opt(c, name, arg);
-                    // add to tables.
-                    arr[c] = opt;
-                    map.put(name, opt);
-                    break;
-                case 1:
-                case 0:
-            }
-            
-        }
     }
     
     /**
@@ -88,14 +51,7 @@ public abstract class Options {
      */
     public final void run( String args ){
         if( args == null ) return; // stop if no work..
-    	String[] arg, lines = args.split("\n");
-    	for( int i = 0; i < lines.length; i++ ){
-    		if( lines[i] != null ){
-        		arg = STD.splitString(lines[i]);
-        		run(arg);
-        		return;
-    		}
-    	}
+        run( parser.parse(args) );
     }
     
     /**
@@ -105,61 +61,20 @@ public abstract class Options {
      * @see Options#run(String)
      */
     public final void run( String[] args ){
-        
         last_run = args;
-        Opt      op = null;
-        String   arg;
-        
-        int i = 0;
-        
-        while( i < args.length ){
-            if( args[i] == null ){
-                // do nothing...
-            } else if( args[i].equals("--") ) {
-                // end of arguments ...
-                break;
-            } else if( args[i].startsWith("--") ){ // begin word exists.
-                // long argument.
-                
-                op = (Opt) map.get(args[i].substring(2, args[i].length() ));
-                
-                if( op != null ){
-                    arg = null;
-                    if( op.arg ){
-                        if( i < (args.length - 1) )
-                            arg = args[i+1];
-                        i++;
-                    }
-                    
-                    parse( op.c, arg );
-                } else {
-                    parse( '?', args[i] );
-                }
-            } else if( args[i].startsWith("-") ){
-                // short arg list...
-                for( int j = 1; j < args[i].length(); j++ ){
-                    op = arr[args[i].charAt(j)];
-                    if( op != null ){
-                    	if( op.arg &&                      // needs argument
-                    	    j == ( args[i].length()-1 ) && // last short arg.
-                    	    i < args.length-1){            // have argument.
-                    		i++;
-                    		arg = args[i];
-                    		parse( op.c, arg );
-                    		break;
-                    	} else
-                    		parse( op.c, null );
-                    } else
-                        parse( '?', "-"+args[i].substring(j,j+1) );
-                }
-            } else {
-                // unknown string, if not empty, parse it.
-                if( args[i].length() > 0 )
-                    parse( '?', args[i] );
-            } // end word exists
-            i++;
+        run( parser.parse(args) );
+    }
+    
+    /**
+     * Sends each of the parsed options to the <code>parse</code> method.
+     * 
+     * @param result
+     *    Parsed options.
+     */
+    private void run( OptionParser.Result result ){
+        for( int i = 0; i < result.size(); i++ ){
+            parse( result.getOption(i), result.getArgument(i) );
         }
-        
     }
     
     /**
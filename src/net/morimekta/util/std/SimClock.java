@@ -0,0 +1,594 @@
+/*
+ * Created on Oct 19, 2026
+ */
+package net.morimekta.util.std;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Deterministic virtual time scheduler for simulations. The threads of the
+ * simulation are made by thread() and run one at a time: a thread has the
+ * turn until it waits, sleeps, joins or ends on the clock, and then hands it
+ * to the next ready thread in (time, sequence) order. Time jumps to the time
+ * of that thread, so idle periods (cycle times, timeouts) cost no wall clock
+ * time. As only one thread runs at a time, and all randomness comes from
+ * seeded sources, a run with the same seed makes the same events in the same
+ * order; getDigest() sums up the order of the turns to compare runs.
+ *
+ * A signal on a monitor makes its waiters ready at the current time, in the
+ * order they started waiting, a started thread is ready at the current time,
+ * and a timed wait or sleep is ready at its deadline. The thread that starts
+ * the clock has the first turn.
+ *
+ * A thread must not wait on the clock while holding a monitor that another
+ * thread of the simulation needs, as that thread would then block in the JVM
+ * with the turn. A watchdog looks at the thread with the turn only, and if
+ * it has been blocked for a while, in a monitor or in a wait outside the
+ * clock, reports it and hands the turn on. The blocked thread then runs on
+ * its own when it can, which makes the run not repeatable, see getEscapes().
+ *
+ * @author Stein Eldar Johnsen
+ */
+public class SimClock extends Clock {
+    /**
+     * Wall clock time between the looks of the watchdog, and the number of
+     * looks a thread must be seen blocked before it loses the turn.
+     */
+    private static final long WATCH_NANOS = 20 * 1000 * 1000;
+    private static final int  WATCH_COUNT = 5;
+
+    /**
+     * A thread of the simulation.
+     */
+    private static class Task {
+        final Thread         thread;
+        final Vector<Task>   joiners     = new Vector<Task>();
+        Object               lock        = this; // monitor waited on for the turn.
+        Object               waiting     = null; // monitor waited on for a signal.
+        Task                 joining     = null;
+        long                 gen         = 0;    // events of older generations are void.
+        boolean              suspended   = false;
+        boolean              interrupted = false;
+        volatile boolean     granted     = false;
+
+        Task(Thread _thread) {
+            thread = _thread;
+        }
+    }
+
+    /**
+     * A thread ready to run at a time.
+     */
+    private static class Event implements Comparable<Event> {
+        final long at;
+        final long seq;
+        final long gen;
+        final Task task;
+
+        Event(long _at, long _seq, Task _task) {
+            at   = _at;
+            seq  = _seq;
+            task = _task;
+            gen  = _task.gen;
+        }
+
+        public int compareTo(Event o) {
+            if( at != o.at ) return at < o.at ? -1 : 1;
+            return seq < o.seq ? -1 : ( seq > o.seq ? 1 : 0 );
+        }
+    }
+
+    /**
+     * Thread of the simulation, waits for the first turn and hands the turn
+     * on when it ends.
+     */
+    private class SimThread extends Thread {
+        private final Runnable body;
+
+        SimThread(Runnable _body) {
+            body = _body;
+            // a stopped simulation should not keep the JVM alive.
+            setDaemon(true);
+        }
+
+        SimClock clock() {
+            return SimClock.this;
+        }
+
+        public void run() {
+            Task me = enter(this);
+            try {
+                body.run();
+            } finally {
+                exit(me);
+            }
+        }
+    }
+
+    private final PriorityQueue<Event>               queue   = new PriorityQueue<Event>();
+    private final IdentityHashMap<Object, Vector<Task>> waiters = new IdentityHashMap<Object, Vector<Task>>();
+    private final IdentityHashMap<Thread, Task>      tasks   = new IdentityHashMap<Thread, Task>();
+    private final ThreadLocal<Task>                  self    = new ThreadLocal<Task>();
+    private final Random                             random;
+    private volatile long                            now;
+    private long                                     seq     = 0;
+    private Task                                     running = null;
+    private volatile Thread                          waking  = null;
+    private long                                     turns   = 0;
+    private long                                     jumps   = 0;
+    private long                                     escapes = 0;
+    private long                                     digest  = 0;
+    private Vector<String>                           trace   = null;
+    private volatile boolean                         operate = false;
+
+    /**
+     * Watchdog thread (daemon), not part of the simulation.
+     */
+    private final Thread daemon;
+
+    /**
+     * Create a virtual clock, starting at the current wall clock time.
+     *
+     * @param seed
+     *    Seed of the random source.
+     */
+    public SimClock(long seed) {
+        this(System.currentTimeMillis(), seed);
+    }
+
+    /**
+     * Create a virtual clock.
+     *
+     * @param start
+     *    Start time in milliseconds.
+     * @param seed
+     *    Seed of the random source.
+     */
+    public SimClock(long start, long seed) {
+        now    = start;
+        random = new Random(seed);
+        daemon = new Thread("SimClock.Watchdog") {
+            public void run() {
+                watchLoop();
+            }
+        };
+        daemon.setDaemon(true);
+    }
+
+    /**
+     * Start the simulation, with the calling thread holding the first turn.
+     */
+    public synchronized void start() {
+        if( operate ) return;
+        operate = true;
+        Task me = new Task(Thread.currentThread());
+        me.granted = true;
+        tasks.put(me.thread, me);
+        self.set(me);
+        running = me;
+        daemon.start();
+    }
+
+    /**
+     * Stop the simulation. The calling thread runs on, and the other threads
+     * are left waiting.
+     */
+    public void stop() {
+        synchronized( this ) {
+            operate = false;
+            running = null;
+            tasks.remove(Thread.currentThread());
+        }
+        self.remove();
+        daemon.interrupt();
+        try {
+            daemon.join();
+        } catch (InterruptedException e) {
+            // ignore.
+        }
+    }
+
+    /**
+     * Keep the order of the turns, as "time seq thread" lines.
+     *
+     * @param on
+     *    True to keep the trace from now, false to drop it.
+     */
+    public synchronized void setTrace(boolean on) {
+        trace = ( on ? new Vector<String>() : null );
+    }
+
+    /**
+     * @return The turns kept since setTrace(true), or null.
+     */
+    public synchronized Vector<String> getTrace() {
+        return trace == null ? null : new Vector<String>(trace);
+    }
+
+    /**
+     * @return Hash of the time, sequence and thread name of all turns so far.
+     */
+    public synchronized long getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return Number of turns handed out.
+     */
+    public synchronized long getTurns() {
+        return turns;
+    }
+
+    /**
+     * @return Number of times the clock has jumped forward.
+     */
+    public synchronized long getJumps() {
+        return jumps;
+    }
+
+    /**
+     * @return Number of threads that lost the turn to the watchdog, 0 if the
+     *    run is repeatable.
+     */
+    public synchronized long getEscapes() {
+        return escapes;
+    }
+
+    public long millis() {
+        return now;
+    }
+
+    public long nanos() {
+        return now * 1000000L;
+    }
+
+    public Random random() {
+        return random;
+    }
+
+    public void await(Object monitor, long timeout) throws InterruptedException {
+        if( timeout < 0 ) throw new IllegalArgumentException("timeout value is negative");
+        if( !Thread.holdsLock(monitor) ) throw new IllegalMonitorStateException();
+        Task me = self();
+        synchronized( this ) {
+            interrupted(me);
+            Vector<Task> list = waiters.get(monitor);
+            if( list == null ) {
+                list = new Vector<Task>();
+                waiters.put(monitor, list);
+            }
+            list.add(me);
+            me.waiting = monitor;
+            if( timeout > 0 ) schedule(me, now + timeout);
+        }
+        suspend(me, monitor);
+        synchronized( this ) {
+            interrupted(me);
+        }
+    }
+
+    public void sleep(long millis) throws InterruptedException {
+        Task me = self();
+        synchronized( me ) {
+            synchronized( this ) {
+                interrupted(me);
+                schedule(me, now + Math.max(0, millis));
+            }
+            suspend(me, me);
+        }
+        synchronized( this ) {
+            interrupted(me);
+        }
+    }
+
+    public void signal(Object monitor) {
+        if( !Thread.holdsLock(monitor) ) throw new IllegalMonitorStateException();
+        Task next;
+        synchronized( this ) {
+            Vector<Task> list = waiters.remove(monitor);
+            if( list != null ) {
+                for( Task t : list ) {
+                    t.waiting = null;
+                    schedule(t, now);
+                }
+            }
+            next = idle();
+        }
+        if( next != null ) wake(next);
+    }
+
+    public Thread thread(Runnable body) {
+        return new SimThread(body);
+    }
+
+    public void start(Thread thread) {
+        if( !( thread instanceof SimThread ) || ( (SimThread) thread ).clock() != this ) {
+            throw new IllegalArgumentException(thread.getName()+" is not a thread of the clock");
+        }
+        if( thread.getState() != Thread.State.NEW ) throw new IllegalThreadStateException();
+        Task next;
+        synchronized( this ) {
+            Task t = new Task(thread);
+            tasks.put(thread, t);
+            schedule(t, now);
+            next = idle();
+        }
+        thread.start();
+        if( next != null ) wake(next);
+    }
+
+    public void join(Thread thread) throws InterruptedException {
+        if( !( thread instanceof SimThread ) ) {
+            thread.join();
+            return;
+        }
+        Task me = self();
+        synchronized( me ) {
+            synchronized( this ) {
+                interrupted(me);
+                Task t = tasks.get(thread);
+                // not started, or ended.
+                if( t == null ) return;
+                t.joiners.add(me);
+                me.joining = t;
+            }
+            suspend(me, me);
+        }
+        synchronized( this ) {
+            interrupted(me);
+        }
+    }
+
+    public void interrupt(Thread thread) {
+        Task next;
+        synchronized( this ) {
+            Task t = tasks.get(thread);
+            if( t == null ) return;
+            t.interrupted = true;
+            if( t.suspended && !t.granted ) {
+                if( t.waiting != null ) unwait(t);
+                if( t.joining != null ) {
+                    t.joining.joiners.remove(t);
+                    t.joining = null;
+                }
+                schedule(t, now);
+            }
+            next = idle();
+        }
+        if( next != null ) wake(next);
+    }
+
+    /**
+     * @return The task of the calling thread.
+     */
+    private Task self() {
+        Task me = self.get();
+        if( me == null ) {
+            throw new IllegalStateException(Thread.currentThread().getName()+" is not a thread of the simulation");
+        }
+        return me;
+    }
+
+    /**
+     * Throw if the task is interrupted, and clear it. Called with the lock.
+     */
+    private void interrupted(Task me) throws InterruptedException {
+        if( me.interrupted ) {
+            me.interrupted = false;
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Make a task ready at a time, instead of any earlier time. Called with
+     * the lock.
+     */
+    private void schedule(Task t, long at) {
+        t.gen++;
+        queue.add(new Event(at, ++seq, t));
+    }
+
+    /**
+     * Remove a task from the waiters of its monitor. Called with the lock.
+     */
+    private void unwait(Task t) {
+        Vector<Task> list = waiters.get(t.waiting);
+        if( list != null ) {
+            list.remove(t);
+            if( list.isEmpty() ) waiters.remove(t.waiting);
+        }
+        t.waiting = null;
+    }
+
+    /**
+     * Give the turn to the next ready task, and move the time to it. Called
+     * with the lock.
+     *
+     * @return
+     *    The task given the turn, or null if none is ready.
+     */
+    private Task dispatch() {
+        running = null;
+        if( !operate ) return null;
+        Event e;
+        while( ( e = queue.poll() ) != null ) {
+            Task t = e.task;
+            if( e.gen != t.gen ) continue;
+            if( e.at > now ) {
+                now = e.at;
+                jumps++;
+            }
+            if( t.waiting != null ) unwait(t);
+            t.gen++;
+            t.suspended = false;
+            t.granted   = true;
+            running     = t;
+            turns++;
+            String name = t.thread.getName();
+            digest = ( ( digest * 31 + e.at ) * 31 + e.seq ) * 31 + name.hashCode();
+            if( trace != null ) trace.add(e.at+" "+e.seq+" "+name);
+            return t;
+        }
+        return null;
+    }
+
+    /**
+     * Give the turn away if no one has it, as when a thread outside the
+     * simulation signals. Called with the lock.
+     */
+    private Task idle() {
+        if( running == null && operate ) return dispatch();
+        return null;
+    }
+
+    /**
+     * Wake a task given the turn.
+     */
+    private void wake(Task t) {
+        Object lock = t.lock;
+        waking = Thread.currentThread();
+        synchronized( lock ) {
+            lock.notifyAll();
+        }
+        waking = null;
+    }
+
+    /**
+     * Wait for the turn on a monitor held by the calling thread.
+     */
+    private static void pause(Task me, Object lock) {
+        while( !me.granted ) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                // only interrupted on the clock.
+            }
+        }
+    }
+
+    /**
+     * Hand the turn on and wait for the next, on a monitor held by the
+     * calling thread. The task must be ready at some time, or waiting for a
+     * signal or a join.
+     */
+    private void suspend(Task me, Object lock) {
+        Task next = null;
+        synchronized( this ) {
+            me.granted   = false;
+            me.suspended = true;
+            me.lock      = lock;
+            if( running == me ) next = dispatch();
+        }
+        if( next == me ) return;
+        if( next != null ) wake(next);
+        pause(me, lock);
+    }
+
+    /**
+     * Wait for the first turn of a started thread.
+     */
+    private Task enter(Thread thread) {
+        Task me;
+        synchronized( this ) {
+            me = tasks.get(thread);
+        }
+        self.set(me);
+        synchronized( me ) {
+            pause(me, me);
+        }
+        return me;
+    }
+
+    /**
+     * Hand the turn on from an ended thread, and make its joiners ready.
+     */
+    private void exit(Task me) {
+        Task next = null;
+        synchronized( this ) {
+            tasks.remove(me.thread);
+            for( Task j : me.joiners ) {
+                j.joining = null;
+                schedule(j, now);
+            }
+            me.joiners.clear();
+            if( running == me ) next = dispatch();
+        }
+        self.remove();
+        if( next != null ) wake(next);
+    }
+
+    /**
+     * Check if the thread with the turn is blocked, and not just being woken.
+     */
+    private boolean blocked(Thread thread) {
+        Thread w = waking;
+        if( w != null && w.getState() == Thread.State.RUNNABLE ) return false;
+        Thread.State s = thread.getState();
+        return s == Thread.State.BLOCKED || s == Thread.State.WAITING || s == Thread.State.TIMED_WAITING;
+    }
+
+    /**
+     * Report a task that lost the turn to the watchdog. Called with the lock.
+     */
+    private void escape(Task t) {
+        escapes++;
+        ThreadInfo    info = ManagementFactory.getThreadMXBean().getThreadInfo(t.thread.getId(), 8);
+        StringBuilder msg  = new StringBuilder("SimClock: "+t.thread.getName()+" lost the turn, ");
+        if( info == null ) {
+            msg.append(t.thread.getState());
+        } else {
+            msg.append(info.getThreadState());
+            if( info.getLockName() != null )      msg.append(" on "+info.getLockName());
+            if( info.getLockOwnerName() != null ) msg.append(" held by "+info.getLockOwnerName());
+            for( StackTraceElement e : info.getStackTrace() ) msg.append("\n\tat "+e);
+        }
+        System.err.println(msg);
+    }
+
+    /**
+     * Hand the turn on when the thread with it has been blocked for
+     * WATCH_COUNT looks in a row.
+     */
+    private void watchLoop() {
+        long last  = -1;
+        int  count = 0;
+        while( operate ) {
+            LockSupport.parkNanos(WATCH_NANOS);
+            Task t;
+            long n;
+            synchronized( this ) {
+                t = running;
+                n = turns;
+            }
+            if( t == null || n != last || !blocked(t.thread) ) {
+                last  = n;
+                count = 0;
+                continue;
+            }
+            if( ++count < WATCH_COUNT ) continue;
+            count = 0;
+            final Task next;
+            synchronized( this ) {
+                if( running != t || turns != n ) continue;
+                escape(t);
+                next = dispatch();
+            }
+            if( next == null ) continue;
+            // the monitor of the next may be held too, so the watchdog
+            // must not block on it.
+            Thread waker = new Thread("SimClock.Waker") {
+                public void run() {
+                    wake(next);
+                }
+            };
+            waker.setDaemon(true);
+            waker.start();
+        }
+    }
+}